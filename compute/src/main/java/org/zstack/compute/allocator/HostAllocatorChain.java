@@ -3,7 +3,6 @@ package org.zstack.compute.allocator;
 import org.springframework.beans.factory.annotation.Autowire;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
-import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.allocator.*;
@@ -18,7 +17,6 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
-import javax.persistence.LockModeType;
 import java.util.*;
 
 /**
@@ -48,6 +46,10 @@ public class HostAllocatorChain implements HostAllocatorTrigger, HostAllocatorSt
     private ErrorFacade errf;
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
+    @Autowired
+    private HostCapacityReservationLedger ledger;
 
     public HostAllocatorSpec getAllocationSpec() {
         return allocationSpec;
@@ -73,25 +75,8 @@ public class HostAllocatorChain implements HostAllocatorTrigger, HostAllocatorSt
         this.flows = flows;
     }
 
-    @Transactional
     private boolean reserveCapacity(String hostUuid, long cpu, long memory) {
-        HostCapacityVO vo = dbf.getEntityManager().find(HostCapacityVO.class, hostUuid, LockModeType.PESSIMISTIC_WRITE);
-        if (vo == null) {
-            return false;
-        }
-        long availCpu = vo.getAvailableCpu() - cpu;
-        if (availCpu <= 0) {
-            return false;
-        }
-        vo.setAvailableCpu(availCpu);
-
-        long availMemory = vo.getAvailableMemory() - memory;
-        if (memory <=0 ) {
-            return false;
-        }
-        vo.setAvailableMemory(availMemory);
-        dbf.getEntityManager().merge(vo);
-        return true;
+        return ledger.reserve(hostUuid, cpu, memory);
     }
 
     protected void marshalResult() {
@@ -133,6 +118,7 @@ public class HostAllocatorChain implements HostAllocatorTrigger, HostAllocatorSt
         try {
             for (HostVO h : result) {
                 if (reserveCapacity(h.getUuid(), allocationSpec.getCpuCapacity(), allocationSpec.getMemoryCapacity())) {
+                    capacityIndex.reserve(h.getUuid(), allocationSpec.getCpuCapacity(), allocationSpec.getMemoryCapacity());
                     logger.debug(String.format("[Host Allocation]: successfully reserved cpu[%s HZ], memory[%s bytes] on host[uuid:%s] for vm[uuid:%s]",
                             allocationSpec.getCpuCapacity(), allocationSpec.getMemoryCapacity(), h.getUuid(), allocationSpec.getVmInstance().getUuid()));
                     completion.success(HostInventory.valueOf(h));
@@ -140,6 +126,8 @@ public class HostAllocatorChain implements HostAllocatorTrigger, HostAllocatorSt
                 } else {
                     logger.debug(String.format("[Host Allocation]: unable to reserve cpu[%s HZ], memory[%s bytes] on host[uuid:%s]. try next one",
                             allocationSpec.getCpuCapacity(), allocationSpec.getMemoryCapacity(), h.getUuid()));
+                    // the index thought the host had enough capacity
+                    capacityIndex.refresh(h.getUuid());
                 }
             }
 
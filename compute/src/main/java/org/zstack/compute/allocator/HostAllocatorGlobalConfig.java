@@ -20,4 +20,12 @@ public class HostAllocatorGlobalConfig {
     public static GlobalConfig USE_PAGINATION = new GlobalConfig(CATEGORY, "usePagination");
     @GlobalConfigValidation
     public static GlobalConfig PAGINATION_LIMIT = new GlobalConfig(CATEGORY, "paginationLimit");
+    @GlobalConfigValidation
+    public static GlobalConfig OPTIMISTIC_RESERVATION = new GlobalConfig(CATEGORY, "optimisticReservation");
+    @GlobalConfigValidation(numberGreaterThan = -1)
+    public static GlobalConfig OPTIMISTIC_RESERVATION_RETRY_TIMES = new GlobalConfig(CATEGORY, "optimisticReservation.retryTimes");
+    @GlobalConfigValidation
+    public static GlobalConfig CAPACITY_INDEX_ENABLE = new GlobalConfig(CATEGORY, "capacityIndex.enable");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig CAPACITY_INDEX_RECONCILE_INTERVAL = new GlobalConfig(CATEGORY, "capacityIndex.reconcileInterval");
 }
@@ -41,6 +41,10 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
 	private PluginRegistry pluginRgty;
     @Autowired
     private HostCapacityReserveManager reserveMgr;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
+    @Autowired
+    private HostCapacityReservationLedger ledger;
 
 	@Override
     @MessageSafe
@@ -66,6 +70,7 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
 
 	private void handle(ReturnHostCapacityMsg msg) {
 	    returnCapacity(msg.getHost().getUuid(), msg.getCpuCapacity(), msg.getMemoryCapacity());
+        capacityIndex.release(msg.getHost().getUuid(), msg.getCpuCapacity(), msg.getMemoryCapacity());
     }
 
     private void handle(ReportHostCapacityMessage msg) {
@@ -85,11 +90,14 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
         long availMem = msg.getTotalMemory() - msg.getUsedMemory();
         availMem = availMem > 0 ? availMem : 0;
         vo.setAvailableMemory(availMem);
+        vo.setVersion(vo.getVersion() + 1);
         if (persist) {
             dbf.persist(vo);
         } else {
             dbf.update(vo);
         }
+
+        capacityIndex.refresh(msg.getHostUuid());
     }
 
 	private void handle(final AllocateHostMsg msg) {
@@ -242,8 +250,24 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
 	}
 	
 	@Override
-	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void returnCapacity(String hostUuid, long cpu, long memory) {
+        if (!HostAllocatorGlobalConfig.OPTIMISTIC_RESERVATION.value(Boolean.class)) {
+            returnCapacityPessimistically(hostUuid, cpu, memory);
+            return;
+        }
+
+        // the version checked update must not run in a transaction, or retries would read the same snapshot;
+        // that's why the caller's transaction is suspended
+        if (ledger.returnOptimistically(hostUuid, cpu, memory)) {
+            logger.debug(String.format("Successfully returned cpu[%s HZ], memory[%s bytes] to host[uuid:%s]", cpu, memory, hostUuid));
+        } else {
+            logger.warn(String.format("Unable to return cpu[%s], memory[%s] to host[uuid:%s], it may have been deleted", cpu, memory, hostUuid));
+        }
+    }
+
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+    private void returnCapacityPessimistically(String hostUuid, long cpu, long memory) {
 		HostCapacityVO vo = dbf.getEntityManager().find(HostCapacityVO.class, hostUuid, LockModeType.PESSIMISTIC_WRITE);
 		if (vo == null) {
 			logger.warn(String.format("Unable to return cpu[%s], memory[%s] to host[uuid:%s], it may have been deleted", cpu, memory, hostUuid));
@@ -257,6 +281,7 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
         long availMemory = vo.getAvailableMemory() + memory;
         availMemory = availMemory > vo.getTotalMemory() ? vo.getTotalMemory() : availMemory;
         vo.setAvailableMemory(availMemory);
+        vo.setVersion(vo.getVersion() + 1);
 
 		dbf.getEntityManager().merge(vo);
 		logger.debug(String.format("Successfully returned cpu[%s HZ], memory[%s bytes] to host[uuid:%s]", cpu, memory, hostUuid));
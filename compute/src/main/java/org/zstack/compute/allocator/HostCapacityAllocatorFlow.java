@@ -21,6 +21,8 @@ public class HostCapacityAllocatorFlow extends AbstractHostAllocatorFlow {
     private DatabaseFacade dbf;
     @Autowired
     private HostCapacityReserveManager reserveMgr;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
 
 	@Transactional(readOnly = true)
 	private List<HostVO> allocate(long cpu, long memory) {
@@ -48,15 +50,68 @@ public class HostCapacityAllocatorFlow extends AbstractHostAllocatorFlow {
         return ret;
 	}
 
-    @Override
-    public void allocate() {
+    private List<HostVO> allocateByIndex(long cpu, long memory) {
+        List<String> huuids = capacityIndex.getHostUuidsHavingCapacity(cpu, memory);
+        if (usePagination()) {
+            int from = Math.min(paginationInfo.getOffset(), huuids.size());
+            int to = Math.min(from + paginationInfo.getLimit(), huuids.size());
+            huuids = huuids.subList(from, to);
+        }
+
+        if (huuids.isEmpty()) {
+            return new ArrayList<HostVO>();
+        }
+
+        return dbf.listByPrimaryKeys(huuids, HostVO.class);
+    }
+
+    private List<HostVO> allocateByIndex(List<HostVO> vos, long cpu, long memory) {
+        List<HostVO> ret = new ArrayList<HostVO>();
+        List<HostVO> notIndexed = new ArrayList<HostVO>();
+        for (HostVO hvo : vos) {
+            if (!capacityIndex.isIndexed(hvo.getUuid())) {
+                notIndexed.add(hvo);
+            } else if (capacityIndex.hasCapacity(hvo.getUuid(), cpu, memory)) {
+                ret.add(hvo);
+            }
+        }
+
+        if (!notIndexed.isEmpty()) {
+            // hosts added after the last reconciliation
+            ret.addAll(reserveMgr.filterOutHostsByReservedCapacity(allocate(notIndexed, cpu, memory), cpu, memory));
+        }
+
+        return ret;
+    }
+
+    private List<HostVO> allocateByDatabase() {
+        List<HostVO> ret;
         if (amITheFirstFlow()) {
-            candidates = allocate(spec.getCpuCapacity(), spec.getMemoryCapacity());
+            ret = allocate(spec.getCpuCapacity(), spec.getMemoryCapacity());
         } else {
-            candidates = allocate(candidates, spec.getCpuCapacity(), spec.getMemoryCapacity());
+            ret = allocate(candidates, spec.getCpuCapacity(), spec.getMemoryCapacity());
+        }
+
+        return reserveMgr.filterOutHostsByReservedCapacity(ret, spec.getCpuCapacity(), spec.getMemoryCapacity());
+    }
+
+    @Override
+    public void allocate() {
+        List<HostVO> ret = null;
+        if (capacityIndex.isEnabled()) {
+            if (amITheFirstFlow()) {
+                ret = allocateByIndex(spec.getCpuCapacity(), spec.getMemoryCapacity());
+            } else {
+                ret = allocateByIndex(candidates, spec.getCpuCapacity(), spec.getMemoryCapacity());
+            }
+        }
+
+        if (ret == null || ret.isEmpty()) {
+            // the index may miss capacity returned on other management nodes, the database has the final say
+            ret = allocateByDatabase();
         }
 
-        candidates = reserveMgr.filterOutHostsByReservedCapacity(candidates, spec.getCpuCapacity(), spec.getMemoryCapacity());
+        candidates = ret;
 
         if (candidates.isEmpty()) {
             fail(String.format("no host having cpu[%s HZ], memory[%s bytes] found",
@@ -0,0 +1,38 @@
+package org.zstack.compute.allocator;
+
+import java.util.List;
+
+/**
+ * per management node in-memory view of HostCapacityVO, reserved capacity and vm number of hosts.
+ *
+ * The database is always the authority; HostAllocatorChain still reserves capacity with a
+ * locked row, the index only lets allocator flows filter and rank candidates without queries.
+ */
+public interface HostCapacityIndex {
+    boolean isEnabled();
+
+    /**
+     * @return uuids of hosts whose available capacity minus reserved capacity can satisfy the request,
+     * sorted by uuid so pagination is stable
+     */
+    List<String> getHostUuidsHavingCapacity(long cpu, long memory);
+
+    boolean isIndexed(String hostUuid);
+
+    boolean hasCapacity(String hostUuid, long cpu, long memory);
+
+    /**
+     * @return number of vms on the host or -1 if the host is not indexed
+     */
+    long getVmNumber(String hostUuid);
+
+    void reserve(String hostUuid, long cpu, long memory);
+
+    void release(String hostUuid, long cpu, long memory);
+
+    void refresh(String hostUuid);
+
+    void remove(String hostUuid);
+
+    void rebuild();
+}
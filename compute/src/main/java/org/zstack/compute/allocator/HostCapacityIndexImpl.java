@@ -0,0 +1,301 @@
+package org.zstack.compute.allocator;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.Platform;
+import org.zstack.core.config.GlobalConfig;
+import org.zstack.core.config.GlobalConfigUpdateExtensionPoint;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.allocator.HostCapacityVO;
+import org.zstack.header.allocator.ReservedHostCapacity;
+import org.zstack.header.host.HostDeleteExtensionPoint;
+import org.zstack.header.host.HostException;
+import org.zstack.header.host.HostInventory;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HostAllocatorService is a local service, every management node allocates hosts on its own, so reservations made
+ * by other nodes are only seen after the next reconciliation. That's fine as the index is only used to pick candidates:
+ * a stale entry either makes the locked reservation fail and the chain tries the next host (the entry is refreshed then),
+ * or filters out a host that has capacity, in which case HostCapacityAllocatorFlow falls back to the database when
+ * nothing is left.
+ */
+public class HostCapacityIndexImpl implements HostCapacityIndex, Component, HostDeleteExtensionPoint {
+    private static final CLogger logger = Utils.getLogger(HostCapacityIndexImpl.class);
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private HostCapacityReserveManager reserveMgr;
+
+    private volatile ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private Future<Void> reconcileTask;
+
+    private static class Entry {
+        final String hostUuid;
+        long totalCpu;
+        long availableCpu;
+        long totalMemory;
+        long availableMemory;
+        long reservedCpu;
+        long reservedMemory;
+        long vmNum;
+
+        Entry(String hostUuid) {
+            this.hostUuid = hostUuid;
+        }
+
+        synchronized boolean hasCapacity(long cpu, long memory) {
+            return availableCpu - reservedCpu >= cpu && availableMemory - reservedMemory >= memory;
+        }
+
+        synchronized long getVmNum() {
+            return vmNum;
+        }
+
+        synchronized void reserve(long cpu, long memory) {
+            availableCpu = Math.max(availableCpu - cpu, 0);
+            availableMemory = Math.max(availableMemory - memory, 0);
+            vmNum ++;
+        }
+
+        synchronized void release(long cpu, long memory) {
+            availableCpu = Math.min(availableCpu + cpu, totalCpu);
+            availableMemory = Math.min(availableMemory + memory, totalMemory);
+            vmNum = Math.max(vmNum - 1, 0);
+        }
+    }
+
+    private class Reconciler implements PeriodicTask {
+        @Override
+        public TimeUnit getTimeUnit() {
+            return TimeUnit.SECONDS;
+        }
+
+        @Override
+        public long getInterval() {
+            return HostAllocatorGlobalConfig.CAPACITY_INDEX_RECONCILE_INTERVAL.value(Long.class);
+        }
+
+        @Override
+        public String getName() {
+            return "host-capacity-index-reconciler-" + Platform.getManagementServerId();
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (isEnabled()) {
+                    rebuild();
+                }
+            } catch (Throwable t) {
+                logger.warn("unhandled exception when reconciling host capacity index", t);
+            }
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return HostAllocatorGlobalConfig.CAPACITY_INDEX_ENABLE.value(Boolean.class);
+    }
+
+    @Override
+    public List<String> getHostUuidsHavingCapacity(long cpu, long memory) {
+        List<String> ret = new ArrayList<String>();
+        for (Entry e : entries.values()) {
+            if (e.hasCapacity(cpu, memory)) {
+                ret.add(e.hostUuid);
+            }
+        }
+
+        Collections.sort(ret);
+        return ret;
+    }
+
+    @Override
+    public boolean isIndexed(String hostUuid) {
+        return entries.containsKey(hostUuid);
+    }
+
+    @Override
+    public boolean hasCapacity(String hostUuid, long cpu, long memory) {
+        Entry e = entries.get(hostUuid);
+        return e != null && e.hasCapacity(cpu, memory);
+    }
+
+    @Override
+    public long getVmNumber(String hostUuid) {
+        Entry e = entries.get(hostUuid);
+        return e == null ? -1 : e.getVmNum();
+    }
+
+    @Override
+    public void reserve(String hostUuid, long cpu, long memory) {
+        Entry e = entries.get(hostUuid);
+        if (e != null) {
+            e.reserve(cpu, memory);
+        }
+    }
+
+    @Override
+    public void release(String hostUuid, long cpu, long memory) {
+        Entry e = entries.get(hostUuid);
+        if (e != null) {
+            e.release(cpu, memory);
+        }
+    }
+
+    @Transactional(readOnly = true)
+    private Map<String, Long> countVms(List<String> hostUuids) {
+        String sql = "select vm.hostUuid, count(vm) from VmInstanceVO vm where vm.hostUuid is not null group by vm.hostUuid";
+        if (hostUuids != null) {
+            sql = "select vm.hostUuid, count(vm) from VmInstanceVO vm where vm.hostUuid in (:huuids) group by vm.hostUuid";
+        }
+
+        TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+        if (hostUuids != null) {
+            q.setParameter("huuids", hostUuids);
+        }
+
+        Map<String, Long> ret = new HashMap<String, Long>();
+        for (Tuple t : q.getResultList()) {
+            ret.put(t.get(0, String.class), t.get(1, Long.class));
+        }
+        return ret;
+    }
+
+    private Map<String, Entry> load(List<HostCapacityVO> vos) {
+        Map<String, Entry> ret = new HashMap<String, Entry>(vos.size());
+        if (vos.isEmpty()) {
+            return ret;
+        }
+
+        List<String> huuids = new ArrayList<String>(vos.size());
+        for (HostCapacityVO vo : vos) {
+            huuids.add(vo.getUuid());
+        }
+
+        // the finder consumes the list it's given
+        Map<String, ReservedHostCapacity> reserves = reserveMgr.getReservedHostCapacityPerHost(new ArrayList<String>(huuids));
+        Map<String, Long> vmNums = countVms(vos.size() == 1 ? huuids : null);
+
+        for (HostCapacityVO vo : vos) {
+            Entry e = new Entry(vo.getUuid());
+            e.totalCpu = vo.getTotalCpu();
+            e.availableCpu = vo.getAvailableCpu();
+            e.totalMemory = vo.getTotalMemory();
+            e.availableMemory = vo.getAvailableMemory();
+            ReservedHostCapacity rc = reserves.get(vo.getUuid());
+            if (rc != null) {
+                e.reservedCpu = rc.getReservedCpuCapacity();
+                e.reservedMemory = rc.getReservedMemoryCapacity();
+            }
+            Long num = vmNums.get(vo.getUuid());
+            e.vmNum = num == null ? 0 : num;
+            ret.put(e.hostUuid, e);
+        }
+
+        return ret;
+    }
+
+    @Override
+    public void refresh(String hostUuid) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        HostCapacityVO vo = dbf.findByUuid(hostUuid, HostCapacityVO.class);
+        if (vo == null) {
+            entries.remove(hostUuid);
+            return;
+        }
+
+        entries.putAll(load(Arrays.asList(vo)));
+    }
+
+    @Override
+    public void remove(String hostUuid) {
+        entries.remove(hostUuid);
+    }
+
+    @Override
+    public synchronized void rebuild() {
+        long start = System.currentTimeMillis();
+        ConcurrentHashMap<String, Entry> newEntries = new ConcurrentHashMap<String, Entry>(load(dbf.listAll(HostCapacityVO.class)));
+        // changes made between loading and swapping are lost, the next round will pick them up
+        entries = newEntries;
+        logger.debug(String.format("rebuilt host capacity index of %s hosts in %s ms", newEntries.size(), System.currentTimeMillis() - start));
+    }
+
+    private void startReconciler() {
+        if (reconcileTask != null) {
+            reconcileTask.cancel(true);
+        }
+
+        reconcileTask = thdf.submitPeriodicTask(new Reconciler());
+    }
+
+    @Override
+    public boolean start() {
+        if (isEnabled()) {
+            rebuild();
+        }
+        startReconciler();
+
+        HostAllocatorGlobalConfig.CAPACITY_INDEX_RECONCILE_INTERVAL.installUpdateExtension(new GlobalConfigUpdateExtensionPoint() {
+            @Override
+            public void updateGlobalConfig(GlobalConfig oldConfig, GlobalConfig newConfig) {
+                logger.debug(String.format("%s change from %s to %s, restart host capacity index reconciler",
+                        oldConfig.getCanonicalName(), oldConfig.value(), newConfig.value()));
+                startReconciler();
+            }
+        });
+
+        HostAllocatorGlobalConfig.CAPACITY_INDEX_ENABLE.installUpdateExtension(new GlobalConfigUpdateExtensionPoint() {
+            @Override
+            public void updateGlobalConfig(GlobalConfig oldConfig, GlobalConfig newConfig) {
+                if (newConfig.value(Boolean.class)) {
+                    rebuild();
+                } else {
+                    entries = new ConcurrentHashMap<String, Entry>();
+                }
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (reconcileTask != null) {
+            reconcileTask.cancel(true);
+        }
+        return true;
+    }
+
+    @Override
+    public void preDeleteHost(HostInventory inventory) throws HostException {
+    }
+
+    @Override
+    public void beforeDeleteHost(HostInventory inventory) {
+    }
+
+    @Override
+    public void afterDeleteHost(HostInventory inventory) {
+        remove(inventory.getUuid());
+    }
+}
@@ -0,0 +1,325 @@
+package org.zstack.compute.allocator;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.jmx.JmxFacade;
+import org.zstack.header.Component;
+import org.zstack.header.allocator.HostCapacityVO;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * reserves and returns host capacity.
+ *
+ * In pessimistic mode the HostCapacityVO row is locked by SELECT ... FOR UPDATE, which serializes all allocations
+ * on a host and deadlocks easily when many VMs start on the same cluster. In optimistic mode (hostAllocator.optimisticReservation)
+ * the row is changed by an UPDATE conditioned on the capacity and the version read before; when another writer wins,
+ * the row is read again and the update retried up to hostAllocator.optimisticReservation.retryTimes before falling back
+ * to the locked path.
+ *
+ * Reservations for the same host in this management node are queued in a ledger striped by host uuid; the first thread
+ * drains the queue and applies all queued reservations in one conditional update, so concurrent reservations from this
+ * node never conflict with each other.
+ */
+public class HostCapacityReservationLedger implements Component, HostCapacityReservationMXBean {
+    private static final CLogger logger = Utils.getLogger(HostCapacityReservationLedger.class);
+
+    private static final int STRIPE_NUM = 64;
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private JmxFacade jmxf;
+
+    private final Stripe[] stripes = new Stripe[STRIPE_NUM];
+
+    private final AtomicLong optimisticReservations = new AtomicLong();
+    private final AtomicLong coalescedReservations = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong pessimisticFallbacks = new AtomicLong();
+
+    private static class Reservation {
+        final long cpu;
+        final long memory;
+        boolean done;
+        boolean success;
+
+        Reservation(long cpu, long memory) {
+            this.cpu = cpu;
+            this.memory = memory;
+        }
+    }
+
+    private static class Stripe {
+        final Map<String, List<Reservation>> pending = new HashMap<String, List<Reservation>>();
+        final Set<String> busyHosts = new HashSet<String>();
+    }
+
+    private enum UpdateResult {
+        SUCCESS,
+        NO_CAPACITY,
+        CONFLICT
+    }
+
+    public HostCapacityReservationLedger() {
+        for (int i = 0; i < STRIPE_NUM; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe getStripe(String hostUuid) {
+        return stripes[(hostUuid.hashCode() & 0x7fffffff) % STRIPE_NUM];
+    }
+
+    private boolean isOptimistic() {
+        return HostAllocatorGlobalConfig.OPTIMISTIC_RESERVATION.value(Boolean.class);
+    }
+
+    @Transactional
+    private boolean reservePessimistically(String hostUuid, long cpu, long memory) {
+        HostCapacityVO vo = dbf.getEntityManager().find(HostCapacityVO.class, hostUuid, LockModeType.PESSIMISTIC_WRITE);
+        if (vo == null) {
+            return false;
+        }
+        long availCpu = vo.getAvailableCpu() - cpu;
+        if (availCpu <= 0) {
+            return false;
+        }
+        vo.setAvailableCpu(availCpu);
+
+        long availMemory = vo.getAvailableMemory() - memory;
+        if (availMemory < 0) {
+            return false;
+        }
+        vo.setAvailableMemory(availMemory);
+        vo.setVersion(vo.getVersion() + 1);
+        dbf.getEntityManager().merge(vo);
+        return true;
+    }
+
+    @Transactional
+    private int conditionalUpdate(String hostUuid, long cpu, long memory, long version) {
+        String sql = "update HostCapacityVO c set c.availableCpu = c.availableCpu - :cpu, c.availableMemory = c.availableMemory - :memory, c.version = c.version + 1" +
+                " where c.uuid = :uuid and c.availableCpu >= :cpu and c.availableMemory >= :memory and c.version = :version";
+        Query q = dbf.getEntityManager().createQuery(sql);
+        q.setParameter("cpu", cpu);
+        q.setParameter("memory", memory);
+        q.setParameter("uuid", hostUuid);
+        q.setParameter("version", version);
+        return q.executeUpdate();
+    }
+
+    @Transactional
+    private int conditionalSet(String hostUuid, long availableCpu, long availableMemory, long version) {
+        String sql = "update HostCapacityVO c set c.availableCpu = :cpu, c.availableMemory = :memory, c.version = c.version + 1" +
+                " where c.uuid = :uuid and c.version = :version";
+        Query q = dbf.getEntityManager().createQuery(sql);
+        q.setParameter("cpu", availableCpu);
+        q.setParameter("memory", availableMemory);
+        q.setParameter("uuid", hostUuid);
+        q.setParameter("version", version);
+        return q.executeUpdate();
+    }
+
+    private UpdateResult tryReserve(String hostUuid, long cpu, long memory) {
+        int retryTimes = HostAllocatorGlobalConfig.OPTIMISTIC_RESERVATION_RETRY_TIMES.value(Integer.class);
+        for (int i = 0; i <= retryTimes; i++) {
+            if (i > 0) {
+                retries.incrementAndGet();
+            }
+
+            HostCapacityVO vo = dbf.findByUuid(hostUuid, HostCapacityVO.class);
+            if (vo == null || vo.getAvailableCpu() < cpu || vo.getAvailableMemory() < memory) {
+                return UpdateResult.NO_CAPACITY;
+            }
+
+            if (conditionalUpdate(hostUuid, cpu, memory, vo.getVersion()) == 1) {
+                return UpdateResult.SUCCESS;
+            }
+
+            conflicts.incrementAndGet();
+        }
+
+        return UpdateResult.CONFLICT;
+    }
+
+    private boolean reserveOne(String hostUuid, long cpu, long memory) {
+        UpdateResult ret = tryReserve(hostUuid, cpu, memory);
+        if (ret == UpdateResult.CONFLICT) {
+            logger.debug(String.format("optimistic reservation on host[uuid:%s] conflicted too many times, fall back to locking the row", hostUuid));
+            pessimisticFallbacks.incrementAndGet();
+            return reservePessimistically(hostUuid, cpu, memory);
+        }
+
+        return ret == UpdateResult.SUCCESS;
+    }
+
+    private void apply(String hostUuid, List<Reservation> batch) {
+        if (batch.size() > 1) {
+            long cpu = 0;
+            long memory = 0;
+            for (Reservation r : batch) {
+                cpu += r.cpu;
+                memory += r.memory;
+            }
+
+            if (tryReserve(hostUuid, cpu, memory) == UpdateResult.SUCCESS) {
+                coalescedReservations.addAndGet(batch.size());
+                for (Reservation r : batch) {
+                    r.success = true;
+                }
+                return;
+            }
+        }
+
+        // the host can't hold all of them, or there is only one
+        for (Reservation r : batch) {
+            r.success = reserveOne(hostUuid, r.cpu, r.memory);
+        }
+    }
+
+    private boolean reserveOptimistically(String hostUuid, long cpu, long memory) {
+        optimisticReservations.incrementAndGet();
+
+        Stripe stripe = getStripe(hostUuid);
+        Reservation me = new Reservation(cpu, memory);
+        List<Reservation> batch = null;
+
+        synchronized (stripe) {
+            List<Reservation> queue = stripe.pending.get(hostUuid);
+            if (queue == null) {
+                queue = new ArrayList<Reservation>();
+                stripe.pending.put(hostUuid, queue);
+            }
+            queue.add(me);
+
+            while (!me.done) {
+                if (!stripe.busyHosts.contains(hostUuid)) {
+                    // become the one applying the queue of the host
+                    stripe.busyHosts.add(hostUuid);
+                    batch = stripe.pending.remove(hostUuid);
+                    break;
+                }
+
+                try {
+                    stripe.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        if (batch == null) {
+            // applied by another thread
+            return me.success;
+        }
+
+        try {
+            apply(hostUuid, batch);
+        } finally {
+            synchronized (stripe) {
+                for (Reservation r : batch) {
+                    r.done = true;
+                }
+                stripe.busyHosts.remove(hostUuid);
+                stripe.notifyAll();
+            }
+        }
+
+        return me.success;
+    }
+
+    public boolean reserve(String hostUuid, long cpu, long memory) {
+        if (isOptimistic()) {
+            return reserveOptimistically(hostUuid, cpu, memory);
+        } else {
+            return reservePessimistically(hostUuid, cpu, memory);
+        }
+    }
+
+    /**
+     * @return false if the host has been deleted
+     */
+    public boolean returnOptimistically(String hostUuid, long cpu, long memory) {
+        int retryTimes = HostAllocatorGlobalConfig.OPTIMISTIC_RESERVATION_RETRY_TIMES.value(Integer.class);
+        for (int i = 0; i <= retryTimes; i++) {
+            if (i > 0) {
+                retries.incrementAndGet();
+            }
+
+            HostCapacityVO vo = dbf.findByUuid(hostUuid, HostCapacityVO.class);
+            if (vo == null) {
+                return false;
+            }
+
+            long availCpu = Math.min(vo.getAvailableCpu() + cpu, vo.getTotalCpu());
+            long availMemory = Math.min(vo.getAvailableMemory() + memory, vo.getTotalMemory());
+            if (conditionalSet(hostUuid, availCpu, availMemory, vo.getVersion()) == 1) {
+                return true;
+            }
+
+            conflicts.incrementAndGet();
+        }
+
+        logger.debug(String.format("optimistic return on host[uuid:%s] conflicted too many times, fall back to locking the row", hostUuid));
+        pessimisticFallbacks.incrementAndGet();
+        return returnPessimistically(hostUuid, cpu, memory);
+    }
+
+    @Transactional
+    private boolean returnPessimistically(String hostUuid, long cpu, long memory) {
+        HostCapacityVO vo = dbf.getEntityManager().find(HostCapacityVO.class, hostUuid, LockModeType.PESSIMISTIC_WRITE);
+        if (vo == null) {
+            return false;
+        }
+
+        vo.setAvailableCpu(Math.min(vo.getAvailableCpu() + cpu, vo.getTotalCpu()));
+        vo.setAvailableMemory(Math.min(vo.getAvailableMemory() + memory, vo.getTotalMemory()));
+        vo.setVersion(vo.getVersion() + 1);
+        dbf.getEntityManager().merge(vo);
+        return true;
+    }
+
+    @Override
+    public long getOptimisticReservations() {
+        return optimisticReservations.get();
+    }
+
+    @Override
+    public long getCoalescedReservations() {
+        return coalescedReservations.get();
+    }
+
+    @Override
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getPessimisticFallbacks() {
+        return pessimisticFallbacks.get();
+    }
+
+    @Override
+    public boolean start() {
+        jmxf.registerBean("HostCapacityReservation", this);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+}
@@ -0,0 +1,15 @@
+package org.zstack.compute.allocator;
+
+/**
+ */
+public interface HostCapacityReservationMXBean {
+    long getOptimisticReservations();
+
+    long getCoalescedReservations();
+
+    long getConflicts();
+
+    long getRetries();
+
+    long getPessimisticFallbacks();
+}
@@ -360,4 +360,11 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
         finder.hostUuids = hostUuids;
         return finder.find().values().iterator().next();
     }
+
+    @Override
+    public Map<String, ReservedHostCapacity> getReservedHostCapacityPerHost(List<String> hostUuids) {
+        ReservedCapacityFinder finder = new ReservedCapacityFinder();
+        finder.hostUuids = hostUuids;
+        return finder.find();
+    }
 }
@@ -23,6 +23,8 @@ import java.util.Map;
 public class LeastVmPreferredAllocatorFlow extends AbstractHostAllocatorFlow {
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
 
     class VmNumHost {
         long vmNum;
@@ -37,11 +39,48 @@ public class LeastVmPreferredAllocatorFlow extends AbstractHostAllocatorFlow {
         return q.getResultList();
     }
 
+    private String findLeastVmHostByIndex(List<String> huuids) {
+        long min = Long.MAX_VALUE;
+        String ret = null;
+        for (String huuid : huuids) {
+            long num = capacityIndex.getVmNumber(huuid);
+            if (num == -1) {
+                return null;
+            }
+
+            if (num < min) {
+                min = num;
+                ret = huuid;
+            }
+        }
+
+        return ret;
+    }
+
+    private void pick(final String hostUuid) {
+        HostVO target = CollectionUtils.find(candidates, new Function<HostVO, HostVO>() {
+            @Override
+            public HostVO call(HostVO arg) {
+                return arg.getUuid().equals(hostUuid) ? arg : null;
+            }
+        });
+
+        next(CollectionDSL.list(target));
+    }
+
     @Override
     public void allocate() {
         throwExceptionIfIAmTheFirstFlow();
 
         List<String> huuids = getHostUuidsFromCandidates();
+        if (capacityIndex.isEnabled()) {
+            String huuid = findLeastVmHostByIndex(huuids);
+            if (huuid != null) {
+                pick(huuid);
+                return;
+            }
+        }
+
         List<Tuple> tuples = findLeastVmHost(huuids);
 
         // no VM running on host
@@ -80,14 +119,6 @@ public class LeastVmPreferredAllocatorFlow extends AbstractHostAllocatorFlow {
             }
         }
 
-        final String finalHuuid = huuid;
-        HostVO target = CollectionUtils.find(candidates, new Function<HostVO, HostVO>() {
-            @Override
-            public HostVO call(HostVO arg) {
-                return arg.getUuid().equals(finalHuuid) ? arg : null;
-            }
-        });
-
-        next(CollectionDSL.list(target));
+        pick(huuid);
     }
 }
@@ -21,5 +21,11 @@ public class HostGlobalConfig {
     @GlobalConfigValidation(numberGreaterThan = 0)
     public static GlobalConfig PING_HOST_INTERVAL = new GlobalConfig(CATEGORY, "ping.interval");
     @GlobalConfigValidation
+    public static GlobalConfig PING_ADAPTIVE = new GlobalConfig(CATEGORY, "ping.adaptive");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig PING_MAX_BACKOFF = new GlobalConfig(CATEGORY, "ping.maxBackoff");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig PING_SUSPECT_INTERVAL = new GlobalConfig(CATEGORY, "ping.suspectInterval");
+    @GlobalConfigValidation
     public static GlobalConfig IGNORE_ERROR_ON_MAINTENANCE_MODE = new GlobalConfig(CATEGORY, "maintenanceMode.ignoreError");
 }
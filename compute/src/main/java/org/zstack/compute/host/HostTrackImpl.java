@@ -4,35 +4,51 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusCallBack;
-import org.zstack.core.cloudbus.CloudBusSteppingCallback;
 import org.zstack.core.cloudbus.ResourceDestinationMaker;
 import org.zstack.core.config.GlobalConfig;
 import org.zstack.core.config.GlobalConfigUpdateExtensionPoint;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.core.thread.PeriodicTask;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.Component;
 import org.zstack.header.host.*;
 import org.zstack.header.managementnode.ManagementNodeChangeListener;
 import org.zstack.header.message.MessageReply;
-import org.zstack.header.message.NeedReplyMessage;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  */
-public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener, Component {
+public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener, Component, HostTrackerMXBean {
     private final static CLogger logger = Utils.getLogger(HostTrackImpl.class);
 
-    private final List<String> hostUuids = Collections.synchronizedList(new ArrayList<String>());
-    private Set<String> hostInTracking = Collections.synchronizedSet(new HashSet<String>());
+    private static final long[] LATENCY_BUCKET_BOUNDS = {10, 100, 1000, 10000, 60000};
+    /* connected replies in a row after which the ping period of a host doubles */
+    private static final int STABLE_PINGS_TO_BACK_OFF = 10;
+    /* failed pings after which a host is pinged at ping.interval again */
+    private static final int SUSPECT_PROBE_NUM = 10;
+
+    private final Set<String> hostUuids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> hostInTracking = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     private Future<Void> trackerThread = null;
-    private final Map<String, HostStatusEvent> hostConnectionStateEventMap = Collections.synchronizedMap(new HashMap<String, HostStatusEvent>());
+    private final Map<String, HostStatusEvent> hostConnectionStateEventMap = new ConcurrentHashMap<String, HostStatusEvent>();
+    private final ConcurrentMap<String, PingSchedule> schedules = new ConcurrentHashMap<String, PingSchedule>();
+
+    private final AtomicLong pings = new AtomicLong();
+    private final AtomicLong pingFailures = new AtomicLong();
+    private final AtomicLong cycleOverruns = new AtomicLong();
+    private final AtomicLong maxPingLatency = new AtomicLong();
+    private final AtomicLongArray pingLatencyHistogram = new AtomicLongArray(LATENCY_BUCKET_BOUNDS.length + 1);
 
     @Autowired
     private DatabaseFacade dbf;
@@ -42,6 +58,176 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
     private CloudBus bus;
     @Autowired
     private ThreadFacade thdf;
+    @Autowired
+    private JmxFacade jmxf;
+
+    /**
+     * ping schedule of a host when ping.adaptive is true, times are in seconds. Only one ping of a host is in flight
+     * at a time, so a schedule is updated by one thread at a time.
+     */
+    private static class PingSchedule {
+        volatile long lastPingTime;
+        volatile long nextPingTime;
+        volatile int stablePings;
+        volatile int backoff = 1;
+        volatile int failedPings;
+
+        boolean isSuspect() {
+            return failedPings > 0 && failedPings <= SUSPECT_PROBE_NUM;
+        }
+    }
+
+    /**
+     * the slot of a host is fixed by its uuid, so hosts are spread over the interval and a host is always pinged at
+     * the same second of the interval
+     */
+    private static long alignToSlot(long from, String hostUuid, int interval) {
+        long slot = (hostUuid.hashCode() & Integer.MAX_VALUE) % interval;
+        return from + ((slot - from % interval) % interval + interval) % interval;
+    }
+
+    private void recordLatency(long latency) {
+        int i = 0;
+        while (i < LATENCY_BUCKET_BOUNDS.length && latency > LATENCY_BUCKET_BOUNDS[i]) {
+            i ++;
+        }
+        pingLatencyHistogram.incrementAndGet(i);
+
+        long max;
+        while (latency > (max = maxPingLatency.get())) {
+            if (maxPingLatency.compareAndSet(max, latency)) {
+                break;
+            }
+        }
+    }
+
+    private void handleReply(final String hostUuid, MessageReply reply) {
+        if (!reply.isSuccess()) {
+            logger.warn(String.format("[Host Tracker]: unable track host[uuid:%s], %s", hostUuid, reply.getError()));
+            return;
+        }
+
+        final PingHostReply preply = (PingHostReply)reply;
+        HostStatusEvent cevt = preply.isConnected() ? HostStatusEvent.connected : HostStatusEvent.disconnected;
+        if (logger.isTraceEnabled()) {
+            String moreInfo = preply.isConnected() ? "all good!" : preply.getError().toString();
+            logger.trace(String.format("[Host Tracker]: discover host[uuid:%s] connection state[%s], %s", hostUuid, cevt, moreInfo));
+        }
+
+        HostStatusEvent oevt = hostConnectionStateEventMap.get(hostUuid);
+        if (oevt == cevt) {
+            return;
+        }
+
+        hostConnectionStateEventMap.put(hostUuid, cevt);
+        ChangeHostConnectionStateMsg cmsg = new ChangeHostConnectionStateMsg();
+        cmsg.setHostUuid(hostUuid);
+        cmsg.setConnectionStateEvent(cevt.toString());
+        bus.makeTargetServiceIdByResourceUuid(cmsg, HostConstant.SERVICE_ID, hostUuid);
+        bus.send(cmsg, new CloudBusCallBack() {
+            @Override
+            public void run(MessageReply reply) {
+                if (!preply.isConnected() && reply.isSuccess() && HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.value(Boolean.class)) {
+                    logger.debug(String.format("[Host Tracker]: detected host[uuid:%s] connection lost, issue a reconnect because %s is set to true",
+                            hostUuid, HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.getCanonicalName()));
+                    ReconnectHostMsg msg = new ReconnectHostMsg();
+                    msg.setHostUuid(hostUuid);
+                    msg.setSkipIfHostConnected(true);
+                    bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, hostUuid);
+                    bus.send(msg);
+                }
+            }
+        });
+    }
+
+    private void updateSchedule(String hostUuid, boolean connected) {
+        PingSchedule s = schedules.get(hostUuid);
+        if (s == null) {
+            return;
+        }
+
+        if (connected) {
+            s.failedPings = 0;
+            if (++s.stablePings >= STABLE_PINGS_TO_BACK_OFF) {
+                s.stablePings = 0;
+                s.backoff = Math.min(s.backoff * 2, HostGlobalConfig.PING_MAX_BACKOFF.value(Integer.class));
+            }
+        } else {
+            s.stablePings = 0;
+            s.backoff = 1;
+            s.failedPings ++;
+        }
+
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        if (s.isSuspect()) {
+            s.nextPingTime = now + HostGlobalConfig.PING_SUSPECT_INTERVAL.value(Integer.class);
+        } else {
+            int interval = HostGlobalConfig.PING_HOST_INTERVAL.value(Integer.class);
+            s.nextPingTime = alignToSlot(Math.max(s.lastPingTime + (long) interval * s.backoff, now + 1), hostUuid, interval);
+        }
+    }
+
+    private void ping(Collection<String> huuids) {
+        List<PingHostMsg> msgs = new ArrayList<PingHostMsg>();
+        for (String huuid : huuids) {
+            if (!hostInTracking.add(huuid)) {
+                // the last ping to the host has not returned within its cycle
+                cycleOverruns.incrementAndGet();
+                continue;
+            }
+
+            PingHostMsg msg = new PingHostMsg();
+            msg.setHostUuid(huuid);
+            bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, huuid);
+            msgs.add(msg);
+        }
+
+        if (msgs.isEmpty()) {
+            return;
+        }
+
+        Iterator<PingHostMsg> it = msgs.iterator();
+        int parallelism = Math.min(HostGlobalConfig.HOST_TRACK_PARALLELISM_DEGREE.value(Integer.class), msgs.size());
+        for (int i=0; i<parallelism; i++) {
+            steppingPing(it);
+        }
+    }
+
+    /**
+     * sends the pings in steps like CloudBus.send(msgs, parallelLevel, callback), but times each ping from the moment
+     * it's actually sent rather than from the start of the batch
+     */
+    private void steppingPing(final Iterator<PingHostMsg> it) {
+        final PingHostMsg msg;
+        synchronized (it) {
+            if (!it.hasNext()) {
+                return;
+            }
+
+            msg = it.next();
+        }
+
+        final long startTime = System.currentTimeMillis();
+        bus.send(msg, new CloudBusCallBack() {
+            @Override
+            public void run(MessageReply reply) {
+                try {
+                    pings.incrementAndGet();
+                    recordLatency(System.currentTimeMillis() - startTime);
+                    boolean connected = reply.isSuccess() && ((PingHostReply) reply).isConnected();
+                    if (!connected) {
+                        pingFailures.incrementAndGet();
+                    }
+
+                    handleReply(msg.getHostUuid(), reply);
+                    updateSchedule(msg.getHostUuid(), connected);
+                    hostInTracking.remove(msg.getHostUuid());
+                } finally {
+                    steppingPing(it);
+                }
+            }
+        });
+    }
 
     private class Tracker implements PeriodicTask {
         @Override
@@ -59,76 +245,65 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
             return "hostTrack-for-managementNode-" + Platform.getManagementServerId();
         }
 
-        private void handleReply(final String hostUuid, MessageReply reply) {
-            if (!reply.isSuccess()) {
-                logger.warn(String.format("[Host Tracker]: unable track host[uuid:%s], %s", hostUuid, reply.getError()));
-                return;
+        @Override
+        public void run() {
+            try {
+                ping(new ArrayList<String>(hostUuids));
+            } catch (Throwable t) {
+                logger.warn("unhandled exception", t);
             }
+        }
+    }
 
-            final PingHostReply preply = (PingHostReply)reply;
-            HostStatusEvent cevt = preply.isConnected() ? HostStatusEvent.connected : HostStatusEvent.disconnected;
-            if (logger.isTraceEnabled()) {
-                String moreInfo = preply.isConnected() ? "all good!" : preply.getError().toString();
-                logger.trace(String.format("[Host Tracker]: discover host[uuid:%s] connection state[%s], %s", hostUuid, cevt, moreInfo));
-            }
+    /**
+     * used when ping.adaptive is true. Runs every second and pings hosts due at the second: a host is normally pinged
+     * every ping.interval in its own slot, every ping.interval * 2^n(up to ping.maxBackoff) after staying connected,
+     * and every ping.suspectInterval after a failed ping until it's connected or SUSPECT_PROBE_NUM probes fail.
+     */
+    private class AdaptiveTracker implements PeriodicTask {
+        @Override
+        public TimeUnit getTimeUnit() {
+            return TimeUnit.SECONDS;
+        }
 
-            HostStatusEvent oevt = hostConnectionStateEventMap.get(hostUuid);
-            if (oevt == cevt) {
-                return;
-            }
+        @Override
+        public long getInterval() {
+            return 1;
+        }
 
-            hostConnectionStateEventMap.put(hostUuid, cevt);
-            ChangeHostConnectionStateMsg cmsg = new ChangeHostConnectionStateMsg();
-            cmsg.setHostUuid(hostUuid);
-            cmsg.setConnectionStateEvent(cevt.toString());
-            bus.makeTargetServiceIdByResourceUuid(cmsg, HostConstant.SERVICE_ID, hostUuid);
-            bus.send(cmsg, new CloudBusCallBack() {
-                @Override
-                public void run(MessageReply reply) {
-                    if (!preply.isConnected() && reply.isSuccess() && HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.value(Boolean.class)) {
-                        logger.debug(String.format("[Host Tracker]: detected host[uuid:%s] connection lost, issue a reconnect because %s is set to true",
-                                hostUuid, HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.getCanonicalName()));
-                        ReconnectHostMsg msg = new ReconnectHostMsg();
-                        msg.setHostUuid(hostUuid);
-                        msg.setSkipIfHostConnected(true);
-                        bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, hostUuid);
-                        bus.send(msg);
-                    }
-                }
-            });
+        @Override
+        public String getName() {
+            return "adaptiveHostTrack-for-managementNode-" + Platform.getManagementServerId();
         }
 
         @Override
         public void run() {
             try {
-                List<PingHostMsg> msgs = null;
-                synchronized (hostUuids) {
-                    msgs = new ArrayList<PingHostMsg>();
-                    for (String huuid : hostUuids) {
-                        if (hostInTracking.contains(huuid)) {
-                            continue;
-                        }
-
-                        PingHostMsg msg = new PingHostMsg();
-                        msg.setHostUuid(huuid);
-                        bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, huuid);
-                        msgs.add(msg);
-                        hostInTracking.add(huuid);
+                long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+                int interval = HostGlobalConfig.PING_HOST_INTERVAL.value(Integer.class);
+                List<String> due = new ArrayList<String>();
+                for (String huuid : hostUuids) {
+                    PingSchedule s = schedules.get(huuid);
+                    if (s == null) {
+                        s = new PingSchedule();
+                        s.nextPingTime = alignToSlot(now, huuid, interval);
+                        PingSchedule old = schedules.putIfAbsent(huuid, s);
+                        s = old == null ? s : old;
+                    }
+
+                    if (s.nextPingTime > now) {
+                        continue;
                     }
-                }
 
-                if (msgs.isEmpty()) {
-                    return;
+                    s.lastPingTime = now;
+                    // replaced when the ping returns, an overrun is counted if it doesn't return by then
+                    s.nextPingTime = now + (s.isSuspect() ? HostGlobalConfig.PING_SUSPECT_INTERVAL.value(Integer.class) : (long) interval * s.backoff);
+                    due.add(huuid);
                 }
 
-                bus.send(msgs, HostGlobalConfig.HOST_TRACK_PARALLELISM_DEGREE.value(Integer.class), new CloudBusSteppingCallback() {
-                    @Override
-                    public void run(NeedReplyMessage msg, MessageReply reply) {
-                        PingHostMsg pmsg = (PingHostMsg)msg;
-                        handleReply(pmsg.getHostUuid(), reply);
-                        hostInTracking.remove(pmsg.getHostUuid());
-                    }
-                });
+                if (!due.isEmpty()) {
+                    ping(due);
+                }
             } catch (Throwable t) {
                 logger.warn("unhandled exception", t);
             }
@@ -136,68 +311,56 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
     }
 
     public void trackHost(String hostUuid) {
-        synchronized (hostUuids) {
-            if (!hostUuids.contains(hostUuid)) {
-                hostUuids.add(hostUuid);
-                logger.debug(String.format("start tracking host[uuid:%s]", hostUuid));
-            }
+        if (hostUuids.add(hostUuid)) {
+            logger.debug(String.format("start tracking host[uuid:%s]", hostUuid));
         }
     }
 
     @Override
     public void untrackHost(String hostUuid) {
-        synchronized (hostUuids) {
-            hostUuids.remove(hostUuid);
-            hostConnectionStateEventMap.remove(hostUuid);
-            logger.debug(String.format("stop tracking host[uuid:%s]", hostUuid));
-        }
+        hostUuids.remove(hostUuid);
+        hostConnectionStateEventMap.remove(hostUuid);
+        schedules.remove(hostUuid);
+        logger.debug(String.format("stop tracking host[uuid:%s]", hostUuid));
     }
 
     @Override
     public void trackHost(Collection<String> huuids) {
-        synchronized (hostUuids) {
-            for (String huuid : huuids) {
-                if (!hostUuids.contains(huuid)) {
-                    hostUuids.add(huuid);
-                    logger.debug(String.format("start tracking host[uuid:%s]", huuid));
-                }
-            }
+        for (String huuid : huuids) {
+            trackHost(huuid);
         }
     }
 
     @Override
     public void untrackHost(Collection<String> huuids) {
-        synchronized (hostUuids) {
-            for (String huuid : huuids) {
-                hostUuids.remove(huuid);
-                hostConnectionStateEventMap.remove(huuid);
-                logger.debug(String.format("stop tracking host[uuid:%s]", huuid));
-            }
+        for (String huuid : huuids) {
+            untrackHost(huuid);
         }
     }
 
-    private void reScanHost() {
-        synchronized (hostUuids) {
-            hostUuids.clear();
-
-            long count = dbf.count(HostVO.class);
-            int times = (int)count / 10000 + (count%10000 == 0 ? 0 : 1);
-            int offset = 0;
-            for (int i=0; i<times; i++) {
-                SimpleQuery<HostVO> q = dbf.createQuery(HostVO.class);
-                q.select(HostVO_.uuid);
-                q.setStart(offset);
-                q.setLimit(10000);
-                List<String> huuids = q.listValue();
-                for (String h : huuids) {
-                    if (destMaker.isManagedByUs(h)) {
-                        hostUuids.add(h);
-                    }
+    private synchronized void reScanHost() {
+        Set<String> managed = new HashSet<String>();
+        long count = dbf.count(HostVO.class);
+        int times = (int)count / 10000 + (count%10000 == 0 ? 0 : 1);
+        int offset = 0;
+        for (int i=0; i<times; i++) {
+            SimpleQuery<HostVO> q = dbf.createQuery(HostVO.class);
+            q.select(HostVO_.uuid);
+            q.setStart(offset);
+            q.setLimit(10000);
+            List<String> huuids = q.listValue();
+            for (String h : huuids) {
+                if (destMaker.isManagedByUs(h)) {
+                    managed.add(h);
                 }
-
-                offset += 10000;
             }
+
+            offset += 10000;
         }
+
+        hostUuids.retainAll(managed);
+        hostUuids.addAll(managed);
+        schedules.keySet().retainAll(managed);
     }
 
     @Override
@@ -220,30 +383,99 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
 
     }
 
-    private void startTracker() {
+    private synchronized void startTracker() {
         if (trackerThread != null) {
             trackerThread.cancel(true);
         }
 
-        trackerThread = thdf.submitPeriodicTask(new Tracker());
+        if (HostGlobalConfig.PING_ADAPTIVE.value(Boolean.class)) {
+            trackerThread = thdf.submitPeriodicTask(new AdaptiveTracker());
+        } else {
+            schedules.clear();
+            trackerThread = thdf.submitPeriodicTask(new Tracker());
+        }
     }
 
     private void setupTracker() {
         startTracker();
 
-        HostGlobalConfig.PING_HOST_INTERVAL.installUpdateExtension(new GlobalConfigUpdateExtensionPoint() {
+        GlobalConfigUpdateExtensionPoint restart = new GlobalConfigUpdateExtensionPoint() {
             @Override
             public void updateGlobalConfig(GlobalConfig oldConfig, GlobalConfig newConfig) {
                 logger.debug(String.format("%s change from %s to %s, restart tracker thread",
                         oldConfig.getCanonicalName(), oldConfig.value(), newConfig.value()));
                 startTracker();
             }
-        });
+        };
+        HostGlobalConfig.PING_HOST_INTERVAL.installUpdateExtension(restart);
+        HostGlobalConfig.PING_ADAPTIVE.installUpdateExtension(restart);
+    }
+
+    @Override
+    public int getTrackedHostNum() {
+        return hostUuids.size();
+    }
+
+    @Override
+    public int getSuspectHostNum() {
+        int num = 0;
+        for (PingSchedule s : schedules.values()) {
+            if (s.isSuspect()) {
+                num ++;
+            }
+        }
+        return num;
+    }
+
+    @Override
+    public int getBackedOffHostNum() {
+        int num = 0;
+        for (PingSchedule s : schedules.values()) {
+            if (s.backoff > 1) {
+                num ++;
+            }
+        }
+        return num;
+    }
+
+    @Override
+    public long getPingCount() {
+        return pings.get();
+    }
+
+    @Override
+    public long getPingFailureCount() {
+        return pingFailures.get();
+    }
+
+    @Override
+    public long getPingCycleOverrunCount() {
+        return cycleOverruns.get();
+    }
+
+    @Override
+    public long getMaxPingLatency() {
+        return maxPingLatency.get();
+    }
+
+    @Override
+    public long[] getPingLatencyBucketBounds() {
+        return LATENCY_BUCKET_BOUNDS.clone();
+    }
+
+    @Override
+    public long[] getPingLatencyHistogram() {
+        long[] h = new long[pingLatencyHistogram.length()];
+        for (int i=0; i<h.length; i++) {
+            h[i] = pingLatencyHistogram.get(i);
+        }
+        return h;
     }
 
     @Override
     public boolean start() {
         setupTracker();
+        jmxf.registerBean("HostTracker", this);
         return true;
     }
 
@@ -0,0 +1,32 @@
+package org.zstack.compute.host;
+
+/**
+ */
+public interface HostTrackerMXBean {
+    int getTrackedHostNum();
+
+    int getSuspectHostNum();
+
+    int getBackedOffHostNum();
+
+    long getPingCount();
+
+    long getPingFailureCount();
+
+    /**
+     * pings skipped because the last ping to the host had not returned when the next was due
+     */
+    long getPingCycleOverrunCount();
+
+    /**
+     * in milliseconds, from a ping being issued to its reply
+     */
+    long getMaxPingLatency();
+
+    /**
+     * upper bounds in milliseconds of pingLatencyHistogram buckets, the last bucket of pingLatencyHistogram has no bound
+     */
+    long[] getPingLatencyBucketBounds();
+
+    long[] getPingLatencyHistogram();
+}
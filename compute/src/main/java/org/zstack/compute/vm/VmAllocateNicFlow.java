@@ -8,6 +8,7 @@ import org.springframework.orm.jpa.JpaSystemException;
 import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusListCallBack;
+import org.zstack.core.cloudbus.ResourceDestinationMaker;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.core.workflow.Flow;
@@ -22,6 +23,7 @@ import org.zstack.utils.logging.CLogger;
 import org.zstack.utils.network.NetworkUtils;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -34,6 +36,8 @@ public class VmAllocateNicFlow implements Flow {
     protected CloudBus bus;
     @Autowired
     protected ErrorFacade errf;
+    @Autowired
+    protected ResourceDestinationMaker destMaker;
 
     private VmNicVO persistAndRetryIfMacCollision(VmNicVO vo) {
         int tries = 5;
@@ -79,46 +83,82 @@ public class VmAllocateNicFlow implements Flow {
     @Override
     public void run(final FlowTrigger trigger, final Map data) {
         final VmInstanceSpec spec = (VmInstanceSpec) data.get(VmInstanceConstant.Params.VmInstanceSpec.toString());
-        List<AllocateIpMsg> msgs = new ArrayList<AllocateIpMsg>();
-        for (final L3NetworkInventory nw : spec.getL3Networks()) {
-            AllocateIpMsg msg = new AllocateIpMsg();
-            msg.setL3NetworkUuid(nw.getUuid());
-            msg.setAllocateStrategy(spec.getIpAllocatorStrategy());
-            bus.makeTargetServiceIdByResourceUuid(msg, L3NetworkConstant.SERVICE_ID, nw.getUuid());
-            msgs.add(msg);
+        if (spec.getL3Networks().isEmpty()) {
+            trigger.next();
+            return;
+        }
+
+        /*
+         * ips of l3 networks managed by the same management node are allocated by one message, in one transaction.
+         * l3 networks are grouped by the node owning them, so every l3 network is still served by its owner
+         */
+        final Map<String, AllocateIpsMsg> msgByNode = new LinkedHashMap<String, AllocateIpsMsg>();
+        final Map<String, List<Integer>> positionsByNode = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < spec.getL3Networks().size(); i++) {
+            String l3Uuid = spec.getL3Networks().get(i).getUuid();
+            String nodeUuid = destMaker.makeDestination(l3Uuid);
+            AllocateIpsMsg msg = msgByNode.get(nodeUuid);
+            if (msg == null) {
+                msg = new AllocateIpsMsg();
+                msg.setAllocateStrategy(spec.getIpAllocatorStrategy());
+                bus.makeServiceIdByManagementNodeId(msg, L3NetworkConstant.SERVICE_ID, nodeUuid);
+                msgByNode.put(nodeUuid, msg);
+                positionsByNode.put(nodeUuid, new ArrayList<Integer>());
+            }
+
+            msg.getL3NetworkUuids().add(l3Uuid);
+            positionsByNode.get(nodeUuid).add(i);
         }
 
+        final List<AllocateIpsMsg> msgs = new ArrayList<AllocateIpsMsg>(msgByNode.values());
+        final List<List<Integer>> positions = new ArrayList<List<Integer>>(positionsByNode.values());
         bus.send(msgs, new CloudBusListCallBack(trigger) {
             @Override
             public void run(List<MessageReply> replies) {
-                ErrorCode err = null;
-                for (MessageReply r : replies) {
-                    if (r.isSuccess()) {
-                        int deviceId = replies.indexOf(r);
-                        AllocateIpReply areply = r.castReply();
-                        VmNicInventory nic = new VmNicInventory();
-                        nic.setUuid(Platform.getUuid());
-                        nic.setIp(areply.getIpInventory().getIp());
-                        nic.setUsedIpUuid(areply.getIpInventory().getUuid());
-                        nic.setVmInstanceUuid(spec.getVmInventory().getUuid());
-                        nic.setL3NetworkUuid(areply.getIpInventory().getL3NetworkUuid());
-                        nic.setMac(NetworkUtils.generateMacWithDeviceId((short) deviceId));
-                        nic.setDeviceId(deviceId);
-                        nic.setNetmask(areply.getIpInventory().getNetmask());
-                        nic.setGateway(areply.getIpInventory().getGateway());
-                        nic.setInternalName(VmNicVO.generateNicInternalName(spec.getVmInventory().getInternalId(), nic.getDeviceId()));
-                        spec.getDestNics().add(nic);
-                    } else {
-                        err = r.getError();
+                // put ips back in the order of l3 networks, nics get device ids in that order
+                UsedIpInventory[] ips = new UsedIpInventory[spec.getL3Networks().size()];
+                ErrorCode error = null;
+                for (int i = 0; i < replies.size(); i++) {
+                    MessageReply reply = replies.get(i);
+                    if (!reply.isSuccess()) {
+                        error = reply.getError();
+                        continue;
+                    }
+
+                    AllocateIpsReply areply = reply.castReply();
+                    for (int j = 0; j < areply.getIpInventories().size(); j++) {
+                        ips[positions.get(i).get(j)] = areply.getIpInventories().get(j);
                     }
                 }
 
-                if (err != null) {
-                    trigger.fail(err);
-                } else {
-                    persistNicToDb(spec.getDestNics());
-                    trigger.next();
+                for (UsedIpInventory ip : ips) {
+                    if (ip == null) {
+                        continue;
+                    }
+
+                    int deviceId = spec.getDestNics().size();
+                    VmNicInventory nic = new VmNicInventory();
+                    nic.setUuid(Platform.getUuid());
+                    nic.setIp(ip.getIp());
+                    nic.setUsedIpUuid(ip.getUuid());
+                    nic.setVmInstanceUuid(spec.getVmInventory().getUuid());
+                    nic.setL3NetworkUuid(ip.getL3NetworkUuid());
+                    nic.setMac(NetworkUtils.generateMacWithDeviceId((short) deviceId));
+                    nic.setDeviceId(deviceId);
+                    nic.setNetmask(ip.getNetmask());
+                    nic.setGateway(ip.getGateway());
+                    nic.setInternalName(VmNicVO.generateNicInternalName(spec.getVmInventory().getInternalId(), nic.getDeviceId()));
+                    spec.getDestNics().add(nic);
                 }
+
+                if (error != null) {
+                    // nics are not persisted yet, rollback() returns ips allocated by other messages
+                    trigger.fail(error);
+                    return;
+                }
+
+                persistNicToDb(spec.getDestNics());
+                trigger.next();
             }
         });
     }
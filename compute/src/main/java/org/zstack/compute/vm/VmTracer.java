@@ -22,9 +22,11 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.Tuple;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  */
@@ -40,6 +42,10 @@ public abstract class VmTracer {
     @Autowired
     private EventFacade evtf;
 
+    private final AtomicLong fullTraces = new AtomicLong();
+    private final AtomicLong deltaTraces = new AtomicLong();
+    private final AtomicLong skippedDeltaTraces = new AtomicLong();
+
     private class Tracer {
         String hostUuid;
         Map<String, VmInstanceState> hostSideStates;
@@ -235,6 +241,43 @@ public abstract class VmTracer {
             checkFromHostSide();
             checkFromManagementServerSide();
         }
+
+        /**
+         * hostSideStates only contains vms changed on the host, a vm gone from the host is in state Stopped. Only
+         * these vms are checked, in the same way as trace()
+         */
+        void traceChanges() {
+            mgmtSideStates = new HashMap<String, VmInstanceState>();
+            SimpleQuery<VmInstanceVO> q = dbf.createQuery(VmInstanceVO.class);
+            q.select(VmInstanceVO_.uuid, VmInstanceVO_.state, VmInstanceVO_.hostUuid, VmInstanceVO_.lastHostUuid);
+            q.add(VmInstanceVO_.uuid, Op.IN, new ArrayList<String>(hostSideStates.keySet()));
+            for (Tuple t : q.listTuple()) {
+                String vmHostUuid = t.get(2, String.class);
+                if (hostUuid.equals(vmHostUuid) || (vmHostUuid == null && hostUuid.equals(t.get(3, String.class)))) {
+                    mgmtSideStates.put(t.get(0, String.class), t.get(1, VmInstanceState.class));
+                }
+            }
+
+            for (Map.Entry<String, VmInstanceState> e : hostSideStates.entrySet()) {
+                String vmUuid = e.getKey();
+                VmInstanceState actualState = e.getValue();
+                VmInstanceState expectedState = mgmtSideStates.get(vmUuid);
+
+                if (actualState == VmInstanceState.Stopped) {
+                    if (expectedState != null && expectedState != VmInstanceState.Stopped) {
+                        handleMissingVm(vmUuid, expectedState);
+                    }
+                } else if (expectedState == null) {
+                    handleAnonymousVm(vmUuid, actualState);
+                } else if (actualState != expectedState) {
+                    handleStateChangeOnHostSide(vmUuid, actualState, expectedState);
+                }
+            }
+        }
+    }
+
+    private String getTraceSyncSignature(String hostUuid) {
+        return String.format("trace-vm-state-on-host-%s", hostUuid);
     }
 
     protected void reportVmState(final String hostUuid, final Map<String, VmInstanceState> vmStates) {
@@ -249,10 +292,11 @@ public abstract class VmTracer {
             return;
         }
 
+        fullTraces.incrementAndGet();
         thdf.syncSubmit(new SyncTask<Object>() {
             @Override
             public String getSyncSignature() {
-                return String.format("trace-vm-state-on-host-%s", hostUuid);
+                return getTraceSyncSignature(hostUuid);
             }
 
             @Override
@@ -262,7 +306,7 @@ public abstract class VmTracer {
 
             @Override
             public String getName() {
-                return String.format("trace-vm-state-on-host-%s", hostUuid);
+                return getTraceSyncSignature(hostUuid);
             }
 
             @Override
@@ -276,4 +320,64 @@ public abstract class VmTracer {
         });
     }
 
+    /**
+     * report vms whose states changed on the host since the last report, a vm gone from the host is reported as Stopped
+     */
+    protected void reportVmStateChanges(final String hostUuid, final Map<String, VmInstanceState> changedStates) {
+        for (VmInstanceState state : changedStates.values()) {
+            if (state != VmInstanceState.Running && state != VmInstanceState.Unknown && state != VmInstanceState.Stopped) {
+                throw new CloudRuntimeException(String.format("host can only report vm state changes as Running, Unknown and Stopped, got %s", state));
+            }
+        }
+
+        if (!CoreGlobalProperty.VM_TRACER_ON) {
+            logger.debug(String.format("vm tracer is off, skip reporting vm state changes on host[uuid:%s]", hostUuid));
+            return;
+        }
+
+        if (changedStates.isEmpty()) {
+            skippedDeltaTraces.incrementAndGet();
+            return;
+        }
+
+        deltaTraces.incrementAndGet();
+        thdf.syncSubmit(new SyncTask<Object>() {
+            @Override
+            public String getSyncSignature() {
+                return getTraceSyncSignature(hostUuid);
+            }
+
+            @Override
+            public int getSyncLevel() {
+                return 1;
+            }
+
+            @Override
+            public String getName() {
+                return getTraceSyncSignature(hostUuid);
+            }
+
+            @Override
+            public Object call() throws Exception {
+                Tracer t = new Tracer();
+                t.hostUuid = hostUuid;
+                t.hostSideStates = changedStates;
+                t.traceChanges();
+                return null;
+            }
+        });
+    }
+
+    public long getFullTraceCount() {
+        return fullTraces.get();
+    }
+
+    public long getDeltaTraceCount() {
+        return deltaTraces.get();
+    }
+
+    public long getSkippedDeltaTraceCount() {
+        return skippedDeltaTraces.get();
+    }
+
 }
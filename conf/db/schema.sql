@@ -392,6 +392,7 @@ CREATE TABLE  `zstack`.`HostCapacityVO` (
     `totalCpu` bigint unsigned NOT NULL COMMENT 'total cpu of host in HZ',
     `availableMemory` bigint unsigned NOT NULL COMMENT 'used memory of host in bytes',
     `availableCpu` bigint unsigned NOT NULL COMMENT 'used cpu of host in HZ',
+    `version` bigint unsigned NOT NULL DEFAULT 0 COMMENT 'bumped on every capacity change, for optimistic reservation',
     PRIMARY KEY  (`uuid`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
@@ -969,3 +970,11 @@ CREATE TABLE  `zstack`.`ManagementNodeContextVO` (
     `inventory` blob DEFAULT NULL,
     PRIMARY KEY  (`id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE  `zstack`.`GLockLeaseVO` (
+    `name` varchar(255) NOT NULL UNIQUE,
+    `owner` varchar(255) DEFAULT NULL COMMENT 'holder of the lease, NULL when the lock is free',
+    `token` bigint unsigned NOT NULL COMMENT 'fencing token, increased on every acquisition',
+    `expireDate` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY  (`name`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -24,4 +24,8 @@ public class CoreGlobalProperty {
     public static String CONSOLE_PROXY_OVERRIDDEN_IP;
     @GlobalProperty(name="exposeSimulatorType", defaultValue = "false")
     public static boolean EXPOSE_SIMULATOR_TYPE;
+    @GlobalProperty(name="parallelComponentStartup", defaultValue = "false")
+    public static boolean PARALLEL_COMPONENT_STARTUP;
+    @GlobalProperty(name="componentStartupThreadNum", defaultValue = "8")
+    public static int COMPONENT_STARTUP_THREAD_NUM;
 }
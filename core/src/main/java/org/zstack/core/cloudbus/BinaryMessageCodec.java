@@ -0,0 +1,476 @@
+package org.zstack.core.cloudbus;
+
+import org.objenesis.Objenesis;
+import org.objenesis.ObjenesisStd;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.message.GsonTransient;
+import org.zstack.header.message.Message;
+import org.zstack.utils.Utils;
+import org.zstack.utils.gson.JSONObjectUtil;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.*;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * a compact binary codec. Every value is written with a type tag, so values keep their runtime types and no
+ * schema header / second parse is needed as the JSON codec does.
+ *
+ * Objects are written as their field values; the fields of a class are resolved once into a ClassSchema of
+ * accessible Fields and cached, prepare() builds them for all message classes at startup. A class is written
+ * with its name and field names the first time it appears in a message, and by index afterwards; the receiver
+ * maps the field names to its own schema, so a field only one side knows is skipped instead of breaking decoding.
+ *
+ * Like the JSON codec, static, transient and @GsonTransient fields are not written, and null fields leave the
+ * default value of the receiving object untouched. JDK classes other than the common ones fall back to JSON.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    private static final CLogger logger = Utils.getLogger(BinaryMessageCodec.class);
+
+    public static final String NAME = "binary";
+
+    private static final int MAGIC = 0x5a42;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte TRUE = 4;
+    private static final byte FALSE = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte FLOAT = 7;
+    private static final byte SHORT = 8;
+    private static final byte BYTE = 9;
+    private static final byte CHAR = 10;
+    private static final byte ENUM = 11;
+    private static final byte DATE = 12;
+    private static final byte COLLECTION = 13;
+    private static final byte MAP = 14;
+    private static final byte ARRAY = 15;
+    private static final byte BYTES = 16;
+    private static final byte OBJECT = 17;
+    private static final byte JSON = 18;
+
+    private static final Objenesis objenesis = new ObjenesisStd();
+
+    private final Map<Class, ClassSchema> schemas = new ConcurrentHashMap<Class, ClassSchema>();
+    private final Map<String, Class> classes = new ConcurrentHashMap<String, Class>();
+
+    {
+        for (Class c : new Class[]{int.class, long.class, boolean.class, double.class, float.class, short.class, byte.class, char.class}) {
+            classes.put(c.getName(), c);
+        }
+    }
+
+    static class ClassSchema {
+        final Class clazz;
+        final Field[] fields;
+        final String[] fieldNames;
+        final Map<String, Field> fieldsByName = new HashMap<String, Field>();
+        Constructor constructor;
+
+        ClassSchema(Class clazz) {
+            this.clazz = clazz;
+
+            List<Field> fs = new ArrayList<Field>();
+            for (Class c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    int mod = f.getModifiers();
+                    if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || f.isAnnotationPresent(GsonTransient.class)) {
+                        continue;
+                    }
+                    if (fieldsByName.containsKey(f.getName())) {
+                        // shadowed by a sub class
+                        continue;
+                    }
+
+                    f.setAccessible(true);
+                    fs.add(f);
+                    fieldsByName.put(f.getName(), f);
+                }
+            }
+
+            fields = fs.toArray(new Field[fs.size()]);
+            fieldNames = new String[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                fieldNames[i] = fields[i].getName();
+            }
+
+            try {
+                constructor = clazz.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                constructor = null;
+            }
+        }
+
+        Object newInstance() throws Exception {
+            if (constructor != null) {
+                return constructor.newInstance();
+            }
+
+            return objenesis.newInstance(clazz);
+        }
+    }
+
+    /**
+     * classes seen so far in the message being encoded or decoded. Classes written with field names are indexed
+     * apart from those written without, as a class can be both, e.g. the component type of an array and its elements
+     */
+    private static class ClassTable {
+        final Map<Class, Integer> indexes = new HashMap<Class, Integer>();
+        final List<DecodedClass> entries = new ArrayList<DecodedClass>();
+        final Map<Class, Integer> indexesWithFields = new HashMap<Class, Integer>();
+        final List<DecodedClass> entriesWithFields = new ArrayList<DecodedClass>();
+    }
+
+    private static class DecodedClass {
+        final Class clazz;
+        // fields in the order of the sender, null for fields we don't have
+        Field[] fields;
+        ClassSchema schema;
+
+        DecodedClass(Class clazz) {
+            this.clazz = clazz;
+        }
+    }
+
+    private static boolean isJdkClass(Class clazz) {
+        String name = clazz.getName();
+        return name.startsWith("java.") || name.startsWith("javax.");
+    }
+
+    ClassSchema getSchema(Class clazz) {
+        ClassSchema schema = schemas.get(clazz);
+        if (schema == null) {
+            schema = new ClassSchema(clazz);
+            schemas.put(clazz, schema);
+        }
+        return schema;
+    }
+
+    private Class getClass(String name) throws ClassNotFoundException {
+        Class clazz = classes.get(name);
+        if (clazz == null) {
+            clazz = Class.forName(name);
+            classes.put(name, clazz);
+        }
+        return clazz;
+    }
+
+    private void prepare(Class clazz, Set<Class> visited) {
+        if (clazz == null || clazz.isPrimitive() || clazz.isInterface() || clazz.isEnum() || isJdkClass(clazz) || !visited.add(clazz)) {
+            return;
+        }
+
+        if (clazz.isArray()) {
+            prepare(clazz.getComponentType(), visited);
+            return;
+        }
+
+        if (!Modifier.isAbstract(clazz.getModifiers())) {
+            classes.put(clazz.getName(), clazz);
+        }
+
+        for (Field f : getSchema(clazz).fields) {
+            prepare(f.getType(), visited);
+        }
+    }
+
+    /**
+     * builds schemas of the classes and classes of their fields ahead of the first message
+     */
+    public void prepare(Collection<Class> clazzes) {
+        Set<Class> visited = new HashSet<Class>();
+        for (Class clazz : clazzes) {
+            try {
+                prepare(clazz, visited);
+            } catch (Throwable t) {
+                logger.warn(String.format("unable to prepare binary codec schema of class[%s]", clazz.getName()), t);
+            }
+        }
+        logger.debug(String.format("prepared binary codec schemas of %s classes", schemas.size()));
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Message msg) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeShort(MAGIC);
+        try {
+            writeValue(out, msg, new ClassTable());
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException(e);
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    @Override
+    public Message decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if ((in.readShort() & 0xffff) != MAGIC) {
+            throw new CloudRuntimeException("the message is not encoded by the binary codec");
+        }
+
+        try {
+            return (Message) readValue(in, new ClassTable());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+
+    private void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private void writeClass(DataOutputStream out, Class clazz, ClassTable table, boolean withFields) throws IOException {
+        Map<Class, Integer> indexes = withFields ? table.indexesWithFields : table.indexes;
+        Integer index = indexes.get(clazz);
+        if (index != null) {
+            out.writeInt(index);
+            return;
+        }
+
+        indexes.put(clazz, indexes.size());
+        out.writeInt(-1);
+        writeString(out, clazz.getName());
+        if (withFields) {
+            String[] names = getSchema(clazz).fieldNames;
+            out.writeInt(names.length);
+            for (String name : names) {
+                writeString(out, name);
+            }
+        }
+    }
+
+    private DecodedClass readClass(DataInputStream in, ClassTable table, boolean withFields) throws IOException, ClassNotFoundException {
+        List<DecodedClass> entries = withFields ? table.entriesWithFields : table.entries;
+        int index = in.readInt();
+        if (index >= 0) {
+            return entries.get(index);
+        }
+
+        DecodedClass dc = new DecodedClass(getClass(readString(in)));
+        if (withFields) {
+            dc.schema = getSchema(dc.clazz);
+            int num = in.readInt();
+            dc.fields = new Field[num];
+            for (int i = 0; i < num; i++) {
+                dc.fields[i] = dc.schema.fieldsByName.get(readString(in));
+            }
+        }
+        entries.add(dc);
+        return dc;
+    }
+
+    private static boolean isRecreatable(Class clazz) {
+        if (!clazz.getName().startsWith("java.util.")) {
+            return false;
+        }
+
+        try {
+            clazz.getConstructor();
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private void writeValue(DataOutputStream out, Object value, ClassTable table) throws IOException, IllegalAccessException {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+
+        Class clazz = value.getClass();
+        if (clazz == String.class) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (clazz == Integer.class) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (clazz == Long.class) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (clazz == Boolean.class) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (clazz == Double.class) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (clazz == Float.class) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (clazz == Short.class) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (clazz == Byte.class) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (clazz == Character.class) {
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        } else if (value instanceof Enum) {
+            out.writeByte(ENUM);
+            writeClass(out, ((Enum) value).getDeclaringClass(), table, false);
+            writeString(out, ((Enum) value).name());
+        } else if (value instanceof Date) {
+            out.writeByte(DATE);
+            writeClass(out, clazz, table, false);
+            out.writeLong(((Date) value).getTime());
+            out.writeInt(value instanceof Timestamp ? ((Timestamp) value).getNanos() : 0);
+        } else if (value instanceof Collection) {
+            Collection col = (Collection) value;
+            out.writeByte(COLLECTION);
+            writeClass(out, isRecreatable(clazz) ? clazz : (value instanceof Set ? LinkedHashSet.class : ArrayList.class), table, false);
+            out.writeInt(col.size());
+            for (Object o : col) {
+                writeValue(out, o, table);
+            }
+        } else if (value instanceof Map) {
+            Map<Object, Object> map = (Map<Object, Object>) value;
+            out.writeByte(MAP);
+            writeClass(out, isRecreatable(clazz) ? clazz : LinkedHashMap.class, table, false);
+            out.writeInt(map.size());
+            for (Map.Entry<Object, Object> e : map.entrySet()) {
+                writeValue(out, e.getKey(), table);
+                writeValue(out, e.getValue(), table);
+            }
+        } else if (clazz == byte[].class) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (clazz.isArray()) {
+            int len = Array.getLength(value);
+            out.writeByte(ARRAY);
+            writeClass(out, clazz.getComponentType(), table, false);
+            out.writeInt(len);
+            for (int i = 0; i < len; i++) {
+                writeValue(out, Array.get(value, i), table);
+            }
+        } else if (isJdkClass(clazz)) {
+            out.writeByte(JSON);
+            writeClass(out, clazz, table, false);
+            writeString(out, JSONObjectUtil.toJsonString(value));
+        } else {
+            out.writeByte(OBJECT);
+            writeClass(out, clazz, table, true);
+            for (Field f : getSchema(clazz).fields) {
+                writeValue(out, f.get(value), table);
+            }
+        }
+    }
+
+    private Object readValue(DataInputStream in, ClassTable table) throws Exception {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case SHORT:
+                return in.readShort();
+            case BYTE:
+                return in.readByte();
+            case CHAR:
+                return in.readChar();
+            case ENUM: {
+                Class clazz = readClass(in, table, false).clazz;
+                return Enum.valueOf(clazz, readString(in));
+            }
+            case DATE: {
+                Class clazz = readClass(in, table, false).clazz;
+                long time = in.readLong();
+                int nanos = in.readInt();
+                if (clazz == Timestamp.class) {
+                    Timestamp ts = new Timestamp(time);
+                    ts.setNanos(nanos);
+                    return ts;
+                }
+                return clazz.getConstructor(long.class).newInstance(time);
+            }
+            case COLLECTION: {
+                Collection col = (Collection) readClass(in, table, false).clazz.newInstance();
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    col.add(readValue(in, table));
+                }
+                return col;
+            }
+            case MAP: {
+                Map map = (Map) readClass(in, table, false).clazz.newInstance();
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    Object key = readValue(in, table);
+                    map.put(key, readValue(in, table));
+                }
+                return map;
+            }
+            case BYTES: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case ARRAY: {
+                Class componentType = readClass(in, table, false).clazz;
+                int len = in.readInt();
+                Object array = Array.newInstance(componentType, len);
+                for (int i = 0; i < len; i++) {
+                    Array.set(array, i, readValue(in, table));
+                }
+                return array;
+            }
+            case JSON: {
+                Class clazz = readClass(in, table, false).clazz;
+                return JSONObjectUtil.toObject(readString(in), clazz);
+            }
+            case OBJECT: {
+                DecodedClass dc = readClass(in, table, true);
+                Object obj = dc.schema.newInstance();
+                for (Field f : dc.fields) {
+                    Object value = readValue(in, table);
+                    if (f != null && value != null) {
+                        f.set(obj, value);
+                    }
+                }
+                return obj;
+            }
+            default:
+                throw new CloudRuntimeException(String.format("unknown type tag[%s] in binary message", tag));
+        }
+    }
+}
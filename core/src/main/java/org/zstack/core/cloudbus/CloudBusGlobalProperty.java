@@ -31,4 +31,21 @@ public class CloudBusGlobalProperty {
     public static int CHANNEL_POOL_SIZE;
     @GlobalProperty(name="CloudBus.messageTTL", defaultValue = "300")
     public static int MESSAGE_TTL;
+    @GlobalProperty(name="CloudBus.messageCodec", defaultValue = "json")
+    public static String MESSAGE_CODEC;
+    @GlobalProperty(name="CloudBus.publisher.enable", defaultValue = "false")
+    public static boolean PUBLISHER_ENABLE;
+    @GlobalProperty(name="CloudBus.publisher.threadNum", defaultValue = "2")
+    public static int PUBLISHER_THREAD_NUM;
+    @GlobalProperty(name="CloudBus.publisher.batchSize", defaultValue = "64")
+    public static int PUBLISHER_BATCH_SIZE;
+    @GlobalProperty(name="CloudBus.publisher.queueSize", defaultValue = "10000")
+    public static int PUBLISHER_QUEUE_SIZE;
+    @GlobalProperty(name="CloudBus.publisher.confirm", defaultValue = "false")
+    public static boolean PUBLISHER_CONFIRM;
+    @GlobalProperty(name="CloudBus.publisher.confirmTimeout", defaultValue = "30")
+    public static int PUBLISHER_CONFIRM_TIMEOUT;
+    // off, copy or direct, see CloudBusImpl2.Wire.deliverLocally()
+    @GlobalProperty(name="CloudBus.localDelivery", defaultValue = "off")
+    public static String LOCAL_DELIVERY;
 }
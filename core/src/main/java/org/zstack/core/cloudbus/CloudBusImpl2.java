@@ -1,9 +1,7 @@
 package org.zstack.core.cloudbus;
 
-import com.google.gson.*;
 import com.rabbitmq.client.*;
 import org.apache.commons.lang.StringUtils;
-import org.mvel2.MVEL;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.zstack.core.Platform;
 import org.zstack.core.componentloader.PluginRegistry;
@@ -26,19 +24,17 @@ import org.zstack.header.search.APISearchMessage;
 import org.zstack.header.search.APISearchReply;
 import org.zstack.utils.*;
 import org.zstack.utils.function.Function;
-import org.zstack.utils.gson.GsonTypeCoder;
-import org.zstack.utils.gson.GsonUtil;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
 import javax.management.MXBean;
 import java.io.IOException;
 import java.io.Serializable;
-import java.lang.reflect.Type;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.zstack.utils.CollectionDSL.e;
 import static org.zstack.utils.CollectionDSL.map;
@@ -52,6 +48,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
     private Connection conn;
     private BusQueue outboundQueue;
     private ChannelPool channelPool;
+    private MessagePublisher publisher;
 
     @Autowired
     private ResourceDestinationMaker destMaker;
@@ -71,17 +68,19 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
     private Map<String, Envelope> envelopes = new ConcurrentHashMap<String, Envelope>();
     private Map<String, EndPoint> endpoints = new ConcurrentHashMap<String, EndPoint>();
+    /* endpoints by service ids and alias ids ending with the id of this management node */
+    private Map<String, EndPoint> localEndpoints = new ConcurrentHashMap<String, EndPoint>();
     private AtomicBoolean stopped = new AtomicBoolean(false);
     private boolean trackerClose = false;
     private Map<String, MessageStatistic> statistics = new HashMap<String, MessageStatistic>();
 
-    private Map<Class, Map<String, Serializable>> mvelExpressions = Collections.synchronizedMap(new HashMap<Class, Map<String,Serializable>>());
     private Map<Class, List<ReplyMessagePreSendingExtensionPoint>> replyMessageMarshaller = new ConcurrentHashMap<Class, List<ReplyMessagePreSendingExtensionPoint>>();
     private Map<Class, Long> messageTimeout = new ConcurrentHashMap<Class, Long>();
 
     private final String NO_NEED_REPLY_MSG = "noReply";
     private final String CORRELATION_ID = "correlationId";
     private final String REPLY_TO = "replyTo";
+    private final String TASK_CLASS = "taskClass";
     private final String IS_MESSAGE_REPLY = "isReply";
     private final String TIMEOUT_PROPERTY_PREFIX = "CloudBus.messageTimeout.";
     private final String MESSAGE_META_DATA = "metaData";
@@ -89,6 +88,15 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
     private final String DEAD_LETTER = "dead-message";
 
     private final String AMQP_PROPERTY_HEADER__COMPRESSED = "compressed";
+    private final String AMQP_PROPERTY_HEADER__CODEC = "codec";
+    private final String AMQP_PROPERTY_HEADER__ACCEPT_CODEC = "acceptCodec";
+    private final String AMQP_PROPERTY_HEADER__CODEC_NODE = "codecNode";
+    private final String AMQP_PROPERTY_HEADER__SOURCE_NODE = "sourceNode";
+
+    private final AtomicLong localMessages = new AtomicLong();
+    private final AtomicLong remoteMessages = new AtomicLong();
+    private final AtomicLong localEvents = new AtomicLong();
+    private final AtomicLong remoteEvents = new AtomicLong();
 
     private String SERVICE_ID = makeLocalServiceId("cloudbus");
 
@@ -119,11 +127,13 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
     @Override
     public void nodeLeft(String nodeId) {
         tracker.managementNodeLeft(nodeId);
+        wire.forgetCodecNode(nodeId);
     }
 
     @Override
     public void iAmDead(String nodeId) {
         tracker.managementNodeLeft(nodeId);
+        wire.forgetCodecNode(nodeId);
     }
 
     @Override
@@ -131,6 +141,50 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
     }
 
 
+    private ReturnListener returnListener = new ReturnListener() {
+        @Override
+        public void handleReturn(int i, String s, String s2, String s3, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
+            try {
+                Message msg = wire.toMessage(bytes, basicProperties);
+                if (msg instanceof NeedReplyMessage) {
+                    Envelope e = envelopes.get(msg.getId());
+                    if (e == null) {
+                        logger.warn(String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue; message dump:\n%s",
+                                msg.getServiceId(), wire.dumpMessage(msg)));
+                    } else {
+                        MessageReply reply = new MessageReply();
+                        reply.setError(errf.instantiateErrorCode(SysErrors.UNDELIVERABLE_ERROR,
+                                String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if any consumers on that queue", msg.getServiceId())));
+                        e.ack(reply);
+                    }
+                } else {
+                    logger.warn(String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue; message dump:\n%s",
+                            msg.getServiceId(), wire.dumpMessage(msg)));
+                }
+            } catch (Throwable t) {
+                logger.warn("unhandled throwable", t);
+            }
+        }
+    };
+
+    private MessagePublisher.FailureHandler publishFailureHandler = new MessagePublisher.FailureHandler() {
+        @Override
+        public void publishFailed(MessagePublisher.Item item, Throwable t) {
+            Message msg = (Message) item.context;
+            Envelope e = msg instanceof NeedReplyMessage ? envelopes.get(msg.getId()) : null;
+            if (e == null) {
+                logger.warn(String.format("failed to publish the message[%s] to the exchange[%s] with routing key[%s]",
+                        msg.getClass().getName(), item.exchange, item.routingKey), t);
+                return;
+            }
+
+            MessageReply reply = new MessageReply();
+            reply.setError(errf.instantiateErrorCode(SysErrors.UNDELIVERABLE_ERROR,
+                    String.format("failed to publish the message to the destination service[%s], %s", msg.getServiceId(), t.getMessage())));
+            e.ack(reply);
+        }
+    };
+
     private class ChannelPool {
         BlockingQueue<Channel> pool;
 
@@ -140,31 +194,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 for (int i = 0; i < size; i++) {
                     Channel chan = connection.createChannel();
                     pool.add(chan);
-                    chan.addReturnListener(new ReturnListener() {
-                        @Override
-                        public void handleReturn(int i, String s, String s2, String s3, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
-                            try {
-                                Message msg = wire.toMessage(bytes, basicProperties);
-                                if (msg instanceof NeedReplyMessage) {
-                                    Envelope e = envelopes.get(msg.getId());
-                                    if (e == null) {
-                                        logger.warn(String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue; message dump:\n%s",
-                                                msg.getServiceId(), wire.dumpMessage(msg)));
-                                    } else {
-                                        MessageReply reply = new MessageReply();
-                                        reply.setError(errf.instantiateErrorCode(SysErrors.UNDELIVERABLE_ERROR,
-                                                String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if any consumers on that queue", msg.getServiceId())));
-                                        e.ack(reply);
-                                    }
-                                } else {
-                                    logger.warn(String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue; message dump:\n%s",
-                                            msg.getServiceId(), wire.dumpMessage(msg)));
-                                }
-                            } catch (Throwable t) {
-                                logger.warn("unhandled throwable", t);
-                            }
-                        }
-                    });
+                    chan.addReturnListener(returnListener);
                 }
                 logger.debug(String.format("created channel pool with size[%s]", CloudBusGlobalProperty.CHANNEL_POOL_SIZE));
             } catch (Exception e) {
@@ -297,7 +327,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
     private NoRouteEndPoint noRouteEndPoint = new NoRouteEndPoint();
 
-    private Consumer consumer = new AbstractConsumer() {
+    private class ReplyConsumer extends AbstractConsumer {
         @AsyncThread
         @MessageSafe
         private void handle(Message msg) {
@@ -330,9 +360,11 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 logger.warn("unhandled throwable", t);
             }
         }
-    };
+    }
+
+    private ReplyConsumer consumer = new ReplyConsumer();
 
-    private class Wire implements GsonTypeCoder<Message> {
+    private class Wire {
         private List<String> filterMsgNames = new ArrayList<String>();
 
         {
@@ -344,45 +376,145 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             }
         }
 
-        private final Gson gson = new GsonUtil().setCoder(Message.class, this).setExclusionStrategies(new ExclusionStrategy[]{
-                new ExclusionStrategy() {
-                    @Override
-                    public boolean shouldSkipField(FieldAttributes fieldAttributes) {
-                        return fieldAttributes.getAnnotation(GsonTransient.class) != null;
-                    }
+        private final JsonMessageCodec jsonCodec = new JsonMessageCodec();
+        private final BinaryMessageCodec binaryCodec = new BinaryMessageCodec();
+        private final Map<String, MessageCodec> codecs = map(
+                e(jsonCodec.getName(), (MessageCodec) jsonCodec),
+                e(binaryCodec.getName(), (MessageCodec) binaryCodec)
+        );
 
-                    @Override
-                    public boolean shouldSkipClass(Class<?> aClass) {
-                        return false;
-                    }
-                }
-        }).create();
+        // management nodes that advertised they can read the binary codec
+        private final Set<String> binaryCodecNodes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-        @Override
-        public Message deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
-            JsonObject jObj = jsonElement.getAsJsonObject();
-            Map.Entry<String, JsonElement> entry = jObj.entrySet().iterator().next();
-            String className = entry.getKey();
-            Class<?> clazz;
-            try {
-                clazz = Class.forName(className);
-            } catch (ClassNotFoundException e) {
-                throw new JsonParseException(String.format("Unable to deserialize class[%s]", className), e);
+        private boolean useBinaryCodec() {
+            return BinaryMessageCodec.NAME.equals(CloudBusGlobalProperty.MESSAGE_CODEC);
+        }
+
+        void prepareCodecs() {
+            if (useBinaryCodec()) {
+                binaryCodec.prepare(BeanUtils.scanClassByType("org.zstack", Message.class));
+                binaryCodecNodes.add(Platform.getManagementServerId());
             }
-            return (Message) gson.fromJson(entry.getValue(), clazz);
         }
 
-        @Override
-        public JsonElement serialize(Message message, Type type, JsonSerializationContext jsonSerializationContext) {
-            JsonObject jObj = new JsonObject();
-            jObj.add(message.getClass().getName(), gson.toJsonTree(message));
-            return jObj;
+        void forgetCodecNode(String nodeId) {
+            binaryCodecNodes.remove(nodeId);
+        }
+
+        private void learnCodecNode(Map<String, Object> headers) {
+            if (headers == null || !useBinaryCodec()) {
+                return;
+            }
+
+            Object accept = headers.get(AMQP_PROPERTY_HEADER__ACCEPT_CODEC);
+            Object node = headers.get(AMQP_PROPERTY_HEADER__CODEC_NODE);
+            if (node != null && accept != null && BinaryMessageCodec.NAME.equals(accept.toString())) {
+                binaryCodecNodes.add(node.toString());
+            }
+        }
+
+        private boolean destinationAcceptsBinaryCodec(Message msg) {
+            if (msg instanceof Event) {
+                // events are broadcast, all management nodes must be able to read them
+                Collection<String> nodes = destMaker.getManagementNodesInHashRing();
+                return !nodes.isEmpty() && binaryCodecNodes.containsAll(nodes);
+            }
+
+            // service ids not ending with a management node id are consumed by any node, see makeLocalServiceId()
+            String serviceId = msg.getServiceId();
+            return serviceId != null && binaryCodecNodes.contains(serviceId.substring(serviceId.lastIndexOf('.') + 1));
+        }
+
+        /**
+         * API messages/events are read by clients outside management nodes, they are always JSON.
+         * A reply uses the codec the request accepts, see reply(); requests and events use the binary
+         * codec only when CloudBus.messageCodec says so and the receiving management nodes have advertised
+         * they accept it. Every message sent by a node using the binary codec carries that advertisement.
+         */
+        private MessageCodec getCodec(Message msg) {
+            if (msg instanceof APIMessage || msg instanceof APIEvent) {
+                return jsonCodec;
+            }
+
+            Map<String, Object> headers = msg.getAMQPHeaders();
+            if (!useBinaryCodec()) {
+                // the message may be forwarded, don't carry headers of the previous hop
+                headers.remove(AMQP_PROPERTY_HEADER__CODEC);
+                headers.remove(AMQP_PROPERTY_HEADER__ACCEPT_CODEC);
+                headers.remove(AMQP_PROPERTY_HEADER__CODEC_NODE);
+                return jsonCodec;
+            }
+
+            headers.put(AMQP_PROPERTY_HEADER__ACCEPT_CODEC, BinaryMessageCodec.NAME);
+            headers.put(AMQP_PROPERTY_HEADER__CODEC_NODE, Platform.getManagementServerId());
+
+            if (msg instanceof MessageReply) {
+                Object codec = headers.get(AMQP_PROPERTY_HEADER__CODEC);
+                return codec != null && BinaryMessageCodec.NAME.equals(codec.toString()) ? binaryCodec : jsonCodec;
+            }
+
+            if (destinationAcceptsBinaryCodec(msg)) {
+                headers.put(AMQP_PROPERTY_HEADER__CODEC, BinaryMessageCodec.NAME);
+                return binaryCodec;
+            } else {
+                headers.remove(AMQP_PROPERTY_HEADER__CODEC);
+                return jsonCodec;
+            }
+        }
+
+        boolean acceptBinaryCodec(Message request) {
+            if (!useBinaryCodec()) {
+                return false;
+            }
+
+            Object accept = request.getAMQPHeaders().get(AMQP_PROPERTY_HEADER__ACCEPT_CODEC);
+            return accept != null && BinaryMessageCodec.NAME.equals(accept.toString());
         }
 
         public void send(Message msg) {
             send(msg, true);
         }
 
+        private boolean isLocalDeliveryOn() {
+            return !"off".equals(CloudBusGlobalProperty.LOCAL_DELIVERY);
+        }
+
+        private <T extends Message> T copyForLocalDelivery(T msg) throws IOException {
+            if ("direct".equals(CloudBusGlobalProperty.LOCAL_DELIVERY)) {
+                return msg;
+            }
+
+            MessageCodec codec = getCodec(msg);
+            T copy = (T) codec.decode(codec.encode(msg));
+            copy.setAMQPProperties(msg.getAMQPProperties());
+            return copy;
+        }
+
+        /**
+         * hands a message to a service of this management node, or a reply to a sender of this management node,
+         * without the message broker. API messages and LockResourceMessage are always sent through the broker,
+         * as API clients and the message tracker of other management nodes read them there.
+         *
+         * @return false if the receiver is not in this management node
+         */
+        private boolean deliverLocally(Message msg) throws IOException {
+            if (!isLocalDeliveryOn() || msg instanceof APIMessage || msg instanceof LockResourceMessage) {
+                return false;
+            }
+
+            if (msg instanceof MessageReply) {
+                if (!outboundQueue.getBindingKey().equals(msg.getServiceId())) {
+                    return false;
+                }
+
+                consumer.handle(copyForLocalDelivery(msg));
+                return true;
+            }
+
+            EndPoint e = localEndpoints.get(msg.getServiceId());
+            return e != null && e.deliver(copyForLocalDelivery(msg));
+        }
+
         public boolean logMessage(Message msg) {
             if (CloudBusGlobalProperty.MESSAGE_LOG_FILTER_ALL) {
                 return !filterMsgNames.contains(msg.getClass().getName());
@@ -391,17 +523,28 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             }
         }
 
-        private void buildSchema(Message msg) {
-            msg.putHeaderEntry("schema", MessageJsonSchemaBuilder.buildSchema(msg));
-        }
-
         private byte[] compressMessageIfNeeded(Message msg) throws IOException {
+            byte[] data = getCodec(msg).encode(msg);
             if (!CloudBusGlobalProperty.COMPRESS_NON_API_MESSAGE || msg instanceof APIEvent || msg instanceof APIMessage) {
-                return gson.toJson(msg, Message.class).getBytes();
+                return data;
             }
 
             msg.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__COMPRESSED, "true");
-            return Compresser.deflate(gson.toJson(msg, Message.class).getBytes());
+            return Compresser.deflate(data);
+        }
+
+        private void basicPublish(String exchange, String routingKey, Message msg, byte[] data) throws IOException {
+            if (publisher != null) {
+                publisher.publish(exchange, routingKey, msg.getAMQPProperties(), data, msg);
+                return;
+            }
+
+            Channel chan = channelPool.acquire();
+            try {
+                chan.basicPublish(exchange, routingKey, true, msg.getAMQPProperties(), data);
+            } finally {
+                channelPool.returnChannel(chan);
+            }
         }
 
         public void send(Message msg, boolean makeQueueName) {
@@ -414,21 +557,19 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 serviceId = makeMessageQueueName(serviceId);
             }
 
-            buildSchema(msg);
-
             if (logger.isTraceEnabled() && logMessage(msg)) {
                 logger.trace(String.format("[msg send]: %s", wire.dumpMessage(msg)));
             }
 
             try {
-                byte[] data = compressMessageIfNeeded(msg);
-                Channel chan = channelPool.acquire();
-                try {
-                    chan.basicPublish(outboundQueue.getBusExchange().toString(), serviceId,
-                            true, msg.getAMQPProperties(), data);
-                } finally {
-                    channelPool.returnChannel(chan);
+                if (deliverLocally(msg)) {
+                    localMessages.incrementAndGet();
+                    return;
                 }
+
+                remoteMessages.incrementAndGet();
+                byte[] data = compressMessageIfNeeded(msg);
+                basicPublish(outboundQueue.getBusExchange().toString(), serviceId, msg, data);
                 /*
                 watch.stop();
                 logger.debug(String.mediaType("sending %s cost %sms", msg.getClass().getName(), watch.getTime()));
@@ -444,21 +585,22 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             watch.start();
             */
 
-            buildSchema(evt);
-
             if (logger.isTraceEnabled() && logMessage(evt)) {
                 logger.trace(String.format("[event publish]: %s", wire.dumpMessage(evt)));
             }
 
             try {
-                byte[] data = compressMessageIfNeeded(evt);
-                Channel chan = channelPool.acquire();
-                try {
-                    chan.basicPublish(BusExchange.BROADCAST.toString(), evt.getType().toString(),
-                            true, evt.getAMQPProperties(), data);
-                } finally {
-                    channelPool.returnChannel(chan);
+                // API events are read by API clients from the broker, the message tracker also needs them
+                if (isLocalDeliveryOn() && !(evt instanceof APIEvent)) {
+                    maid.handle(copyForLocalDelivery(evt));
+                    localEvents.incrementAndGet();
+                    // other management nodes still receive it from the broker, the maid of this node drops it
+                    evt.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__SOURCE_NODE, Platform.getManagementServerId());
                 }
+
+                remoteEvents.incrementAndGet();
+                byte[] data = compressMessageIfNeeded(evt);
+                basicPublish(BusExchange.BROADCAST.toString(), evt.getType().toString(), evt, data);
                 /*
                 watch.stop();
                 logger.debug(String.mediaType("sending %s cost %sms", evt.getClass().getName(), watch.getTime()));
@@ -468,57 +610,6 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             }
         }
 
-        private Serializable getMVELExpression(Message msg, String express, String prefix) {
-            Map<String, Serializable> exps = mvelExpressions.get(msg.getClass());
-            if (exps == null) {
-                exps = new HashMap<String, Serializable>();
-                mvelExpressions.put(msg.getClass(), exps);
-            }
-
-            String key = String.format("%s:%s", express, prefix);
-            Serializable exp = exps.get(key);
-            if (exp == null) {
-                exp = MVEL.compileExpression(express);
-                exps.put(key, exp);
-            }
-            return exp;
-        }
-
-        private void restoreFromSchema(Message msg, byte[] binary) throws ClassNotFoundException {
-            Map<String, List<String>> schema = msg.getHeaderEntry("schema");
-            if (schema == null) {
-                return;
-            }
-
-            Map raw = JSONObjectUtil.toObject(new String(binary), LinkedHashMap.class);
-            raw = (Map) raw.values().iterator().next();
-            for (Map.Entry<String, List<String>> e : schema.entrySet()) {
-                String rawClassName = e.getKey();
-                List<String> paths = e.getValue();
-                for (String path : paths) {
-                    Serializable exp = getMVELExpression(msg, path, "msg:get");
-                    Object obj = MVEL.executeExpression(exp, msg);
-                    if (obj.getClass().getName().equals(rawClassName)) {
-                        continue;
-                    }
-
-                    exp = getMVELExpression(msg, path, "raw:get");
-                    Object rawData = MVEL.executeExpression(exp, raw);
-                    Class rawClass = Class.forName(rawClassName);
-                    Object newValue = JSONObjectUtil.rehashObject(rawData, rawClass);
-                    String setExpress = String.format("CONTEXT_OBJECT.%s = newValue", path);
-                    exp = getMVELExpression(msg, setExpress, "msg:set");
-                    Map vars = map(e("newValue", newValue));
-                    // Note MVEL context is
-                    // not meant for write but rather for read. Use a Map context to
-                    // force MVEL to assign newValue on msg, not to create a new variable
-                    // in vars map
-                    Map context = map(e("CONTEXT_OBJECT", msg));
-                    MVEL.executeExpression(exp, context, vars);
-                }
-            }
-        }
-
         private void tryBestToReplyError(byte[] binary, String errMsg) {
             // try best to reply an error message to invalid JSON formed message
             String msgStr = new String(binary);
@@ -555,6 +646,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             StopWatch watch = new StopWatch();
             watch.start();
             */
+            MessageCodec codec = null;
             try {
                 byte[] data;
                 if (basicProperties.getHeaders() != null && basicProperties.getHeaders().containsKey(AMQP_PROPERTY_HEADER__COMPRESSED)) {
@@ -563,15 +655,19 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                     data = binary;
                 }
 
-                Message msg = gson.fromJson(new String(data), Message.class);
-                msg.setAMQPProperties(basicProperties);
-
-                try {
-                    restoreFromSchema(msg, data);
-                } catch (ClassNotFoundException e) {
-                    throw new CloudRuntimeException(e);
+                codec = jsonCodec;
+                if (basicProperties.getHeaders() != null && basicProperties.getHeaders().containsKey(AMQP_PROPERTY_HEADER__CODEC)) {
+                    String name = basicProperties.getHeaders().get(AMQP_PROPERTY_HEADER__CODEC).toString();
+                    codec = codecs.get(name);
+                    if (codec == null) {
+                        throw new CloudRuntimeException(String.format("unknown message codec[%s]", name));
+                    }
                 }
 
+                learnCodecNode(basicProperties.getHeaders());
+                Message msg = codec.decode(data);
+                msg.setAMQPProperties(basicProperties);
+
             /*
             watch.stop();
             logger.debug(String.mediaType("receive %s cost %sms", msg.getClass().getName(), watch.getTime()));
@@ -579,7 +675,9 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 return msg;
             } catch (RuntimeException je) {
                 logger.warn(je.getMessage(), je);
-                tryBestToReplyError(binary, je.getMessage());
+                if (codec == jsonCodec) {
+                    tryBestToReplyError(binary, je.getMessage());
+                }
                 throw je;
             } catch (IOException e) {
                 throw new CloudRuntimeException(e);
@@ -587,7 +685,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         }
 
         public String dumpMessage(Message msg) {
-            return gson.toJson(msg, Message.class);
+            return jsonCodec.dumpMessage(msg);
         }
     }
 
@@ -688,6 +786,13 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         public void handleDelivery(String s, com.rabbitmq.client.Envelope envelope, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
             Event evt = null;
             try {
+                Map<String, Object> headers = basicProperties.getHeaders();
+                if (headers != null && headers.get(AMQP_PROPERTY_HEADER__SOURCE_NODE) != null &&
+                        Platform.getManagementServerId().equals(headers.get(AMQP_PROPERTY_HEADER__SOURCE_NODE).toString())) {
+                    // delivered locally when published
+                    return;
+                }
+
                 evt = (Event) wire.toMessage(bytes, basicProperties);
                 handle(evt);
             } catch (final Throwable t) {
@@ -740,6 +845,11 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         void inactive();
 
         void dismiss();
+
+        /**
+         * @return false if the endpoint is inactive
+         */
+        boolean deliver(Message msg);
     }
 
 
@@ -1069,6 +1179,10 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
             conn = connFactory.newConnection(addresses.toArray(new Address[]{}));
             channelPool = new ChannelPool(CloudBusGlobalProperty.CHANNEL_POOL_SIZE, conn);
+            if (CloudBusGlobalProperty.PUBLISHER_ENABLE) {
+                publisher = new MessagePublisher(conn, returnListener, publishFailureHandler);
+                publisher.start();
+            }
             createExchanges();
             outboundQueue = new BusQueue(makeMessageQueueName(SERVICE_ID), BusExchange.P2P);
             Channel chan = channelPool.acquire();
@@ -1165,6 +1279,12 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             msg.putHeaderEntry(NO_NEED_REPLY_MSG, noNeedReply.toString());
         }
 
+        // the receiver handles the message in the class of the sender, see TaskClass
+        TaskClass taskClass = TaskClass.current();
+        if (taskClass != TaskClass.DEFAULT) {
+            msg.putHeaderEntry(TASK_CLASS, taskClass.toString());
+        }
+
         buildRequestMessageMetaData(msg);
         wire.send(msg);
     }
@@ -1570,6 +1690,9 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         reply.getHeaders().put(IS_MESSAGE_REPLY, Boolean.TRUE.toString());
         reply.putHeaderEntry(CORRELATION_ID, request.getId());
         reply.setServiceId((String) request.getHeaderEntry(REPLY_TO));
+        if (wire.acceptBinaryCodec(request)) {
+            reply.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__CODEC, BinaryMessageCodec.NAME);
+        }
 
         buildResponseMessageMetaData(reply);
         callReplyPreSendingExtensions(reply);
@@ -1778,6 +1901,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             Consumer handler;
             String baseName;
             List<String> aliasNames = new ArrayList<String>();
+            volatile boolean isActive;
 
             {
                 baseName = makeMessageQueueName(serv.getId());
@@ -1791,40 +1915,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                     @Override
                     public void handleDelivery(String s, com.rabbitmq.client.Envelope envelope, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
                         try {
-                            final Message msg = wire.toMessage(bytes, basicProperties);
-
-                            if (logger.isTraceEnabled() && wire.logMessage(msg)) {
-                                logger.trace(String.format("[msg received]: %s", wire.dumpMessage(msg)));
-                            }
-
-                            SyncTask<Void> task = new SyncTask<Void>() {
-                                @Override
-                                public String getSyncSignature() {
-                                    return serv.getId();
-                                }
-
-                                @Override
-                                public int getSyncLevel() {
-                                    return syncLevel;
-                                }
-
-                                @Override
-                                public String getName() {
-                                    return String.format("CloudBus EndPoint[%s]", serv.getId());
-                                }
-
-                                @Override
-                                public Void call() throws Exception {
-                                    serv.handleMessage(msg);
-                                    return null;
-                                }
-                            };
-
-                            if (syncLevel == 0) {
-                                thdf.submit(task);
-                            } else {
-                                thdf.syncSubmit(task);
-                            }
+                            dispatch(wire.toMessage(bytes, basicProperties));
                         } catch (Throwable t) {
                             logger.warn("unhandled throwable", t);
                         }
@@ -1832,6 +1923,62 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 };
             }
 
+            private void dispatch(final Message msg) {
+                if (logger.isTraceEnabled() && wire.logMessage(msg)) {
+                    logger.trace(String.format("[msg received]: %s", wire.dumpMessage(msg)));
+                }
+
+                class EndPointTask implements SyncTask<Void>, ClassifiedTask {
+                    @Override
+                    public TaskClass getTaskClass() {
+                        String taskClass = msg.getHeaderEntry(TASK_CLASS);
+                        if (taskClass != null) {
+                            return TaskClass.valueOf(taskClass);
+                        }
+
+                        return msg instanceof APIMessage ? TaskClass.API : TaskClass.DEFAULT;
+                    }
+
+                    @Override
+                    public String getSyncSignature() {
+                        return serv.getId();
+                    }
+
+                    @Override
+                    public int getSyncLevel() {
+                        return syncLevel;
+                    }
+
+                    @Override
+                    public String getName() {
+                        return String.format("CloudBus EndPoint[%s]", serv.getId());
+                    }
+
+                    @Override
+                    public Void call() throws Exception {
+                        serv.handleMessage(msg);
+                        return null;
+                    }
+                }
+
+                SyncTask<Void> task = new EndPointTask();
+                if (syncLevel == 0) {
+                    thdf.submit(task);
+                } else {
+                    thdf.syncSubmit(task);
+                }
+            }
+
+            @Override
+            public boolean deliver(Message msg) {
+                if (!isActive) {
+                    return false;
+                }
+
+                dispatch(msg);
+                return true;
+            }
+
             @Override
             public void active() {
                 try {
@@ -1845,6 +1992,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                         echan.basicConsume(aliasName, true, handler);
                         echan.queueBind(aliasName, BusExchange.P2P.toString(), aliasName);
                     }
+                    isActive = true;
                 } catch (IOException e1) {
                     throw new CloudRuntimeException(e1);
                 }
@@ -1852,6 +2000,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
             @Override
             public void inactive() {
+                isActive = false;
                 try {
                     echan.queueUnbind(baseName, BusExchange.P2P.toString(), baseName);
                     for (String aliasName: aliasNames) {
@@ -1874,6 +2023,12 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             @Override
             public void dismiss() {
                 endpoints.remove(serv.getId());
+                localEndpoints.remove(serv.getId());
+                if (alias != null) {
+                    for (String a : alias) {
+                        localEndpoints.remove(a);
+                    }
+                }
             }
         };
 
@@ -1883,6 +2038,17 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         }
 
         endpoints.put(serv.getId(), e);
+        String localSuffix = "." + Platform.getManagementServerId();
+        if (serv.getId().endsWith(localSuffix)) {
+            localEndpoints.put(serv.getId(), e);
+        }
+        if (alias != null) {
+            for (String a : alias) {
+                if (a.endsWith(localSuffix)) {
+                    localEndpoints.put(a, e);
+                }
+            }
+        }
         activeService(serv);
 
         logger.debug(String.format("registered service[%s]", serv.getId()));
@@ -2120,6 +2286,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         populateExtension();
         prepareStatistics();
         collectMessageTimeOut();
+        wire.prepareCodecs();
 
         for (Service serv : services) {
             assert serv.getId() != null : String.format("service id can not be null[%s]", serv.getClass().getName());
@@ -2166,6 +2333,13 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         tracker.destruct();
 
         throwableSafe(new Runnable() {
+            @Override
+            public void run() {
+                if (publisher != null) {
+                    publisher.stop();
+                }
+            }
+        }).throwableSafe(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -2258,6 +2432,17 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         );
     }
 
+    @Override
+    public PublisherStatistic getPublisherStatistic() {
+        return publisher == null ? null : publisher.getStatistic();
+    }
+
+    @Override
+    public LocalDeliveryStatistic getLocalDeliveryStatistic() {
+        return new LocalDeliveryStatistic(CloudBusGlobalProperty.LOCAL_DELIVERY, localMessages.get(), remoteMessages.get(),
+                localEvents.get(), remoteEvents.get());
+    }
+
     private Map<String, Object> queueArguments() {
         Map<String, Object> ret = new HashMap<String, Object>();
         ret.put("x-dead-letter-exchange", BusExchange.NO_ROUTE.toString());
@@ -11,4 +11,8 @@ public interface CloudBusMXBean {
     List<WaitingReplyMessageStatistic> getWaitingReplyMessageStatistic();
 
     WaitingMessageSummaryStatistic getWaitingReplyMessageSummaryStatistic();
+
+    PublisherStatistic getPublisherStatistic();
+
+    LocalDeliveryStatistic getLocalDeliveryStatistic();
 }
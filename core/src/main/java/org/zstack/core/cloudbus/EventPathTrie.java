@@ -0,0 +1,170 @@
+package org.zstack.core.cloudbus;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * subscriptions of canonical event paths, indexed by path segments.
+ *
+ * A subscribed path is split by '/' into segments; a segment is one of
+ * 1. a literal, matching the same segment
+ * 2. {name}, matching any segment and capturing it as the token 'name'
+ * 3. a glob with '*' or '?', matching a segment the glob matches
+ *
+ * so matching an event path costs time proportional to the path depth, not the number of subscriptions. Adding and
+ * removing subscriptions doesn't lock; nodes are created with putIfAbsent and kept when they become empty.
+ */
+public class EventPathTrie<T> {
+    private final Node<T> root = new Node<T>();
+
+    private static class Node<T> {
+        final ConcurrentMap<String, Node<T>> literals = new ConcurrentHashMap<String, Node<T>>();
+        final ConcurrentMap<String, GlobNode<T>> globs = new ConcurrentHashMap<String, GlobNode<T>>();
+        volatile Node<T> var;
+        final Set<Subscription<T>> subscriptions = Collections.newSetFromMap(new ConcurrentHashMap<Subscription<T>, Boolean>());
+
+        synchronized Node<T> getOrCreateVar() {
+            if (var == null) {
+                var = new Node<T>();
+            }
+            return var;
+        }
+    }
+
+    private static class GlobNode<T> {
+        final Pattern pattern;
+        final Node<T> node = new Node<T>();
+
+        GlobNode(String glob) {
+            StringBuilder sb = new StringBuilder();
+            for (char c : glob.toCharArray()) {
+                if (c == '*') {
+                    sb.append(".*");
+                } else if (c == '?') {
+                    sb.append('.');
+                } else {
+                    sb.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            pattern = Pattern.compile(sb.toString());
+        }
+    }
+
+    public static class Subscription<T> {
+        private final String path;
+        private final T subscriber;
+        private final Node<T> node;
+        private final String[] tokenNames;
+
+        private Subscription(String path, T subscriber, Node<T> node, String[] tokenNames) {
+            this.path = path;
+            this.subscriber = subscriber;
+            this.node = node;
+            this.tokenNames = tokenNames;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public T getSubscriber() {
+            return subscriber;
+        }
+
+        /**
+         * @param segments segments of the event path this subscription matched
+         */
+        public Map<String, String> getTokens(String[] segments) {
+            Map<String, String> tokens = new HashMap<String, String>();
+            for (int i=0; i<tokenNames.length; i++) {
+                if (tokenNames[i] != null) {
+                    tokens.put(tokenNames[i], segments[i]);
+                }
+            }
+            return tokens;
+        }
+    }
+
+    public static String[] split(String path) {
+        List<String> segments = new ArrayList<String>();
+        int start = 0;
+        for (int i=0; i<=path.length(); i++) {
+            if (i == path.length() || path.charAt(i) == '/') {
+                if (i > start) {
+                    segments.add(path.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    public Subscription<T> add(String path, T subscriber) {
+        String[] segments = split(path);
+        String[] tokenNames = new String[segments.length];
+        Node<T> node = root;
+        for (int i=0; i<segments.length; i++) {
+            String seg = segments[i];
+            if (seg.startsWith("{") && seg.endsWith("}")) {
+                tokenNames[i] = seg.substring(1, seg.length() - 1);
+                node = node.getOrCreateVar();
+            } else if (seg.indexOf('*') != -1 || seg.indexOf('?') != -1) {
+                GlobNode<T> g = node.globs.get(seg);
+                if (g == null) {
+                    g = new GlobNode<T>(seg);
+                    GlobNode<T> old = node.globs.putIfAbsent(seg, g);
+                    g = old == null ? g : old;
+                }
+                node = g.node;
+            } else {
+                Node<T> n = node.literals.get(seg);
+                if (n == null) {
+                    n = new Node<T>();
+                    Node<T> old = node.literals.putIfAbsent(seg, n);
+                    n = old == null ? n : old;
+                }
+                node = n;
+            }
+        }
+
+        Subscription<T> s = new Subscription<T>(path, subscriber, node, tokenNames);
+        node.subscriptions.add(s);
+        return s;
+    }
+
+    public void remove(Subscription<T> s) {
+        s.node.subscriptions.remove(s);
+    }
+
+    public List<Subscription<T>> match(String[] segments) {
+        List<Subscription<T>> ret = new ArrayList<Subscription<T>>();
+        match(root, segments, 0, ret);
+        return ret;
+    }
+
+    private void match(Node<T> node, String[] segments, int index, List<Subscription<T>> ret) {
+        if (index == segments.length) {
+            ret.addAll(node.subscriptions);
+            return;
+        }
+
+        String seg = segments[index];
+        Node<T> n = node.literals.get(seg);
+        if (n != null) {
+            match(n, segments, index + 1, ret);
+        }
+
+        n = node.var;
+        if (n != null) {
+            match(n, segments, index + 1, ret);
+        }
+
+        for (GlobNode<T> g : node.globs.values()) {
+            if (g.pattern.matcher(seg).matches()) {
+                match(g.node, segments, index + 1, ret);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.zstack.core.cloudbus;
+
+import com.google.gson.*;
+import org.mvel2.MVEL;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.message.GsonTransient;
+import org.zstack.header.message.Message;
+import org.zstack.utils.gson.GsonTypeCoder;
+import org.zstack.utils.gson.GsonUtil;
+import org.zstack.utils.gson.JSONObjectUtil;
+
+import java.io.Serializable;
+import java.lang.reflect.Type;
+import java.util.*;
+
+import static org.zstack.utils.CollectionDSL.e;
+import static org.zstack.utils.CollectionDSL.map;
+
+/**
+ * the JSON codec every management node understands. Fields declared by super types (e.g. an inventory in
+ * a field of type Object) lose their real type in JSON, so a schema of them is put in the message header
+ * when encoding and the fields are re-created from the raw JSON when decoding.
+ */
+public class JsonMessageCodec implements MessageCodec, GsonTypeCoder<Message> {
+    public static final String NAME = "json";
+
+    private Map<Class, Map<String, Serializable>> mvelExpressions = Collections.synchronizedMap(new HashMap<Class, Map<String,Serializable>>());
+
+    private final Gson gson = new GsonUtil().setCoder(Message.class, this).setExclusionStrategies(new ExclusionStrategy[]{
+            new ExclusionStrategy() {
+                @Override
+                public boolean shouldSkipField(FieldAttributes fieldAttributes) {
+                    return fieldAttributes.getAnnotation(GsonTransient.class) != null;
+                }
+
+                @Override
+                public boolean shouldSkipClass(Class<?> aClass) {
+                    return false;
+                }
+            }
+    }).create();
+
+    @Override
+    public Message deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
+        JsonObject jObj = jsonElement.getAsJsonObject();
+        Map.Entry<String, JsonElement> entry = jObj.entrySet().iterator().next();
+        String className = entry.getKey();
+        Class<?> clazz;
+        try {
+            clazz = Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new JsonParseException(String.format("Unable to deserialize class[%s]", className), e);
+        }
+        return (Message) gson.fromJson(entry.getValue(), clazz);
+    }
+
+    @Override
+    public JsonElement serialize(Message message, Type type, JsonSerializationContext jsonSerializationContext) {
+        JsonObject jObj = new JsonObject();
+        jObj.add(message.getClass().getName(), gson.toJsonTree(message));
+        return jObj;
+    }
+
+    private Serializable getMVELExpression(Message msg, String express, String prefix) {
+        Map<String, Serializable> exps = mvelExpressions.get(msg.getClass());
+        if (exps == null) {
+            exps = new HashMap<String, Serializable>();
+            mvelExpressions.put(msg.getClass(), exps);
+        }
+
+        String key = String.format("%s:%s", express, prefix);
+        Serializable exp = exps.get(key);
+        if (exp == null) {
+            exp = MVEL.compileExpression(express);
+            exps.put(key, exp);
+        }
+        return exp;
+    }
+
+    private void restoreFromSchema(Message msg, byte[] binary) throws ClassNotFoundException {
+        Map<String, List<String>> schema = msg.getHeaderEntry("schema");
+        if (schema == null) {
+            return;
+        }
+
+        Map raw = JSONObjectUtil.toObject(new String(binary), LinkedHashMap.class);
+        raw = (Map) raw.values().iterator().next();
+        for (Map.Entry<String, List<String>> e : schema.entrySet()) {
+            String rawClassName = e.getKey();
+            List<String> paths = e.getValue();
+            for (String path : paths) {
+                Serializable exp = getMVELExpression(msg, path, "msg:get");
+                Object obj = MVEL.executeExpression(exp, msg);
+                if (obj.getClass().getName().equals(rawClassName)) {
+                    continue;
+                }
+
+                exp = getMVELExpression(msg, path, "raw:get");
+                Object rawData = MVEL.executeExpression(exp, raw);
+                Class rawClass = Class.forName(rawClassName);
+                Object newValue = JSONObjectUtil.rehashObject(rawData, rawClass);
+                String setExpress = String.format("CONTEXT_OBJECT.%s = newValue", path);
+                exp = getMVELExpression(msg, setExpress, "msg:set");
+                Map vars = map(e("newValue", newValue));
+                // Note MVEL context is
+                // not meant for write but rather for read. Use a Map context to
+                // force MVEL to assign newValue on msg, not to create a new variable
+                // in vars map
+                Map context = map(e("CONTEXT_OBJECT", msg));
+                MVEL.executeExpression(exp, context, vars);
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Message msg) {
+        msg.putHeaderEntry("schema", MessageJsonSchemaBuilder.buildSchema(msg));
+        return gson.toJson(msg, Message.class).getBytes();
+    }
+
+    @Override
+    public Message decode(byte[] data) {
+        Message msg = gson.fromJson(new String(data), Message.class);
+        try {
+            restoreFromSchema(msg, data);
+        } catch (ClassNotFoundException e) {
+            throw new CloudRuntimeException(e);
+        }
+        return msg;
+    }
+
+    public String dumpMessage(Message msg) {
+        return gson.toJson(msg, Message.class);
+    }
+}
@@ -0,0 +1,58 @@
+package org.zstack.core.cloudbus;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class LocalDeliveryStatistic {
+    private String mode;
+    private long localMessageNum;
+    private long remoteMessageNum;
+    private long localEventNum;
+    private long remoteEventNum;
+
+    @ConstructorProperties({"mode", "localMessageNum", "remoteMessageNum", "localEventNum", "remoteEventNum"})
+    public LocalDeliveryStatistic(String mode, long localMessageNum, long remoteMessageNum, long localEventNum, long remoteEventNum) {
+        this.mode = mode;
+        this.localMessageNum = localMessageNum;
+        this.remoteMessageNum = remoteMessageNum;
+        this.localEventNum = localEventNum;
+        this.remoteEventNum = remoteEventNum;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * messages and replies handed to a service or a waiting sender of this management node without going through
+     * the message broker
+     */
+    public long getLocalMessageNum() {
+        return localMessageNum;
+    }
+
+    public long getRemoteMessageNum() {
+        return remoteMessageNum;
+    }
+
+    /**
+     * events handed to listeners of this management node without going through the message broker; they are still
+     * published to the broker for other management nodes
+     */
+    public long getLocalEventNum() {
+        return localEventNum;
+    }
+
+    public long getRemoteEventNum() {
+        return remoteEventNum;
+    }
+
+    /**
+     * 0 - 100
+     */
+    public int getLocalMessagePercent() {
+        long total = localMessageNum + remoteMessageNum;
+        return total == 0 ? 0 : (int) (localMessageNum * 100 / total);
+    }
+}
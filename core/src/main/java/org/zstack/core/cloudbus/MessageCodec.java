@@ -0,0 +1,19 @@
+package org.zstack.core.cloudbus;
+
+import org.zstack.header.message.Message;
+
+import java.io.IOException;
+
+/**
+ * turns a message into the body of an AMQP message and back.
+ *
+ * The name of the codec is carried in the AMQP header "codec" so the receiver knows how to decode the body;
+ * a message without the header is JSON.
+ */
+public interface MessageCodec {
+    String getName();
+
+    byte[] encode(Message msg) throws IOException;
+
+    Message decode(byte[] data) throws IOException;
+}
@@ -0,0 +1,296 @@
+package org.zstack.core.cloudbus;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ReturnListener;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * publishes messages to RabbitMQ from a few long-lived threads, each of which owns its channel and a lock-free
+ * queue. Callers only enqueue; a worker drains up to CloudBus.publisher.batchSize messages at a time and publishes
+ * them back to back, optionally waiting for publisher confirms once per batch.
+ *
+ * Messages are assigned to workers by the hash of the routing key, so messages to the same queue keep the order
+ * they are sent in. When CloudBus.publisher.queueSize messages are waiting, callers block until workers catch up;
+ * the number of times and the time callers were blocked are reported by CloudBusMXBean.
+ *
+ * Every message not confirmed by RabbitMQ, or not handed to it when confirms are off, is reported to the
+ * FailureHandler; that includes batches nacked or timing out, and messages left in queues when stopped.
+ */
+class MessagePublisher {
+    private static final CLogger logger = Utils.getLogger(MessagePublisher.class);
+
+    interface FailureHandler {
+        void publishFailed(Item item, Throwable t);
+    }
+
+    static class Item {
+        final String exchange;
+        final String routingKey;
+        final AMQP.BasicProperties properties;
+        final byte[] data;
+        final Object context;
+
+        Item(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] data, Object context) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.properties = properties;
+            this.data = data;
+            this.context = context;
+        }
+    }
+
+    private final Connection connection;
+    private final ReturnListener returnListener;
+    private final FailureHandler failureHandler;
+    private final int batchSize;
+    private final int queueSize;
+    private final boolean confirm;
+    private final long confirmTimeout;
+    private final Semaphore permits;
+    private final Worker[] workers;
+    private volatile boolean stopped;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong confirmFailures = new AtomicLong();
+    private final AtomicLong backpressureTimes = new AtomicLong();
+    private final AtomicLong backpressureWaitTime = new AtomicLong();
+
+    private class Worker implements Runnable {
+        final ConcurrentLinkedQueue<Item> queue = new ConcurrentLinkedQueue<Item>();
+        final Thread thread;
+        volatile boolean parked;
+        Channel channel;
+
+        Worker(int index) {
+            thread = new Thread(this, String.format("cloudbus-publisher-%s", index));
+            thread.setDaemon(true);
+        }
+
+        void wakeup() {
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private Channel getChannel() throws IOException {
+            if (channel == null || !channel.isOpen()) {
+                channel = connection.createChannel();
+                channel.addReturnListener(returnListener);
+                if (confirm) {
+                    channel.confirmSelect();
+                }
+            }
+            return channel;
+        }
+
+        private List<Item> drain() {
+            List<Item> batch = new ArrayList<Item>(batchSize);
+            Item item;
+            while (batch.size() < batchSize && (item = queue.poll()) != null) {
+                batch.add(item);
+            }
+            return batch;
+        }
+
+        private void publish(List<Item> batch) {
+            int done = 0;
+            Throwable error = null;
+            try {
+                Channel chan = getChannel();
+                for (Item item : batch) {
+                    chan.basicPublish(item.exchange, item.routingKey, true, item.properties, item.data);
+                    done ++;
+                }
+
+                if (confirm && !chan.waitForConfirms(confirmTimeout)) {
+                    confirmFailures.incrementAndGet();
+                    // waitForConfirms() doesn't tell which ones are nacked
+                    error = new CloudRuntimeException(String.format("RabbitMQ nacked some of %s messages published in a batch", batch.size()));
+                    logger.warn(error.getMessage());
+                }
+            } catch (TimeoutException e) {
+                confirmFailures.incrementAndGet();
+                error = new CloudRuntimeException(String.format("no publisher confirm for %s messages after %s ms", batch.size(), confirmTimeout), e);
+                logger.warn(error.getMessage());
+                // late confirms of this batch must not be taken for confirms of the next batch
+                closeChannel();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = e;
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                published.addAndGet(done);
+                batches.incrementAndGet();
+                permits.release(batch.size());
+            }
+
+            if (error != null) {
+                // with confirms, nothing in the batch is confirmed; without, messages before the error are handed to RabbitMQ
+                for (Item item : batch.subList(confirm ? 0 : done, batch.size())) {
+                    failed(item, error);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                List<Item> batch = drain();
+                if (!batch.isEmpty()) {
+                    publish(batch);
+                    continue;
+                }
+
+                if (stopped) {
+                    break;
+                }
+
+                parked = true;
+                // check again, the item may be put before parked is set
+                if (queue.isEmpty()) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                parked = false;
+            }
+
+            closeChannel();
+        }
+
+        private void closeChannel() {
+            if (channel == null) {
+                return;
+            }
+
+            try {
+                channel.close();
+            } catch (Throwable t) {
+                try {
+                    channel.abort();
+                } catch (IOException e) {
+                    logger.trace("failed to abort channel", e);
+                }
+            }
+        }
+    }
+
+    MessagePublisher(Connection connection, ReturnListener returnListener, FailureHandler failureHandler) {
+        this.connection = connection;
+        this.returnListener = returnListener;
+        this.failureHandler = failureHandler;
+        batchSize = CloudBusGlobalProperty.PUBLISHER_BATCH_SIZE;
+        queueSize = CloudBusGlobalProperty.PUBLISHER_QUEUE_SIZE;
+        confirm = CloudBusGlobalProperty.PUBLISHER_CONFIRM;
+        confirmTimeout = TimeUnit.SECONDS.toMillis(CloudBusGlobalProperty.PUBLISHER_CONFIRM_TIMEOUT);
+        permits = new Semaphore(queueSize);
+        workers = new Worker[CloudBusGlobalProperty.PUBLISHER_THREAD_NUM];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+        }
+    }
+
+    void start() {
+        for (Worker w : workers) {
+            w.thread.start();
+        }
+        logger.debug(String.format("started %s cloudbus publisher threads[batch size:%s, queue size:%s, confirm:%s]",
+                workers.length, batchSize, queueSize, confirm));
+    }
+
+    private void failed(Item item, Throwable t) {
+        failures.incrementAndGet();
+        try {
+            failureHandler.publishFailed(item, t);
+        } catch (Throwable t1) {
+            logger.warn("unhandled exception when handling a message failed to publish", t1);
+        }
+    }
+
+    void publish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] data, Object context) {
+        if (stopped) {
+            throw new CloudRuntimeException("cloudbus publisher has been stopped");
+        }
+
+        if (!permits.tryAcquire()) {
+            backpressureTimes.incrementAndGet();
+            long start = System.currentTimeMillis();
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                throw new CloudRuntimeException(e);
+            } finally {
+                backpressureWaitTime.addAndGet(System.currentTimeMillis() - start);
+            }
+        }
+
+        Worker w = workers[(routingKey.hashCode() & 0x7fffffff) % workers.length];
+        Item item = new Item(exchange, routingKey, properties, data, context);
+        w.queue.offer(item);
+        if (stopped && w.queue.remove(item)) {
+            // stop() may have drained the queue before the item is put
+            permits.release();
+            throw new CloudRuntimeException("cloudbus publisher has been stopped");
+        }
+        w.wakeup();
+    }
+
+    void stop() {
+        stopped = true;
+        for (Worker w : workers) {
+            LockSupport.unpark(w.thread);
+        }
+
+        for (Worker w : workers) {
+            try {
+                w.thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        CloudRuntimeException error = new CloudRuntimeException("cloudbus publisher has been stopped");
+        for (Worker w : workers) {
+            if (w.thread.isAlive()) {
+                // a worker still waiting for confirms fails the batch it holds
+                w.thread.interrupt();
+            }
+
+            Item item;
+            while ((item = w.queue.poll()) != null) {
+                permits.release();
+                failed(item, error);
+            }
+        }
+    }
+
+    PublisherStatistic getStatistic() {
+        return new PublisherStatistic(
+                queueSize - permits.availablePermits(),
+                queueSize,
+                workers.length,
+                published.get(),
+                batches.get(),
+                failures.get(),
+                confirmFailures.get(),
+                backpressureTimes.get(),
+                backpressureWaitTime.get()
+        );
+    }
+}
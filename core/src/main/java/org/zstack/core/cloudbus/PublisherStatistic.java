@@ -0,0 +1,66 @@
+package org.zstack.core.cloudbus;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class PublisherStatistic {
+    private int queueDepth;
+    private int queueSize;
+    private int threadNum;
+    private long publishedMessageNum;
+    private long batchNum;
+    private long failedMessageNum;
+    private long confirmFailureNum;
+    private long backpressureTimes;
+    private long backpressureWaitTime;
+
+    @ConstructorProperties({"queueDepth", "queueSize", "threadNum", "publishedMessageNum", "batchNum", "failedMessageNum", "confirmFailureNum", "backpressureTimes", "backpressureWaitTime"})
+    public PublisherStatistic(int queueDepth, int queueSize, int threadNum, long publishedMessageNum, long batchNum, long failedMessageNum, long confirmFailureNum, long backpressureTimes, long backpressureWaitTime) {
+        this.queueDepth = queueDepth;
+        this.queueSize = queueSize;
+        this.threadNum = threadNum;
+        this.publishedMessageNum = publishedMessageNum;
+        this.batchNum = batchNum;
+        this.failedMessageNum = failedMessageNum;
+        this.confirmFailureNum = confirmFailureNum;
+        this.backpressureTimes = backpressureTimes;
+        this.backpressureWaitTime = backpressureWaitTime;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public int getThreadNum() {
+        return threadNum;
+    }
+
+    public long getPublishedMessageNum() {
+        return publishedMessageNum;
+    }
+
+    public long getBatchNum() {
+        return batchNum;
+    }
+
+    public long getFailedMessageNum() {
+        return failedMessageNum;
+    }
+
+    public long getConfirmFailureNum() {
+        return confirmFailureNum;
+    }
+
+    public long getBackpressureTimes() {
+        return backpressureTimes;
+    }
+
+    public long getBackpressureWaitTime() {
+        return backpressureWaitTime;
+    }
+}
@@ -12,6 +12,7 @@ import org.zstack.utils.hash.ApacheHash;
 import org.zstack.utils.hash.ConsistentHash;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -67,6 +68,11 @@ public class ResourceDestinationMakerImpl implements ManagementNodeChangeListene
         return nodeUuid.equals(Platform.getManagementServerId());
     }
 
+    @Override
+    public Collection<String> getManagementNodesInHashRing() {
+        return nodeHash.getNodes();
+    }
+
     public boolean isNodeInCircle(String nodeId) {
         return nodeHash.hasNode(nodeId);
     }
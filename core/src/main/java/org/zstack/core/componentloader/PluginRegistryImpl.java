@@ -5,12 +5,15 @@ import org.zstack.utils.logging.CLogger;
 import org.zstack.utils.logging.CLoggerImpl;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class PluginRegistryImpl implements PluginRegistryIN {
     private static final CLogger logger = CLoggerImpl.getLogger(PluginRegistryImpl.class);
     private Map<String, List<PluginExtension>> extensions = new HashMap<String, List<PluginExtension>>(10);
     private Map<String, List<PluginExtension>> extensionsByInterfaceName = new HashMap<String, List<PluginExtension>>(10);
+    /* extensions are fixed after initialize(), so the instance list of each interface is built once */
+    private Map<Class, List> extensionListCache = new ConcurrentHashMap<Class, List>();
 
     private void sortPlugins() {
         for (List<PluginExtension> exts : extensionsByInterfaceName.values()) {
@@ -62,6 +65,7 @@ public class PluginRegistryImpl implements PluginRegistryIN {
 
     @Override
     public void initialize() {
+        extensionListCache.clear();
         buildPluginTree();
         sortPlugins();
         logger.info("Plugin system has been initialized successfully");
@@ -81,15 +85,20 @@ public class PluginRegistryImpl implements PluginRegistryIN {
 
     @Override
     public <T> List<T> getExtensionList(Class<T> clazz) {
-        List<T> exts = new ArrayList<T>();
-        List<PluginExtension> pexts = getExtensionByInterfaceName(clazz.getName());
-        for (PluginExtension pext : pexts) {
-            T extp = (T)pext.getInstance();
-            if (!exts.contains(extp)) {
-                exts.add(extp);
+        List<T> exts = extensionListCache.get(clazz);
+        if (exts == null) {
+            // an instance may be declared as extension of the same interface more than once, keep the first
+            Set<T> set = new LinkedHashSet<T>();
+            List<PluginExtension> pexts = getExtensionByInterfaceName(clazz.getName());
+            for (PluginExtension pext : pexts) {
+                set.add((T)pext.getInstance());
             }
+            exts = new ArrayList<T>(set);
+            extensionListCache.put(clazz, exts);
         }
-        return exts;
+
+        // callers may modify the list they get
+        return new ArrayList<T>(exts);
     }
 
     @Override
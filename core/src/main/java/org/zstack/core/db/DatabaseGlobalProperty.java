@@ -9,4 +9,10 @@ import org.zstack.core.GlobalPropertyDefinition;
 public class DatabaseGlobalProperty {
     @GlobalProperty(name="DatabaseFacade.deadlockRetryTimes", defaultValue = "10")
     public static int retryTimes;
+    @GlobalProperty(name="GLock.lease", defaultValue = "false")
+    public static boolean GLOCK_LEASE;
+    @GlobalProperty(name="GLock.leaseTime", defaultValue = "60")
+    public static int GLOCK_LEASE_TIME;
+    @GlobalProperty(name="GLock.idleLockCleanupInterval", defaultValue = "300")
+    public static int GLOCK_IDLE_LOCK_CLEANUP_INTERVAL;
 }
@@ -15,24 +15,24 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * with GLock.lease, the lock is a lease of LeaseLockFacade, otherwise it's a MySQL GET_LOCK holding a DB
+ * connection until unlock
  */
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class GLock {
     private static final CLogger logger = Utils.getLogger(GLock.class);
 
-    private static final Map<String, ReentrantLock> memLocks = new HashMap<String, ReentrantLock>();
-
     private DataSource dataSource;
     private Connection conn;
     private final String name;
     private final long timeout;
     private boolean success = false;
+    private LeaseLock lease;
+    private LeaseLockFacadeImpl.LocalLock mlock;
+    private long lockedTime;
     private static final ThreadLocal<List<String>> isLocked = new ThreadLocal<List<String>>() {
         @Override
         protected List<String> initialValue()
@@ -43,6 +43,8 @@ public class GLock {
 
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private LeaseLockFacadeImpl leasef;
 
     public GLock(String name, long timeout) {
         this.name = name;
@@ -65,28 +67,42 @@ public class GLock {
         locks.remove(name);
     }
 
+    /**
+     * the fencing token of the lease, 0 if the lock is not a lease
+     */
+    public long getFencingToken() {
+        return lease == null ? 0 : lease.getFencingToken();
+    }
+
+    private void leaseLock() {
+        try {
+            lease = leasef.lock(name, timeout);
+            success = true;
+        } catch (RuntimeException e) {
+            success = false;
+            checkOutThread();
+            throw e;
+        }
+    }
+
     public void lock() {
         checkInThread();
 
-        ReentrantLock mlock = null;
-        synchronized (memLocks) {
-            mlock = memLocks.get(name);
-            if (mlock == null) {
-                mlock = new ReentrantLock();
-                memLocks.put(name, mlock);
-            }
-
-            if (memLocks.size() > 100) {
-                logger.warn(String.format("there are more than 100 GLocks[num:%s] are created, something must be wrong in our program", memLocks.size()));
-            }
+        if (DatabaseGlobalProperty.GLOCK_LEASE) {
+            leaseLock();
+            return;
         }
 
+        long start = System.currentTimeMillis();
+        mlock = leasef.getLocalLock(name);
+        boolean mlocked = false;
         try {
             if (logger.isTraceEnabled()) {
                 logger.trace(String.format("[GLock]: thread[%s] is acquiring lock[%s]", Thread.currentThread().getName(), name));
             }
 
-            mlock.lock();
+            mlock.lock.lock();
+            mlocked = true;
             if (logger.isTraceEnabled()) {
                 logger.trace(String.format("[GLock Memory Lock]: thread[%s] got memory lock[%s]", Thread.currentThread().getName(), name));
             }
@@ -119,6 +135,8 @@ public class GLock {
                 }
             }
             success = true;
+            lockedTime = System.currentTimeMillis();
+            leasef.recordWaitTime(lockedTime - start);
         } catch (Throwable t) {
             if (conn != null) {
                 try {
@@ -128,7 +146,11 @@ public class GLock {
                 }
             }
 
-            mlock.unlock();
+            if (mlocked) {
+                mlock.lock.unlock();
+            }
+            leasef.putLocalLock(mlock);
+            mlock = null;
 
             success = false;
             checkOutThread();
@@ -151,12 +173,16 @@ public class GLock {
             return;
         }
 
-        ReentrantLock lock = null;
-        synchronized (memLocks) {
-            lock = memLocks.get(name);
+        if (lease != null) {
+            try {
+                lease.unlock();
+            } finally {
+                checkOutThread();
+            }
+            return;
         }
 
-
+        LeaseLockFacadeImpl.LocalLock lock = mlock;
         try {
             DebugUtils.Assert(lock!=null, String.format("cannot find LockWrapper for GLock[%s], is unlock mistakenly called twice???", name));
 
@@ -197,7 +223,10 @@ public class GLock {
             }
         } finally {
             if (lock != null) {
-                lock.unlock();
+                mlock = null;
+                leasef.recordHoldTime(System.currentTimeMillis() - lockedTime);
+                lock.lock.unlock();
+                leasef.putLocalLock(lock);
             }
 
             checkOutThread();
@@ -0,0 +1,59 @@
+package org.zstack.core.db;
+
+/**
+ */
+public class LeaseLock {
+    private final LeaseLockFacadeImpl facade;
+    private final String name;
+    private final String owner;
+    private final long fencingToken;
+    private final long acquiredTime;
+    final LeaseLockFacadeImpl.LocalLock localLock;
+    private volatile boolean lost;
+    private volatile boolean released;
+
+    LeaseLock(LeaseLockFacadeImpl facade, String name, String owner, long fencingToken, LeaseLockFacadeImpl.LocalLock localLock) {
+        this.facade = facade;
+        this.name = name;
+        this.owner = owner;
+        this.fencingToken = fencingToken;
+        this.localLock = localLock;
+        acquiredTime = System.currentTimeMillis();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    String getOwner() {
+        return owner;
+    }
+
+    long getAcquiredTime() {
+        return acquiredTime;
+    }
+
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
+    void markLost() {
+        lost = true;
+    }
+
+    void markReleased() {
+        released = true;
+    }
+
+    /**
+     * false if the lock has been released, or the lease expired before it was renewed and the lock may have
+     * been taken by others
+     */
+    public boolean isValid() {
+        return !lost && !released;
+    }
+
+    public void unlock() {
+        facade.unlock(this);
+    }
+}
@@ -0,0 +1,17 @@
+package org.zstack.core.db;
+
+/**
+ * a distributed lock backed by a row lease in GLockLeaseVO; no DB connection is held while the lock is held.
+ *
+ * The lease is renewed by the management node holding it every GLock.leaseTime / 3 seconds; if the node dies or
+ * fails to renew, the lease expires after GLock.leaseTime seconds and the lock can be taken by others.
+ * Every acquisition increases the fencing token of the lock, callers writing to a shared resource can reject
+ * writes carrying a token smaller than the last one they saw.
+ */
+public interface LeaseLockFacade {
+    /**
+     * @param timeout in seconds
+     * @throws org.zstack.header.exception.CloudRuntimeException if the lock is not acquired in timeout
+     */
+    LeaseLock lock(String name, long timeout);
+}
@@ -0,0 +1,395 @@
+package org.zstack.core.db;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.Platform;
+import org.zstack.core.jmx.JmxFacade;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A lock is a row of GLockLeaseVO; acquiring it is a compare-and-set of the owner on a free or expired row, every
+ * statement borrows a connection only for its own duration. Rows are kept after release so re-acquiring a lock is a
+ * single update, and so the fencing token never goes back.
+ *
+ * Threads of this management node first queue on an in-memory lock of the name, so only one of them polls the DB.
+ * The in-memory locks are also used by GLock in GET_LOCK mode; they are kept for re-acquisition and removed after
+ * being idle for GLock.idleLockCleanupInterval seconds.
+ */
+public class LeaseLockFacadeImpl implements LeaseLockFacade, LeaseLockFacadeMXBean, Component {
+    private static final CLogger logger = Utils.getLogger(LeaseLockFacadeImpl.class);
+
+    private static final long[] LOCK_TIME_BUCKET_BOUNDS = {1, 10, 100, 1000, 10000, 60000};
+    private static final long MAX_POLL_INTERVAL = 500;
+
+    private static final String ACQUIRE_SQL = "update GLockLeaseVO set owner = ?, token = token + 1, expireDate = TIMESTAMPADD(SECOND, ?, CURRENT_TIMESTAMP)" +
+            " where name = ? and (owner is NULL or expireDate < CURRENT_TIMESTAMP)";
+    private static final String CREATE_SQL = "insert ignore into GLockLeaseVO (name, owner, token, expireDate) values (?, ?, 1, TIMESTAMPADD(SECOND, ?, CURRENT_TIMESTAMP))";
+    private static final String TOKEN_SQL = "select token from GLockLeaseVO where name = ? and owner = ?";
+    private static final String RENEW_SQL = "update GLockLeaseVO set expireDate = TIMESTAMPADD(SECOND, ?, CURRENT_TIMESTAMP) where name = ? and owner = ? and token = ?";
+    private static final String RELEASE_SQL = "update GLockLeaseVO set owner = NULL where name = ? and owner = ? and token = ?";
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private JmxFacade jmxf;
+
+    private final ConcurrentMap<String, LocalLock> localLocks = new ConcurrentHashMap<String, LocalLock>();
+    private final ConcurrentMap<String, LeaseLock> leases = new ConcurrentHashMap<String, LeaseLock>();
+    private final AtomicLong lostLeases = new AtomicLong();
+    private final AtomicLongArray waitTimeHistogram = new AtomicLongArray(LOCK_TIME_BUCKET_BOUNDS.length + 1);
+    private final AtomicLongArray holdTimeHistogram = new AtomicLongArray(LOCK_TIME_BUCKET_BOUNDS.length + 1);
+
+    static class LocalLock {
+        final ReentrantLock lock = new ReentrantLock();
+        private int refs;
+        private long lastUsedTime;
+        private boolean removed;
+    }
+
+    public void init() {
+        thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return Math.max(1, DatabaseGlobalProperty.GLOCK_LEASE_TIME / 3);
+            }
+
+            @Override
+            public String getName() {
+                return "GLock-lease-renewer";
+            }
+
+            @Override
+            public void run() {
+                renewLeases();
+            }
+        });
+
+        thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return DatabaseGlobalProperty.GLOCK_IDLE_LOCK_CLEANUP_INTERVAL;
+            }
+
+            @Override
+            public String getName() {
+                return "GLock-idle-lock-cleaner";
+            }
+
+            @Override
+            public void run() {
+                cleanupIdleLocalLocks(TimeUnit.SECONDS.toMillis(DatabaseGlobalProperty.GLOCK_IDLE_LOCK_CLEANUP_INTERVAL));
+            }
+        });
+    }
+
+    LocalLock getLocalLock(String name) {
+        while (true) {
+            LocalLock l = localLocks.get(name);
+            if (l == null) {
+                l = new LocalLock();
+                LocalLock old = localLocks.putIfAbsent(name, l);
+                l = old == null ? l : old;
+            }
+
+            synchronized (l) {
+                if (l.removed) {
+                    // removed by the cleaner after we got it, take a new one
+                    continue;
+                }
+
+                l.refs ++;
+                l.lastUsedTime = System.currentTimeMillis();
+                return l;
+            }
+        }
+    }
+
+    void putLocalLock(LocalLock l) {
+        synchronized (l) {
+            l.refs --;
+            l.lastUsedTime = System.currentTimeMillis();
+        }
+    }
+
+    int cleanupIdleLocalLocks(long idleTime) {
+        int count = 0;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, LocalLock> e : localLocks.entrySet()) {
+            LocalLock l = e.getValue();
+            synchronized (l) {
+                if (l.refs == 0 && now - l.lastUsedTime >= idleTime) {
+                    l.removed = true;
+                    localLocks.remove(e.getKey(), l);
+                    count ++;
+                }
+            }
+        }
+
+        if (count > 0 && logger.isTraceEnabled()) {
+            logger.trace(String.format("[GLock]: removed %s idle in-memory locks, %s remaining", count, localLocks.size()));
+        }
+        return count;
+    }
+
+    private void record(AtomicLongArray histogram, long time) {
+        int i = 0;
+        while (i < LOCK_TIME_BUCKET_BOUNDS.length && time > LOCK_TIME_BUCKET_BOUNDS[i]) {
+            i ++;
+        }
+        histogram.incrementAndGet(i);
+    }
+
+    void recordWaitTime(long time) {
+        record(waitTimeHistogram, time);
+    }
+
+    void recordHoldTime(long time) {
+        record(holdTimeHistogram, time);
+    }
+
+    private void close(Connection conn, PreparedStatement pstmt) {
+        if (pstmt != null) {
+            try {
+                pstmt.close();
+            } catch (SQLException e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
+
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    private DataSource getDataSource() {
+        return dbf.getDataSource();
+    }
+
+    private Long tryAcquire(String name, String owner) throws SQLException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = getDataSource().getConnection();
+            conn.setAutoCommit(true);
+            pstmt = conn.prepareStatement(ACQUIRE_SQL);
+            pstmt.setString(1, owner);
+            pstmt.setInt(2, DatabaseGlobalProperty.GLOCK_LEASE_TIME);
+            pstmt.setString(3, name);
+            if (pstmt.executeUpdate() == 0) {
+                pstmt.close();
+                pstmt = conn.prepareStatement(CREATE_SQL);
+                pstmt.setString(1, name);
+                pstmt.setString(2, owner);
+                pstmt.setInt(3, DatabaseGlobalProperty.GLOCK_LEASE_TIME);
+                if (pstmt.executeUpdate() == 0) {
+                    // held by others
+                    return null;
+                }
+            }
+
+            pstmt.close();
+            pstmt = conn.prepareStatement(TOKEN_SQL);
+            pstmt.setString(1, name);
+            pstmt.setString(2, owner);
+            ResultSet rs = pstmt.executeQuery();
+            if (!rs.next()) {
+                throw new CloudRuntimeException(String.format("lease of lock[%s] is acquired by %s but lost immediately, internal error", name, owner));
+            }
+            return rs.getLong(1);
+        } finally {
+            close(conn, pstmt);
+        }
+    }
+
+    @Override
+    public LeaseLock lock(String name, long timeout) {
+        long start = System.currentTimeMillis();
+        long deadline = start + TimeUnit.SECONDS.toMillis(timeout);
+        String owner = String.format("%s:%s", Platform.getManagementServerId(), Platform.getUuid());
+        LocalLock local = getLocalLock(name);
+        boolean locked = false;
+        LeaseLock lease = null;
+        try {
+            if (!local.lock.tryLock(timeout, TimeUnit.SECONDS)) {
+                throw new CloudRuntimeException(String.format("lock[%s] failed, timeout after %s seconds", name, timeout));
+            }
+            locked = true;
+
+            long interval = 10;
+            Long token;
+            while ((token = tryAcquire(name, owner)) == null) {
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    throw new CloudRuntimeException(String.format("lock[%s] failed, timeout after %s seconds", name, timeout));
+                }
+
+                TimeUnit.MILLISECONDS.sleep(Math.min(interval, deadline - now));
+                interval = Math.min(interval * 2, MAX_POLL_INTERVAL);
+            }
+
+            lease = new LeaseLock(this, name, owner, token, local);
+            leases.put(owner, lease);
+            recordWaitTime(System.currentTimeMillis() - start);
+            if (logger.isTraceEnabled()) {
+                logger.trace(String.format("[GLock Lease]: thread[%s] got lease of lock[%s], fencing token: %s", Thread.currentThread().getName(), name, token));
+            }
+            return lease;
+        } catch (InterruptedException e) {
+            throw new CloudRuntimeException(String.format("interrupted when acquiring lock[%s]", name), e);
+        } catch (SQLException e) {
+            throw new CloudRuntimeException(String.format("[GLock Error]: unable to acquire lease of lock[%s]", name), e);
+        } finally {
+            if (lease == null) {
+                if (locked) {
+                    local.lock.unlock();
+                }
+                putLocalLock(local);
+            }
+        }
+    }
+
+    void unlock(LeaseLock lease) {
+        if (leases.remove(lease.getOwner()) == null) {
+            return;
+        }
+
+        try {
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            try {
+                conn = getDataSource().getConnection();
+                conn.setAutoCommit(true);
+                pstmt = conn.prepareStatement(RELEASE_SQL);
+                pstmt.setString(1, lease.getName());
+                pstmt.setString(2, lease.getOwner());
+                pstmt.setLong(3, lease.getFencingToken());
+                if (pstmt.executeUpdate() == 0) {
+                    logger.warn(String.format("[GLock Lease]: lease of lock[%s, fencing token:%s] had expired before released, the lock may have been taken by others",
+                            lease.getName(), lease.getFencingToken()));
+                }
+            } catch (SQLException e) {
+                // the lease will expire
+                logger.warn(String.format("[GLock Lease]: unable to release lease of lock[%s]", lease.getName()), e);
+            } finally {
+                close(conn, pstmt);
+            }
+        } finally {
+            lease.markReleased();
+            recordHoldTime(System.currentTimeMillis() - lease.getAcquiredTime());
+            lease.localLock.lock.unlock();
+            putLocalLock(lease.localLock);
+        }
+    }
+
+    private void renewLeases() {
+        if (leases.isEmpty()) {
+            return;
+        }
+
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = getDataSource().getConnection();
+            conn.setAutoCommit(true);
+            pstmt = conn.prepareStatement(RENEW_SQL);
+            for (LeaseLock lease : leases.values()) {
+                pstmt.setInt(1, DatabaseGlobalProperty.GLOCK_LEASE_TIME);
+                pstmt.setString(2, lease.getName());
+                pstmt.setString(3, lease.getOwner());
+                pstmt.setLong(4, lease.getFencingToken());
+                if (pstmt.executeUpdate() == 0 && leases.containsKey(lease.getOwner())) {
+                    lease.markLost();
+                    lostLeases.incrementAndGet();
+                    logger.warn(String.format("[GLock Lease]: lease of lock[%s, fencing token:%s] expired before renewed, the lock may have been taken by others",
+                            lease.getName(), lease.getFencingToken()));
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn("[GLock Lease]: unable to renew leases", e);
+        } finally {
+            close(conn, pstmt);
+        }
+    }
+
+    @Override
+    public boolean start() {
+        jmxf.registerBean("LeaseLockFacade", this);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+
+    @Override
+    public int getHeldLeaseNum() {
+        return leases.size();
+    }
+
+    @Override
+    public int getLocalLockEntryNum() {
+        return localLocks.size();
+    }
+
+    @Override
+    public long getLostLeaseCount() {
+        return lostLeases.get();
+    }
+
+    @Override
+    public long[] getLockTimeBucketBounds() {
+        return LOCK_TIME_BUCKET_BOUNDS.clone();
+    }
+
+    private long[] toArray(AtomicLongArray histogram) {
+        long[] h = new long[histogram.length()];
+        for (int i=0; i<h.length; i++) {
+            h[i] = histogram.get(i);
+        }
+        return h;
+    }
+
+    @Override
+    public long[] getLockWaitTimeHistogram() {
+        return toArray(waitTimeHistogram);
+    }
+
+    @Override
+    public long[] getLockHoldTimeHistogram() {
+        return toArray(holdTimeHistogram);
+    }
+}
@@ -0,0 +1,24 @@
+package org.zstack.core.db;
+
+/**
+ */
+public interface LeaseLockFacadeMXBean {
+    int getHeldLeaseNum();
+
+    /**
+     * in-memory lock entries, entries idle for GLock.idleLockCleanupInterval seconds are removed
+     */
+    int getLocalLockEntryNum();
+
+    long getLostLeaseCount();
+
+    /**
+     * upper bounds in milliseconds of the buckets of lockWaitTimeHistogram and lockHoldTimeHistogram,
+     * the last bucket of the histograms has no bound
+     */
+    long[] getLockTimeBucketBounds();
+
+    long[] getLockWaitTimeHistogram();
+
+    long[] getLockHoldTimeHistogram();
+}
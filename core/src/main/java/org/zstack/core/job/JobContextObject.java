@@ -1,14 +1,30 @@
 package org.zstack.core.job;
 
 import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.serializable.SerializableHelper;
 
-import java.io.Serializable;
+import java.io.*;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.util.HashMap;
 import java.util.Map;
 
 final class JobContextObject implements Serializable {
+    /*
+     * contexts are written as the class name followed by name/value pairs; strings and boxed primitives,
+     * which are almost all @JobContext fields, are written as is, other values fall back to java serialization.
+     * Contexts saved by java serialization before start with 0xACED and are still readable
+     */
+    private static final int MAGIC = 0x5a4a4301;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_BOOLEAN = 4;
+    private static final byte TYPE_DOUBLE = 5;
+    private static final byte TYPE_SERIALIZED = 6;
+
     private final String className;
     private Map<String, Object> args = new HashMap<String, Object>();
 
@@ -17,6 +33,98 @@ final class JobContextObject implements Serializable {
         save(job);
     }
 
+    private JobContextObject(String className, Map<String, Object> args) {
+        this.className = className;
+        this.args = args;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeValue(DataOutputStream out, Object val) throws IOException {
+        if (val == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (val instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeBytes(out, ((String) val).getBytes("UTF-8"));
+        } else if (val instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) val);
+        } else if (val instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) val);
+        } else if (val instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) val);
+        } else if (val instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) val);
+        } else {
+            out.writeByte(TYPE_SERIALIZED);
+            writeBytes(out, SerializableHelper.writeObject(val));
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return new String(readBytes(in), "UTF-8");
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_INT:
+                return in.readInt();
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_SERIALIZED:
+                return SerializableHelper.readObject(readBytes(in));
+            default:
+                throw new IOException(String.format("unknown value type[%s] in job context", type));
+        }
+    }
+
+    byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bstream = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bstream);
+        out.writeInt(MAGIC);
+        out.writeUTF(className);
+        out.writeInt(args.size());
+        for (Map.Entry<String, Object> e : args.entrySet()) {
+            out.writeUTF(e.getKey());
+            writeValue(out, e.getValue());
+        }
+        out.close();
+        return bstream.toByteArray();
+    }
+
+    static JobContextObject fromBytes(byte[] bits) throws IOException, ClassNotFoundException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bits));
+        if (bits.length < 4 || in.readInt() != MAGIC) {
+            return SerializableHelper.readObject(bits);
+        }
+
+        String className = in.readUTF();
+        int size = in.readInt();
+        Map<String, Object> args = new HashMap<String, Object>(size * 2);
+        for (int i=0; i<size; i++) {
+            String name = in.readUTF();
+            args.put(name, readValue(in));
+        }
+        return new JobContextObject(className, args);
+    }
+
     private void save(Job obj) {
         Class<?> currClass = obj.getClass();
         Field debugField = null;
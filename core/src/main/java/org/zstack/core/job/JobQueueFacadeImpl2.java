@@ -25,23 +25,35 @@ import org.zstack.utils.DebugUtils;
 import org.zstack.utils.JsonWrapper;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
-import org.zstack.utils.serializable.SerializableHelper;
 
+import javax.persistence.EntityManager;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * queues are locked by shards of their names(JobQueueFacade.lockShards), so jobs of unrelated queues don't
+ * serialize on one DB lock.
+ *
+ * For a queue this management node works on, jobs issued by this node are also kept in a local ready queue;
+ * taking them needs neither the DB lock nor de-serializing the job context. Jobs issued by other nodes are only
+ * in DB; a local job is only taken when no older job is pending in DB, so every queue stays FIFO.
+ *
+ * A finished job is written to DB in the same transaction that marks the next job Processing.
  */
 public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListener, Component, ManagementNodeChangeListener {
     private static final CLogger logger = Utils.getLogger(JobQueueFacadeImpl2.class);
     private static final String LOCK_NAME = "JobQueueFacade.lock";
     private static final String ORPHAN_JOB_LOCK_NAME = "JobQueueFacade.orphanJobLock";
     private static final int LOCK_TIMEOUT = 60;
+    private static final JobQueueEntryVO OLDER_JOB_PENDING = new JobQueueEntryVO();
 
     private Map<Long, JobWrapper> wrappers = Collections.synchronizedMap(new HashMap<Long, JobWrapper>());
+    private final ConcurrentMap<Long, LocalQueue> localQueues = new ConcurrentHashMap<Long, LocalQueue>();
 
     @Autowired
     private DatabaseFacade dbf;
@@ -127,7 +139,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
 
             logger.debug(String.format("[Job Restart]: job[id:%s, name:%s] in queue[id:%s] is restarting as its previous worker node[id:%s] became unavailable",
                     e.getId(), e.getName(), qvo.getId(), mgmtId));
-            execute(qvo.getName(), qvo.getOwner(), e, new NopeReturnValueCompletion(), null);
+            execute(qvo.getName(), qvo.getOwner(), e, null, new NopeReturnValueCompletion(), null);
             return;
         }
     }
@@ -175,15 +187,208 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
 
         void fail(ErrorCode err);
     }
+
+    private static class LocalQueue {
+        // ordered by job id, the order jobs are issued in
+        private final TreeMap<Long, JobContextObject> ready = new TreeMap<Long, JobContextObject>();
+
+        synchronized void add(long jobId, JobContextObject ctx) {
+            ready.put(jobId, ctx);
+        }
+
+        synchronized JobContextObject remove(long jobId) {
+            return ready.remove(jobId);
+        }
+
+        synchronized Map.Entry<Long, JobContextObject> take() {
+            return ready.pollFirstEntry();
+        }
+    }
+
+    private static class FinishedJob {
+        final JobQueueEntryVO entry;
+        final JobEvent event;
+
+        FinishedJob(JobQueueEntryVO entry, JobEvent event) {
+            this.entry = entry;
+            this.event = event;
+        }
+    }
+
+    private String lockName(String queueName) {
+        int shard = (queueName.hashCode() & Integer.MAX_VALUE) % JobGlobalProperty.JOB_QUEUE_LOCK_SHARDS;
+        return String.format("%s.%s", LOCK_NAME, shard);
+    }
+
+    private void jobFail(JobQueueEntryVO jvo, ErrorCode err) {
+        jvo.setDoneDate(new Timestamp(new Date().getTime()));
+        jvo.setState(JobState.Error);
+        dbf.update(jvo);
+
+        JobEvent evt = new JobEvent();
+        evt.setJobId(jvo.getId());
+        evt.setErrorCode(err);
+        bus.publish(evt);
+    }
+
+    private FinishedJob jobFailed(JobQueueEntryVO jvo, ErrorCode err) {
+        jvo.setDoneDate(new Timestamp(new Date().getTime()));
+        jvo.setState(JobState.Error);
+
+        JobEvent evt = new JobEvent();
+        evt.setJobId(jvo.getId());
+        evt.setErrorCode(err);
+        return new FinishedJob(jvo, evt);
+    }
+
+    private FinishedJob jobDone(JobQueueEntryVO jvo, Object ret) {
+        jvo.setDoneDate(new Timestamp(new Date().getTime()));
+        jvo.setState(JobState.Completed);
+
+        JobEvent evt = new JobEvent();
+        evt.setJobId(jvo.getId());
+        if (ret != null) {
+            evt.setReturnValue(JsonWrapper.wrap(ret));
+        }
+        return new FinishedJob(jvo, evt);
+    }
+
+    private void publishFinished(FinishedJob finished) {
+        if (finished != null) {
+            bus.publish(finished.event);
+        }
+    }
+
+    /**
+     * marks the job Processing if it's the oldest pending job of the queue
+     *
+     * @return the job; OLDER_JOB_PENDING if an older job is pending; null if the job is no longer pending
+     */
+    @Transactional
+    private JobQueueEntryVO markProcessing(FinishedJob finished, long queueId, long jobId) {
+        EntityManager em = dbf.getEntityManager();
+        if (finished != null) {
+            em.merge(finished.entry);
+        }
+
+        String sql = "select min(e.id) from JobQueueEntryVO e where e.jobQueueId = :queueId and e.state = :state";
+        TypedQuery<Long> q = em.createQuery(sql, Long.class);
+        q.setParameter("queueId", queueId);
+        q.setParameter("state", JobState.Pending);
+        Long head = q.getSingleResult();
+        if (head == null || head > jobId) {
+            return null;
+        }
+        if (head < jobId) {
+            return OLDER_JOB_PENDING;
+        }
+
+        JobQueueEntryVO jobe = em.find(JobQueueEntryVO.class, jobId);
+        jobe.setState(JobState.Processing);
+        return jobe;
+    }
+
+    @Transactional
+    private JobQueueEntryVO markProcessingFromDb(FinishedJob finished, JobQueueVO qvo) {
+        EntityManager em = dbf.getEntityManager();
+        if (finished != null) {
+            em.merge(finished.entry);
+        }
+
+        String sql = "select e from JobQueueEntryVO e where e.jobQueueId = :queueId and e.state = :state order by e.id asc";
+        TypedQuery<JobQueueEntryVO> q = em.createQuery(sql, JobQueueEntryVO.class);
+        q.setParameter("queueId", qvo.getId());
+        q.setParameter("state", JobState.Pending);
+        q.setMaxResults(1);
+        List<JobQueueEntryVO> es = q.getResultList();
+        if (es.isEmpty()) {
+            JobQueueVO vo = em.find(JobQueueVO.class, qvo.getId());
+            if (vo != null) {
+                em.remove(vo);
+            }
+            return null;
+        }
+
+        JobQueueEntryVO jobe = es.get(0);
+        jobe.setState(JobState.Processing);
+        return jobe;
+    }
+
+    private void loadFailed(JobQueueVO qvo, JobQueueEntryVO jobe, Exception e1) {
+        String err = String.format("[Job de-serialize failed, the job will be marked as Error] queue name: %s, job id: %s, %s", qvo.getName(),
+                jobe.getId(), e1.getMessage());
+        logger.warn(err, e1);
+        jobFail(jobe, errf.stringToInternalError(err));
+    }
+
+    private Bucket takeJob(final JobQueueVO qvo, FinishedJob finished) {
+        LocalQueue lq = localQueues.get(qvo.getId());
+        if (lq != null) {
+            Map.Entry<Long, JobContextObject> ready;
+            while ((ready = lq.take()) != null) {
+                JobQueueEntryVO jobe = markProcessing(finished, qvo.getId(), ready.getKey());
+                publishFinished(finished);
+                finished = null;
+                if (jobe == null) {
+                    // the job has been taken from DB or removed
+                    continue;
+                }
+
+                if (jobe == OLDER_JOB_PENDING) {
+                    // a job issued by another node is older, take jobs from DB in order
+                    lq.add(ready.getKey(), ready.getValue());
+                    break;
+                }
+
+                try {
+                    return Bucket.newBucket(jobe, ready.getValue().load());
+                } catch (Exception e1) {
+                    loadFailed(qvo, jobe, e1);
+                }
+            }
+        }
+
+        GLock lock = new GLock(lockName(qvo.getName()), LOCK_TIMEOUT);
+        lock.lock();
+        try {
+            while (true) {
+                JobQueueEntryVO jobe = markProcessingFromDb(finished, qvo);
+                publishFinished(finished);
+                finished = null;
+                if (jobe == null) {
+                    // nothing to do, the queue has been released
+                    localQueues.remove(qvo.getId());
+                    logger.debug(String.format("[JobQueue released, no pending task, delete the queue] last owner: %s, queue name: %s, queue id: %s",
+                            qvo.getOwner(), qvo.getName(), qvo.getId()));
+                    return null;
+                }
+
+                try {
+                    JobContextObject ctx = lq == null ? null : lq.remove(jobe.getId());
+                    if (ctx == null) {
+                        ctx = JobContextObject.fromBytes(jobe.getContext());
+                    }
+                    return Bucket.newBucket(jobe, ctx.load());
+                } catch (Exception e1) {
+                    loadFailed(qvo, jobe, e1);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
     
     public void execute(String queueName, String owner, Job job) {
         execute(queueName, owner, job, new NopeCompletion());
     }
 
 
-    private <T> void execute(final String queueName, final String owner, final JobQueueEntryVO entry, final ReturnValueCompletion<T> completion, final Class<? extends T> returnType) {
+    private <T> void execute(final String queueName, final String owner, final JobQueueEntryVO entry, final JobContextObject ctx,
+                             final ReturnValueCompletion<T> completion, final Class<? extends T> returnType) {
         new JobWrapper() {
             private Long myJobId;
+            private Long myQueueId;
+            private boolean workOnQueue;
 
             @Transactional
             private JobQueueVO saveJob() throws IOException {
@@ -214,6 +419,8 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                     ret = qvo;
                 }
 
+                myQueueId = qvo.getId();
+                workOnQueue = Platform.getManagementServerId().equals(qvo.getWorkerManagementNodeId());
                 entry.setJobQueueId(qvo.getId());
                 entry.setIssuerManagementNodeId(Platform.getManagementServerId());
                 entry.setState(JobState.Pending);
@@ -229,80 +436,18 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                 return ret;
             }
 
-            private void jobFail(JobQueueEntryVO jvo, ErrorCode err) {
-                jvo.setDoneDate(new Timestamp(new Date().getTime()));
-                jvo.setState(JobState.Error);
-                dbf.update(jvo);
-
-                JobEvent evt = new JobEvent();
-                evt.setJobId(jvo.getId());
-                evt.setErrorCode(err);
-                bus.publish(evt);
-            }
-
-            private void jobDone(JobQueueEntryVO jvo, Object ret) {
-                jvo.setDoneDate(new Timestamp(new Date().getTime()));
-                jvo.setState(JobState.Completed);
-                dbf.update(jvo);
-
-                JobEvent evt = new JobEvent();
-                evt.setJobId(jvo.getId());
-                if (ret != null) {
-                    evt.setReturnValue(JsonWrapper.wrap(ret));
-                }
-                bus.publish(evt);
-            }
-
-            private JobQueueEntryVO findJob(JobQueueVO qvo) {
-                SimpleQuery<JobQueueEntryVO> q = dbf.createQuery(JobQueueEntryVO.class);
-                q.add(JobQueueEntryVO_.state, SimpleQuery.Op.EQ, JobState.Pending);
-                q.add(JobQueueEntryVO_.jobQueueId, SimpleQuery.Op.EQ, qvo.getId());
-                q.setLimit(1);
-                q.orderBy(JobQueueEntryVO_.id, SimpleQuery.Od.ASC);
-                return q.find();
-            }
-
-            private Bucket takeJob(final JobQueueVO qvo) {
-                GLock lock = new GLock(LOCK_NAME, LOCK_TIMEOUT);
-                lock.lock();
-                try {
-                    JobQueueEntryVO jobe = findJob(qvo);
-                    if (jobe == null) {
-                        // nothing to do, release queue
-                        dbf.remove(qvo);
-                        logger.debug(String.format("[JobQueue released, no pending task, delete the queue] last owner: %s, queue name: %s, queue id: %s",
-                                qvo.getOwner(), qvo.getName(), qvo.getId()));
-                        return null;
-                    }
-
-                    while (true) {
-                        try {
-                            JobContextObject ctx = SerializableHelper.readObject(jobe.getContext());
-                            Job theJob = ctx.load();
-                            jobe.setState(JobState.Processing);
-                            jobe = dbf.updateAndRefresh(jobe);
-                            return Bucket.newBucket(jobe, theJob);
-                        } catch (Exception e1) {
-                            String err = String.format("[Job de-serialize failed, the job will be marked as Error] queue name: %s, job id: %s, %s", qvo.getName(),
-                                    jobe.getId(), e1.getMessage());
-                            logger.warn(err, e1);
-                            jobFail(jobe, errf.stringToInternalError(err));
-                            jobe = findJob(qvo);
-                        }
-                    }
-                } finally {
-                    lock.unlock();
-                }
-            }
-
             @AsyncThread
-            private void process(final JobQueueVO qvo) {
+            private void process(final JobQueueVO qvo, FinishedJob finished) {
                 if (stopped) {
                     logger.warn(String.format("[Job Facade Stopped]: stop processing job"));
+                    if (finished != null) {
+                        dbf.update(finished.entry);
+                        publishFinished(finished);
+                    }
                     return;
                 }
 
-                Bucket ret = takeJob(qvo);
+                Bucket ret = takeJob(qvo, finished);
                 if (ret == null) {
                     return;
                 }
@@ -314,28 +459,28 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                 job.run(new ReturnValueCompletion<Object>() {
                     @Override
                     public void success(Object returnValue) {
+                        FinishedJob done;
                         try {
-                            jobDone(e, returnValue);
+                            done = jobDone(e, returnValue);
                             logger.debug(String.format("[Job Success] job[id:%s, name:%s] succeed", e.getId(), e.getName()));
                         } catch (Throwable t){
                             logger.warn(String.format("unhandled exception happened when calling %s", job.getClass().getName()), t);
-                            jobFail(e, errf.stringToInternalError(t.getMessage()));
-                        } finally {
-                            process(qvo);
+                            done = jobFailed(e, errf.stringToInternalError(t.getMessage()));
                         }
+                        process(qvo, done);
                     }
 
                     @Override
                     public void fail(ErrorCode errorCode) {
+                        FinishedJob done;
                         try {
-                            jobFail(e, errorCode);
+                            done = jobFailed(e, errorCode);
                             logger.debug(String.format("[Job Failure] job[id:%s, name:%s] failed", e.getId(), e.getName()));
                         } catch (Throwable t){
                             logger.warn(String.format("unhandled exception happened when calling %s", job.getClass().getName()), t);
-                            jobFail(e, errf.stringToInternalError(t.getMessage()));
-                        } finally {
-                            process(qvo);
+                            done = jobFailed(e, errf.stringToInternalError(t.getMessage()));
                         }
+                        process(qvo, done);
                     }
                 });
             }
@@ -349,17 +494,27 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                 }
 
                 try {
-                    GLock lock = new GLock(LOCK_NAME, LOCK_TIMEOUT);
+                    GLock lock = new GLock(lockName(queueName), LOCK_TIMEOUT);
                     JobQueueVO qvo = null;
                     lock.lock();
                     try {
                         qvo = saveJob();
+                        if (workOnQueue && ctx != null) {
+                            // saveJob() has committed, the job is visible to the worker taking it from the local queue
+                            LocalQueue lq = localQueues.get(myQueueId);
+                            if (lq == null) {
+                                lq = new LocalQueue();
+                                LocalQueue old = localQueues.putIfAbsent(myQueueId, lq);
+                                lq = old == null ? lq : old;
+                            }
+                            lq.add(myJobId, ctx);
+                        }
                     } finally {
                         lock.unlock();
                     }
 
                     if (qvo != null) {
-                        process(qvo);
+                        process(qvo, null);
                     }
                 } catch (IOException e1) {
                     throw new CloudRuntimeException(String.format("unable to serialize job: %s", entry.getName()), e1);
@@ -387,11 +542,10 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
         try {
             JobQueueEntryVO e = new JobQueueEntryVO();
             JobContextObject ctx = new JobContextObject(job);
-            byte[] bits = SerializableHelper.writeObject(ctx);
-            e.setContext(bits);
+            e.setContext(ctx.toBytes());
             e.setRestartable(job.getClass().isAnnotationPresent(RestartableJob.class));
             e.setName(job.getClass().getName());
-            execute(queueName, owner, e, completion, returnType);
+            execute(queueName, owner, e, ctx, completion, returnType);
         } catch (IOException e1) {
             throw new CloudRuntimeException(e1);
         }
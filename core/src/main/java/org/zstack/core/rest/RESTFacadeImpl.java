@@ -1,8 +1,14 @@
 package org.zstack.core.rest;
 
 import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.*;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
@@ -13,6 +19,8 @@ import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
 import org.zstack.header.errorcode.SysErrors;
 import org.zstack.core.thread.AsyncThread;
 import org.zstack.core.thread.CancelablePeriodicTask;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.Task;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.core.validation.ValidationFacade;
 import org.zstack.header.core.Completion;
@@ -32,6 +40,7 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -50,8 +59,12 @@ public class RESTFacadeImpl implements RESTFacade {
     private String path;
     private String callbackUrl;
     private RestTemplate template;
+    private PoolingHttpClientConnectionManager connectionManager;
 
-    private Map<String, HttpCallStatistic> statistics = new ConcurrentHashMap<String, HttpCallStatistic>();
+    static final String SIMPLE_HTTP_CLIENT = "simple";
+    static final String POOLED_HTTP_CLIENT = "pooled";
+
+    private ConcurrentMap<String, HttpCallStatistic> statistics = new ConcurrentHashMap<String, HttpCallStatistic>();
 
     private interface AsyncHttpWrapper {
         void fail(ErrorCode err);
@@ -82,7 +95,61 @@ public class RESTFacadeImpl implements RESTFacade {
         ub.path(RESTConstant.CALLBACK_PATH);
         callbackUrl = ub.build().toUriString();
         logger.debug(String.format("RESTFacade built callback url: %s", callbackUrl));
-        template = new RestTemplate();
+
+        if (POOLED_HTTP_CLIENT.equals(RESTGlobalProperty.HTTP_CLIENT)) {
+            template = new RestTemplate(createPooledRequestFactory());
+        } else {
+            template = new RestTemplate();
+        }
+    }
+
+    /**
+     * agents are called over and over, keep connections to them alive instead of opening a new one for every call
+     */
+    private ClientHttpRequestFactory createPooledRequestFactory() {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(RESTGlobalProperty.POOLED_MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(RESTGlobalProperty.POOLED_MAX_CONNECTIONS_PER_HOST);
+
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(RESTGlobalProperty.POOLED_CONNECT_TIMEOUT)
+                .setSocketTimeout(RESTGlobalProperty.POOLED_READ_TIMEOUT)
+                .setConnectionRequestTimeout(RESTGlobalProperty.POOLED_CONNECTION_REQUEST_TIMEOUT)
+                // an agent may have closed an idle connection, e.g. after restarting
+                .setStaleConnectionCheckEnabled(true)
+                .build();
+
+        CloseableHttpClient client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(config)
+                .build();
+
+        thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return RESTGlobalProperty.POOLED_IDLE_CONNECTION_TIMEOUT;
+            }
+
+            @Override
+            public String getName() {
+                return "close-idle-http-connections";
+            }
+
+            @Override
+            public void run() {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(RESTGlobalProperty.POOLED_IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS);
+            }
+        }, RESTGlobalProperty.POOLED_IDLE_CONNECTION_TIMEOUT);
+
+        logger.debug(String.format("RESTFacade uses pooled http client, max connections: %s, max connections per host: %s",
+                RESTGlobalProperty.POOLED_MAX_CONNECTIONS, RESTGlobalProperty.POOLED_MAX_CONNECTIONS_PER_HOST));
+        return new HttpComponentsClientHttpRequestFactory(client);
     }
 
     void notifyCallback(HttpServletRequest req, HttpServletResponse rsp) {
@@ -132,17 +199,16 @@ public class RESTFacadeImpl implements RESTFacade {
         long stime = 0;
         if (CoreGlobalProperty.PROFILER_HTTP_CALL) {
             stime = System.currentTimeMillis();
-            HttpCallStatistic stat = statistics.get(url);
-            if (stat == null) {
-                stat = new HttpCallStatistic();
+            if (!statistics.containsKey(url)) {
+                HttpCallStatistic stat = new HttpCallStatistic();
                 stat.setUrl(url);
-                statistics.put(url, stat);
+                statistics.putIfAbsent(url, stat);
             }
         }
 
         final String taskUuid = Platform.getUuid();
         final long finalStime = stime;
-        AsyncHttpWrapper wrapper = new AsyncHttpWrapper() {
+        final AsyncHttpWrapper wrapper = new AsyncHttpWrapper() {
             AtomicBoolean called = new AtomicBoolean(false);
 
             final AsyncHttpWrapper self = this;
@@ -208,8 +274,53 @@ public class RESTFacadeImpl implements RESTFacade {
             }
         };
 
+        wrappers.put(taskUuid, wrapper);
+        if (!thdf.isElasticIOEnabled()) {
+            ErrorCode err = post(url, body, taskUuid);
+            if (err != null) {
+                wrapper.fail(err);
+            }
+            return;
+        }
+
+        // the agent replies through the callback url, only sending the request blocks; send it in the elastic I/O pool
+        // so thousands of in-flight agent calls don't occupy the thread pool
+        thdf.submitBlockingIO(new Task<Void>() {
+            @Override
+            public Void call() throws Exception {
+                final ErrorCode err = post(url, body, taskUuid);
+                if (err == null) {
+                    return null;
+                }
+
+                // run the callback in the thread pool, I/O threads are only for I/O
+                thdf.submit(new Task<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        wrapper.fail(err);
+                        return null;
+                    }
+
+                    @Override
+                    public String getName() {
+                        return String.format("async-http-post-failure-%s", url);
+                    }
+                });
+                return null;
+            }
+
+            @Override
+            public String getName() {
+                return String.format("async-http-post-%s", url);
+            }
+        });
+    }
+
+    /**
+     * @return null if the request is accepted, otherwise the error
+     */
+    private ErrorCode post(String url, String body, String taskUuid) {
         try {
-            wrappers.put(taskUuid, wrapper);
             HttpHeaders requestHeaders = new HttpHeaders();
             requestHeaders.setContentType(MediaType.APPLICATION_JSON);
             requestHeaders.setContentLength(body.length());
@@ -223,11 +334,13 @@ public class RESTFacadeImpl implements RESTFacade {
             if (rsp.getStatusCode() != org.springframework.http.HttpStatus.OK) {
                 String err = String.format("http status: %s, response body:%s", rsp.getStatusCode().toString(), rsp.getBody());
                 logger.warn(err);
-                wrapper.fail(errf.stringToOperationError(err));
+                return errf.stringToOperationError(err);
             }
+
+            return null;
         } catch (Throwable e) {
             logger.warn(String.format("Unable to post to %s", url), e);
-            wrapper.fail(errf.throwableToInternalError(e));
+            return errf.throwableToInternalError(e);
         }
     }
 
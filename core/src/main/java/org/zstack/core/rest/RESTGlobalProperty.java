@@ -0,0 +1,24 @@
+package org.zstack.core.rest;
+
+import org.zstack.core.GlobalProperty;
+import org.zstack.core.GlobalPropertyDefinition;
+
+/**
+ */
+@GlobalPropertyDefinition
+public class RESTGlobalProperty {
+    @GlobalProperty(name="RESTFacade.httpClient", defaultValue = "simple")
+    public static String HTTP_CLIENT;
+    @GlobalProperty(name="RESTFacade.pooled.maxConnections", defaultValue = "2000")
+    public static int POOLED_MAX_CONNECTIONS;
+    @GlobalProperty(name="RESTFacade.pooled.maxConnectionsPerHost", defaultValue = "10")
+    public static int POOLED_MAX_CONNECTIONS_PER_HOST;
+    @GlobalProperty(name="RESTFacade.pooled.idleConnectionTimeout", defaultValue = "60")
+    public static long POOLED_IDLE_CONNECTION_TIMEOUT;
+    @GlobalProperty(name="RESTFacade.pooled.connectionRequestTimeout", defaultValue = "30000")
+    public static int POOLED_CONNECTION_REQUEST_TIMEOUT;
+    @GlobalProperty(name="RESTFacade.pooled.connectTimeout", defaultValue = "10000")
+    public static int POOLED_CONNECT_TIMEOUT;
+    @GlobalProperty(name="RESTFacade.pooled.readTimeout", defaultValue = "0")
+    public static int POOLED_READ_TIMEOUT;
+}
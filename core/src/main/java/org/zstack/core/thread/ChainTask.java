@@ -21,4 +21,11 @@ public abstract class ChainTask extends AbstractCompletion {
     protected int getSyncLevel() {
         return 1;
     }
+
+    /**
+     * @return the priority class of the task, or null to inherit the class of the submitter
+     */
+    protected TaskClass getTaskClass() {
+        return null;
+    }
 }
@@ -0,0 +1,11 @@
+package org.zstack.core.thread;
+
+/**
+ * implemented by a Task or SyncTask declaring its priority class
+ */
+public interface ClassifiedTask {
+    /**
+     * @return the class of the task, or null to inherit the class of the submitter
+     */
+    TaskClass getTaskClass();
+}
@@ -10,13 +10,24 @@ import org.zstack.utils.logging.CLogger;
 import org.zstack.utils.logging.CLoggerImpl;
 
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * queues of sync tasks and chain tasks are kept in concurrent maps keyed by sync signature, no lock is held
+ * on submitting or finishing tasks.
+ *
+ * a queue counts its running workers in an atomic counter bounded by the sync level. A submitter enqueues the task
+ * then tries to increase the counter to start a worker; a worker finding the queue empty decreases the counter then
+ * checks the queue again, so either side sees the other's change and no task is left behind. The last worker marks
+ * the counter DEAD and removes the queue from the map; a submitter that enqueued to a dead queue takes its task back
+ * and retries with a new queue, so two queues of the same signature never run at the same time.
+ */
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE, dependencyCheck = true)
 class DispatchQueueImpl implements DispatchQueue {
     private static final CLogger logger = Utils.getLogger(DispatchQueueImpl.class);
@@ -24,8 +35,8 @@ class DispatchQueueImpl implements DispatchQueue {
 	@Autowired
 	ThreadFacade _threadFacade;
 
-	private final HashMap<String, SyncTaskQueueWrapper> syncTasks = new HashMap<String, SyncTaskQueueWrapper>();
-	private final HashMap<String, ChainTaskQueueWrapper> chainTasks = new HashMap<String, ChainTaskQueueWrapper>();
+	private final ConcurrentHashMap<String, TaskQueueWrapper> syncTasks = new ConcurrentHashMap<String, TaskQueueWrapper>();
+	private final ConcurrentHashMap<String, TaskQueueWrapper> chainTasks = new ConcurrentHashMap<String, TaskQueueWrapper>();
 	private static final CLogger _logger = CLoggerImpl.getLogger(DispatchQueueImpl.class);
 
 
@@ -36,8 +47,11 @@ class DispatchQueueImpl implements DispatchQueue {
 	}
 
     private class SyncTaskFuture<T> extends AbstractFuture<T> {
+        final TaskClass taskClass;
+
         public SyncTaskFuture(SyncTask<T> task) {
             super(task);
+            taskClass = TaskClass.of(task);
         }
 
         private SyncTask getTask() {
@@ -55,12 +69,15 @@ class DispatchQueueImpl implements DispatchQueue {
                 return;
             }
 
+            TaskClass old = TaskClass.enter(taskClass);
             try {
                 ret = (T) getTask().call();
             } catch (Throwable t) {
                 _logger.warn(String.format("unhandled exception happened when calling sync task[name:%s, class:%s]",
                         getTask().getName(), getTask().getClass().getName()), t);
                 exception = t;
+            } finally {
+                TaskClass.exit(old);
             }
 
             done();
@@ -79,29 +96,132 @@ class DispatchQueueImpl implements DispatchQueue {
         }
     }
 
-    private class SyncTaskQueueWrapper {
-        ConcurrentLinkedQueue queue = new ConcurrentLinkedQueue();
-        AtomicInteger counter = new AtomicInteger(0);
-        int maxThreadNum = -1;
-        String syncSignature;
+    private abstract class TaskQueueWrapper {
+        static final int DEAD = -1;
+
+        final ConcurrentLinkedQueue queue = new ConcurrentLinkedQueue();
+        final AtomicInteger counter = new AtomicInteger(0);
+        final int maxThreadNum;
+        final String syncSignature;
+        final ConcurrentMap<String, TaskQueueWrapper> registry;
+
+        TaskQueueWrapper(String syncSignature, int maxThreadNum, ConcurrentMap<String, TaskQueueWrapper> registry) {
+            this.syncSignature = syncSignature;
+            this.maxThreadNum = maxThreadNum;
+            this.registry = registry;
+        }
+
+        abstract void startThread();
+
+        private boolean tryAcquireThread() {
+            while (true) {
+                int c = counter.get();
+                if (c == DEAD || c >= maxThreadNum) {
+                    return false;
+                }
+
+                if (counter.compareAndSet(c, c + 1)) {
+                    return true;
+                }
+            }
+        }
 
-        void addTask(SyncTaskFuture task) {
+        /**
+         * @return false if the queue is dead and the task is not taken
+         */
+        boolean addTask(Object task) {
             queue.offer(task);
-            if (maxThreadNum == -1) {
-                maxThreadNum = task.getSyncLevel();
+
+            if (tryAcquireThread()) {
+                startThread();
+                return true;
             }
-            if (syncSignature == null) {
-                syncSignature = task.getSyncSignature();
+
+            if (counter.get() == DEAD) {
+                // no thread will ever run this queue, take the task back
+                return !queue.remove(task);
             }
+
+            // running threads will pick up the task
+            return true;
         }
 
-        void startThreadIfNeeded() {
-            if (counter.get() >= maxThreadNum) {
+        /**
+         * called by a thread that finds the queue empty
+         *
+         * @return false if a task came in and the thread should keep going
+         */
+        boolean retire() {
+            int c = counter.decrementAndGet();
+            if (!queue.isEmpty() && tryAcquireThread()) {
+                return false;
+            }
+
+            if (c == 0 && counter.compareAndSet(0, DEAD)) {
+                registry.remove(syncSignature, this);
+            }
+
+            return true;
+        }
+
+        int getRunningThreadNum() {
+            return Math.max(counter.get(), 0);
+        }
+
+        /**
+         * @return the class of the task at the head of the queue, a thread running the queue is scheduled in it
+         */
+        TaskClass nextTaskClass() {
+            Object f = queue.peek();
+            if (f instanceof SyncTaskFuture) {
+                return ((SyncTaskFuture) f).taskClass;
+            } else if (f instanceof ChainFuture) {
+                return ((ChainFuture) f).taskClass;
+            }
+
+            return TaskClass.current();
+        }
+    }
+
+    private interface TaskQueueWrapperFactory {
+        TaskQueueWrapper create(String syncSignature, int syncLevel);
+    }
+
+    private void addTask(ConcurrentMap<String, TaskQueueWrapper> registry, String syncSignature, int syncLevel, Object task, TaskQueueWrapperFactory factory) {
+        while (true) {
+            TaskQueueWrapper wrapper = registry.get(syncSignature);
+            if (wrapper == null) {
+                wrapper = factory.create(syncSignature, syncLevel);
+                TaskQueueWrapper old = registry.putIfAbsent(syncSignature, wrapper);
+                if (old != null) {
+                    wrapper = old;
+                }
+            }
+
+            if (wrapper.addTask(task)) {
                 return;
             }
 
-            counter.incrementAndGet();
-            _threadFacade.submit(new Task<Void>() {
+            // the wrapper is retired after we got it, remove it in case the retiring thread hasn't done it
+            registry.remove(syncSignature, wrapper);
+        }
+    }
+
+    private class SyncTaskQueueWrapper extends TaskQueueWrapper {
+        SyncTaskQueueWrapper(String syncSignature, int maxThreadNum) {
+            super(syncSignature, maxThreadNum, syncTasks);
+        }
+
+        @Override
+        void startThread() {
+            final TaskClass taskClass = nextTaskClass();
+
+            class SyncTaskRunner implements Task<Void>, ClassifiedTask {
+                @Override
+                public TaskClass getTaskClass() {
+                    return taskClass;
+                }
+
                 @Override
                 public String getName() {
                     return syncSignature;
@@ -109,22 +229,11 @@ class DispatchQueueImpl implements DispatchQueue {
 
                 void run() {
                     SyncTaskFuture stask;
-                    while (true) {
+                    do {
                         while ((stask = (SyncTaskFuture) queue.poll()) != null) {
                             stask.run();
                         }
-
-                        synchronized (syncTasks) {
-                            if (queue.isEmpty()) {
-                                if (counter.decrementAndGet() == 0) {
-                                    syncTasks.remove(syncSignature);
-                                }
-
-                                break;
-                            }
-                        }
-                    }
-
+                    } while (!retire());
                 }
 
                 @Override
@@ -132,25 +241,24 @@ class DispatchQueueImpl implements DispatchQueue {
                     run();
                     return null;
                 }
-            });
+            }
+
+            _threadFacade.submit(new SyncTaskRunner());
         }
     }
 
+    private final TaskQueueWrapperFactory syncTaskQueueWrapperFactory = new TaskQueueWrapperFactory() {
+        @Override
+        public TaskQueueWrapper create(String syncSignature, int syncLevel) {
+            return new SyncTaskQueueWrapper(syncSignature, syncLevel);
+        }
+    };
+
 	private <T> Future<T> doSyncSubmit(final SyncTask<T> syncTask) {
 		assert syncTask.getSyncSignature() != null : "How can you submit a sync task without sync signature ???";
 
-        SyncTaskFuture f;
-        synchronized (syncTasks) {
-            SyncTaskQueueWrapper wrapper = syncTasks.get(syncTask.getSyncSignature());
-            if (wrapper == null) {
-                wrapper = new SyncTaskQueueWrapper();
-                syncTasks.put(syncTask.getSyncSignature(), wrapper);
-            }
-            f = new SyncTaskFuture(syncTask);
-            wrapper.addTask(f);
-            wrapper.startThreadIfNeeded();
-        }
-
+        SyncTaskFuture f = new SyncTaskFuture(syncTask);
+        addTask(syncTasks, syncTask.getSyncSignature(), syncTask.getSyncLevel(), f, syncTaskQueueWrapperFactory);
 		return f;
 	}
 
@@ -167,8 +275,11 @@ class DispatchQueueImpl implements DispatchQueue {
     class ChainFuture extends  AbstractFuture {
         private AtomicBoolean isNextCalled = new AtomicBoolean(false);
 
+        final TaskClass taskClass;
+
         public ChainFuture(ChainTask task) {
             super(task);
+            taskClass = TaskClass.of(task);
         }
 
         private ChainTask getTask() {
@@ -195,6 +306,7 @@ class DispatchQueueImpl implements DispatchQueue {
                 return;
             }
 
+            TaskClass old = TaskClass.enter(taskClass);
             try {
                 getTask().run(new SyncTaskChain() {
                     @Override
@@ -213,6 +325,8 @@ class DispatchQueueImpl implements DispatchQueue {
                 } finally {
                     callNext(chain);
                 }
+            } finally {
+                TaskClass.exit(old);
             }
         }
 
@@ -225,29 +339,21 @@ class DispatchQueueImpl implements DispatchQueue {
         }
     }
 
-    private class ChainTaskQueueWrapper {
-        LinkedList queue = new LinkedList();
-        AtomicInteger counter = new AtomicInteger(0);
-        int maxThreadNum = -1;
-        String syncSignature;
-
-        void addTask(ChainFuture task) {
-            queue.offer(task);
-            if (maxThreadNum == -1) {
-                maxThreadNum = task.getSyncLevel();
-            }
-            if (syncSignature == null) {
-                syncSignature = task.getSyncSignature();
-            }
+    private class ChainTaskQueueWrapper extends TaskQueueWrapper {
+        ChainTaskQueueWrapper(String syncSignature, int maxThreadNum) {
+            super(syncSignature, maxThreadNum, chainTasks);
         }
 
-        void startThreadIfNeeded() {
-            if (counter.get() >= maxThreadNum) {
-                return;
-            }
+        @Override
+        void startThread() {
+            final TaskClass taskClass = nextTaskClass();
+
+            class ChainTaskRunner implements Task<Void>, ClassifiedTask {
+                @Override
+                public TaskClass getTaskClass() {
+                    return taskClass;
+                }
 
-            counter.incrementAndGet();
-            _threadFacade.submit(new Task<Void>() {
                 @Override
                 public String getName() {
                     return "sync-chain-thread";
@@ -257,13 +363,8 @@ class DispatchQueueImpl implements DispatchQueue {
                 @AsyncThread
                 private void runQueue() {
                     ChainFuture cf;
-                    synchronized (chainTasks) {
-                        cf = (ChainFuture) queue.poll();
-                        if (cf == null) {
-                            if (counter.decrementAndGet() == 0) {
-                                chainTasks.remove(syncSignature);
-                            }
-
+                    while ((cf = (ChainFuture) queue.poll()) == null) {
+                        if (retire()) {
                             return;
                         }
                     }
@@ -271,7 +372,13 @@ class DispatchQueueImpl implements DispatchQueue {
                     cf.run(new SyncTaskChain() {
                         @Override
                         public void next() {
-                            runQueue();
+                            // the next task is scheduled in its own class, not the class of the caller
+                            TaskClass old = TaskClass.enter(nextTaskClass());
+                            try {
+                                runQueue();
+                            } finally {
+                                TaskClass.exit(old);
+                            }
                         }
                     });
                 }
@@ -281,28 +388,26 @@ class DispatchQueueImpl implements DispatchQueue {
                     runQueue();
                     return null;
                 }
-            });
+            }
+
+            _threadFacade.submit(new ChainTaskRunner());
         }
     }
 
+    private final TaskQueueWrapperFactory chainTaskQueueWrapperFactory = new TaskQueueWrapperFactory() {
+        @Override
+        public TaskQueueWrapper create(String syncSignature, int syncLevel) {
+            return new ChainTaskQueueWrapper(syncSignature, syncLevel);
+        }
+    };
 
 	private <T> Future<T> doChainSyncSubmit(final ChainTask task) {
         assert task.getSyncSignature() != null : "How can you submit a chain task without sync signature ???";
         DebugUtils.Assert(task.getSyncLevel() >= 1, String.format("getSyncLevel() must return more than 1"));
 
-        synchronized (chainTasks) {
-            final String signature = task.getSyncSignature();
-            ChainTaskQueueWrapper wrapper = chainTasks.get(signature);
-            if (wrapper == null) {
-                wrapper = new ChainTaskQueueWrapper();
-                chainTasks.put(signature, wrapper);
-            }
-
-            ChainFuture cf = new ChainFuture(task);
-            wrapper.addTask(cf);
-            wrapper.startThreadIfNeeded();
-            return cf;
-        }
+        ChainFuture cf = new ChainFuture(task);
+        addTask(chainTasks, task.getSyncSignature(), task.getSyncLevel(), cf, chainTaskQueueWrapperFactory);
+        return cf;
     }
 	
 
@@ -314,11 +419,11 @@ class DispatchQueueImpl implements DispatchQueue {
     @Override
     public Map<String, SyncTaskStatistic> getSyncTaskStatistics() {
         Map<String, SyncTaskStatistic> ret = new HashMap<String, SyncTaskStatistic>();
-        for (SyncTaskQueueWrapper wrapper : syncTasks.values()) {
+        for (TaskQueueWrapper wrapper : syncTasks.values()) {
             SyncTaskStatistic statistic = new SyncTaskStatistic(
                     wrapper.syncSignature,
                     wrapper.maxThreadNum,
-                    wrapper.counter.intValue(),
+                    wrapper.getRunningThreadNum(),
                     wrapper.queue.size()
             );
             ret.put(statistic.getSyncSignature(), statistic);
@@ -332,11 +437,11 @@ class DispatchQueueImpl implements DispatchQueue {
     @Override
     public Map<String, ChainTaskStatistic> getChainTaskStatistics() {
         Map<String, ChainTaskStatistic> ret = new HashMap<String, ChainTaskStatistic>();
-        for (ChainTaskQueueWrapper wrapper : chainTasks.values()) {
+        for (TaskQueueWrapper wrapper : chainTasks.values()) {
             ChainTaskStatistic statistic = new ChainTaskStatistic(
                     wrapper.syncSignature,
                     wrapper.maxThreadNum,
-                    wrapper.counter.intValue(),
+                    wrapper.getRunningThreadNum(),
                     wrapper.queue.size()
             );
             ret.put(statistic.getSyncSignature(), statistic);
@@ -0,0 +1,46 @@
+package org.zstack.core.thread;
+
+/**
+ * priority classes of tasks, in priority order. Only the work stealing scheduler (ThreadFacade.scheduler = workStealing)
+ * treats them differently.
+ *
+ * a task not declaring its class, see ClassifiedTask and ChainTask.getTaskClass(), inherits the class of the task
+ * submitting it, so callbacks and sync queues of an API request stay in the API class.
+ */
+public enum TaskClass {
+    API,
+    DEFAULT,
+    BACKGROUND;
+
+    private static final ThreadLocal<TaskClass> current = new ThreadLocal<TaskClass>();
+
+    public static TaskClass current() {
+        TaskClass c = current.get();
+        return c == null ? DEFAULT : c;
+    }
+
+    static TaskClass enter(TaskClass c) {
+        TaskClass old = current.get();
+        current.set(c);
+        return old;
+    }
+
+    static void exit(TaskClass old) {
+        if (old == null) {
+            current.remove();
+        } else {
+            current.set(old);
+        }
+    }
+
+    static TaskClass of(Object task) {
+        TaskClass c = null;
+        if (task instanceof ClassifiedTask) {
+            c = ((ClassifiedTask) task).getTaskClass();
+        } else if (task instanceof ChainTask) {
+            c = ((ChainTask) task).getTaskClass();
+        }
+
+        return c == null ? current() : c;
+    }
+}
@@ -0,0 +1,66 @@
+package org.zstack.core.thread;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class TaskClassStatistic {
+    private String taskClass;
+    private int maxConcurrency;
+    private int runningTaskNum;
+    private long queuedTaskNum;
+    private long completedTaskNum;
+    private long maxQueueLatency;
+    private long[] latencyBucketBounds;
+    private long[] latencyHistogram;
+
+    @ConstructorProperties({"taskClass", "maxConcurrency", "runningTaskNum", "queuedTaskNum", "completedTaskNum", "maxQueueLatency", "latencyBucketBounds", "latencyHistogram"})
+    public TaskClassStatistic(String taskClass, int maxConcurrency, int runningTaskNum, long queuedTaskNum, long completedTaskNum, long maxQueueLatency, long[] latencyBucketBounds, long[] latencyHistogram) {
+        this.taskClass = taskClass;
+        this.maxConcurrency = maxConcurrency;
+        this.runningTaskNum = runningTaskNum;
+        this.queuedTaskNum = queuedTaskNum;
+        this.completedTaskNum = completedTaskNum;
+        this.maxQueueLatency = maxQueueLatency;
+        this.latencyBucketBounds = latencyBucketBounds;
+        this.latencyHistogram = latencyHistogram;
+    }
+
+    public String getTaskClass() {
+        return taskClass;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getRunningTaskNum() {
+        return runningTaskNum;
+    }
+
+    public long getQueuedTaskNum() {
+        return queuedTaskNum;
+    }
+
+    public long getCompletedTaskNum() {
+        return completedTaskNum;
+    }
+
+    /**
+     * in milliseconds
+     */
+    public long getMaxQueueLatency() {
+        return maxQueueLatency;
+    }
+
+    /**
+     * upper bounds in milliseconds of latencyHistogram buckets, the last bucket of latencyHistogram has no bound
+     */
+    public long[] getLatencyBucketBounds() {
+        return latencyBucketBounds;
+    }
+
+    public long[] getLatencyHistogram() {
+        return latencyHistogram;
+    }
+}
@@ -7,6 +7,15 @@ import java.util.concurrent.TimeUnit;
 
 public interface ThreadFacade extends Component {
     <T> Future<T> submit(Task<T> task);
+
+    /**
+     * submit a task spending most of its time on blocking I/O, like sending a HTTP request. When ThreadFacade.blockingIOMode
+     * is elastic, the task runs on a separate elastic thread pool so it doesn't hold a thread of the pool, otherwise it's
+     * the same as submit()
+     */
+    <T> Future<T> submitBlockingIO(Task<T> task);
+
+    boolean isElasticIOEnabled();
     
     <T> Future<T> syncSubmit(SyncTask<T> task);
     
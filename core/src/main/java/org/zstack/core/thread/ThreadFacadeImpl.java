@@ -9,7 +9,9 @@ import org.zstack.utils.logging.CLoggerImpl;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedExecutionHandler, ThreadFacadeMXBean {
 	private static final CLogger _logger = CLoggerImpl.getLogger(ThreadFacadeImpl.class);
@@ -19,9 +21,26 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 	private Map<PeriodicTask, ScheduledFuture<?>> _periodicTasks = new ConcurrentHashMap<PeriodicTask, ScheduledFuture<?>>();
 	private Map<CancelablePeriodicTask, ScheduledFuture<?>> cancelablePeriodicTasks = new ConcurrentHashMap<CancelablePeriodicTask, ScheduledFuture<?>>();
 	private static AtomicInteger seqNum = new AtomicInteger(0);
+    private static AtomicInteger ioSeqNum = new AtomicInteger(0);
 	private ScheduledThreadPoolExecutorExt _pool;
+    private WorkStealingScheduler scheduler;
+    private ThreadPoolExecutor ioPool;
 	private DispatchQueue dpq;
-    private TimerPool timerPool = new TimerPool(5);
+    private TimerPool timerPool;
+    private TimingWheel timingWheel;
+
+    static final String TIMER = "timer";
+    static final String TIMING_WHEEL = "timingWheel";
+    static final String THREAD_POOL = "threadPool";
+    static final String WORK_STEALING = "workStealing";
+    // in work stealing mode, _pool only fires periodic tasks that run in the scheduler
+    private static final int PERIODIC_TRIGGER_THREAD_NUM = 2;
+    static final String SHARED_IO = "shared";
+    static final String ELASTIC_IO = "elastic";
+
+    private final AtomicLong pendingTimerTasks = new AtomicLong();
+    private final AtomicLong expiredTimerTasks = new AtomicLong();
+    private final AtomicLong cancelledTimerTasks = new AtomicLong();
 
     @Autowired
     private JmxFacade jmxf;
@@ -83,8 +102,58 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
         return dpq.getChainTaskStatistics();
     }
 
+    @Override
+    public TimeoutTaskStatistic getTimeoutTaskStatistic() {
+        if (timingWheel != null) {
+            return timingWheel.getStatistic();
+        }
+
+        return new TimeoutTaskStatistic(TIMER, pendingTimerTasks.get(), expiredTimerTasks.get(), cancelledTimerTasks.get(), 0, 0);
+    }
+
+    @Override
+    public Map<String, TaskClassStatistic> getTaskClassStatistics() {
+        if (scheduler == null) {
+            return new HashMap<String, TaskClassStatistic>();
+        }
+
+        return scheduler.getStatistics();
+    }
+
+    @Override
+    public ThreadPoolStatistic getElasticIOThreadPoolStatistic() {
+        if (ioPool == null) {
+            return new ThreadPoolStatistic(0, 0, 0, 0, 0, 0, 0);
+        }
+
+        long completedTask = ioPool.getCompletedTaskCount();
+        return new ThreadPoolStatistic(
+                ioPool.getPoolSize(),
+                ioPool.getActiveCount(),
+                completedTask,
+                ioPool.getTaskCount() - completedTask,
+                ioPool.getCorePoolSize(),
+                ioPool.getMaximumPoolSize(),
+                ioPool.getQueue().size()
+        );
+    }
+
     @Override
     public ThreadPoolStatistic getThreadPoolStatistic() {
+        if (scheduler != null) {
+            long activeTask = scheduler.getActiveCount();
+            long queuedTask = scheduler.getQueuedTaskCount();
+            return new ThreadPoolStatistic(
+                    scheduler.getThreadNum(),
+                    (int) activeTask,
+                    scheduler.getCompletedTaskCount(),
+                    activeTask + queuedTask,
+                    scheduler.getThreadNum(),
+                    scheduler.getThreadNum(),
+                    queuedTask
+            );
+        }
+
         long completedTask = _pool.getCompletedTaskCount();
         long pendingTask = _pool.getTaskCount() - completedTask;
         return new ThreadPoolStatistic(
@@ -126,22 +195,126 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
             _logger.warn(String.format("ThreadFacade.maxThreadNum is configured to %s, which is too small for running zstack. Change it to 10", ThreadGlobalProperty.MAX_THREAD_NUM));
             totalThreadNum = 10;
         }
-		_pool = new ScheduledThreadPoolExecutorExt(totalThreadNum, this, this);
-        _logger.debug(String.format("create ThreadFacade with max thread number:%s", totalThreadNum));
+
+        if (WORK_STEALING.equals(ThreadGlobalProperty.SCHEDULER)) {
+            int[] maxConcurrency = new int[TaskClass.values().length];
+            maxConcurrency[TaskClass.API.ordinal()] = totalThreadNum;
+            maxConcurrency[TaskClass.DEFAULT.ordinal()] = totalThreadNum * ThreadGlobalProperty.WORK_STEALING_DEFAULT_MAX_THREAD_PERCENT / 100;
+            maxConcurrency[TaskClass.BACKGROUND.ordinal()] = totalThreadNum * ThreadGlobalProperty.WORK_STEALING_BACKGROUND_MAX_THREAD_PERCENT / 100;
+            scheduler = new WorkStealingScheduler(totalThreadNum, this, maxConcurrency);
+            _pool = new ScheduledThreadPoolExecutorExt(PERIODIC_TRIGGER_THREAD_NUM, this, this);
+            _logger.debug(String.format("create ThreadFacade with work stealing scheduler, max thread number:%s, max DEFAULT tasks:%s, max BACKGROUND tasks:%s",
+                    totalThreadNum, maxConcurrency[TaskClass.DEFAULT.ordinal()], maxConcurrency[TaskClass.BACKGROUND.ordinal()]));
+        } else {
+            _pool = new ScheduledThreadPoolExecutorExt(totalThreadNum, this, this);
+            _logger.debug(String.format("create ThreadFacade with max thread number:%s", totalThreadNum));
+        }
+
+        if (ELASTIC_IO.equals(ThreadGlobalProperty.BLOCKING_IO_MODE)) {
+            // no queue, a blocking I/O task gets a thread immediately; if all threads are busy, the submitter runs it as
+            // it does in the shared mode
+            ioPool = new ThreadPoolExecutor(0, ThreadGlobalProperty.ELASTIC_IO_MAX_THREAD_NUM,
+                    ThreadGlobalProperty.ELASTIC_IO_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "zs-io-thread-" + String.valueOf(ioSeqNum.getAndIncrement()));
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            _logger.debug(String.format("run blocking I/O tasks in an elastic thread pool, max thread number:%s",
+                    ThreadGlobalProperty.ELASTIC_IO_MAX_THREAD_NUM));
+        }
+
 		dpq = new DispatchQueueImpl();
 
+        if (TIMING_WHEEL.equals(ThreadGlobalProperty.TIMEOUT_TASK_SCHEDULER)) {
+            timingWheel = new TimingWheel("zs-timing-wheel", ThreadGlobalProperty.TIMING_WHEEL_TICK_DURATION,
+                    TimeUnit.MILLISECONDS, ThreadGlobalProperty.TIMING_WHEEL_SIZE) {
+                @Override
+                protected void expire(final Runnable task) {
+                    runTimeoutTask(task);
+                }
+            };
+            timingWheel.start();
+            _logger.debug(String.format("use timing wheel for timeout tasks, tick duration: %sms, wheel size: %s",
+                    ThreadGlobalProperty.TIMING_WHEEL_TICK_DURATION, ThreadGlobalProperty.TIMING_WHEEL_SIZE));
+        } else {
+            timerPool = new TimerPool(5);
+        }
+
         jmxf.registerBean("ThreadFacade", this);
 	}
 
 	public void destroy() {
 		_pool.shutdownNow();
+        if (ioPool != null) {
+            ioPool.shutdownNow();
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
 	}
 
 	@Override
 	public <T> Future<T> submit(Task<T> task) {
+        if (scheduler != null) {
+            return scheduler.submit(new Worker<T>(task), TaskClass.of(task));
+        }
+
 		return _pool.submit(new Worker<T>(task));
 	}
 
+    @Override
+    public <T> Future<T> submitBlockingIO(Task<T> task) {
+        if (ioPool == null) {
+            return submit(task);
+        }
+
+        return ioPool.submit(new Worker<T>(task));
+    }
+
+    @Override
+    public boolean isElasticIOEnabled() {
+        return ioPool != null;
+    }
+
+    /**
+     * in work stealing mode, run a periodic task as a BACKGROUND task. A run is skipped if the previous one is still
+     * running, as the thread pool does for a periodic task.
+     */
+    private Runnable periodic(final Runnable runnable, final String name) {
+        if (scheduler == null) {
+            return runnable;
+        }
+
+        final AtomicBoolean running = new AtomicBoolean(false);
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (!running.compareAndSet(false, true)) {
+                    return;
+                }
+
+                scheduler.submit(new Worker<Void>(new Task<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            runnable.run();
+                        } finally {
+                            running.set(false);
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public String getName() {
+                        return name;
+                    }
+                }), TaskClass.BACKGROUND);
+            }
+        };
+    }
+
 	@Override
 	public Thread newThread(Runnable arg0) {
 		return new Thread(arg0, "zs-thread-" + String.valueOf(seqNum.getAndIncrement()));
@@ -163,7 +336,7 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 		assert task.getInterval() != 0;
 		assert task.getTimeUnit() != null;
 
-		ScheduledFuture<Void> ret = (ScheduledFuture<Void>) _pool.scheduleAtFixedRate(new Runnable() {
+		ScheduledFuture<Void> ret = (ScheduledFuture<Void>) _pool.scheduleAtFixedRate(periodic(new Runnable() {
 			public void run() {
 				try {
 					task.run();
@@ -180,7 +353,7 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 					}
 				}
 			}
-		}, delay, task.getInterval(), task.getTimeUnit());
+		}, task.getName()), delay, task.getInterval(), task.getTimeUnit());
 		_periodicTasks.put(task, ret);
 		return ret;
 	}
@@ -193,11 +366,17 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 	@Override
 	public void registerHook(ThreadAroundHook hook) {
 		_pool.registerHook(hook);
+        if (scheduler != null) {
+            scheduler.registerHook(hook);
+        }
 	}
 
 	@Override
 	public void unregisterHook(ThreadAroundHook hook) {
 		_pool.unregisterHook(hook);
+        if (scheduler != null) {
+            scheduler.unregisterHook(hook);
+        }
 	}
 
 	public int getTotalThreadNum() {
@@ -222,14 +401,29 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
         boolean cancel();
     }
 
+    @AsyncThread
+    private void runTimeoutTask(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            _logger.warn(String.format("Unhandled exception happened when running %s", task.getClass().getName()), t);
+        }
+    }
+
 	@Override
 	public TimeoutTaskReceipt submitTimeoutTask(final Runnable task, TimeUnit unit, long delay) {
+        if (timingWheel != null) {
+            return timingWheel.schedule(task, unit, delay);
+        }
+
         final TimerWrapper timer = timerPool.getTimer();
 
         class TimerTaskWorker extends TimerTask implements TimeoutTaskReceipt {
             @Override
             @AsyncThread
             public void run() {
+                pendingTimerTasks.decrementAndGet();
+                expiredTimerTasks.incrementAndGet();
                 try {
                     task.run();
                 } catch (Throwable t) {
@@ -242,12 +436,17 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
             @Override
             public boolean cancel() {
                 boolean ret = super.cancel();
+                if (ret) {
+                    pendingTimerTasks.decrementAndGet();
+                    cancelledTimerTasks.incrementAndGet();
+                }
                 timer.notifyCancel();
                 return ret;
             }
         }
 
         TimerTaskWorker worker = new TimerTaskWorker();
+        pendingTimerTasks.incrementAndGet();
 		timer.schedule(worker, unit.toMillis(delay));
 		return worker;
 	}
@@ -260,7 +459,18 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 	@Override
 	public boolean stop() {
 		_pool.shutdown();
-        timerPool.stop();
+        if (ioPool != null) {
+            ioPool.shutdown();
+        }
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        if (timerPool != null) {
+            timerPool.stop();
+        }
+        if (timingWheel != null) {
+            timingWheel.stop();
+        }
 		return true;
 	}
 
@@ -271,7 +481,7 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 
 	@Override
 	public Future<Void> submitCancelablePeriodicTask(final CancelablePeriodicTask task, long delay) {
-		ScheduledFuture<Void> ret = (ScheduledFuture<Void>) _pool.scheduleAtFixedRate(new Runnable() {
+		ScheduledFuture<Void> ret = (ScheduledFuture<Void>) _pool.scheduleAtFixedRate(periodic(new Runnable() {
 			private void cancelTask() {
 				ScheduledFuture<?> ft = cancelablePeriodicTasks.get(task);
 				if (ft != null) {
@@ -294,7 +504,7 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 					cancelTask();
 				}
 			}
-		}, delay, task.getInterval(), task.getTimeUnit());
+		}, task.getName()), delay, task.getInterval(), task.getTimeUnit());
 		cancelablePeriodicTasks.put(task, ret);
 		return ret;
 	}
@@ -10,4 +10,10 @@ public interface ThreadFacadeMXBean {
     Map<String, ChainTaskStatistic> getChainTaskStatistics();
 
     ThreadPoolStatistic getThreadPoolStatistic();
+
+    ThreadPoolStatistic getElasticIOThreadPoolStatistic();
+
+    TimeoutTaskStatistic getTimeoutTaskStatistic();
+
+    Map<String, TaskClassStatistic> getTaskClassStatistics();
 }
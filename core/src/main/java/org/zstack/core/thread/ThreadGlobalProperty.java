@@ -9,4 +9,22 @@ import org.zstack.core.GlobalPropertyDefinition;
 public class ThreadGlobalProperty {
     @GlobalProperty(name="ThreadFacade.maxThreadNum", defaultValue = "100")
     public static int MAX_THREAD_NUM;
+    @GlobalProperty(name="ThreadFacade.timeoutTaskScheduler", defaultValue = "timer")
+    public static String TIMEOUT_TASK_SCHEDULER;
+    @GlobalProperty(name="ThreadFacade.timingWheel.tickDuration", defaultValue = "100")
+    public static long TIMING_WHEEL_TICK_DURATION;
+    @GlobalProperty(name="ThreadFacade.timingWheel.size", defaultValue = "512")
+    public static int TIMING_WHEEL_SIZE;
+    @GlobalProperty(name="ThreadFacade.scheduler", defaultValue = "threadPool")
+    public static String SCHEDULER;
+    @GlobalProperty(name="ThreadFacade.workStealing.defaultMaxThreadPercent", defaultValue = "80")
+    public static int WORK_STEALING_DEFAULT_MAX_THREAD_PERCENT;
+    @GlobalProperty(name="ThreadFacade.workStealing.backgroundMaxThreadPercent", defaultValue = "30")
+    public static int WORK_STEALING_BACKGROUND_MAX_THREAD_PERCENT;
+    @GlobalProperty(name="ThreadFacade.blockingIOMode", defaultValue = "shared")
+    public static String BLOCKING_IO_MODE;
+    @GlobalProperty(name="ThreadFacade.elasticIO.maxThreadNum", defaultValue = "2000")
+    public static int ELASTIC_IO_MAX_THREAD_NUM;
+    @GlobalProperty(name="ThreadFacade.elasticIO.keepAliveSeconds", defaultValue = "60")
+    public static long ELASTIC_IO_KEEP_ALIVE_SECONDS;
 }
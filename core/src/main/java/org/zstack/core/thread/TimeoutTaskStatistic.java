@@ -0,0 +1,48 @@
+package org.zstack.core.thread;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class TimeoutTaskStatistic {
+    private String scheduler;
+    private long pendingTaskNum;
+    private long expiredTaskNum;
+    private long cancelledTaskNum;
+    private long lastTickLag;
+    private long maxTickLag;
+
+    @ConstructorProperties({"scheduler", "pendingTaskNum", "expiredTaskNum", "cancelledTaskNum", "lastTickLag", "maxTickLag"})
+    public TimeoutTaskStatistic(String scheduler, long pendingTaskNum, long expiredTaskNum, long cancelledTaskNum, long lastTickLag, long maxTickLag) {
+        this.scheduler = scheduler;
+        this.pendingTaskNum = pendingTaskNum;
+        this.expiredTaskNum = expiredTaskNum;
+        this.cancelledTaskNum = cancelledTaskNum;
+        this.lastTickLag = lastTickLag;
+        this.maxTickLag = maxTickLag;
+    }
+
+    public String getScheduler() {
+        return scheduler;
+    }
+
+    public long getPendingTaskNum() {
+        return pendingTaskNum;
+    }
+
+    public long getExpiredTaskNum() {
+        return expiredTaskNum;
+    }
+
+    public long getCancelledTaskNum() {
+        return cancelledTaskNum;
+    }
+
+    public long getLastTickLag() {
+        return lastTickLag;
+    }
+
+    public long getMaxTickLag() {
+        return maxTickLag;
+    }
+}
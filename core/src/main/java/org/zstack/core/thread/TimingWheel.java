@@ -0,0 +1,243 @@
+package org.zstack.core.thread;
+
+import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * a hashed timing wheel for timeout tasks, most of which are cancelled before they expire, e.g. timeouts of
+ * CloudBus messages.
+ *
+ * scheduling and cancelling only put the timeout in a lock-free queue; the wheel thread moves new timeouts to
+ * their buckets and unlinks cancelled ones from the doubly linked bucket lists on each tick, both in O(1).
+ * A timeout farther than one round of the wheel carries the number of rounds left, so a single level wheel
+ * covers any delay. Expired tasks are handed to expire() and never run on the wheel thread.
+ *
+ * the precision is one tick, a task never runs earlier than its delay.
+ */
+abstract class TimingWheel {
+    private static final CLogger logger = Utils.getLogger(TimingWheel.class);
+
+    private static final int STATE_INIT = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final ConcurrentLinkedQueue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final Thread workerThread;
+    private volatile boolean stopped;
+    private long startTime;
+    private long tick;
+
+    private final AtomicLong pendingTimeouts = new AtomicLong();
+    private final AtomicLong expiredTimeouts = new AtomicLong();
+    private final AtomicLong cancelledTimeoutNum = new AtomicLong();
+    private volatile long lastTickLag;
+    private volatile long maxTickLag;
+
+    private class Timeout implements TimeoutTaskReceipt {
+        final Runnable task;
+        final long deadline;
+        final AtomicInteger state = new AtomicInteger(STATE_INIT);
+        long remainingRounds;
+        Timeout prev;
+        Timeout next;
+        Bucket bucket;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(STATE_INIT, STATE_CANCELLED)) {
+                return false;
+            }
+
+            pendingTimeouts.decrementAndGet();
+            cancelledTimeoutNum.incrementAndGet();
+            cancelledTimeouts.offer(this);
+            return true;
+        }
+    }
+
+    /**
+     * only accessed by the wheel thread
+     */
+    private static class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        Timeout remove(Timeout t) {
+            Timeout next = t.next;
+            if (t.prev != null) {
+                t.prev.next = next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            }
+            if (t == head) {
+                head = next;
+            }
+            if (t == tail) {
+                tail = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+            return next;
+        }
+    }
+
+    TimingWheel(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        this.tickDuration = unit.toMillis(tickDuration);
+        if (this.tickDuration <= 0) {
+            throw new IllegalArgumentException(String.format("tick duration must be greater than 0ms, got %s %s", tickDuration, unit));
+        }
+
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+
+        workerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, name);
+        workerThread.setDaemon(true);
+    }
+
+    protected abstract void expire(Runnable task);
+
+    void start() {
+        startTime = System.currentTimeMillis();
+        workerThread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        workerThread.interrupt();
+    }
+
+    TimeoutTaskReceipt schedule(Runnable task, TimeUnit unit, long delay) {
+        Timeout t = new Timeout(task, System.currentTimeMillis() + unit.toMillis(delay));
+        pendingTimeouts.incrementAndGet();
+        newTimeouts.offer(t);
+        return t;
+    }
+
+    private void transferNewTimeouts() {
+        Timeout t;
+        while ((t = newTimeouts.poll()) != null) {
+            if (t.state.get() != STATE_INIT) {
+                continue;
+            }
+
+            // bucket N is expired at startTime + (N + 1) * tickDuration
+            long ticks = Math.max((t.deadline - startTime + tickDuration - 1) / tickDuration - 1, tick);
+            t.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(t);
+        }
+    }
+
+    private void removeCancelledTimeouts() {
+        Timeout t;
+        while ((t = cancelledTimeouts.poll()) != null) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+    }
+
+    private void expireBucket(Bucket bucket) {
+        Timeout t = bucket.head;
+        while (t != null) {
+            if (t.remainingRounds > 0) {
+                t.remainingRounds --;
+                t = t.next;
+                continue;
+            }
+
+            Timeout next = bucket.remove(t);
+            if (t.state.compareAndSet(STATE_INIT, STATE_EXPIRED)) {
+                pendingTimeouts.decrementAndGet();
+                expiredTimeouts.incrementAndGet();
+                try {
+                    expire(t.task);
+                } catch (Throwable th) {
+                    logger.warn(String.format("unable to run the timeout task %s", t.task.getClass().getName()), th);
+                }
+            }
+            t = next;
+        }
+    }
+
+    private void work() {
+        while (!stopped) {
+            long tickTime = startTime + (tick + 1) * tickDuration;
+            long sleep = tickTime - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    if (stopped) {
+                        break;
+                    }
+                }
+                continue;
+            }
+
+            lastTickLag = -sleep;
+            if (lastTickLag > maxTickLag) {
+                maxTickLag = lastTickLag;
+            }
+
+            try {
+                removeCancelledTimeouts();
+                transferNewTimeouts();
+                expireBucket(wheel[(int) (tick & mask)]);
+            } catch (Throwable t) {
+                logger.warn("unhandled exception in the timing wheel", t);
+            }
+            tick ++;
+        }
+    }
+
+    TimeoutTaskStatistic getStatistic() {
+        return new TimeoutTaskStatistic(
+                ThreadFacadeImpl.TIMING_WHEEL,
+                pendingTimeouts.get(),
+                expiredTimeouts.get(),
+                cancelledTimeoutNum.get(),
+                lastTickLag,
+                maxTickLag
+        );
+    }
+}
@@ -0,0 +1,302 @@
+package org.zstack.core.thread;
+
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * runs tasks of ThreadFacade when ThreadFacade.scheduler is workStealing.
+ *
+ * Every worker thread owns a deque per TaskClass. A task submitted by a worker goes to the deque of the worker, tasks
+ * submitted by other threads are spread over workers in round robin. An idle worker picks the highest priority class
+ * that has queued tasks and has not reached its concurrency limit, takes from its own deque first and steals from
+ * others otherwise. Deques are consumed in FIFO order so tasks of the same class are served roughly in the order they
+ * are submitted.
+ *
+ * So API tasks are taken before DEFAULT and BACKGROUND ones, and because DEFAULT and BACKGROUND tasks can only occupy
+ * part of threads, API tasks find a free thread even if the management node is busy with background jobs.
+ */
+public class WorkStealingScheduler {
+    private static final CLogger logger = Utils.getLogger(WorkStealingScheduler.class);
+
+    static final long[] LATENCY_BUCKET_BOUNDS = {1, 10, 100, 1000, 10000};
+    private static final long IDLE_WAIT_MS = 100;
+
+    private final Worker[] workers;
+    private final ClassState[] states;
+    private final Semaphore signal = new Semaphore(0);
+    private final AtomicInteger counter = new AtomicInteger();
+    private final ThreadLocal<Worker> currentWorker = new ThreadLocal<Worker>();
+    private final List<ThreadAroundHook> hooks = new ArrayList<ThreadAroundHook>(8);
+    private volatile boolean stopped;
+
+    private static class Item {
+        final FutureTask<?> future;
+        final TaskClass taskClass;
+        final long enqueueTime = System.nanoTime();
+
+        Item(FutureTask<?> future, TaskClass taskClass) {
+            this.future = future;
+            this.taskClass = taskClass;
+        }
+    }
+
+    private static class ClassState {
+        final TaskClass taskClass;
+        final int maxConcurrency;
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong maxLatency = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(LATENCY_BUCKET_BOUNDS.length + 1);
+
+        ClassState(TaskClass taskClass, int maxConcurrency) {
+            this.taskClass = taskClass;
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        boolean tryAcquire() {
+            while (true) {
+                int c = running.get();
+                if (c >= maxConcurrency) {
+                    return false;
+                }
+
+                if (running.compareAndSet(c, c + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void recordLatency(long latency) {
+            int i = 0;
+            while (i < LATENCY_BUCKET_BOUNDS.length && latency > LATENCY_BUCKET_BOUNDS[i]) {
+                i ++;
+            }
+            histogram.incrementAndGet(i);
+
+            long max;
+            while (latency > (max = maxLatency.get())) {
+                if (maxLatency.compareAndSet(max, latency)) {
+                    break;
+                }
+            }
+        }
+
+        TaskClassStatistic getStatistic() {
+            long[] h = new long[histogram.length()];
+            for (int i=0; i<h.length; i++) {
+                h[i] = histogram.get(i);
+            }
+
+            return new TaskClassStatistic(taskClass.toString(), maxConcurrency, running.get(), Math.max(queued.get(), 0),
+                    completed.get(), maxLatency.get(), LATENCY_BUCKET_BOUNDS.clone(), h);
+        }
+    }
+
+    private class Worker implements Runnable {
+        final int index;
+        final List<LinkedBlockingDeque<Item>> deques = new ArrayList<LinkedBlockingDeque<Item>>();
+        Thread thread;
+
+        Worker(int index) {
+            this.index = index;
+            for (int i=0; i<TaskClass.values().length; i++) {
+                deques.add(new LinkedBlockingDeque<Item>());
+            }
+        }
+
+        private Item take() {
+            for (ClassState s : states) {
+                if (s.queued.get() <= 0 || !s.tryAcquire()) {
+                    continue;
+                }
+
+                int ord = s.taskClass.ordinal();
+                Item item = deques.get(ord).pollFirst();
+                for (int i=1; item == null && i<workers.length; i++) {
+                    item = workers[(index + i) % workers.length].deques.get(ord).pollFirst();
+                }
+
+                if (item == null) {
+                    s.running.decrementAndGet();
+                    continue;
+                }
+
+                s.queued.decrementAndGet();
+                return item;
+            }
+
+            return null;
+        }
+
+        private void runItem(Item item) {
+            ClassState s = states[item.taskClass.ordinal()];
+            s.recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - item.enqueueTime));
+
+            beforeExecute(thread, item.future);
+            TaskClass old = TaskClass.enter(item.taskClass);
+            Throwable err = null;
+            try {
+                item.future.run();
+            } catch (Throwable t) {
+                err = t;
+            } finally {
+                TaskClass.exit(old);
+                s.running.decrementAndGet();
+                s.completed.incrementAndGet();
+                afterExecute(item.future, err);
+            }
+        }
+
+        @Override
+        public void run() {
+            currentWorker.set(this);
+            while (!stopped) {
+                Item item = take();
+                if (item != null) {
+                    runItem(item);
+                    continue;
+                }
+
+                try {
+                    signal.tryAcquire(IDLE_WAIT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    if (stopped) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param maxConcurrency max running tasks of each TaskClass, indexed by TaskClass.ordinal()
+     */
+    public WorkStealingScheduler(int threadNum, ThreadFactory factory, int[] maxConcurrency) {
+        states = new ClassState[TaskClass.values().length];
+        for (TaskClass c : TaskClass.values()) {
+            states[c.ordinal()] = new ClassState(c, Math.max(1, Math.min(threadNum, maxConcurrency[c.ordinal()])));
+        }
+
+        workers = new Worker[threadNum];
+        for (int i=0; i<threadNum; i++) {
+            workers[i] = new Worker(i);
+        }
+        for (Worker w : workers) {
+            w.thread = factory.newThread(w);
+            w.thread.start();
+        }
+    }
+
+    public <T> Future<T> submit(Callable<T> task, TaskClass taskClass) {
+        if (stopped) {
+            throw new RejectedExecutionException("the work stealing scheduler has been stopped");
+        }
+
+        FutureTask<T> f = new FutureTask<T>(task);
+        Worker w = currentWorker.get();
+        if (w == null) {
+            w = workers[(counter.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+        }
+
+        w.deques.get(taskClass.ordinal()).offerLast(new Item(f, taskClass));
+        states[taskClass.ordinal()].queued.incrementAndGet();
+        if (signal.availablePermits() < workers.length) {
+            signal.release();
+        }
+
+        return f;
+    }
+
+    public void registerHook(ThreadAroundHook hook) {
+        synchronized (hooks) {
+            hooks.add(hook);
+        }
+    }
+
+    public void unregisterHook(ThreadAroundHook hook) {
+        synchronized (hooks) {
+            hooks.remove(hook);
+        }
+    }
+
+    private List<ThreadAroundHook> copyHooks() {
+        synchronized (hooks) {
+            return new ArrayList<ThreadAroundHook>(hooks);
+        }
+    }
+
+    private void beforeExecute(Thread t, Runnable r) {
+        for (ThreadAroundHook hook : copyHooks()) {
+            try {
+                hook.beforeExecute(t, r);
+            } catch (Throwable e) {
+                logger.warn("Unhandle exception happend during executing ThreadAroundHook: " + hook.getClass().getCanonicalName(), e);
+            }
+        }
+    }
+
+    private void afterExecute(Runnable r, Throwable t) {
+        for (ThreadAroundHook hook : copyHooks()) {
+            try {
+                hook.afterExecute(r, t);
+            } catch (Throwable e) {
+                logger.warn("Unhandle exception happend during executing ThreadAroundHook: " + hook.getClass().getCanonicalName(), e);
+            }
+        }
+    }
+
+    public Map<String, TaskClassStatistic> getStatistics() {
+        Map<String, TaskClassStatistic> ret = new LinkedHashMap<String, TaskClassStatistic>();
+        for (ClassState s : states) {
+            ret.put(s.taskClass.toString(), s.getStatistic());
+        }
+        return ret;
+    }
+
+    public int getThreadNum() {
+        return workers.length;
+    }
+
+    public int getActiveCount() {
+        int ret = 0;
+        for (ClassState s : states) {
+            ret += s.running.get();
+        }
+        return ret;
+    }
+
+    public long getCompletedTaskCount() {
+        long ret = 0;
+        for (ClassState s : states) {
+            ret += s.completed.get();
+        }
+        return ret;
+    }
+
+    public long getQueuedTaskCount() {
+        long ret = 0;
+        for (ClassState s : states) {
+            ret += Math.max(s.queued.get(), 0);
+        }
+        return ret;
+    }
+
+    public void shutdown() {
+        stopped = true;
+        signal.release(workers.length);
+    }
+
+    public void shutdownNow() {
+        stopped = true;
+        for (Worker w : workers) {
+            w.thread.interrupt();
+        }
+    }
+}
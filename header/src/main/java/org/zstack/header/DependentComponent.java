@@ -0,0 +1,14 @@
+package org.zstack.header;
+
+import java.util.List;
+
+/**
+ * implemented by a Component that must start after other components when components start in parallel. Components
+ * a Component has @Autowired and that are before it in plugin order are its dependencies without declaring.
+ */
+public interface DependentComponent {
+    /**
+     * @return classes or interfaces of the components to start before this one
+     */
+    List<Class> getDependentComponents();
+}
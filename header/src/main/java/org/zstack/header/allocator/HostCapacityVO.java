@@ -31,6 +31,12 @@ public class HostCapacityVO {
     @Index
     private long availableCpu;
 
+    /**
+     * bumped by every change of available capacity, see HostCapacityReservationLedger
+     */
+    @Column
+    private long version;
+
 	public HostCapacityVO() {
 	}
 
@@ -50,6 +56,14 @@ public class HostCapacityVO {
         this.availableCpu = availableCpu;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public String getUuid() {
     	return uuid;
     }
@@ -0,0 +1,45 @@
+package org.zstack.header.identity;
+
+import org.zstack.header.message.NeedJsonSchema;
+
+/**
+ */
+public interface IdentityCanonicalEvents {
+    public static final String SESSION_LOGOUT_PATH = "/identity/session/logout";
+    public static final String USER_CREDENTIAL_CHANGED_PATH = "/identity/user/credentialChanged";
+
+    @NeedJsonSchema
+    public static class SessionLogoutData {
+        private String sessionUuid;
+        private String userUuid;
+
+        public String getSessionUuid() {
+            return sessionUuid;
+        }
+
+        public void setSessionUuid(String sessionUuid) {
+            this.sessionUuid = sessionUuid;
+        }
+
+        public String getUserUuid() {
+            return userUuid;
+        }
+
+        public void setUserUuid(String userUuid) {
+            this.userUuid = userUuid;
+        }
+    }
+
+    @NeedJsonSchema
+    public static class UserCredentialChangedData {
+        private String userUuid;
+
+        public String getUserUuid() {
+            return userUuid;
+        }
+
+        public void setUserUuid(String userUuid) {
+            this.userUuid = userUuid;
+        }
+    }
+}
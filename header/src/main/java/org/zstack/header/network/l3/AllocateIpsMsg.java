@@ -0,0 +1,34 @@
+package org.zstack.header.network.l3;
+
+import org.zstack.header.message.NeedReplyMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * allocates one ip for each entry of l3NetworkUuids in a single database transaction,
+ * an l3 network appears as many times as ips wanted from it. Either all ips are allocated
+ * or none.
+ *
+ * AllocateIpsReply.ipInventories are in the same order as l3NetworkUuids
+ */
+public class AllocateIpsMsg extends NeedReplyMessage {
+    private String allocateStrategy;
+    private List<String> l3NetworkUuids = new ArrayList<String>();
+
+    public String getAllocatorStrategy() {
+        return allocateStrategy;
+    }
+
+    public void setAllocateStrategy(String allocateStrategy) {
+        this.allocateStrategy = allocateStrategy;
+    }
+
+    public List<String> getL3NetworkUuids() {
+        return l3NetworkUuids;
+    }
+
+    public void setL3NetworkUuids(List<String> l3NetworkUuids) {
+        this.l3NetworkUuids = l3NetworkUuids;
+    }
+}
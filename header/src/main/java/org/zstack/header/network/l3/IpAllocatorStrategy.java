@@ -1,7 +1,17 @@
 package org.zstack.header.network.l3;
 
+import java.util.List;
+
 public interface IpAllocatorStrategy {
     IpAllocatorType getType();
     
     UsedIpInventory allocateIp(IpAllocateMessage msg);
+
+    /**
+     * picks up to num free ips in the l3 network without persisting them; used by AllocateIpsMsg
+     * which persists ips of all l3 networks in one transaction.
+     *
+     * @return UsedIpVO not yet persisted, fewer than num if the l3 network doesn't have enough ips
+     */
+    List<UsedIpVO> pickIps(String l3NetworkUuid, int num);
 }
@@ -11,4 +11,6 @@ public interface L3NetworkConstant {
     public static final String FIRST_AVAILABLE_IP_ALLOCATOR_STRATEGY = "FirstAvailableIpAllocatorStrategy";
     @PythonClass
     public static final String RANDOM_IP_ALLOCATOR_STRATEGY = "RandomIpAllocatorStrategy";
+    @PythonClass
+    public static final String BITMAP_IP_ALLOCATOR_STRATEGY = "BitmapIpAllocatorStrategy";
 }
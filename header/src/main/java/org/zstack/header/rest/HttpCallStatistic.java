@@ -1,14 +1,22 @@
 package org.zstack.header.rest;
 
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * percentiles are calculated from the latest SAMPLE_SIZE calls
  */
 public class HttpCallStatistic {
+    private static final int SAMPLE_SIZE = 1024;
+
     private String url;
     private long totalTime;
     private long count;
     private long averageTime;
+    private long maxTime;
+    private final long[] samples = new long[SAMPLE_SIZE];
+    private int sampleNum;
+    private int nextSample;
 
     public String getUrl() {
         return url;
@@ -42,18 +50,60 @@ public class HttpCallStatistic {
         this.averageTime = averageTime;
     }
 
-    public void addStatistic(long time) {
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    public synchronized void addStatistic(long time) {
         totalTime += time;
         count ++;
         averageTime = totalTime / count;
+        maxTime = Math.max(maxTime, time);
+
+        samples[nextSample] = time;
+        nextSample = (nextSample + 1) % SAMPLE_SIZE;
+        if (sampleNum < SAMPLE_SIZE) {
+            sampleNum ++;
+        }
+    }
+
+    /**
+     * @param percent 0 - 100
+     * @return the time in milliseconds within which the percent of the latest calls complete
+     */
+    public synchronized long getPercentile(double percent) {
+        if (sampleNum == 0) {
+            return 0;
+        }
+
+        long[] sorted = Arrays.copyOf(samples, sampleNum);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percent / 100 * sampleNum) - 1;
+        return sorted[Math.min(Math.max(index, 0), sampleNum - 1)];
+    }
+
+    public long getP50Time() {
+        return getPercentile(50);
+    }
+
+    public long getP90Time() {
+        return getPercentile(90);
+    }
+
+    public long getP99Time() {
+        return getPercentile(99);
     }
 
     @Override
     public String toString() {
-        return String.format("URL[%s]: total time: %s secs, total count: %s, average time: %s secs",
+        return String.format("URL[%s]: total time: %s secs, total count: %s, average time: %s secs, p50: %s ms, p90: %s ms, p99: %s ms, max: %s ms",
                 url,
                 TimeUnit.MILLISECONDS.toSeconds(totalTime),
                 count,
-                TimeUnit.MILLISECONDS.toSeconds(averageTime));
+                TimeUnit.MILLISECONDS.toSeconds(averageTime),
+                getP50Time(),
+                getP90Time(),
+                getP99Time(),
+                maxTime);
     }
 }
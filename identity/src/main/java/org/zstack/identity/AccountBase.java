@@ -6,10 +6,12 @@ import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.EventFacade;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.header.identity.*;
+import org.zstack.header.identity.IdentityCanonicalEvents.UserCredentialChangedData;
 import org.zstack.header.message.APIMessage;
 import org.zstack.header.message.Message;
 import org.zstack.search.SearchQuery;
@@ -19,6 +21,8 @@ public class AccountBase extends AbstractAccount {
     private CloudBus bus;
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private EventFacade evtf;
 
     private AccountVO vo;
 
@@ -57,6 +61,10 @@ public class AccountBase extends AbstractAccount {
         UserVO uvo = uq.find();
 
         vo = resetAccountPassword(vo, uvo, msg.getPassword());
+        UserCredentialChangedData data = new UserCredentialChangedData();
+        data.setUserUuid(uvo.getUuid());
+        evtf.fire(IdentityCanonicalEvents.USER_CREDENTIAL_CHANGED_PATH, data);
+
         APIResetAccountPasswordEvent evt = new APIResetAccountPasswordEvent(msg.getId());
         evt.setInventory(AccountInventory.valueOf(vo));
         bus.publish(evt);
@@ -11,6 +11,8 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.db.SimpleQuery.Op;
@@ -20,6 +22,8 @@ import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.Component;
 import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.header.identity.*;
+import org.zstack.header.identity.IdentityCanonicalEvents.SessionLogoutData;
+import org.zstack.header.identity.IdentityCanonicalEvents.UserCredentialChangedData;
 import org.zstack.header.message.APIMessage;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
@@ -28,9 +32,23 @@ import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * sessions and users are cached so authenticating an API call doesn't hit the database. Login is not cached, it
+ * counts the user's sessions in the database so identity.session.maxConcurrent holds across management nodes.
+ *
+ * Cached entries are trusted for identity.session.cache.ttl seconds; logout and password change are broadcast
+ * as canonical events so all management nodes drop their cached entries. Session expiry is checked against
+ * a local clock corrected to database time every identity.clock.sync.interval seconds, instead of asking the
+ * database for the current time on every call.
+ *
+ * The caches are ConcurrentHashMaps, expired entries are removed on read or by the periodic cleanup; when a cache
+ * grows over identity.session.cache.maxSize, expired entries and then arbitrary ones are evicted.
+ */
 public class CredentialCheckerImpl implements CredentialChecker, AuthenticationProvider, Component {
     private static final CLogger logger = Utils.getLogger(CredentialChecker.class);
 
@@ -44,9 +62,77 @@ public class CredentialCheckerImpl implements CredentialChecker, AuthenticationP
     private ThreadFacade thdf;
     @Autowired
     private ErrorFacade errf;
+    @Autowired
+    private EventFacade evtf;
 
     private Future<Void> expiredSessionCollector;
-    private Map<String, SessionInventory> sessions = Collections.synchronizedMap(new HashMap<String, SessionInventory>());
+    private Future<Void> clockSyncer;
+    private final ConcurrentMap<String, CachedEntry<SessionInventory>> sessions = new ConcurrentHashMap<String, CachedEntry<SessionInventory>>();
+    private final ConcurrentMap<String, CachedEntry<UserVO>> users = new ConcurrentHashMap<String, CachedEntry<UserVO>>();
+    // database time - local time, in milliseconds
+    private volatile long clockSkew;
+
+    private static class CachedEntry<T> {
+        final T value;
+        final long cachedTime = System.currentTimeMillis();
+
+        CachedEntry(T value) {
+            this.value = value;
+        }
+
+        boolean isStale() {
+            return System.currentTimeMillis() - cachedTime > TimeUnit.SECONDS.toMillis(IdentityGlobalConfig.SESSION_CACHE_TTL.value(Integer.class));
+        }
+    }
+
+    private <T> void cache(ConcurrentMap<String, CachedEntry<T>> cache, String key, T value) {
+        cache.put(key, new CachedEntry<T>(value));
+        int maxSize = IdentityGlobalConfig.SESSION_CACHE_MAX_SIZE.value(Integer.class);
+        if (cache.size() > maxSize) {
+            evict(cache, maxSize);
+        }
+    }
+
+    private <T> T getCached(ConcurrentMap<String, CachedEntry<T>> cache, String key) {
+        CachedEntry<T> e = cache.get(key);
+        if (e == null) {
+            return null;
+        }
+
+        if (e.isStale()) {
+            cache.remove(key, e);
+            return null;
+        }
+
+        return e.value;
+    }
+
+    private <T> void evict(ConcurrentMap<String, CachedEntry<T>> cache, int maxSize) {
+        for (Map.Entry<String, CachedEntry<T>> e : cache.entrySet()) {
+            if (e.getValue().isStale()) {
+                cache.remove(e.getKey(), e.getValue());
+            }
+        }
+
+        // leave room so the next puts don't evict again
+        int target = maxSize - maxSize / 10;
+        Iterator<String> it = cache.keySet().iterator();
+        while (cache.size() > target && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private long currentSqlTimeMillis() {
+        return System.currentTimeMillis() + clockSkew;
+    }
+
+    private void syncClock() {
+        long before = System.currentTimeMillis();
+        long dbTime = getCurrentSqlDate().getTime();
+        long after = System.currentTimeMillis();
+        clockSkew = dbTime - (before + after) / 2;
+    }
 
     @Override
     public void authenticateAndAuthorize(APIMessage msg, AuthorizationInfo ainfo) throws CredentialDeniedException {
@@ -87,24 +173,34 @@ public class CredentialCheckerImpl implements CredentialChecker, AuthenticationP
 
     }
 
+    private UserVO getUser(String userUuid) {
+        UserVO user = getCached(users, userUuid);
+        if (user == null) {
+            user = dbf.findByUuid(userUuid, UserVO.class);
+            if (user != null) {
+                cache(users, userUuid, user);
+            }
+        }
+        return user;
+    }
+
     private void authenticateBySession(SessionToken token) {
         APIMessage msg = (APIMessage) token.getPrincipal();
-        SessionInventory session = sessions.get(msg.getSession().getUuid());
-        
         if (msg.getSession().getUuid() == null) {
             throw new BadCredentialsException("session uuid cannot be null");
         }
-        
+
+        SessionInventory session = getCached(sessions, msg.getSession().getUuid());
         if (session == null) {
             SessionVO svo = dbf.findByUuid(msg.getSession().getUuid(), SessionVO.class);
             if (svo == null) {
                 throw new BadCredentialsException("Session expired");
             }
             session = SessionInventory.valueOf(svo);
-            sessions.put(session.getUuid(), session);
+            cache(sessions, session.getUuid(), session);
         }
         
-        Timestamp curr = getCurrentSqlDate();
+        Timestamp curr = new Timestamp(currentSqlTimeMillis());
         if (curr.after(session.getExpiredDate())) {
             logger.debug(String.format("session expired[%s < %s] for account[uuid:%s]", curr, session.getExpiredDate(), session.getAccountUuid()));
             logOutSession(session.getUuid());
@@ -112,7 +208,7 @@ public class CredentialCheckerImpl implements CredentialChecker, AuthenticationP
         }
 
         msg.setSession(session);
-        UserVO user = dbf.findByUuid(session.getUserUuid(), UserVO.class);
+        UserVO user = getUser(session.getUserUuid());
         token.setDetails(user);
     }
 
@@ -149,6 +245,7 @@ public class CredentialCheckerImpl implements CredentialChecker, AuthenticationP
 
     private SessionInventory getSession(UserVO user) {
         int maxLoginTimes = org.zstack.identity.IdentityGlobalConfig.MAX_CONCURRENT_SESSION.value(Integer.class);
+        // other management nodes create sessions too, so the count is always read from the database
         SimpleQuery<SessionVO> query = dbf.createQuery(SessionVO.class);
         query.add(SessionVO_.accountUuid, Op.EQ, user.getAccountUuid());
         query.add(SessionVO_.userUuid, Op.EQ, user.getUuid());
@@ -158,7 +255,9 @@ public class CredentialCheckerImpl implements CredentialChecker, AuthenticationP
             throw new BadCredentialsException(err);
         }
 
-        return createNewSession(user);
+        SessionInventory session = createNewSession(user);
+        cache(sessions, session.getUuid(), session);
+        return session;
     }
 
     @Transactional(readOnly = true)
@@ -173,7 +272,7 @@ public class CredentialCheckerImpl implements CredentialChecker, AuthenticationP
         svo.setUuid(Platform.getUuid());
         svo.setAccountUuid(user.getAccountUuid());
         svo.setUserUuid(user.getUuid());
-        long expiredTime = getCurrentSqlDate().getTime() + TimeUnit.SECONDS.toMillis(sessionTimeout);
+        long expiredTime = currentSqlTimeMillis() + TimeUnit.SECONDS.toMillis(sessionTimeout);
         svo.setExpiredDate(new Timestamp(expiredTime));
         svo = dbf.persistAndRefresh(svo);
         return SessionInventory.valueOf(svo);
@@ -212,12 +311,70 @@ public class CredentialCheckerImpl implements CredentialChecker, AuthenticationP
 
     @Override
     public void logOutSession(String sessionUuid) {
-        sessions.remove(sessionUuid);
+        CachedEntry<SessionInventory> e = sessions.remove(sessionUuid);
         dbf.removeByPrimaryKey(sessionUuid, SessionVO.class);
+
+        SessionLogoutData data = new SessionLogoutData();
+        data.setSessionUuid(sessionUuid);
+        if (e != null) {
+            data.setUserUuid(e.value.getUserUuid());
+        }
+        evtf.fire(IdentityCanonicalEvents.SESSION_LOGOUT_PATH, data);
+    }
+
+    private void installCacheInvalidators() {
+        evtf.on(IdentityCanonicalEvents.SESSION_LOGOUT_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                SessionLogoutData d = (SessionLogoutData) data;
+                sessions.remove(d.getSessionUuid());
+            }
+        });
+
+        evtf.on(IdentityCanonicalEvents.USER_CREDENTIAL_CHANGED_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                UserCredentialChangedData d = (UserCredentialChangedData) data;
+                users.remove(d.getUserUuid());
+            }
+        });
+    }
+
+    private void startClockSyncer() {
+        syncClock();
+        final int interval = IdentityGlobalConfig.CLOCK_SYNC_INTERVAL.value(Integer.class);
+        clockSyncer = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public void run() {
+                try {
+                    syncClock();
+                } catch (Throwable t) {
+                    logger.warn("unable to sync clock with database, use the last clock skew", t);
+                }
+            }
+
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return interval;
+            }
+
+            @Override
+            public String getName() {
+                return "DatabaseClockSyncThread";
+            }
+        }, interval);
     }
 
     @Override
     public boolean start() {
+        installCacheInvalidators();
+        startClockSyncer();
+
         final int interval = IdentityGlobalConfig.SESSION_CELANUP_INTERVAL.value(Integer.class);
         expiredSessionCollector = thdf.submitPeriodicTask(new PeriodicTask() {
             
@@ -267,6 +424,9 @@ public class CredentialCheckerImpl implements CredentialChecker, AuthenticationP
         if (expiredSessionCollector != null) {
             expiredSessionCollector.cancel(false);
         }
+        if (clockSyncer != null) {
+            clockSyncer.cancel(false);
+        }
         return true;
     }
 }
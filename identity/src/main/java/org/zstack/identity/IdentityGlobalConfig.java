@@ -16,6 +16,12 @@ public class IdentityGlobalConfig {
     public static GlobalConfig SESSION_TIMEOUT = new GlobalConfig(CATEGORY, "session.timeout");
     @GlobalConfigValidation(numberGreaterThan = 0)
     public static GlobalConfig SESSION_CELANUP_INTERVAL = new GlobalConfig(CATEGORY, "session.cleanup.interval");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig SESSION_CACHE_MAX_SIZE = new GlobalConfig(CATEGORY, "session.cache.maxSize");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig SESSION_CACHE_TTL = new GlobalConfig(CATEGORY, "session.cache.ttl");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig CLOCK_SYNC_INTERVAL = new GlobalConfig(CATEGORY, "clock.sync.interval");
     @GlobalConfigValidation
     public static GlobalConfig SHOW_ALL_RESOURCE_TO_ADMIN = new GlobalConfig(CATEGORY, "admin.showAllResource");
 }
@@ -3,12 +3,18 @@ package org.zstack.network.l3;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.errorcode.OperationFailureException;
 import org.zstack.header.network.l3.*;
+import org.zstack.utils.network.NetworkUtils;
 
 import javax.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  */
@@ -43,4 +49,47 @@ public abstract class AbstractIpAllocatorStrategy implements IpAllocatorStrategy
         IpRangeVO ipr = iprs.get(0);
         return l3NwMgr.reserveIp(IpRangeInventory.valueOf(ipr), msg.getRequiredIp());
     }
+
+    protected List<IpRangeVO> getIpRanges(String l3NetworkUuid) {
+        SimpleQuery<IpRangeVO> query = dbf.createQuery(IpRangeVO.class);
+        query.add(IpRangeVO_.l3NetworkUuid, Op.EQ, l3NetworkUuid);
+        return query.list();
+    }
+
+    /**
+     * picks up to num free ips in the range, walking from the ip at offset to the end ip
+     * then wrapping around to the start ip. It costs one query for used ips of the range
+     * however many ips are picked.
+     */
+    protected List<UsedIpVO> pickIpsInRange(IpRangeVO r, int num, int offset) {
+        List<UsedIpVO> ret = new ArrayList<UsedIpVO>();
+        Set<Long> used = new HashSet<Long>(l3NwMgr.getUsedIpInRange(r.getUuid()));
+        int total = r.size();
+        if (used.size() >= total) {
+            return ret;
+        }
+
+        IpRangeInventory ipr = IpRangeInventory.valueOf(r);
+        long s = NetworkUtils.ipv4StringToLong(r.getStartIp());
+        for (int i = 0; i < total && ret.size() < num; i++) {
+            long ip = s + (offset + i) % total;
+            if (!used.contains(ip)) {
+                ret.add(l3NwMgr.newUsedIp(ipr, NetworkUtils.longToIpv4String(ip)));
+            }
+        }
+
+        return ret;
+    }
+
+    @Override
+    public List<UsedIpVO> pickIps(String l3NetworkUuid, int num) {
+        List<UsedIpVO> ret = new ArrayList<UsedIpVO>();
+        for (IpRangeVO r : getIpRanges(l3NetworkUuid)) {
+            if (ret.size() == num) {
+                break;
+            }
+            ret.addAll(pickIpsInRange(r, num - ret.size(), 0));
+        }
+        return ret;
+    }
 }
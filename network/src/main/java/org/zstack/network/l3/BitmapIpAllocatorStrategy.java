@@ -0,0 +1,93 @@
+package org.zstack.network.l3;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.header.network.l3.*;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.network.NetworkUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * allocates the first available ip like FirstAvailableIpAllocatorStrategy, but finds it
+ * in the IpRangeBitmap of the range instead of loading all UsedIpVO; the database is only
+ * touched to persist the UsedIpVO.
+ */
+public class BitmapIpAllocatorStrategy extends AbstractIpAllocatorStrategy {
+    private static final CLogger logger = Utils.getLogger(BitmapIpAllocatorStrategy.class);
+    public static final IpAllocatorType type = new IpAllocatorType(L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY);
+
+    @Autowired
+    private UsedIpBitmapCache ipBitmaps;
+
+    @Override
+    public IpAllocatorType getType() {
+        return type;
+    }
+
+    private UsedIpInventory allocateIp(IpRangeVO r) {
+        IpRangeBitmap bitmap = ipBitmaps.get(r);
+        IpRangeInventory ipr = IpRangeInventory.valueOf(r);
+        while (true) {
+            Long ip = bitmap.allocate();
+            if (ip == null) {
+                logger.debug(String.format("Ip range[uuid:%s, name: %s] is exhausted, try next one", r.getUuid(), r.getName()));
+                return null;
+            }
+
+            UsedIpInventory inv;
+            try {
+                inv = l3NwMgr.reserveIp(ipr, NetworkUtils.longToIpv4String(ip));
+            } catch (RuntimeException e) {
+                bitmap.markFree(ip);
+                throw e;
+            }
+
+            if (inv != null) {
+                return inv;
+            }
+
+            // the ip is taken by somebody the bitmap didn't know, it stays marked as used
+        }
+    }
+
+    @Override
+    public List<UsedIpVO> pickIps(String l3NetworkUuid, int num) {
+        // picked ips stay marked used in bitmaps, the caller frees them if they are not persisted at last
+        List<UsedIpVO> ret = new ArrayList<UsedIpVO>();
+        for (IpRangeVO r : getIpRanges(l3NetworkUuid)) {
+            IpRangeBitmap bitmap = ipBitmaps.get(r);
+            IpRangeInventory ipr = IpRangeInventory.valueOf(r);
+            while (ret.size() < num) {
+                Long ip = bitmap.allocate();
+                if (ip == null) {
+                    break;
+                }
+                ret.add(l3NwMgr.newUsedIp(ipr, NetworkUtils.longToIpv4String(ip)));
+            }
+
+            if (ret.size() == num) {
+                break;
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public UsedIpInventory allocateIp(IpAllocateMessage msg) {
+        if (msg.getRequiredIp() != null) {
+            return allocateRequiredIp(msg);
+        }
+
+        for (IpRangeVO r : getIpRanges(msg.getL3NetworkUuid())) {
+            UsedIpInventory inv = allocateIp(r);
+            if (inv != null) {
+                return inv;
+            }
+        }
+
+        /* No available ip in ranges */
+        return null;
+    }
+}
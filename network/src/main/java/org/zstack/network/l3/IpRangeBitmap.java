@@ -0,0 +1,90 @@
+package org.zstack.network.l3;
+
+import org.zstack.utils.data.ChunkedBitSet;
+
+/**
+ * in-memory view of UsedIpVO of one ip range, bit i stands for startIp + i
+ */
+public class IpRangeBitmap {
+    private final String ipRangeUuid;
+    private final String l3NetworkUuid;
+    private final long startIp;
+    private final ChunkedBitSet bits;
+    private boolean loaded;
+    private int cursor;
+
+    public IpRangeBitmap(String ipRangeUuid, String l3NetworkUuid, long startIp, long endIp) {
+        this.ipRangeUuid = ipRangeUuid;
+        this.l3NetworkUuid = l3NetworkUuid;
+        this.startIp = startIp;
+        bits = new ChunkedBitSet((int) (endIp - startIp + 1));
+    }
+
+    public String getIpRangeUuid() {
+        return ipRangeUuid;
+    }
+
+    public String getL3NetworkUuid() {
+        return l3NetworkUuid;
+    }
+
+    synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    synchronized void load(Iterable<Long> usedIps) {
+        bits.clear();
+        cursor = 0;
+        for (Long ip : usedIps) {
+            markUsed(ip);
+        }
+        loaded = true;
+    }
+
+    private boolean inRange(long ip) {
+        return ip >= startIp && ip - startIp < bits.size();
+    }
+
+    public synchronized void markUsed(long ip) {
+        if (inRange(ip)) {
+            bits.set((int) (ip - startIp));
+        }
+    }
+
+    public synchronized void markFree(long ip) {
+        if (inRange(ip)) {
+            int index = (int) (ip - startIp);
+            bits.clear(index);
+            if (index < cursor) {
+                cursor = index;
+            }
+        }
+    }
+
+    public synchronized boolean isFull() {
+        return bits.isFull();
+    }
+
+    public synchronized int getUsedCount() {
+        return bits.cardinality();
+    }
+
+    /**
+     * picks the lowest free ip and marks it used; the caller must call markFree() if
+     * it fails to persist the UsedIpVO for other reason than the ip having been taken
+     *
+     * @return the ip in long or null if the range is full
+     */
+    public synchronized Long allocate() {
+        // every bit below cursor is set, markFree() moves the cursor back
+        int index = bits.nextClearBit(cursor);
+        if (index == -1) {
+            cursor = bits.size();
+            return null;
+        }
+
+        bits.set(index);
+        cursor = index + 1;
+        return startIp + index;
+    }
+}
@@ -56,6 +56,8 @@ public class L3BasicNetwork implements L3Network {
     protected ErrorFacade errf;
     @Autowired
     protected TagManager tagMgr;
+    @Autowired
+    protected UsedIpBitmapCache ipBitmaps;
 
     private L3NetworkVO self;
 
@@ -128,6 +130,7 @@ public class L3BasicNetwork implements L3Network {
         IpRangeDeletionReply reply = new IpRangeDeletionReply();
         IpRangeVO iprvo = dbf.findByUuid(msg.getIpRangeUuid(), IpRangeVO.class);
         deleteIpRangeHook(IpRangeInventory.valueOf(iprvo));
+        ipBitmaps.evict(msg.getIpRangeUuid());
         bus.reply(msg, reply);
     }
 
@@ -147,7 +150,11 @@ public class L3BasicNetwork implements L3Network {
 
     private void handle(ReturnIpMsg msg) {
         ReturnIpReply reply = new ReturnIpReply();
-        dbf.removeByPrimaryKey(msg.getUsedIpUuid(), UsedIpVO.class);
+        UsedIpVO ipvo = dbf.findByUuid(msg.getUsedIpUuid(), UsedIpVO.class);
+        if (ipvo != null) {
+            dbf.remove(ipvo);
+            ipBitmaps.markFree(ipvo.getIpRangeUuid(), ipvo.getIpInLong());
+        }
         logger.debug(String.format("Successfully released used ip[%s]", msg.getUsedIpUuid()));
         bus.reply(msg, reply);
     }
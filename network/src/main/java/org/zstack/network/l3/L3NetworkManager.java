@@ -9,6 +9,8 @@ public interface L3NetworkManager {
     
     UsedIpInventory reserveIp(IpRangeInventory ipRange, String ip);
 
+    UsedIpVO newUsedIp(IpRangeInventory ipRange, String ip);
+
     boolean isIpRangeFull(IpRangeVO vo);
     
     List<Long> getUsedIpInRange(String ipRangeUuid);
@@ -10,6 +10,7 @@ import org.zstack.core.cloudbus.MessageSafe;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.DbEntityLister;
+import org.zstack.core.db.TransactionalCallback.Operation;
 import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.core.errorcode.ErrorFacade;
@@ -26,11 +27,15 @@ import org.zstack.identity.AccountManager;
 import org.zstack.search.GetQuery;
 import org.zstack.search.SearchQuery;
 import org.zstack.tag.TagManager;
+import org.zstack.utils.CollectionUtils;
+import org.zstack.utils.DebugUtils;
 import org.zstack.utils.ObjectUtils;
 import org.zstack.utils.Utils;
+import org.zstack.utils.function.Function;
 import org.zstack.utils.logging.CLogger;
 import org.zstack.utils.network.NetworkUtils;
 
+import javax.persistence.Query;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import java.util.*;
@@ -53,6 +58,8 @@ public class L3NetworkManagerImpl extends AbstractService implements L3NetworkMa
     private ErrorFacade errf;
     @Autowired
     private TagManager tagMgr;
+    @Autowired
+    private UsedIpBitmapCache ipBitmaps;
 
     private Map<String, L3NetworkFactory> l3NetworkFactories = Collections.synchronizedMap(new HashMap<String, L3NetworkFactory>());
     private Map<String, IpAllocatorStrategy> ipAllocatorStrategies = Collections.synchronizedMap(new HashMap<String, IpAllocatorStrategy>());
@@ -76,12 +83,145 @@ public class L3NetworkManagerImpl extends AbstractService implements L3NetworkMa
     private void handleLocalMessage(Message msg) {
         if (msg instanceof L3NetworkMessage) {
             passThrough((L3NetworkMessage) msg);
+        } else if (msg instanceof AllocateIpsMsg) {
+            handle((AllocateIpsMsg) msg);
         } else {
             bus.dealWithUnknownMessage(msg);
         }
     }
 
 
+    private boolean isDuplicateEntry(Throwable t) {
+        return DebugUtils.getRootCause(t) instanceof MySQLIntegrityConstraintViolationException;
+    }
+
+    @Transactional
+    private void persistUsedIps(List<UsedIpVO> ips) {
+        // one multi-row insert instead of a persist() per ip
+        StringBuilder sql = new StringBuilder("insert into UsedIpVO (uuid, ipRangeUuid, l3NetworkUuid, ip, ipInLong, gateway, netmask, createDate) values ");
+        for (int i = 0; i < ips.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?, ?, ?, ?, current_timestamp())");
+        }
+
+        Query q = dbf.getEntityManager().createNativeQuery(sql.toString());
+        int pos = 1;
+        for (UsedIpVO vo : ips) {
+            q.setParameter(pos++, vo.getUuid());
+            q.setParameter(pos++, vo.getIpRangeUuid());
+            q.setParameter(pos++, vo.getL3NetworkUuid());
+            q.setParameter(pos++, vo.getIp());
+            q.setParameter(pos++, vo.getIpInLong());
+            q.setParameter(pos++, vo.getGateway());
+            q.setParameter(pos++, vo.getNetmask());
+        }
+        q.executeUpdate();
+        dbf.entityForTranscationCallback(Operation.PERSIST, UsedIpVO.class);
+    }
+
+    private void releasePickedIps(List<UsedIpVO> ips) {
+        if (ips.isEmpty()) {
+            return;
+        }
+
+        // ips picked by the bitmap strategy are marked used in the bitmap, free those not in database
+        List<String> uuids = CollectionUtils.transformToList(ips, new Function<String, UsedIpVO>() {
+            @Override
+            public String call(UsedIpVO arg) {
+                return arg.getUuid();
+            }
+        });
+        SimpleQuery<UsedIpVO> q = dbf.createQuery(UsedIpVO.class);
+        q.select(UsedIpVO_.uuid);
+        q.add(UsedIpVO_.uuid, Op.IN, uuids);
+        List<String> existing = q.listValue();
+        for (UsedIpVO ip : ips) {
+            if (!existing.contains(ip.getUuid())) {
+                ipBitmaps.markFree(ip.getIpRangeUuid(), ip.getIpInLong());
+            }
+        }
+    }
+
+    private void handle(AllocateIpsMsg msg) {
+        AllocateIpsReply reply = new AllocateIpsReply();
+        IpAllocatorType strategyType = msg.getAllocatorStrategy() == null ? RandomIpAllocatorStrategy.type : IpAllocatorType.valueOf(msg.getAllocatorStrategy());
+        IpAllocatorStrategy ias = getIpAllocatorStrategy(strategyType);
+
+        Map<String, Integer> nums = new LinkedHashMap<String, Integer>();
+        for (String l3Uuid : msg.getL3NetworkUuids()) {
+            Integer num = nums.get(l3Uuid);
+            nums.put(l3Uuid, num == null ? 1 : num + 1);
+        }
+
+        int tries = 5;
+        while (true) {
+            Map<String, LinkedList<UsedIpVO>> picked = new HashMap<String, LinkedList<UsedIpVO>>();
+            List<UsedIpVO> all = new ArrayList<UsedIpVO>();
+            for (Map.Entry<String, Integer> e : nums.entrySet()) {
+                List<UsedIpVO> ips = ias.pickIps(e.getKey(), e.getValue());
+                all.addAll(ips);
+                if (ips.size() < e.getValue()) {
+                    releasePickedIps(all);
+                    reply.setError(errf.instantiateErrorCode(L3Errors.ALLOCATE_IP_ERROR,
+                            String.format("IP allocator strategy[%s] can only find %s ips but %s are required in l3Network[uuid:%s]",
+                                    strategyType, ips.size(), e.getValue(), e.getKey())));
+                    bus.reply(msg, reply);
+                    return;
+                }
+                picked.put(e.getKey(), new LinkedList<UsedIpVO>(ips));
+            }
+
+            if (all.isEmpty()) {
+                reply.setIpInventories(new ArrayList<UsedIpInventory>());
+                bus.reply(msg, reply);
+                return;
+            }
+
+            try {
+                persistUsedIps(all);
+            } catch (RuntimeException e) {
+                releasePickedIps(all);
+                if (isDuplicateEntry(e) && --tries > 0) {
+                    logger.debug(String.format("Concurrent ip allocation. Some of ips%s have been allocated, the whole batch is rolled back, try picking ips again",
+                            CollectionUtils.transformToList(all, new Function<String, UsedIpVO>() {
+                                @Override
+                                public String call(UsedIpVO arg) {
+                                    return arg.getIp();
+                                }
+                            })));
+                    logger.trace("", e);
+                    continue;
+                }
+
+                throw e;
+            }
+
+            for (UsedIpVO ip : all) {
+                ipBitmaps.markUsed(ip.getIpRangeUuid(), ip.getIpInLong());
+            }
+
+            Map<String, UsedIpVO> persisted = new HashMap<String, UsedIpVO>();
+            for (UsedIpVO vo : dbf.listByPrimaryKeys(CollectionUtils.transformToList(all, new Function<String, UsedIpVO>() {
+                @Override
+                public String call(UsedIpVO arg) {
+                    return arg.getUuid();
+                }
+            }), UsedIpVO.class)) {
+                persisted.put(vo.getUuid(), vo);
+            }
+
+            List<UsedIpInventory> invs = new ArrayList<UsedIpInventory>();
+            for (String l3Uuid : msg.getL3NetworkUuids()) {
+                UsedIpVO vo = persisted.get(picked.get(l3Uuid).poll().getUuid());
+                invs.add(UsedIpInventory.valueOf(vo));
+            }
+
+            logger.debug(String.format("Ip allocator strategy[%s] successfully allocates %s ips in one batch", strategyType, invs.size()));
+            reply.setIpInventories(invs);
+            bus.reply(msg, reply);
+            return;
+        }
+    }
+
     private void handleApiMessage(APIMessage msg) {
         if (msg instanceof APICreateL3NetworkMsg) {
             handle((APICreateL3NetworkMsg) msg);
@@ -332,21 +472,30 @@ public class L3NetworkManagerImpl extends AbstractService implements L3NetworkMa
         return factory;
     }
 
+    @Override
+    public UsedIpVO newUsedIp(IpRangeInventory ipRange, String ip) {
+        UsedIpVO vo = new UsedIpVO(ipRange.getUuid(), ip);
+        vo.setIpInLong(NetworkUtils.ipv4StringToLong(ip));
+        String uuid = ipRange.getUuid() + ip;
+        uuid = UUID.nameUUIDFromBytes(uuid.getBytes()).toString().replaceAll("-", "");
+        vo.setUuid(uuid);
+        vo.setL3NetworkUuid(ipRange.getL3NetworkUuid());
+        vo.setNetmask(ipRange.getNetmask());
+        vo.setGateway(ipRange.getGateway());
+        return vo;
+    }
+
     @Override
     public UsedIpInventory reserveIp(IpRangeInventory ipRange, String ip) {
+        long ipInLong = NetworkUtils.ipv4StringToLong(ip);
         try {
-            UsedIpVO vo = new UsedIpVO(ipRange.getUuid(), ip);
-            vo.setIpInLong(NetworkUtils.ipv4StringToLong(ip));
-            String uuid = ipRange.getUuid() + ip;
-            uuid = UUID.nameUUIDFromBytes(uuid.getBytes()).toString().replaceAll("-", "");
-            vo.setUuid(uuid);
-            vo.setL3NetworkUuid(ipRange.getL3NetworkUuid());
-            vo.setNetmask(ipRange.getNetmask());
-            vo.setGateway(ipRange.getGateway());
+            UsedIpVO vo = newUsedIp(ipRange, ip);
             vo = dbf.persistAndRefresh(vo);
+            ipBitmaps.markUsed(ipRange.getUuid(), ipInLong);
             return UsedIpInventory.valueOf(vo);
         } catch (JpaSystemException e) {
             if (e.getRootCause() instanceof MySQLIntegrityConstraintViolationException) {
+                ipBitmaps.markUsed(ipRange.getUuid(), ipInLong);
                 logger.debug(String.format("Concurrent ip allocation. Ip[%s] in ip range[uuid:%s] has been allocated, try allocating another one. The error[Duplicate entry] printed by jdbc.spi.SqlExceptionHelper is no harm, we will try finding another ip", ip, ipRange.getUuid()));
                 logger.trace("", e);
             } else {
@@ -57,6 +57,22 @@ public class RandomIpAllocatorStrategy extends AbstractIpAllocatorStrategy {
         } while (true);
     }
 
+    @Override
+    public List<UsedIpVO> pickIps(String l3NetworkUuid, int num) {
+        List<IpRangeVO> ranges = getIpRanges(l3NetworkUuid);
+        Collections.shuffle(ranges);
+
+        Random random = new Random();
+        List<UsedIpVO> ret = new ArrayList<UsedIpVO>();
+        for (IpRangeVO r : ranges) {
+            if (ret.size() == num) {
+                break;
+            }
+            ret.addAll(pickIpsInRange(r, num - ret.size(), random.nextInt(r.size())));
+        }
+        return ret;
+    }
+
     private String steppingAllocate(long s, long e, int total, String rangeUuid) {
         int step = 254;
         int failureCount = 0;
@@ -0,0 +1,125 @@
+package org.zstack.network.l3;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.cloudbus.ResourceDestinationMaker;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.managementnode.ManagementNodeChangeListener;
+import org.zstack.header.network.l3.IpRangeVO;
+import org.zstack.header.network.l3.UsedIpVO;
+import org.zstack.header.network.l3.UsedIpVO_;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.network.NetworkUtils;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * keeps an IpRangeBitmap for every ip range of l3 networks managed by this management node.
+ *
+ * AllocateIpMsg/ReturnIpMsg are routed by l3 network uuid, so the owner node sees every change
+ * of UsedIpVO in its l3 networks and the bitmap can be kept in sync without reading the database.
+ * Bitmaps are loaded lazily; the load happens with the bitmap locked and markUsed()/markFree() are
+ * called after the database change is committed, so a change racing with the load is never lost.
+ * When the management node ring changes, bitmaps of l3 networks that are not ours any more are dropped.
+ */
+public class UsedIpBitmapCache implements ManagementNodeChangeListener {
+    private static final CLogger logger = Utils.getLogger(UsedIpBitmapCache.class);
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private ResourceDestinationMaker destMaker;
+
+    private ConcurrentHashMap<String, IpRangeBitmap> bitmaps = new ConcurrentHashMap<String, IpRangeBitmap>();
+
+    private List<Long> getUsedIps(String ipRangeUuid) {
+        SimpleQuery<UsedIpVO> q = dbf.createQuery(UsedIpVO.class);
+        q.select(UsedIpVO_.ipInLong);
+        q.add(UsedIpVO_.ipRangeUuid, Op.EQ, ipRangeUuid);
+        return q.listValue();
+    }
+
+    private IpRangeBitmap newBitmap(IpRangeVO ipr) {
+        return new IpRangeBitmap(ipr.getUuid(), ipr.getL3NetworkUuid(),
+                NetworkUtils.ipv4StringToLong(ipr.getStartIp()), NetworkUtils.ipv4StringToLong(ipr.getEndIp()));
+    }
+
+    public IpRangeBitmap get(IpRangeVO ipr) {
+        IpRangeBitmap bitmap = bitmaps.get(ipr.getUuid());
+        if (bitmap == null) {
+            if (!destMaker.isManagedByUs(ipr.getL3NetworkUuid())) {
+                // not our l3 network, we can't see all changes to it; use a throwaway copy
+                bitmap = newBitmap(ipr);
+                bitmap.load(getUsedIps(ipr.getUuid()));
+                return bitmap;
+            }
+
+            bitmap = newBitmap(ipr);
+            IpRangeBitmap old = bitmaps.putIfAbsent(ipr.getUuid(), bitmap);
+            if (old != null) {
+                bitmap = old;
+            }
+        }
+
+        synchronized (bitmap) {
+            if (!bitmap.isLoaded()) {
+                bitmap.load(getUsedIps(ipr.getUuid()));
+                logger.debug(String.format("loaded bitmap of ip range[uuid:%s], %s ips are used", ipr.getUuid(), bitmap.getUsedCount()));
+            }
+        }
+
+        return bitmap;
+    }
+
+    public void markUsed(String ipRangeUuid, long ip) {
+        IpRangeBitmap bitmap = bitmaps.get(ipRangeUuid);
+        if (bitmap != null) {
+            bitmap.markUsed(ip);
+        }
+    }
+
+    public void markFree(String ipRangeUuid, long ip) {
+        IpRangeBitmap bitmap = bitmaps.get(ipRangeUuid);
+        if (bitmap != null) {
+            bitmap.markFree(ip);
+        }
+    }
+
+    public void evict(String ipRangeUuid) {
+        bitmaps.remove(ipRangeUuid);
+    }
+
+    private void evictNotManagedByUs() {
+        Iterator<IpRangeBitmap> it = bitmaps.values().iterator();
+        while (it.hasNext()) {
+            IpRangeBitmap bitmap = it.next();
+            if (!destMaker.isManagedByUs(bitmap.getL3NetworkUuid())) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void nodeJoin(String nodeId) {
+        evictNotManagedByUs();
+    }
+
+    @Override
+    public void nodeLeft(String nodeId) {
+        evictNotManagedByUs();
+    }
+
+    @Override
+    public void iAmDead(String nodeId) {
+        bitmaps.clear();
+    }
+
+    @Override
+    public void iJoin(String nodeId) {
+        bitmaps.clear();
+    }
+}
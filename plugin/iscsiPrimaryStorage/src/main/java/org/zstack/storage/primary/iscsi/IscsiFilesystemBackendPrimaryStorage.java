@@ -32,6 +32,8 @@ import org.zstack.identity.AccountManager;
 import org.zstack.kvm.KVMConstant;
 import org.zstack.storage.backup.sftp.SftpBackupStorageConstant;
 import org.zstack.storage.backup.sftp.SftpBackupStorageGlobalProperty;
+import org.zstack.storage.primary.ImageCacheRegistry;
+import org.zstack.storage.primary.ImageCacheRegistry.ImageCacheLoader;
 import org.zstack.storage.primary.PrimaryStorageBase;
 import org.zstack.storage.primary.PrimaryStorageManager;
 import org.zstack.storage.primary.iscsi.IscsiFileSystemBackendPrimaryStorageCommands.*;
@@ -172,7 +174,34 @@ public class IscsiFilesystemBackendPrimaryStorage extends PrimaryStorageBase {
 
                         @Override
                         public void run(final FlowTrigger trigger, Map data) {
-                            thdf.chainSubmit(new ChainTask(trigger) {
+                            ReturnValueCompletion<ImageCacheInventory> completion = new ReturnValueCompletion<ImageCacheInventory>(trigger) {
+                                @Override
+                                public void success(ImageCacheInventory returnValue) {
+                                    imagePathInCache = returnValue.getInstallUrl();
+                                    trigger.next();
+                                }
+
+                                @Override
+                                public void fail(ErrorCode errorCode) {
+                                    trigger.fail(errorCode);
+                                }
+                            };
+
+                            if (!ImageCacheRegistry.isEnabled()) {
+                                downloadInQueue(completion);
+                                return;
+                            }
+
+                            imageCacheRegistry.get(self.getUuid(), image.getUuid(), new ImageCacheLoader() {
+                                @Override
+                                public void load(ReturnValueCompletion<ImageCacheInventory> completion) {
+                                    downloadInQueue(completion);
+                                }
+                            }, completion);
+                        }
+
+                        private void downloadInQueue(final ReturnValueCompletion<ImageCacheInventory> completion) {
+                            thdf.chainSubmit(new ChainTask(completion) {
                                 @Override
                                 public String getSyncSignature() {
                                     return getName();
@@ -180,16 +209,16 @@ public class IscsiFilesystemBackendPrimaryStorage extends PrimaryStorageBase {
 
                                 @Override
                                 public void run(final SyncTaskChain chain) {
-                                    Completion completion = new Completion(chain, trigger) {
+                                    ReturnValueCompletion<ImageCacheInventory> c = new ReturnValueCompletion<ImageCacheInventory>(chain, completion) {
                                         @Override
-                                        public void success() {
-                                            trigger.next();
+                                        public void success(ImageCacheInventory returnValue) {
+                                            completion.success(returnValue);
                                             chain.next();
                                         }
 
                                         @Override
                                         public void fail(ErrorCode errorCode) {
-                                            trigger.fail(errorCode);
+                                            completion.fail(errorCode);
                                             chain.next();
                                         }
                                     };
@@ -199,9 +228,9 @@ public class IscsiFilesystemBackendPrimaryStorage extends PrimaryStorageBase {
                                     query.add(ImageCacheVO_.imageUuid, Op.EQ, image.getUuid());
                                     ImageCacheVO cvo = query.find();
                                     if (cvo != null) {
-                                        checkCache(cvo, completion);
+                                        checkCache(cvo, c);
                                     } else {
-                                        downloadToCache(null, completion);
+                                        downloadToCache(null, c);
                                     }
                                 }
 
@@ -210,34 +239,34 @@ public class IscsiFilesystemBackendPrimaryStorage extends PrimaryStorageBase {
                                     return String.format("download-image-%s-to-iscsi-primary-storage-%s", image.getUuid(), self.getUuid());
                                 }
                             });
-
                         }
 
-                        private void downloadToCache(final ImageCacheVO cvo, final Completion completion) {
+                        private void downloadToCache(final ImageCacheVO cvo, final ReturnValueCompletion<ImageCacheInventory> completion) {
                             IscsiFileSystemBackendPrimaryToBackupStorageMediator mediator = factory.getPrimaryToBackupStorageMediator(BackupStorageType.valueOf(bsinv.getType()),
                                     VolumeFormat.getMasterHypervisorTypeByVolumeFormat(image.getFormat()));
 
-                            imagePathInCache = makePathInImageCache(image.getUuid());
+                            final String pathInCache = makePathInImageCache(image.getUuid());
                             mediator.downloadBits(getSelfInventory(), bsinv,
-                                    ispec.getSelectedBackupStorage().getInstallPath(),  imagePathInCache, new Completion() {
+                                    ispec.getSelectedBackupStorage().getInstallPath(),  pathInCache, new Completion() {
                                         @Override
                                         public void success() {
-                                            if (cvo == null) {
-                                                ImageCacheVO vo = new ImageCacheVO();
+                                            ImageCacheVO vo = cvo;
+                                            if (vo == null) {
+                                                vo = new ImageCacheVO();
                                                 vo.setImageUuid(image.getUuid());
-                                                vo.setInstallUrl(imagePathInCache);
+                                                vo.setInstallUrl(pathInCache);
                                                 vo.setMediaType(ImageMediaType.valueOf(image.getMediaType()));
                                                 vo.setPrimaryStorageUuid(self.getUuid());
                                                 vo.setSize(image.getSize());
                                                 vo.setState(ImageCacheState.ready);
                                                 vo.setMd5sum("not calculated");
-                                                dbf.persist(vo);
+                                                vo = dbf.persistAndRefresh(vo);
                                             } else {
-                                                cvo.setInstallUrl(imagePathInCache);
-                                                dbf.update(cvo);
+                                                vo.setInstallUrl(pathInCache);
+                                                vo = dbf.updateAndRefresh(vo);
                                             }
 
-                                            completion.success();
+                                            completion.success(ImageCacheInventory.valueOf(vo));
                                         }
 
                                         @Override
@@ -247,7 +276,7 @@ public class IscsiFilesystemBackendPrimaryStorage extends PrimaryStorageBase {
                                     });
                         }
 
-                        private void checkCache(final ImageCacheVO cvo, final Completion completion) {
+                        private void checkCache(final ImageCacheVO cvo, final ReturnValueCompletion<ImageCacheInventory> completion) {
                             CheckBitsExistenceCmd cmd = new CheckBitsExistenceCmd();
                             cmd.setPath(cvo.getInstallUrl());
                             restf.asyncJsonPost(makeHttpUrl(IscsiBtrfsPrimaryStorageConstants.CHECK_BITS_EXISTENCE), cmd, new JsonAsyncRESTCallback<CheckBitsExistenceRsp>(completion) {
@@ -262,8 +291,7 @@ public class IscsiFilesystemBackendPrimaryStorage extends PrimaryStorageBase {
                                         completion.fail(errf.stringToOperationError(ret.getError()));
                                     }  else {
                                         if (ret.isExisting()) {
-                                            imagePathInCache = cvo.getInstallUrl();
-                                            completion.success();
+                                            completion.success(ImageCacheInventory.valueOf(cvo));
                                         } else {
                                             downloadToCache(cvo, completion);
                                         }
@@ -300,6 +328,8 @@ public class IscsiFilesystemBackendPrimaryStorage extends PrimaryStorageBase {
                                         public void success(CreateRootVolumeFromTemplateRsp ret) {
                                             if (!ret.isSuccess()) {
                                                 volumePath = null;
+                                                // the image cache may be gone, check it next time
+                                                imageCacheRegistry.evict(self.getUuid(), image.getUuid());
                                                 trigger.fail(errf.stringToOperationError(ret.getError()));
                                             } else {
                                                 iscsiTarget = makeIscsiVolumePath(ret.getIscsiPath(), volumePath);
@@ -621,11 +621,39 @@ public class KVMAgentCommands {
     }
     
     
+    /**
+     * if epoch and generation are set, and the agent still has the vm states of the generation in the epoch, the agent
+     * replies only vms changed since the generation, see VmSyncResponse.delta
+     */
     public static class VmSyncCmd extends AgentCommand {
+        private String epoch;
+        private Long generation;
+
+        public String getEpoch() {
+            return epoch;
+        }
+        public void setEpoch(String epoch) {
+            this.epoch = epoch;
+        }
+        public Long getGeneration() {
+            return generation;
+        }
+        public void setGeneration(Long generation) {
+            this.generation = generation;
+        }
     }
     
     public static class VmSyncResponse extends AgentResponse {
         private HashMap<String, String> states;
+        /**
+         * true if states only contains vms changed since the requested generation, a vm gone from the host
+         * is reported as Shutdown. Agents not supporting delta sync always reply all vms with delta = false
+         */
+        private boolean delta;
+        // changed every time the agent starts
+        private String epoch;
+        // increased every time a vm state changes on the host
+        private long generation;
 
         public HashMap<String, String> getStates() {
             return states;
@@ -633,6 +661,24 @@ public class KVMAgentCommands {
         public void setStates(HashMap<String, String> states) {
             this.states = states;
         }
+        public boolean isDelta() {
+            return delta;
+        }
+        public void setDelta(boolean delta) {
+            this.delta = delta;
+        }
+        public String getEpoch() {
+            return epoch;
+        }
+        public void setEpoch(String epoch) {
+            this.epoch = epoch;
+        }
+        public long getGeneration() {
+            return generation;
+        }
+        public void setGeneration(long generation) {
+            this.generation = generation;
+        }
     }
     
     public static class RefreshAllRulesOnHostCmd extends AgentCommand {
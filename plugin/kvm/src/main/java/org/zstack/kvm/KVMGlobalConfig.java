@@ -22,4 +22,8 @@ public class KVMGlobalConfig {
     public static GlobalConfig HOST_SYNC_LEVEL = new GlobalConfig(CATEGORY, "host.syncLevel");
     @GlobalConfigValidation
     public static GlobalConfig HOST_DNS_CHECK_LIST = new GlobalConfig(CATEGORY, "host.DNSCheckList");
+    @GlobalConfigValidation
+    public static GlobalConfig VM_SYNC_DELTA = new GlobalConfig(CATEGORY, "vmSync.delta");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig VM_SYNC_FULL_SYNC_INTERVAL = new GlobalConfig(CATEGORY, "vmSync.fullSyncInterval");
 }
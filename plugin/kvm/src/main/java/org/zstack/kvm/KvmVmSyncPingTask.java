@@ -15,6 +15,7 @@ import org.zstack.utils.logging.CLogger;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 public class KvmVmSyncPingTask extends VmTracer implements HostPingTaskExtensionPoint, KVMHostConnectExtensionPoint, HostConnectionReestablishExtensionPoint {
@@ -25,8 +26,36 @@ public class KvmVmSyncPingTask extends VmTracer implements HostPingTaskExtension
     @Autowired
     private KVMHostFactory factory;
 
-    private void syncVm(final KVMHostContext host) {
+    // the vm state generation of the host acknowledged by the last sync, for delta sync
+    private static class SyncPoint {
+        final String epoch;
+        final long generation;
+        // delta syncs since the last full sync
+        final int deltaNum;
+
+        SyncPoint(String epoch, long generation, int deltaNum) {
+            this.epoch = epoch;
+            this.generation = generation;
+            this.deltaNum = deltaNum;
+        }
+    }
+
+    private Map<String, SyncPoint> syncPoints = new ConcurrentHashMap<String, SyncPoint>();
+
+    private void syncVm(final KVMHostContext host, boolean full) {
+        final String hostUuid = host.getInventory().getUuid();
+        final boolean deltaEnabled = KVMGlobalConfig.VM_SYNC_DELTA.value(Boolean.class);
+        if (full || !deltaEnabled) {
+            syncPoints.remove(hostUuid);
+        }
+
         VmSyncCmd cmd = new VmSyncCmd();
+        final SyncPoint last = syncPoints.get(hostUuid);
+        if (last != null && last.deltaNum < KVMGlobalConfig.VM_SYNC_FULL_SYNC_INTERVAL.value(Integer.class)) {
+            cmd.setEpoch(last.epoch);
+            cmd.setGeneration(last.generation);
+        }
+
         restf.asyncJsonPost(host.buildUrl(KVMConstant.KVM_VM_SYNC_PATH), cmd, new JsonAsyncRESTCallback<VmSyncResponse>() {
             @Override
             public void fail(ErrorCode err) {
@@ -35,7 +64,17 @@ public class KvmVmSyncPingTask extends VmTracer implements HostPingTaskExtension
 
             @Override
             public void success(VmSyncResponse ret) {
-                if (ret.isSuccess()) {
+                if (ret.isSuccess() && ret.isDelta() && last != null) {
+                    Map<String, VmInstanceState> states = new HashMap<String, VmInstanceState>(ret.getStates().size());
+                    for (Map.Entry<String, String> e : ret.getStates().entrySet()) {
+                        VmInstanceState state = KvmVmState.valueOf(e.getValue()).toVmInstanceState();
+                        // Stopped means the vm is gone from the host
+                        states.put(e.getKey(), state == VmInstanceState.Running || state == VmInstanceState.Stopped ? state : VmInstanceState.Unknown);
+                    }
+
+                    syncPoints.put(hostUuid, new SyncPoint(ret.getEpoch(), ret.getGeneration(), last.deltaNum + 1));
+                    reportVmStateChanges(hostUuid, states);
+                } else if (ret.isSuccess()) {
                     Map<String, VmInstanceState> states = new HashMap<String, VmInstanceState>(ret.getStates().size());
                     for (Map.Entry<String, String> e : ret.getStates().entrySet()) {
                         VmInstanceState state = KvmVmState.valueOf(e.getValue()).toVmInstanceState();
@@ -44,7 +83,10 @@ public class KvmVmSyncPingTask extends VmTracer implements HostPingTaskExtension
                         }
                     }
 
-                    reportVmState(host.getInventory().getUuid(), states);
+                    if (deltaEnabled && ret.getEpoch() != null) {
+                        syncPoints.put(hostUuid, new SyncPoint(ret.getEpoch(), ret.getGeneration(), 0));
+                    }
+                    reportVmState(hostUuid, states);
                 } else {
                     logger.warn(String.format("unable to do vm sync on host[uuid:%s, ip:%s] because %s", host.getInventory().getUuid(), host.getInventory().getManagementIp(), ret.getError()));
                 }
@@ -61,7 +103,7 @@ public class KvmVmSyncPingTask extends VmTracer implements HostPingTaskExtension
     @Override
     public void executeTaskAlongWithPingTask(final HostInventory inv) {
         KVMHostContext host = factory.getHostContext(inv.getUuid());
-        syncVm(host);
+        syncVm(host, false);
 
     }
 
@@ -72,12 +114,12 @@ public class KvmVmSyncPingTask extends VmTracer implements HostPingTaskExtension
 
     @Override
     public void kvmHostConnected(KVMHostConnectedContext context) throws KVMHostConnectException {
-        syncVm(context);
+        syncVm(context, true);
     }
 
     @Override
     public void connectionReestablished(HostInventory inv) throws HostException {
-        syncVm(factory.getHostContext(inv.getUuid()));
+        syncVm(factory.getHostContext(inv.getUuid()), true);
     }
 
     @Override
@@ -7,6 +7,7 @@ import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.job.Job;
 import org.zstack.core.job.JobContext;
+import org.zstack.core.job.JobQueueFacade;
 import org.zstack.header.core.Completion;
 import org.zstack.header.core.ReturnValueCompletion;
 import org.zstack.header.errorcode.ErrorCode;
@@ -19,6 +20,8 @@ import org.zstack.header.storage.primary.ImageCacheVO;
 import org.zstack.header.storage.primary.ImageCacheVO_;
 import org.zstack.header.storage.primary.PrimaryStorageInventory;
 import org.zstack.header.vm.VmInstanceSpec.ImageSpec;
+import org.zstack.storage.primary.ImageCacheRegistry;
+import org.zstack.storage.primary.ImageCacheRegistry.ImageCacheLoader;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
@@ -39,6 +42,34 @@ public class NfsDownloadImageToCacheJob implements Job {
     private DatabaseFacade dbf;
     @Autowired
     private NfsPrimaryStorageManager nfsMgr;
+    @Autowired
+    private JobQueueFacade jobf;
+    @Autowired
+    private ImageCacheRegistry imageCacheRegistry;
+
+    /**
+     * queues this job in the job queue of the primary storage. When imageCache.registry is enabled, the job is
+     * only queued if the image cache is neither in ImageCacheRegistry nor being downloaded for another request.
+     * Only call it on the management node owning the primary storage, see ImageCacheRegistry
+     */
+    public void execute(final ReturnValueCompletion<ImageCacheInventory> completion) {
+        if (!ImageCacheRegistry.isEnabled()) {
+            queue(completion);
+            return;
+        }
+
+        imageCacheRegistry.get(primaryStorage.getUuid(), image.getInventory().getUuid(), new ImageCacheLoader() {
+            @Override
+            public void load(ReturnValueCompletion<ImageCacheInventory> completion) {
+                queue(completion);
+            }
+        }, completion);
+    }
+
+    private void queue(ReturnValueCompletion<ImageCacheInventory> completion) {
+        jobf.execute(NfsPrimaryStorageKvmHelper.makeDownloadImageJobName(image.getInventory(), primaryStorage),
+                NfsPrimaryStorageKvmHelper.makeJobOwnerName(primaryStorage), this, completion, ImageCacheInventory.class);
+    }
 
     @Override
     public void run(final ReturnValueCompletion<Object> completion) {
@@ -593,21 +593,18 @@ public class NfsPrimaryStorage extends PrimaryStorageBase {
                             NfsDownloadImageToCacheJob job = new NfsDownloadImageToCacheJob();
                             job.setImage(ispec);
                             job.setPrimaryStorage(primaryStorage);
+                            job.execute(new ReturnValueCompletion<ImageCacheInventory>(trigger) {
+                                @Override
+                                public void success(ImageCacheInventory returnValue) {
+                                    imageCache = returnValue;
+                                    trigger.next();
+                                }
 
-                            jobf.execute(NfsPrimaryStorageKvmHelper.makeDownloadImageJobName(image, primaryStorage),
-                                    NfsPrimaryStorageKvmHelper.makeJobOwnerName(primaryStorage), job,
-                                    new ReturnValueCompletion<ImageCacheInventory>(trigger) {
-                                        @Override
-                                        public void success(ImageCacheInventory returnValue) {
-                                            imageCache = returnValue;
-                                            trigger.next();
-                                        }
-
-                                        @Override
-                                        public void fail(ErrorCode errorCode) {
-                                            trigger.fail(errorCode);
-                                        }
-                                    }, ImageCacheInventory.class);
+                                @Override
+                                public void fail(ErrorCode errorCode) {
+                                    trigger.fail(errorCode);
+                                }
+                            });
                         }
                     });
 
@@ -628,6 +625,8 @@ public class NfsPrimaryStorage extends PrimaryStorageBase {
 
                                 @Override
                                 public void fail(ErrorCode errorCode) {
+                                    // the image cache may be gone, check it next time
+                                    imageCacheRegistry.evict(self.getUuid(), image.getUuid());
                                     trigger.fail(errorCode);
                                 }
                             });
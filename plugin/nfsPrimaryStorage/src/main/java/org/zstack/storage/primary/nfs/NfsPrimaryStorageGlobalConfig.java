@@ -12,4 +12,8 @@ public class NfsPrimaryStorageGlobalConfig {
 
     @GlobalConfigValidation
     public static GlobalConfig MOUNT_BASE = new GlobalConfig(CATEGORY, "mount.base");
+    @GlobalConfigValidation
+    public static GlobalConfig SNAPSHOT_DOWNLOAD_PIPELINE = new GlobalConfig(CATEGORY, "snapshotDownload.pipeline");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig SNAPSHOT_DOWNLOAD_PARALLELISM = new GlobalConfig(CATEGORY, "snapshotDownload.parallelism");
 }
@@ -74,6 +74,7 @@ public class NfsPrimaryStorageKVMBackend implements NfsPrimaryStorageBackend,
     public static final String MOVE_BITS_PATH = "/nfsprimarystorage/movebits";
     public static final String MERGE_SNAPSHOT_PATH = "/nfsprimarystorage/mergesnapshot";
     public static final String REBASE_MERGE_SNAPSHOT_PATH = "/nfsprimarystorage/rebaseandmergesnapshot";
+    public static final String REBASE_SNAPSHOT_PATH = "/nfsprimarystorage/rebasesnapshot";
     public static final String REVERT_VOLUME_FROM_SNAPSHOT_PATH = "/nfsprimarystorage/revertvolumefromsnapshot";
     public static final String CREATE_TEMPLATE_FROM_VOLUME_PATH = "/nfsprimarystorage/sftp/createtemplatefromvolume";
     public static final String OFFLINE_SNAPSHOT_MERGE = "/nfsprimarystorage/offlinesnapshotmerge";
@@ -587,6 +588,8 @@ public class NfsPrimaryStorageKVMBackend implements NfsPrimaryStorageBackend,
                     completion.success(result);
                 }
             });
+        } else if (NfsPrimaryStorageGlobalConfig.SNAPSHOT_DOWNLOAD_PIPELINE.value(Boolean.class)) {
+            new SnapshotChainPipeline(pinv, snapshots, bitsName, bitsUuid, completion).start();
         } else {
             downloadAndCreateBitsFromVolumeSnapshots(pinv, snapshots, bitsName, bitsUuid, completion);
         }
@@ -705,6 +708,270 @@ public class NfsPrimaryStorageKVMBackend implements NfsPrimaryStorageBackend,
         }
     }
 
+    /**
+     * downloads snapshots of a chain concurrently, the base first, and rebases each snapshot onto its parent as soon
+     * as both of them have arrived, so the final merge only flattens the latest snapshot.
+     *
+     * a snapshot is downloaded to a temporary path and moved to its install path when the download completes, so
+     * a snapshot existing in its install path is complete. After a management node restart, creating bits from the
+     * same chain again only downloads snapshots not existing yet.
+     */
+    private class SnapshotChainPipeline {
+        final PrimaryStorageInventory pinv;
+        final List<SnapshotDownloadInfo> snapshots;
+        final String bitsName;
+        final String bitsUuid;
+        final ReturnValueCompletion<CreateBitsFromSnapshotResult> completion;
+        final HostInventory host;
+        final int parallelism;
+        final String workspaceInstallPath;
+        final String[] installPaths;
+        final boolean[] arrived;
+        final Map<String, Bucket> mediatorMap = new HashMap<String, Bucket>();
+
+        int nextToDownload;
+        int downloading;
+        // snapshots before this index have been rebased onto their parents
+        int nextToRebase = 1;
+        boolean rebasing;
+        boolean merging;
+        boolean failed;
+
+        SnapshotChainPipeline(PrimaryStorageInventory pinv, List<SnapshotDownloadInfo> snapshots, String bitsName, String bitsUuid,
+                              ReturnValueCompletion<CreateBitsFromSnapshotResult> completion) {
+            this.pinv = pinv;
+            this.snapshots = snapshots;
+            this.bitsName = bitsName;
+            this.bitsUuid = bitsUuid;
+            this.completion = completion;
+            host = nfsFactory.getConnectedHostForOperation(pinv);
+            parallelism = NfsPrimaryStorageGlobalConfig.SNAPSHOT_DOWNLOAD_PARALLELISM.value(Integer.class);
+            workspaceInstallPath = NfsPrimaryStorageKvmHelper.makeSnapshotWorkspacePath(pinv, bitsUuid);
+            installPaths = new String[snapshots.size()];
+            arrived = new boolean[snapshots.size()];
+            for (int i=0; i<snapshots.size(); i++) {
+                installPaths[i] = NfsPrimaryStorageKvmHelper.makeSnapshotWorkspacePath(pinv, snapshots.get(i).getSnapshot().getUuid());
+            }
+        }
+
+        void start() {
+            schedule();
+        }
+
+        private synchronized Bucket findMediatorAndBackupStorage(SnapshotDownloadInfo info) {
+            Bucket ret = mediatorMap.get(info.getBackupStorageUuid());
+            if (ret == null) {
+                BackupStorageVO bsvo = dbf.findByUuid(info.getBackupStorageUuid(), BackupStorageVO.class);
+                BackupStorageInventory bsinv = BackupStorageInventory.valueOf(bsvo);
+
+                NfsPrimaryToBackupStorageMediator mediator = nfsFactory.getPrimaryToBackupStorageMediator(
+                        BackupStorageType.valueOf(bsinv.getType()),
+                        nfsMgr.findHypervisorTypeByImageFormatAndPrimaryStorageUuid(info.getSnapshot().getFormat(), pinv.getUuid())
+                );
+
+                ret = Bucket.newBucket(mediator, bsinv);
+                mediatorMap.put(info.getBackupStorageUuid(), ret);
+            }
+
+            return ret;
+        }
+
+        private void schedule() {
+            List<Integer> toDownload = new ArrayList<Integer>();
+            int toRebase = -1;
+            boolean toMerge = false;
+            synchronized (this) {
+                if (failed) {
+                    return;
+                }
+
+                while (downloading < parallelism && nextToDownload < installPaths.length) {
+                    toDownload.add(nextToDownload ++);
+                    downloading ++;
+                }
+
+                if (!rebasing && nextToRebase < installPaths.length && arrived[nextToRebase - 1] && arrived[nextToRebase]) {
+                    rebasing = true;
+                    toRebase = nextToRebase;
+                }
+
+                if (!merging && !rebasing && nextToRebase >= installPaths.length && arrived[installPaths.length - 1]) {
+                    merging = true;
+                    toMerge = true;
+                }
+            }
+
+            for (int i : toDownload) {
+                download(i);
+            }
+            if (toRebase != -1) {
+                rebase(toRebase);
+            }
+            if (toMerge) {
+                merge();
+            }
+        }
+
+        private void arrive(int index) {
+            synchronized (this) {
+                downloading --;
+                arrived[index] = true;
+                if (failed) {
+                    delete(pinv, installPaths[index], new NopeCompletion());
+                    return;
+                }
+            }
+
+            schedule();
+        }
+
+        private void download(final int index) {
+            final SnapshotDownloadInfo info = snapshots.get(index);
+            final String installPath = installPaths[index];
+            checkIsBitsExisting(pinv, installPath, new ReturnValueCompletion<Boolean>(completion) {
+                @Override
+                public void success(Boolean existing) {
+                    if (existing) {
+                        logger.debug(String.format("volume snapshot[uuid:%s] has been downloaded to nfs primary storage[uuid:%s, path:%s], skip downloading it",
+                                info.getSnapshot().getUuid(), pinv.getUuid(), installPath));
+                        arrive(index);
+                        return;
+                    }
+
+                    Bucket bucket = findMediatorAndBackupStorage(info);
+                    NfsPrimaryToBackupStorageMediator mediator = bucket.get(0);
+                    final BackupStorageInventory bsinv = bucket.get(1);
+                    final String tmpPath = String.format("%s.download", installPath);
+                    mediator.downloadBits(pinv, bsinv, info.getBackupStorageInstallPath(), tmpPath, new Completion(completion) {
+                        @Override
+                        public void success() {
+                            moveBits(pinv, tmpPath, installPath, new Completion(completion) {
+                                @Override
+                                public void success() {
+                                    logger.debug(String.format("download volume snapshot[uuid:%s, name:%s] from backup storage[uuid:%s, %s] to nfs primary storage[uuid:%s, path:%s]",
+                                            info.getSnapshot().getUuid(), info.getSnapshot().getName(), bsinv.getUuid(), info.getBackupStorageInstallPath(), pinv.getUuid(), installPath));
+                                    arrive(index);
+                                }
+
+                                @Override
+                                public void fail(ErrorCode errorCode) {
+                                    delete(pinv, tmpPath, new NopeCompletion());
+                                    SnapshotChainPipeline.this.fail(errorCode);
+                                }
+                            });
+                        }
+
+                        @Override
+                        public void fail(ErrorCode errorCode) {
+                            delete(pinv, tmpPath, new NopeCompletion());
+                            SnapshotChainPipeline.this.fail(errorCode);
+                        }
+                    });
+                }
+
+                @Override
+                public void fail(ErrorCode errorCode) {
+                    SnapshotChainPipeline.this.fail(errorCode);
+                }
+            });
+        }
+
+        private void rebase(final int index) {
+            RebaseSnapshotCmd cmd = new RebaseSnapshotCmd();
+            cmd.setUuid(pinv.getUuid());
+            cmd.setSnapshotInstallPath(installPaths[index]);
+            cmd.setBaseInstallPath(installPaths[index - 1]);
+
+            KVMHostAsyncHttpCallMsg msg = new KVMHostAsyncHttpCallMsg();
+            msg.setCommand(cmd);
+            msg.setPath(REBASE_SNAPSHOT_PATH);
+            msg.setHostUuid(host.getUuid());
+            bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, host.getUuid());
+            bus.send(msg, new CloudBusCallBack(completion) {
+                @Override
+                public void run(MessageReply reply) {
+                    if (!reply.isSuccess()) {
+                        fail(reply.getError());
+                        return;
+                    }
+
+                    RebaseSnapshotRsp rsp = ((KVMHostAsyncHttpCallReply) reply).toResponse(RebaseSnapshotRsp.class);
+                    if (!rsp.isSuccess()) {
+                        fail(errf.stringToOperationError(
+                                String.format("failed to rebase snapshot[%s] onto [%s] on nfs primary storage[uuid:%s], %s",
+                                        installPaths[index], installPaths[index - 1], pinv.getUuid(), rsp.getError())
+                        ));
+                        return;
+                    }
+
+                    synchronized (SnapshotChainPipeline.this) {
+                        rebasing = false;
+                        nextToRebase ++;
+                    }
+                    schedule();
+                }
+            });
+        }
+
+        private void merge() {
+            MergeSnapshotCmd cmd = new MergeSnapshotCmd();
+            cmd.setUuid(pinv.getUuid());
+            cmd.setSnapshotInstallPath(installPaths[installPaths.length - 1]);
+            cmd.setWorkspaceInstallPath(workspaceInstallPath);
+
+            KVMHostAsyncHttpCallMsg msg = new KVMHostAsyncHttpCallMsg();
+            msg.setCommand(cmd);
+            msg.setPath(MERGE_SNAPSHOT_PATH);
+            msg.setHostUuid(host.getUuid());
+            bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, host.getUuid());
+            bus.send(msg, new CloudBusCallBack(completion) {
+                @Override
+                public void run(MessageReply reply) {
+                    if (!reply.isSuccess()) {
+                        fail(reply.getError());
+                        return;
+                    }
+
+                    MergeSnapshotResponse rsp = ((KVMHostAsyncHttpCallReply) reply).toResponse(MergeSnapshotResponse.class);
+                    if (!rsp.isSuccess()) {
+                        fail(errf.stringToOperationError(
+                                String.format("failed to merge snapshots for %s[uuid:%s] on nfs primary storage[uuid:%s], %s",
+                                        bitsName, bitsUuid, pinv.getUuid(), rsp.getError())
+                        ));
+                        return;
+                    }
+
+                    nfsMgr.reportCapacityIfNeeded(pinv.getUuid(), rsp);
+                    for (String installPath : installPaths) {
+                        delete(pinv, installPath, new NopeCompletion());
+                    }
+
+                    CreateBitsFromSnapshotResult result = new CreateBitsFromSnapshotResult();
+                    result.setSize(rsp.getSize());
+                    result.setInstallPath(workspaceInstallPath);
+                    completion.success(result);
+                }
+            });
+        }
+
+        private void fail(ErrorCode err) {
+            synchronized (this) {
+                if (failed) {
+                    return;
+                }
+                failed = true;
+
+                for (int i=0; i<installPaths.length; i++) {
+                    if (arrived[i]) {
+                        delete(pinv, installPaths[i], new NopeCompletion());
+                    }
+                }
+            }
+
+            completion.fail(err);
+        }
+    }
+
     private void downloadAndCreateBitsFromVolumeSnapshots(final PrimaryStorageInventory pinv,
                                                           final List<SnapshotDownloadInfo> snapshots,
                                                           final String bitsName,
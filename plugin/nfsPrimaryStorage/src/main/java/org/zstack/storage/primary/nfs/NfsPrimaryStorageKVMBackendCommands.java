@@ -405,6 +405,30 @@ public class NfsPrimaryStorageKVMBackendCommands {
         }
     }
 
+    public static class RebaseSnapshotCmd extends NfsPrimaryStorageAgentCommand {
+        private String snapshotInstallPath;
+        private String baseInstallPath;
+
+        public String getSnapshotInstallPath() {
+            return snapshotInstallPath;
+        }
+
+        public void setSnapshotInstallPath(String snapshotInstallPath) {
+            this.snapshotInstallPath = snapshotInstallPath;
+        }
+
+        public String getBaseInstallPath() {
+            return baseInstallPath;
+        }
+
+        public void setBaseInstallPath(String baseInstallPath) {
+            this.baseInstallPath = baseInstallPath;
+        }
+    }
+
+    public static class RebaseSnapshotRsp extends NfsPrimaryStorageAgentResponse {
+    }
+
     public static class RebaseAndMergeSnapshotsCmd extends NfsPrimaryStorageAgentCommand {
         private List<String> snapshotInstallPaths;
         private String workspaceInstallPath;
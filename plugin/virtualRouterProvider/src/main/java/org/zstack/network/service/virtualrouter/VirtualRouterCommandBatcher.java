@@ -0,0 +1,195 @@
+package org.zstack.network.service.virtualrouter;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.core.Completion;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.vm.VmInstanceConstant;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.BatchApplyCmd;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.BatchApplyRsp;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.DhcpInfo;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.DnsInfo;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SNATInfo;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * gathers DHCP entries, DNS and SNAT applied to the same virtual router within a short window, or until
+ * the batch is full, and sends them in one BatchApplyCmd instead of one http call per NIC.
+ *
+ * the result of the batched command is fanned out to the completion of every entry in the batch, so a
+ * failure fails all VMs whose entries were in it, just as if each of them had sent its own command.
+ */
+public class VirtualRouterCommandBatcher {
+    private static final CLogger logger = Utils.getLogger(VirtualRouterCommandBatcher.class);
+
+    @Autowired
+    private CloudBus bus;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private ErrorFacade errf;
+
+    private final Map<String, Batch> batches = new HashMap<String, Batch>();
+
+    private class Batch {
+        final VirtualRouterVmInventory vr;
+        final List<DhcpInfo> dhcpEntries = new ArrayList<DhcpInfo>();
+        final Set<String> dns = new LinkedHashSet<String>();
+        final List<SNATInfo> snats = new ArrayList<SNATInfo>();
+        final List<Completion> completions = new ArrayList<Completion>();
+        int size;
+
+        Batch(VirtualRouterVmInventory vr) {
+            this.vr = vr;
+        }
+    }
+
+    public boolean isEnabled() {
+        return VirtualRouterGlobalConfig.COMMAND_BATCH_ENABLE.value(Boolean.class);
+    }
+
+    public void addDhcpEntry(VirtualRouterVmInventory vr, DhcpInfo info, Completion completion) {
+        Batch full;
+        synchronized (batches) {
+            Batch b = getBatch(vr);
+            b.dhcpEntries.add(info);
+            full = add(b, completion);
+        }
+
+        flushIfFull(full);
+    }
+
+    public void setDns(VirtualRouterVmInventory vr, List<DnsInfo> dns, Completion completion) {
+        Batch full;
+        synchronized (batches) {
+            Batch b = getBatch(vr);
+            for (DnsInfo info : dns) {
+                b.dns.add(info.getDnsAddress());
+            }
+            full = add(b, completion);
+        }
+
+        flushIfFull(full);
+    }
+
+    public void setSnat(VirtualRouterVmInventory vr, SNATInfo info, Completion completion) {
+        Batch full;
+        synchronized (batches) {
+            Batch b = getBatch(vr);
+            b.snats.add(info);
+            full = add(b, completion);
+        }
+
+        flushIfFull(full);
+    }
+
+    private Batch getBatch(VirtualRouterVmInventory vr) {
+        Batch b = batches.get(vr.getUuid());
+        if (b == null) {
+            final Batch nb = new Batch(vr);
+            batches.put(vr.getUuid(), nb);
+            thdf.submitTimeoutTask(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (batches) {
+                        if (batches.get(nb.vr.getUuid()) != nb) {
+                            // already sent because it was full
+                            return;
+                        }
+                        batches.remove(nb.vr.getUuid());
+                    }
+
+                    send(nb);
+                }
+            }, TimeUnit.MILLISECONDS, VirtualRouterGlobalConfig.COMMAND_BATCH_WINDOW.value(Long.class));
+            b = nb;
+        }
+
+        return b;
+    }
+
+    private Batch add(Batch b, Completion completion) {
+        b.completions.add(completion);
+        b.size ++;
+        if (b.size >= VirtualRouterGlobalConfig.COMMAND_BATCH_SIZE.value(Integer.class)) {
+            batches.remove(b.vr.getUuid());
+            return b;
+        }
+
+        return null;
+    }
+
+    private void flushIfFull(Batch b) {
+        if (b != null) {
+            send(b);
+        }
+    }
+
+    private void send(final Batch b) {
+        final VirtualRouterVmInventory vr = b.vr;
+        BatchApplyCmd cmd = new BatchApplyCmd();
+        cmd.setDhcpEntries(b.dhcpEntries);
+        cmd.setSnats(b.snats);
+        List<DnsInfo> dns = new ArrayList<DnsInfo>(b.dns.size());
+        for (String d : b.dns) {
+            DnsInfo info = new DnsInfo();
+            info.setDnsAddress(d);
+            dns.add(info);
+        }
+        cmd.setDns(dns);
+
+        VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
+        msg.setVmInstanceUuid(vr.getUuid());
+        msg.setPath(VirtualRouterConstant.VR_BATCH_APPLY_PATH);
+        msg.setCommand(cmd);
+        msg.setCheckStatus(true);
+        bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
+        bus.send(msg, new CloudBusCallBack() {
+            @Override
+            public void run(MessageReply reply) {
+                if (!reply.isSuccess()) {
+                    fail(b, reply.getError());
+                    return;
+                }
+
+                VirtualRouterAsyncHttpCallReply re = reply.castReply();
+                BatchApplyRsp rsp = re.toResponse(BatchApplyRsp.class);
+                if (!rsp.isSuccess()) {
+                    String err = String.format("virtual router[uuid:%s, ip:%s] failed to apply %s dhcp entries, %s dns and %s snat in a batch, because %s",
+                            vr.getUuid(), vr.getManagementNic().getIp(), b.dhcpEntries.size(), b.dns.size(), b.snats.size(), rsp.getError());
+                    logger.warn(err);
+                    fail(b, errf.stringToOperationError(err));
+                    return;
+                }
+
+                logger.debug(String.format("successfully applied %s dhcp entries, %s dns and %s snat to virtual router vm[uuid:%s, ip:%s] in a batch",
+                        b.dhcpEntries.size(), b.dns.size(), b.snats.size(), vr.getUuid(), vr.getManagementNic().getIp()));
+                for (Completion c : b.completions) {
+                    try {
+                        c.success();
+                    } catch (Throwable t) {
+                        logger.warn(String.format("unhandled exception when calling completion of batched command to virtual router[uuid:%s]", vr.getUuid()), t);
+                    }
+                }
+            }
+        });
+    }
+
+    private void fail(Batch b, ErrorCode err) {
+        for (Completion c : b.completions) {
+            try {
+                c.fail(err);
+            } catch (Throwable t) {
+                logger.warn(String.format("unhandled exception when calling completion of batched command to virtual router[uuid:%s]", b.vr.getUuid()), t);
+            }
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.zstack.utils.gson.JSONObjectUtil;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class VirtualRouterCommands {
 	public static class AgentCommand {
@@ -508,4 +509,178 @@ public class VirtualRouterCommands {
 
     public static class SyncEipRsp extends AgentResponse {
     }
+
+    public static class BatchApplyCmd extends AgentCommand {
+        private List<DhcpInfo> dhcpEntries;
+        private List<DnsInfo> dns;
+        private List<SNATInfo> snats;
+
+        public List<DhcpInfo> getDhcpEntries() {
+            return dhcpEntries;
+        }
+
+        public void setDhcpEntries(List<DhcpInfo> dhcpEntries) {
+            this.dhcpEntries = dhcpEntries;
+        }
+
+        public List<DnsInfo> getDns() {
+            return dns;
+        }
+
+        public void setDns(List<DnsInfo> dns) {
+            this.dns = dns;
+        }
+
+        public List<SNATInfo> getSnats() {
+            return snats;
+        }
+
+        public void setSnats(List<SNATInfo> snats) {
+            this.snats = snats;
+        }
+    }
+
+    public static class BatchApplyRsp extends AgentResponse {
+    }
+
+    public static class RuleSetDigest {
+        private long version;
+        private String digest;
+        private Map<String, String> rules;
+
+        public long getVersion() {
+            return version;
+        }
+
+        public void setVersion(long version) {
+            this.version = version;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public void setDigest(String digest) {
+            this.digest = digest;
+        }
+
+        public Map<String, String> getRules() {
+            return rules;
+        }
+
+        public void setRules(Map<String, String> rules) {
+            this.rules = rules;
+        }
+    }
+
+    public static class GetRuleDigestCmd extends AgentCommand {
+        private Map<String, String> digests;
+
+        public Map<String, String> getDigests() {
+            return digests;
+        }
+
+        public void setDigests(Map<String, String> digests) {
+            this.digests = digests;
+        }
+    }
+
+    public static class GetRuleDigestRsp extends AgentResponse {
+        private Map<String, RuleSetDigest> ruleSets;
+
+        public Map<String, RuleSetDigest> getRuleSets() {
+            return ruleSets;
+        }
+
+        public void setRuleSets(Map<String, RuleSetDigest> ruleSets) {
+            this.ruleSets = ruleSets;
+        }
+    }
+
+    public static class SyncRulesCmd extends AgentCommand {
+        private Map<String, RuleSetDigest> ruleSets;
+        private Map<String, VipTO> addedVips;
+        private List<String> removedVips;
+        private Map<String, SNATInfo> addedSnats;
+        private List<String> removedSnats;
+        private Map<String, PortForwardingRuleTO> addedPortForwardingRules;
+        private List<String> removedPortForwardingRules;
+        private Map<String, EipTO> addedEips;
+        private List<String> removedEips;
+
+        public Map<String, RuleSetDigest> getRuleSets() {
+            return ruleSets;
+        }
+
+        public void setRuleSets(Map<String, RuleSetDigest> ruleSets) {
+            this.ruleSets = ruleSets;
+        }
+
+        public Map<String, VipTO> getAddedVips() {
+            return addedVips;
+        }
+
+        public void setAddedVips(Map<String, VipTO> addedVips) {
+            this.addedVips = addedVips;
+        }
+
+        public List<String> getRemovedVips() {
+            return removedVips;
+        }
+
+        public void setRemovedVips(List<String> removedVips) {
+            this.removedVips = removedVips;
+        }
+
+        public Map<String, SNATInfo> getAddedSnats() {
+            return addedSnats;
+        }
+
+        public void setAddedSnats(Map<String, SNATInfo> addedSnats) {
+            this.addedSnats = addedSnats;
+        }
+
+        public List<String> getRemovedSnats() {
+            return removedSnats;
+        }
+
+        public void setRemovedSnats(List<String> removedSnats) {
+            this.removedSnats = removedSnats;
+        }
+
+        public Map<String, PortForwardingRuleTO> getAddedPortForwardingRules() {
+            return addedPortForwardingRules;
+        }
+
+        public void setAddedPortForwardingRules(Map<String, PortForwardingRuleTO> addedPortForwardingRules) {
+            this.addedPortForwardingRules = addedPortForwardingRules;
+        }
+
+        public List<String> getRemovedPortForwardingRules() {
+            return removedPortForwardingRules;
+        }
+
+        public void setRemovedPortForwardingRules(List<String> removedPortForwardingRules) {
+            this.removedPortForwardingRules = removedPortForwardingRules;
+        }
+
+        public Map<String, EipTO> getAddedEips() {
+            return addedEips;
+        }
+
+        public void setAddedEips(Map<String, EipTO> addedEips) {
+            this.addedEips = addedEips;
+        }
+
+        public List<String> getRemovedEips() {
+            return removedEips;
+        }
+
+        public void setRemovedEips(List<String> removedEips) {
+            this.removedEips = removedEips;
+        }
+    }
+
+    public static class SyncRulesRsp extends AgentResponse {
+    }
 }
@@ -28,6 +28,9 @@ public interface VirtualRouterConstant {
 	public static final String VR_REMOVE_SNAT_PATH = "/removesnat";
 	public static final String VR_REMOVE_DNS_PATH = "/removedns";
 	public static final String VR_SET_DNS_PATH = "/setdns";
+    public static final String VR_BATCH_APPLY_PATH = "/batchapply";
+    public static final String VR_GET_RULE_DIGEST_PATH = "/getruledigest";
+    public static final String VR_SYNC_RULES_PATH = "/syncrules";
 	public static final String VR_CREATE_PORT_FORWARDING = "/createportforwarding";
 	public static final String VR_REVOKE_PORT_FORWARDING = "/revokeportforwarding";
 	public static final String VR_SYNC_PORT_FORWARDING = "/syncportforwarding";
@@ -16,4 +16,12 @@ public class VirtualRouterGlobalConfig {
     public static GlobalConfig COMMANDS_PARALELLISM_DEGREE = new GlobalConfig(CATEGORY, "command.parallelismDegree");
     @GlobalConfigValidation
     public static GlobalConfig RESTART_DNSMASQ_COUNT = new GlobalConfig(CATEGORY, "dnsmasq.restartAfterNumberOfSIGUSER1");
+    @GlobalConfigValidation
+    public static GlobalConfig COMMAND_BATCH_ENABLE = new GlobalConfig(CATEGORY, "command.batch.enable");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig COMMAND_BATCH_WINDOW = new GlobalConfig(CATEGORY, "command.batch.window");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig COMMAND_BATCH_SIZE = new GlobalConfig(CATEGORY, "command.batch.size");
+    @GlobalConfigValidation
+    public static GlobalConfig DIFFERENTIAL_RULE_SYNC = new GlobalConfig(CATEGORY, "ruleSync.differential");
 }
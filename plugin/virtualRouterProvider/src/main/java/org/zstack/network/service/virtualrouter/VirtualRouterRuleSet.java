@@ -0,0 +1,181 @@
+package org.zstack.network.service.virtualrouter;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.RuleSetDigest;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SNATInfo;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SyncRulesCmd;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.VipTO;
+import org.zstack.network.service.virtualrouter.eip.EipTO;
+import org.zstack.network.service.virtualrouter.portforwarding.PortForwardingRuleTO;
+import org.zstack.utils.gson.JSONObjectUtil;
+
+import java.util.*;
+
+/**
+ * rules a virtual router should have, grouped by category and keyed by a stable identity of each rule.
+ *
+ * every rule is hashed by the md5 of its json, and every category is hashed by the md5 of its sorted
+ * key/hash pairs. The virtual router agent stores the keys, hashes, digest and version of each category it
+ * receives, so on start or reconnect the sync flows only need to compare digests, and for the categories
+ * that differ, send the added and removed rules in one SyncRulesCmd.
+ *
+ * the sync flows put their rules in the rule set carried in the flow data instead of sending them,
+ * VirtualRouterSyncRulesFlow sends the differences at the end of the flow chain.
+ */
+public class VirtualRouterRuleSet {
+    public static final String VIP = "vip";
+    public static final String SNAT = "snat";
+    public static final String PORT_FORWARDING = "portForwarding";
+    public static final String EIP = "eip";
+
+    private final Map<String, TreeMap<String, Object>> rules = new LinkedHashMap<String, TreeMap<String, Object>>();
+    private final Map<String, TreeMap<String, String>> hashes = new LinkedHashMap<String, TreeMap<String, String>>();
+
+    public static boolean isEnabled() {
+        return VirtualRouterGlobalConfig.DIFFERENTIAL_RULE_SYNC.value(Boolean.class);
+    }
+
+    public static VirtualRouterRuleSet fromFlowData(Map data) {
+        VirtualRouterRuleSet ruleSet = (VirtualRouterRuleSet) data.get(VirtualRouterRuleSet.class.getName());
+        if (ruleSet == null) {
+            ruleSet = new VirtualRouterRuleSet();
+            data.put(VirtualRouterRuleSet.class.getName(), ruleSet);
+        }
+        return ruleSet;
+    }
+
+    public static String hash(Object rule) {
+        return DigestUtils.md5Hex(JSONObjectUtil.toJsonString(rule));
+    }
+
+    private static String digest(SortedMap<String, String> hashes) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : hashes.entrySet()) {
+            sb.append(e.getKey()).append("=").append(e.getValue()).append("\n");
+        }
+        return DigestUtils.md5Hex(sb.toString());
+    }
+
+    /**
+     * a declared category is synced even it has no rule, so rules removed while the virtual router
+     * was disconnected are removed from it as well
+     */
+    public void declare(String category) {
+        if (!rules.containsKey(category)) {
+            rules.put(category, new TreeMap<String, Object>());
+            hashes.put(category, new TreeMap<String, String>());
+        }
+    }
+
+    private void put(String category, String key, Object rule) {
+        declare(category);
+        rules.get(category).put(key, rule);
+        hashes.get(category).put(key, hash(rule));
+    }
+
+    public void addVip(VipTO vip) {
+        put(VIP, vip.getIp(), vip);
+    }
+
+    public void addSnat(SNATInfo snat) {
+        put(SNAT, snat.getPrivateNicMac(), snat);
+    }
+
+    public void addPortForwardingRule(String ruleUuid, PortForwardingRuleTO rule) {
+        put(PORT_FORWARDING, ruleUuid, rule);
+    }
+
+    public void addEip(EipTO eip) {
+        put(EIP, eip.getVipIp(), eip);
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    public int size(String category) {
+        Map<String, Object> r = rules.get(category);
+        return r == null ? 0 : r.size();
+    }
+
+    public Map<String, String> getDigests() {
+        Map<String, String> ret = new HashMap<String, String>();
+        for (Map.Entry<String, TreeMap<String, String>> e : hashes.entrySet()) {
+            ret.put(e.getKey(), digest(e.getValue()));
+        }
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Map<String, T> added(String category, Collection<String> keys) {
+        Map<String, T> ret = new HashMap<String, T>(keys.size());
+        Map<String, Object> r = rules.get(category);
+        for (String key : keys) {
+            ret.put(key, (T) r.get(key));
+        }
+        return ret;
+    }
+
+    /**
+     * @param agentRuleSets rule sets the virtual router agent has, with hashes of rules for categories whose
+     *                      digest differs from ours
+     * @return the command bringing the agent to this rule set, or null if the agent has been up to date
+     */
+    public SyncRulesCmd diff(Map<String, RuleSetDigest> agentRuleSets) {
+        if (agentRuleSets == null) {
+            agentRuleSets = new HashMap<String, RuleSetDigest>();
+        }
+
+        SyncRulesCmd cmd = new SyncRulesCmd();
+        cmd.setRuleSets(new HashMap<String, RuleSetDigest>());
+        for (Map.Entry<String, TreeMap<String, String>> e : hashes.entrySet()) {
+            String category = e.getKey();
+            TreeMap<String, String> ours = e.getValue();
+            String digest = digest(ours);
+
+            RuleSetDigest theirs = agentRuleSets.get(category);
+            if (theirs == null && ours.isEmpty()) {
+                continue;
+            }
+            if (theirs != null && digest.equals(theirs.getDigest())) {
+                continue;
+            }
+
+            Map<String, String> theirRules = theirs == null || theirs.getRules() == null ? new HashMap<String, String>() : theirs.getRules();
+            Map<String, String> addedHashes = new HashMap<String, String>();
+            for (Map.Entry<String, String> r : ours.entrySet()) {
+                if (!r.getValue().equals(theirRules.get(r.getKey()))) {
+                    addedHashes.put(r.getKey(), r.getValue());
+                }
+            }
+            List<String> removed = new ArrayList<String>();
+            for (Map.Entry<String, String> r : theirRules.entrySet()) {
+                if (!r.getValue().equals(ours.get(r.getKey()))) {
+                    removed.add(r.getKey());
+                }
+            }
+
+            RuleSetDigest d = new RuleSetDigest();
+            d.setVersion(theirs == null ? 1 : theirs.getVersion() + 1);
+            d.setDigest(digest);
+            d.setRules(addedHashes);
+            cmd.getRuleSets().put(category, d);
+
+            if (VIP.equals(category)) {
+                cmd.setAddedVips(this.<VipTO>added(category, addedHashes.keySet()));
+                cmd.setRemovedVips(removed);
+            } else if (SNAT.equals(category)) {
+                cmd.setAddedSnats(this.<SNATInfo>added(category, addedHashes.keySet()));
+                cmd.setRemovedSnats(removed);
+            } else if (PORT_FORWARDING.equals(category)) {
+                cmd.setAddedPortForwardingRules(this.<PortForwardingRuleTO>added(category, addedHashes.keySet()));
+                cmd.setRemovedPortForwardingRules(removed);
+            } else if (EIP.equals(category)) {
+                cmd.setAddedEips(this.<EipTO>added(category, addedHashes.keySet()));
+                cmd.setRemovedEips(removed);
+            }
+        }
+
+        return cmd.getRuleSets().isEmpty() ? null : cmd;
+    }
+}
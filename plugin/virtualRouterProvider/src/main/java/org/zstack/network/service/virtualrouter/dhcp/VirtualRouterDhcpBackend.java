@@ -36,6 +36,8 @@ public class VirtualRouterDhcpBackend implements NetworkServiceDhcpBackend {
     private ErrorFacade errf;
     @Autowired
     private CloudBus bus;
+    @Autowired
+    private VirtualRouterCommandBatcher batcher;
 
     @Override
     public NetworkServiceProviderType getProviderType() {
@@ -72,6 +74,21 @@ public class VirtualRouterDhcpBackend implements NetworkServiceDhcpBackend {
                     e.setDns(CollectionDSL.list(vrNic.getIp()));
                 }
 
+                if (batcher.isEnabled()) {
+                    batcher.addDhcpEntry(vr, e, new Completion(completion) {
+                        @Override
+                        public void success() {
+                            applyDhcpEntry(it, spec, completion);
+                        }
+
+                        @Override
+                        public void fail(ErrorCode errorCode) {
+                            completion.fail(errorCode);
+                        }
+                    });
+                    return;
+                }
+
                 VirtualRouterCommands.AddDhcpEntryCmd cmd = new VirtualRouterCommands.AddDhcpEntryCmd();
                 cmd.setDhcpEntries(Arrays.asList(e));
                 VirtualRouterAsyncHttpCallMsg cmsg = new VirtualRouterAsyncHttpCallMsg();
@@ -37,6 +37,8 @@ public class VirtualRouterDnsBackend implements NetworkServiceDnsBackend {
     private CloudBus bus;
     @Autowired
     private ErrorFacade errf;
+    @Autowired
+    private VirtualRouterCommandBatcher batcher;
 
     @Override
     public NetworkServiceProviderType getProviderType() {
@@ -62,6 +64,21 @@ public class VirtualRouterDnsBackend implements NetworkServiceDnsBackend {
                     dns.add(dinfo);
                 }
 
+                if (batcher.isEnabled()) {
+                    batcher.setDns(vr, dns, new Completion(completion) {
+                        @Override
+                        public void success() {
+                            applyDns(it, spec, completion);
+                        }
+
+                        @Override
+                        public void fail(ErrorCode errorCode) {
+                            completion.fail(errorCode);
+                        }
+                    });
+                    return;
+                }
+
                 VirtualRouterCommands.SetDnsCmd cmd = new VirtualRouterCommands.SetDnsCmd();
                 cmd.setDns(dns);
 
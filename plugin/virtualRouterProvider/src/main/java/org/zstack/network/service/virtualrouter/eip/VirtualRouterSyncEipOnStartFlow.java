@@ -138,6 +138,16 @@ public class VirtualRouterSyncEipOnStartFlow implements Flow {
 
         boolean isNewCreated = data.containsKey(Param.IS_NEW_CREATED.toString());
         List<EipTO> eips = findEipOnThisRouter(vr, data, isNewCreated);
+        if (VirtualRouterRuleSet.isEnabled()) {
+            VirtualRouterRuleSet ruleSet = VirtualRouterRuleSet.fromFlowData(data);
+            ruleSet.declare(VirtualRouterRuleSet.EIP);
+            for (EipTO eip : eips) {
+                ruleSet.addEip(eip);
+            }
+            trigger.next();
+            return;
+        }
+
         if (eips.isEmpty()) {
             trigger.next();
             return;
@@ -0,0 +1,117 @@
+package org.zstack.network.service.virtualrouter.lifecycle;
+
+import org.springframework.beans.factory.annotation.Autowire;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.workflow.FlowTrigger;
+import org.zstack.core.workflow.NoRollbackFlow;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.vm.VmInstanceConstant;
+import org.zstack.network.service.virtualrouter.*;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.GetRuleDigestCmd;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.GetRuleDigestRsp;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SyncRulesCmd;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SyncRulesRsp;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.Map;
+
+/**
+ * sends the differences between the rule set collected by the sync flows and the rules on the virtual router,
+ * see VirtualRouterRuleSet
+ */
+@Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
+public class VirtualRouterSyncRulesFlow extends NoRollbackFlow {
+    private static final CLogger logger = Utils.getLogger(VirtualRouterSyncRulesFlow.class);
+
+    @Autowired
+    private CloudBus bus;
+    @Autowired
+    private ErrorFacade errf;
+
+    @Override
+    public void run(final FlowTrigger trigger, Map data) {
+        if (!VirtualRouterRuleSet.isEnabled()) {
+            trigger.next();
+            return;
+        }
+
+        final VirtualRouterRuleSet ruleSet = (VirtualRouterRuleSet) data.get(VirtualRouterRuleSet.class.getName());
+        if (ruleSet == null || ruleSet.isEmpty()) {
+            trigger.next();
+            return;
+        }
+
+        final VirtualRouterVmInventory vr = (VirtualRouterVmInventory) data.get(VirtualRouterConstant.Param.VR.toString());
+        GetRuleDigestCmd cmd = new GetRuleDigestCmd();
+        cmd.setDigests(ruleSet.getDigests());
+
+        VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
+        msg.setPath(VirtualRouterConstant.VR_GET_RULE_DIGEST_PATH);
+        msg.setCommand(cmd);
+        msg.setVmInstanceUuid(vr.getUuid());
+        bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
+        bus.send(msg, new CloudBusCallBack(trigger) {
+            @Override
+            public void run(MessageReply reply) {
+                if (!reply.isSuccess()) {
+                    trigger.fail(reply.getError());
+                    return;
+                }
+
+                VirtualRouterAsyncHttpCallReply re = reply.castReply();
+                GetRuleDigestRsp ret = re.toResponse(GetRuleDigestRsp.class);
+                if (!ret.isSuccess()) {
+                    String err = String.format("failed to get rule digests of virtual router[name: %s, uuid: %s], because %s",
+                            vr.getName(), vr.getUuid(), ret.getError());
+                    logger.warn(err);
+                    trigger.fail(errf.stringToOperationError(err));
+                    return;
+                }
+
+                SyncRulesCmd scmd = ruleSet.diff(ret.getRuleSets());
+                if (scmd == null) {
+                    logger.debug(String.format("rules on virtual router[name: %s, uuid: %s] are up to date", vr.getName(), vr.getUuid()));
+                    trigger.next();
+                    return;
+                }
+
+                syncRules(vr, scmd, trigger);
+            }
+        });
+    }
+
+    private void syncRules(final VirtualRouterVmInventory vr, final SyncRulesCmd cmd, final FlowTrigger trigger) {
+        VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
+        msg.setPath(VirtualRouterConstant.VR_SYNC_RULES_PATH);
+        msg.setCommand(cmd);
+        msg.setVmInstanceUuid(vr.getUuid());
+        bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
+        bus.send(msg, new CloudBusCallBack(trigger) {
+            @Override
+            public void run(MessageReply reply) {
+                if (!reply.isSuccess()) {
+                    trigger.fail(reply.getError());
+                    return;
+                }
+
+                VirtualRouterAsyncHttpCallReply re = reply.castReply();
+                SyncRulesRsp ret = re.toResponse(SyncRulesRsp.class);
+                if (!ret.isSuccess()) {
+                    String err = String.format("failed to sync rules%s on virtual router[name: %s, uuid: %s], because %s",
+                            cmd.getRuleSets().keySet(), vr.getName(), vr.getUuid(), ret.getError());
+                    logger.warn(err);
+                    trigger.fail(errf.stringToOperationError(err));
+                } else {
+                    logger.debug(String.format("successfully synced rules%s on virtual router[name: %s, uuid: %s]",
+                            cmd.getRuleSets().keySet(), vr.getName(), vr.getUuid()));
+                    trigger.next();
+                }
+            }
+        });
+    }
+}
@@ -52,6 +52,8 @@ public class VirtualRouterSnatBackend implements NetworkServiceSnatBackend {
     private CloudBus bus;
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private VirtualRouterCommandBatcher batcher;
 
     @Override
     public NetworkServiceProviderType getProviderType() {
@@ -102,6 +104,21 @@ public class VirtualRouterSnatBackend implements NetworkServiceSnatBackend {
                 info.setPublicIp(vr.getPublicNic().getIp());
                 info.setSnatNetmask(struct.getGuestNetmask());
 
+                if (batcher.isEnabled()) {
+                    batcher.setSnat(vr, info, new Completion(completion) {
+                        @Override
+                        public void success() {
+                            applySnat(it, spec, completion);
+                        }
+
+                        @Override
+                        public void fail(ErrorCode errorCode) {
+                            completion.fail(errorCode);
+                        }
+                    });
+                    return;
+                }
+
                 VirtualRouterCommands.SetSNATCmd cmd = new VirtualRouterCommands.SetSNATCmd();
                 cmd.setSnat(info);
 
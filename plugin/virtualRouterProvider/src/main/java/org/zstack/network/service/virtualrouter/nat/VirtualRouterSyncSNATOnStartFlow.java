@@ -57,6 +57,16 @@ public class VirtualRouterSyncSNATOnStartFlow extends NoRollbackFlow {
             }
         }
 
+        if (VirtualRouterRuleSet.isEnabled()) {
+            VirtualRouterRuleSet ruleSet = VirtualRouterRuleSet.fromFlowData(data);
+            ruleSet.declare(VirtualRouterRuleSet.SNAT);
+            for (SNATInfo info : snatInfo) {
+                ruleSet.addSnat(info);
+            }
+            chain.next();
+            return;
+        }
+
         VirtualRouterCommands.SyncSNATCmd cmd = new VirtualRouterCommands.SyncSNATCmd();
         cmd.setSnats(snatInfo);
         VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
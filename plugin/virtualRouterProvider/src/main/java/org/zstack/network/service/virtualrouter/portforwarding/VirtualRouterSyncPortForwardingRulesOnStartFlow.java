@@ -79,7 +79,7 @@ public class VirtualRouterSyncPortForwardingRulesOnStartFlow implements Flow {
     }
     
     @Transactional(readOnly=true)
-    private Collection<PortForwardingRuleTO> calculateAllRules(Map<String, PortForwardingRuleVO> ruleMap, String vrUuid) {
+    private Map<String, PortForwardingRuleTO> calculateAllRules(Map<String, PortForwardingRuleVO> ruleMap, String vrUuid) {
         String sql = "select rule.uuid, nic.ip, vip.ip from PortForwardingRuleVO rule, VmNicVO nic, VipVO vip where rule.vmNicUuid = nic.uuid and rule.uuid in (:ruleUuids) and vip.uuid = rule.vipUuid";
         TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
         q.setParameter("ruleUuids", ruleMap.keySet());
@@ -116,7 +116,7 @@ public class VirtualRouterSyncPortForwardingRulesOnStartFlow implements Flow {
             to.setPrivateMac(t.get(1, String.class));
         }
         
-        return tos.values();
+        return tos;
     }
     
     @Override
@@ -131,6 +131,10 @@ public class VirtualRouterSyncPortForwardingRulesOnStartFlow implements Flow {
         boolean isNewCreated = data.containsKey(Param.IS_NEW_CREATED.toString());
 
         List<PortForwardingRuleVO> ruleVOs = findRulesForThisRouter(vr, data, isNewCreated);
+        boolean differential = VirtualRouterRuleSet.isEnabled();
+        if (differential) {
+            VirtualRouterRuleSet.fromFlowData(data).declare(VirtualRouterRuleSet.PORT_FORWARDING);
+        }
         if (ruleVOs.isEmpty()) {
             chain.next();
             return;
@@ -141,7 +145,17 @@ public class VirtualRouterSyncPortForwardingRulesOnStartFlow implements Flow {
             ruleMap.put(rvo.getUuid(), rvo);
         }
 
-        Collection<PortForwardingRuleTO> tos = calculateAllRules(ruleMap, vr.getUuid());
+        Map<String, PortForwardingRuleTO> toMap = calculateAllRules(ruleMap, vr.getUuid());
+        if (differential) {
+            VirtualRouterRuleSet ruleSet = VirtualRouterRuleSet.fromFlowData(data);
+            for (Map.Entry<String, PortForwardingRuleTO> e : toMap.entrySet()) {
+                ruleSet.addPortForwardingRule(e.getKey(), e.getValue());
+            }
+            chain.next();
+            return;
+        }
+
+        Collection<PortForwardingRuleTO> tos = toMap.values();
         List<PortForwardingRuleTO> toList = new ArrayList<PortForwardingRuleTO>(tos.size());
         toList.addAll(tos);
 
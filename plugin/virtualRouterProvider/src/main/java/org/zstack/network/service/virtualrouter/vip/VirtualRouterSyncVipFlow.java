@@ -12,7 +12,9 @@ import org.zstack.header.core.Completion;
 import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.network.service.vip.VipInventory;
 import org.zstack.network.service.vip.VipVO;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.VipTO;
 import org.zstack.network.service.virtualrouter.VirtualRouterConstant;
+import org.zstack.network.service.virtualrouter.VirtualRouterRuleSet;
 import org.zstack.network.service.virtualrouter.VirtualRouterVmInventory;
 
 import java.util.List;
@@ -32,6 +34,10 @@ public class VirtualRouterSyncVipFlow implements Flow {
         q.select(VirtualRouterVipVO_.uuid);
         q.add(VirtualRouterVipVO_.virtualRouterVmUuid, Op.EQ, vr.getUuid());
         List<String> vipUuids = q.listValue();
+        boolean differential = VirtualRouterRuleSet.isEnabled();
+        if (differential) {
+            VirtualRouterRuleSet.fromFlowData(data).declare(VirtualRouterRuleSet.VIP);
+        }
         if (vipUuids.isEmpty()) {
             chain.next();
             return;
@@ -39,6 +45,15 @@ public class VirtualRouterSyncVipFlow implements Flow {
 
         List<VipVO> vips = dbf.listByPrimaryKeys(vipUuids, VipVO.class);
         List<VipInventory> invs = VipInventory.valueOf(vips);
+        if (differential) {
+            VirtualRouterRuleSet ruleSet = VirtualRouterRuleSet.fromFlowData(data);
+            for (VipInventory inv : invs) {
+                ruleSet.addVip(VipTO.valueOf(inv, vipExt.getOwnerMac(vr, inv)));
+            }
+            chain.next();
+            return;
+        }
+
         vipExt.createVipOnVirtualRouterVm(vr, invs, new Completion(chain) {
             @Override
             public void success() {
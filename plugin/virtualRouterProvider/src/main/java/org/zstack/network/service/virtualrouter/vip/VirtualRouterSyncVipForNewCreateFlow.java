@@ -15,7 +15,9 @@ import org.zstack.network.service.eip.EipConstant;
 import org.zstack.network.service.portforwarding.PortForwardingConstant;
 import org.zstack.network.service.vip.VipInventory;
 import org.zstack.network.service.vip.VipVO;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.VipTO;
 import org.zstack.network.service.virtualrouter.VirtualRouterConstant;
+import org.zstack.network.service.virtualrouter.VirtualRouterRuleSet;
 import org.zstack.network.service.virtualrouter.VirtualRouterVmInventory;
 import org.zstack.network.service.virtualrouter.VirtualRouterManager;
 
@@ -69,6 +71,10 @@ public class VirtualRouterSyncVipForNewCreateFlow implements Flow {
             }.call());
         }
 
+        boolean differential = VirtualRouterRuleSet.isEnabled();
+        if (differential) {
+            VirtualRouterRuleSet.fromFlowData(data).declare(VirtualRouterRuleSet.VIP);
+        }
         if (vipUuids.isEmpty()) {
             chain.next();
             return;
@@ -87,6 +93,15 @@ public class VirtualRouterSyncVipForNewCreateFlow implements Flow {
 
         List<VipVO> vips = dbf.listByPrimaryKeys(vipUuids, VipVO.class);
         List<VipInventory> invs = VipInventory.valueOf(vips);
+        if (differential) {
+            VirtualRouterRuleSet ruleSet = VirtualRouterRuleSet.fromFlowData(data);
+            for (VipInventory inv : invs) {
+                ruleSet.addVip(VipTO.valueOf(inv, vipExt.getOwnerMac(vr, inv)));
+            }
+            chain.next();
+            return;
+        }
+
         vipExt.createVipOnVirtualRouterVm(vr, invs, new Completion(chain) {
             @Override
             public void success() {
@@ -44,7 +44,7 @@ public class VirtualRouterVipBackend implements VipBackend {
     @Autowired
     protected ErrorFacade errf;
 
-    private String getOwnerMac(VirtualRouterVmInventory vr, VipInventory vip) {
+    public String getOwnerMac(VirtualRouterVmInventory vr, VipInventory vip) {
         for (VmNicInventory nic : vr.getVmNics()) {
             if (nic.getL3NetworkUuid().equals(vip.getL3NetworkUuid())) {
                 return nic.getMac();
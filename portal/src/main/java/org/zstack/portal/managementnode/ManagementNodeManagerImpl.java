@@ -7,6 +7,7 @@ import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBusIN;
 import org.zstack.core.cloudbus.MessageSafe;
 import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.componentloader.PluginExtension;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.GLock;
@@ -15,6 +16,7 @@ import org.zstack.core.thread.ThreadFacade;
 import org.zstack.core.workflow.*;
 import org.zstack.header.AbstractService;
 import org.zstack.header.Component;
+import org.zstack.header.DependentComponent;
 import org.zstack.header.Service;
 import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.header.managementnode.IsManagementNodeReadyMsg;
@@ -30,8 +32,18 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.function.ForEachFunction;
 import org.zstack.utils.logging.CLogger;
 
+import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.zstack.utils.ExceptionDSL.throwableSafe;
 import static org.zstack.utils.ExceptionDSL.throwableSafeSuppress;
@@ -69,9 +81,14 @@ public class ManagementNodeManagerImpl extends AbstractService implements Manage
 
     private List<ManagementNodeChangeListener> lifeCycleExtension = new ArrayList<ManagementNodeChangeListener>();
 
+    private static final int COMPONENT_START_COST_REPORT_NUM = 20;
+
     private interface ComponentWrapper {
         void start();
         void stop();
+        Component getComponent();
+        int getOrder();
+        long getStartCost();
     }
 
 	private void notifyStop() {
@@ -191,11 +208,186 @@ public class ManagementNodeManagerImpl extends AbstractService implements Manage
 	}
 
 	private void startComponents() {
-		for (ComponentWrapper c : components) {
-            c.start();
-		}
+        long startTime = System.currentTimeMillis();
+        if (CoreGlobalProperty.PARALLEL_COMPONENT_STARTUP) {
+            startComponentsInParallel();
+        } else {
+            for (ComponentWrapper c : components) {
+                c.start();
+            }
+        }
+
+        reportComponentStartCost(System.currentTimeMillis() - startTime);
 	}
 
+    private List<Class> getAutowiredTypes(Class clz) {
+        List<Class> types = new ArrayList<Class>();
+        while (clz != null && clz != Object.class) {
+            for (Field f : clz.getDeclaredFields()) {
+                if (f.isAnnotationPresent(Autowired.class) && f.getType() != Object.class) {
+                    types.add(f.getType());
+                }
+            }
+            clz = clz.getSuperclass();
+        }
+        return types;
+    }
+
+    /**
+     * a component depends on components of a greater plugin order, components it declares by DependentComponent,
+     * and components it has @Autowired that are before it in plugin order. @Autowired components after it are not
+     * dependencies, as the sequential start has never started them earlier; this also keeps inferred dependencies
+     * free of cycles.
+     */
+    private Map<ComponentWrapper, Set<ComponentWrapper>> buildComponentDependencies() {
+        Map<ComponentWrapper, Set<ComponentWrapper>> deps = new HashMap<ComponentWrapper, Set<ComponentWrapper>>();
+        for (int i=0; i<components.size(); i++) {
+            ComponentWrapper c = components.get(i);
+            Set<ComponentWrapper> cdeps = new HashSet<ComponentWrapper>();
+            List<Class> autowired = getAutowiredTypes(c.getComponent().getClass());
+            List<Class> declared = c.getComponent() instanceof DependentComponent ?
+                    ((DependentComponent) c.getComponent()).getDependentComponents() : new ArrayList<Class>();
+
+            for (int j=0; j<components.size(); j++) {
+                ComponentWrapper other = components.get(j);
+                if (i == j) {
+                    continue;
+                }
+
+                if (other.getOrder() > c.getOrder()) {
+                    cdeps.add(other);
+                    continue;
+                }
+
+                for (Class type : declared) {
+                    if (type.isInstance(other.getComponent())) {
+                        cdeps.add(other);
+                    }
+                }
+
+                if (j > i) {
+                    continue;
+                }
+
+                for (Class type : autowired) {
+                    if (type.isInstance(other.getComponent())) {
+                        cdeps.add(other);
+                    }
+                }
+            }
+
+            deps.put(c, cdeps);
+        }
+
+        return deps;
+    }
+
+    private void startComponentsInParallel() {
+        Map<ComponentWrapper, Set<ComponentWrapper>> deps = buildComponentDependencies();
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(CoreGlobalProperty.COMPONENT_STARTUP_THREAD_NUM, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "component-starter-" + threadCount.getAndIncrement());
+            }
+        });
+        CompletionService<ComponentWrapper> completion = new ExecutorCompletionService<ComponentWrapper>(executor);
+
+        List<ComponentWrapper> pending = new ArrayList<ComponentWrapper>(components);
+        Set<ComponentWrapper> started = new HashSet<ComponentWrapper>();
+        int running = 0;
+        Throwable error = null;
+        try {
+            while (!pending.isEmpty() || running > 0) {
+                for (Iterator<ComponentWrapper> it = pending.iterator(); error == null && it.hasNext(); ) {
+                    final ComponentWrapper c = it.next();
+                    if (started.containsAll(deps.get(c))) {
+                        it.remove();
+                        completion.submit(new Callable<ComponentWrapper>() {
+                            @Override
+                            public ComponentWrapper call() throws Exception {
+                                c.start();
+                                return c;
+                            }
+                        });
+                        running ++;
+                    }
+                }
+
+                if (running == 0) {
+                    if (error != null) {
+                        break;
+                    }
+
+                    // only declared dependencies can form a cycle
+                    ComponentWrapper c = pending.remove(0);
+                    logger.warn(String.format("component[%s] is in a dependency cycle, start it before its dependencies",
+                            c.getComponent().getClass().getName()));
+                    c.start();
+                    started.add(c);
+                    continue;
+                }
+
+                Future<ComponentWrapper> f = completion.take();
+                running --;
+                try {
+                    started.add(f.get());
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new CloudRuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new CloudRuntimeException(error);
+        }
+    }
+
+    private void reportComponentStartCost(long totalTime) {
+        List<ComponentWrapper> cs = new ArrayList<ComponentWrapper>(components);
+        Collections.sort(cs, new Comparator<ComponentWrapper>() {
+            @Override
+            public int compare(ComponentWrapper o1, ComponentWrapper o2) {
+                return Long.valueOf(o2.getStartCost()).compareTo(o1.getStartCost());
+            }
+        });
+
+        long sum = 0;
+        for (ComponentWrapper c : cs) {
+            sum += c.getStartCost();
+        }
+
+        StringBuilder sb = new StringBuilder(String.format("started %s components in %s ms(%s), sum of start cost: %s ms, the most costly ones:",
+                cs.size(), totalTime, CoreGlobalProperty.PARALLEL_COMPONENT_STARTUP ? "parallel" : "sequential", sum));
+        for (ComponentWrapper c : cs.subList(0, Math.min(COMPONENT_START_COST_REPORT_NUM, cs.size()))) {
+            sb.append(String.format("\n    %s: %s ms", c.getComponent().getClass().getName(), c.getStartCost()));
+        }
+        logger.info(sb.toString());
+    }
+
+    /**
+     * @return start cost in milliseconds of each component by class name, in plugin order
+     */
+    public Map<String, Long> getComponentStartCosts() {
+        Map<String, Long> ret = new LinkedHashMap<String, Long>();
+        if (components != null) {
+            for (ComponentWrapper c : components) {
+                ret.put(c.getComponent().getClass().getName(), c.getStartCost());
+            }
+        }
+        return ret;
+    }
+
 	private void stopComponents() {
         for (final ComponentWrapper c : components) {
             c.stop();
@@ -214,17 +406,42 @@ public class ManagementNodeManagerImpl extends AbstractService implements Manage
 
 	private void populateComponents() {
 		components = new ArrayList<ComponentWrapper>();
-		for (final Component c : pluginRgty.getExtensionList(Component.class)) {
+        Set<Component> added = new HashSet<Component>();
+		for (PluginExtension ext : pluginRgty.getExtensionByInterfaceName(Component.class.getName())) {
+            final Component c = (Component) ext.getInstance();
+            if (!added.add(c)) {
+                continue;
+            }
+
+            final int order = ext.getOrder();
 			components.add(new ComponentWrapper() {
-                boolean isStart = false;
+                volatile boolean isStart = false;
+                volatile long startCost;
 
                 @Override
                 public void start() {
+                    long startTime = System.currentTimeMillis();
                     c.start();
-                    logger.info("Started component: " + c.getClass().getName());
+                    startCost = System.currentTimeMillis() - startTime;
+                    logger.info(String.format("Started component: %s, cost %s ms", c.getClass().getName(), startCost));
                     isStart = true;
                 }
 
+                @Override
+                public Component getComponent() {
+                    return c;
+                }
+
+                @Override
+                public int getOrder() {
+                    return order;
+                }
+
+                @Override
+                public long getStartCost() {
+                    return startCost;
+                }
+
                 @Override
                 public void stop() {
                     if (isStart) {
@@ -1,5 +1,7 @@
 package org.zstack.query;
 
+import net.sf.cglib.reflect.FastClass;
+import net.sf.cglib.reflect.FastMethod;
 import org.apache.commons.lang.StringUtils;
 import org.objenesis.Objenesis;
 import org.objenesis.ObjenesisStd;
@@ -9,6 +11,7 @@ import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.header.Component;
 import org.zstack.header.apimediator.ApiMessageInterceptionException;
 import org.zstack.header.apimediator.GlobalApiMessageInterceptor;
@@ -35,12 +38,15 @@ import java.lang.reflect.Method;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.zstack.utils.StringDSL.s;
 
 /**
  */
-public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalApiMessageInterceptor, PythonApiBindingWriter {
+public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalApiMessageInterceptor, PythonApiBindingWriter, MysqlQueryBuilderMXBean {
     private static final CLogger logger = Utils.getLogger(MysqlQueryBuilderImpl3.class);
 
     @Autowired
@@ -49,6 +55,8 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
     private ErrorFacade errf;
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private JmxFacade jmxf;
 
     private Objenesis objenesis = new ObjenesisStd();
 
@@ -137,8 +145,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         Field entityTypeField;
         Map<String, ExpandedQueryStruct> expandedQueries = new HashMap<String, ExpandedQueryStruct>();
         Map<String, EntityInfo> flatTypeEntityMap = new HashMap<String, EntityInfo>();
-        Method inventoryValueOf;
-        Method inventoryCollectionValueOf;
+        InventoryConverter inventoryConverter;
         ObjectInstantiator objectInstantiator;
         Map<String, Field> allFieldsMap = new HashMap<String, Field>();
         Map<String, ExpandedQueryAliasInfo> aliases = new HashMap<String, ExpandedQueryAliasInfo>();
@@ -179,8 +186,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             if (methodName.equals("")) {
                 methodName = "valueOf";
             }
-            inventoryCollectionValueOf = invClass.getMethod(methodName, Collection.class);
-            inventoryValueOf = invClass.getMethod("valueOf", entityClass);
+            inventoryConverter = new InventoryConverter(invClass, invClass.getMethod("valueOf", entityClass), invClass.getMethod(methodName, Collection.class));
 
             List<ExpandedQueryStruct> structs = expandedQueryStructs.get(inventoryClass);
             if (structs != null) {
@@ -260,6 +266,28 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         }
     }
 
+    /**
+     * calls valueOf() of an inventory class through a cglib generated FastClass instead of reflection
+     */
+    private static class InventoryConverter {
+        private final FastMethod valueOf;
+        private final FastMethod collectionValueOf;
+
+        InventoryConverter(Class invClass, Method valueOf, Method collectionValueOf) {
+            FastClass fastClass = FastClass.create(invClass);
+            this.valueOf = fastClass.getMethod(valueOf);
+            this.collectionValueOf = fastClass.getMethod(collectionValueOf);
+        }
+
+        Object valueOf(Object vo) throws InvocationTargetException {
+            return valueOf.invoke(null, new Object[] {vo});
+        }
+
+        List valueOf(Collection vos) throws InvocationTargetException {
+            return (List) collectionValueOf.invoke(null, new Object[] {vos});
+        }
+    }
+
     private class SubQueryInfo {
         Class joinInventoryClass;
     }
@@ -322,6 +350,39 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         }
     }
 
+    private Object doNormalizeValue(String value, Class entityType) {
+        try {
+            if (Timestamp.class.isAssignableFrom(entityType)) {
+                return Timestamp.valueOf(value);
+            } else if (Enum.class.isAssignableFrom(entityType)) {
+                Method valueOf = entityType.getMethod("valueOf", String.class);
+                return valueOf.invoke(entityType, value);
+            } else if (Boolean.class.isAssignableFrom(entityType) || Boolean.TYPE.isAssignableFrom(entityType)) {
+                return Boolean.valueOf(value);
+            } else {
+                return TypeUtils.stringToValue(value, entityType);
+            }
+        } catch (Exception e) {
+            throw new CloudRuntimeException(String.format("failed to parse value[%s]", value), e);
+        }
+    }
+
+    private Object normalizeValue(String value, String op, Class entityType) {
+        if (QueryOp.IS_NULL.equals(op) || QueryOp.NOT_NULL.equals(op)) {
+            return null;
+        }
+
+        if (QueryOp.IN.equals(op) || QueryOp.NOT_IN.equals(op)) {
+            List<Object> ret = new ArrayList();
+            for (String it : value.split(",")) {
+                ret.add(doNormalizeValue(it.trim(), entityType));
+            }
+            return ret;
+        } else {
+            return doNormalizeValue(value, entityType);
+        }
+    }
+
     private class MetaCondition {
         String attr;
         String op;
@@ -329,6 +390,8 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         Class inventoryClass;
         String attrValueName;
         boolean skipInventoryCheck;
+        // index of the condition in QueryContext.conditions this condition comes from
+        int conditionIndex;
 
         private Field entityField;
 
@@ -340,7 +403,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             return qcond;
         }
 
-        private Class getEntityFieldType() {
+        Class getEntityFieldType() {
             if (Collection.class.isAssignableFrom(entityField.getType())) {
                 return FieldUtils.getGenericType(entityField);
             } else if (Map.class.isAssignableFrom(entityField.getType())) {
@@ -351,38 +414,12 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             }
         }
 
-        private Object doNormalizeValue(String value) {
-            try {
-                Class entityType = getEntityFieldType();
-                if (Timestamp.class.isAssignableFrom(entityType)) {
-                    return Timestamp.valueOf(value);
-                } else if (Enum.class.isAssignableFrom(entityType)) {
-                    Method valueOf = entityType.getMethod("valueOf", String.class);
-                    return valueOf.invoke(entityType, value);
-                } else if (Boolean.class.isAssignableFrom(entityType) || Boolean.TYPE.isAssignableFrom(entityType)) {
-                    return Boolean.valueOf(value);
-                } else {
-                    return TypeUtils.stringToValue(value, entityType);
-                }
-            } catch (Exception e) {
-                throw new CloudRuntimeException(String.format("failed to parse value[%s]", value), e);
-            }
-        }
-
         Object normalizeValue() {
             if (QueryOp.IS_NULL.equals(op) || QueryOp.NOT_NULL.equals(op)) {
                 return null;
             }
 
-            if (QueryOp.IN.equals(op) || QueryOp.NOT_IN.equals(op)) {
-                List<Object> ret = new ArrayList();
-                for (String it : value.split(",")) {
-                    ret.add(doNormalizeValue(it.trim()));
-                }
-                return ret;
-            } else {
-                return doNormalizeValue(value);
-            }
+            return MysqlQueryBuilderImpl3.this.normalizeValue(value, op, getEntityFieldType());
         }
 
         private String formatSql(String entityName, String attr, String op) {
@@ -483,6 +520,8 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         List<QueryObject> children = new ArrayList<QueryObject>();
         SubQueryInfo subQueryInfo;
         APIQueryMessage msg;
+        // sub queries made by MysqlQuerySubQueryExtension, only for root query
+        List<String> extensionSubQueries;
 
         // NOTE: we hard code tag specific logic here because we think current query model is not sustainable,
         // it worth nothing to waste effort on making this as extension point; we will switch the entire
@@ -662,12 +701,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 throw new CloudRuntimeException("cannot be here");
             } else {
                 // this is root query
-                for (MysqlQuerySubQueryExtension ext : subQueryExtensions) {
-                    String sub = ext.makeSubquery(msg, info.inventoryClass);
-                    if (sub != null) {
-                        where.add(sub);
-                    }
-                }
+                where.addAll(extensionSubQueries);
 
                 String entityName = info.inventoryClass.getSimpleName().toLowerCase();
                 String entity = info.entityClass.getSimpleName();
@@ -710,11 +744,59 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         }
     }
 
+    private static class ParameterBinding {
+        String name;
+        int conditionIndex;
+        String op;
+        Class valueType;
+    }
+
+    /**
+     * the JPQL of a query shape and how values of conditions are bound to it. Queries differing only in values of
+     * conditions share the plan, and the same JPQL string hits the HQL plan cache of Hibernate
+     */
+    private static class QueryPlan {
+        String jpql;
+        List<ParameterBinding> bindings = new ArrayList<ParameterBinding>();
+    }
+
+    private static class QueryLatency {
+        long count;
+        long totalTime;
+        long maxTime;
+
+        synchronized void count(long cost) {
+            if (Long.MAX_VALUE - cost < totalTime) {
+                totalTime = cost;
+                count = 1;
+            } else {
+                totalTime += cost;
+                count ++;
+            }
+            maxTime = Math.max(cost, maxTime);
+        }
+
+        synchronized QueryStatistic toStatistic(String inventoryName) {
+            return new QueryStatistic(inventoryName, count, totalTime, count == 0 ? 0 : totalTime / count, maxTime);
+        }
+    }
+
+    private Map<String, QueryPlan> queryPlans;
+    private int queryPlanCacheSize;
+    private AtomicLong queryPlanHits = new AtomicLong();
+    private AtomicLong queryPlanMisses = new AtomicLong();
+    private ConcurrentHashMap<String, QueryLatency> queryLatencies = new ConcurrentHashMap<String, QueryLatency>();
+
     private class QueryContext {
         private APIQueryMessage msg;
         private Class inventoryClass;
         private QueryObject root;
         private Map<Class, QueryObject> tmpMap = new HashMap<Class, QueryObject>();
+        // conditions of the message followed by conditions added by AddExtraConditionToQueryExtensionPoint
+        private List<QueryCondition> conditions = new ArrayList<QueryCondition>();
+        private int extraConditionStart;
+        private List<String> extensionSubQueries = new ArrayList<String>();
+        private int conditionIndex;
 
         private MetaCondition buildCondition(QueryCondition qcond, EntityInfo info) {
             MetaCondition mcond = new MetaCondition();
@@ -722,6 +804,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             mcond.op = qcond.getOp();
             mcond.inventoryClass = info.inventoryClass;
             mcond.value = qcond.getValue();
+            mcond.conditionIndex = conditionIndex;
             return mcond;
         }
 
@@ -814,55 +897,155 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             buildMetaCondition(qcond, info, false);
         }
 
-        private String build(boolean isCount) {
-            root = new QueryObject();
-            root.msg = msg;
-            root.info = entityInfos.get(inventoryClass);
-            DebugUtils.Assert(root.info!=null, String.format("class[%s] is not annotated by @Inventory", inventoryClass.getName()));
-            tmpMap.put(root.info.entityClass, root);
-
+        private void collectConditions() {
             for (QueryCondition qcond : msg.getConditions()) {
-                if (escapeConditionNames.contains(qcond.getName())) {
-                    continue;
-                }
-
-                if (!qcond.getName().contains(".")) {
-                    buildMetaCondition(qcond, root.info);
-                } else {
-                    buildSubQuery(qcond, root);
+                if (!escapeConditionNames.contains(qcond.getName())) {
+                    conditions.add(qcond);
                 }
             }
 
+            extraConditionStart = conditions.size();
             List<AddExtraConditionToQueryExtensionPoint> exts = extraConditionsExts.get(msg.getClass());
             if (exts != null) {
                 for (AddExtraConditionToQueryExtensionPoint ext : exts) {
                     try {
-                        for (QueryCondition cond : ext.getExtraQueryConditionForMessage(msg)) {
-                            buildMetaCondition(cond, root.info, true);
-                        }
+                        conditions.addAll(ext.getExtraQueryConditionForMessage(msg));
                     } catch (Throwable t) {
                         logger.warn(String.format("unhandled exception when calling %s", ext.getClass().getName()), t);
                     }
                 }
             }
 
+            for (MysqlQuerySubQueryExtension ext : subQueryExtensions) {
+                String sub = ext.makeSubquery(msg, inventoryClass);
+                if (sub != null) {
+                    extensionSubQueries.add(sub);
+                }
+            }
+        }
+
+        private void appendValue(StringBuilder sb, String value) {
+            // length prefixed so a value can never be mistaken for another condition
+            if (value == null) {
+                sb.append(" -1:");
+            } else {
+                sb.append(" ").append(value.length()).append(":").append(value);
+            }
+        }
+
+        /**
+         * the shape of the query: the names and operators of conditions without values, except values of tag
+         * conditions and sub queries of extensions which are written into the JPQL directly
+         */
+        private String makePlanKey(boolean isCount) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(msg.getClass().getName()).append(" ").append(inventoryClass.getName()).append(" ").append(isCount);
+            if (!isCount) {
+                if (msg.isFieldQuery()) {
+                    sb.append(" fields");
+                    for (String f : msg.getFields()) {
+                        appendValue(sb, f);
+                    }
+                }
+                appendValue(sb, msg.getSortBy());
+                appendValue(sb, msg.getSortBy() == null ? null : msg.getSortDirection());
+            }
+
+            for (QueryCondition cond : conditions) {
+                sb.append(" |");
+                appendValue(sb, cond.getName());
+                appendValue(sb, cond.getOp());
+                if (cond.getName().contains(USER_TAG) || cond.getName().contains(SYSTEM_TAG)) {
+                    appendValue(sb, cond.getValue());
+                }
+            }
+
+            for (String sub : extensionSubQueries) {
+                sb.append(" |");
+                appendValue(sb, sub);
+            }
+            return sb.toString();
+        }
+
+        private String build(boolean isCount) {
+            root = new QueryObject();
+            root.msg = msg;
+            root.info = entityInfos.get(inventoryClass);
+            root.extensionSubQueries = extensionSubQueries;
+            DebugUtils.Assert(root.info!=null, String.format("class[%s] is not annotated by @Inventory", inventoryClass.getName()));
+            tmpMap.put(root.info.entityClass, root);
+
+            for (conditionIndex = 0; conditionIndex < conditions.size(); conditionIndex ++) {
+                QueryCondition qcond = conditions.get(conditionIndex);
+                if (conditionIndex >= extraConditionStart) {
+                    buildMetaCondition(qcond, root.info, true);
+                } else if (!qcond.getName().contains(".")) {
+                    buildMetaCondition(qcond, root.info);
+                } else {
+                    buildSubQuery(qcond, root);
+                }
+            }
+
             return root.toJpql(isCount);
         }
 
-        private void setQueryValue(Query q, QueryObject qobj) {
+        private void collectBindings(QueryObject qobj, List<ParameterBinding> bindings) {
             for (MetaCondition mcond : qobj.conditions) {
                 if (USER_TAG.equals(mcond.attr) || SYSTEM_TAG.equals(mcond.attr)) {
                     continue;
                 }
 
-                Object val = mcond.normalizeValue();
-                if (val != null) {
-                    q.setParameter(mcond.attrValueName, val);
+                if (mcond.attrValueName != null) {
+                    ParameterBinding b = new ParameterBinding();
+                    b.name = mcond.attrValueName;
+                    b.conditionIndex = mcond.conditionIndex;
+                    b.op = mcond.op;
+                    b.valueType = mcond.getEntityFieldType();
+                    bindings.add(b);
                 }
             }
             for (QueryObject child : qobj.children) {
-                setQueryValue(q, child);
+                collectBindings(child, bindings);
+            }
+        }
+
+        private QueryPlan prepare(boolean isCount) {
+            collectConditions();
+
+            String key = null;
+            if (queryPlans != null) {
+                key = makePlanKey(isCount);
+                QueryPlan plan = queryPlans.get(key);
+                if (plan != null) {
+                    queryPlanHits.incrementAndGet();
+                    return plan;
+                }
+                queryPlanMisses.incrementAndGet();
             }
+
+            QueryPlan plan = new QueryPlan();
+            plan.jpql = build(isCount);
+            collectBindings(root, plan.bindings);
+            if (key != null) {
+                queryPlans.put(key, plan);
+            }
+            return plan;
+        }
+
+        private Query createQuery(QueryPlan plan, boolean tuple) {
+            Query q = tuple ? dbf.getEntityManager().createQuery(plan.jpql, Tuple.class) : dbf.getEntityManager().createQuery(plan.jpql);
+            if (logger.isTraceEnabled()) {
+                org.hibernate.Query hq = q.unwrap(org.hibernate.Query.class);
+                logger.trace(hq.getQueryString());
+            }
+
+            for (ParameterBinding b : plan.bindings) {
+                Object val = normalizeValue(conditions.get(b.conditionIndex).getValue(), b.op, b.valueType);
+                if (val != null) {
+                    q.setParameter(b.name, val);
+                }
+            }
+            return q;
         }
 
 
@@ -872,17 +1055,18 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                     return new ArrayList();
                 }
 
-                if (root.info.children.isEmpty()) {
-                    return (List) root.info.inventoryCollectionValueOf.invoke(inventoryClass, vos);
+                final EntityInfo rootInfo = entityInfos.get(inventoryClass);
+                if (rootInfo.children.isEmpty()) {
+                    return rootInfo.inventoryConverter.valueOf(vos);
                 }
 
                 final LinkedHashMap flatMap = new LinkedHashMap();
                 final List primaryKeysNeedResolve = new ArrayList();
                 for (Object vo : vos) {
-                    String type = (String) root.info.entityTypeField.get(vo);
-                    Object priKey = root.info.getPrimaryKeyValue(vo);
-                    if (!root.info.flatTypeEntityMap.containsKey(type)) {
-                        flatMap.put(priKey, root.info.inventoryValueOf.invoke(inventoryClass, vo));
+                    String type = (String) rootInfo.entityTypeField.get(vo);
+                    Object priKey = rootInfo.getPrimaryKeyValue(vo);
+                    if (!rootInfo.flatTypeEntityMap.containsKey(type)) {
+                        flatMap.put(priKey, rootInfo.inventoryConverter.valueOf(vo));
                     } else {
                         flatMap.put(priKey, null);
                         primaryKeysNeedResolve.add(priKey);
@@ -891,7 +1075,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 }
 
                 if (primaryKeysNeedResolve.isEmpty()) {
-                    return (List) root.info.inventoryCollectionValueOf.invoke(inventoryClass, vos);
+                    return rootInfo.inventoryConverter.valueOf(vos);
                 }
 
                 // the inventory has child inventory inheriting it, we have to find out all child inventory and
@@ -906,7 +1090,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                     List<SQL> subInventoryQuerySQL = new ArrayList<SQL>();
 
                     List resolve() throws InvocationTargetException, IllegalAccessException {
-                        buildSubInventoryQuerySQL(root.info.children);
+                        buildSubInventoryQuerySQL(rootInfo.children);
                         querySubInventory();
 
                         List result = new ArrayList(flatMap.values().size());
@@ -928,7 +1112,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                             for (Tuple t : res) {
                                 Object priKey = t.get(0);
                                 Object vo = t.get(1);
-                                flatMap.put(priKey, sql.entityInfo.inventoryValueOf.invoke(sql.entityInfo.inventoryClass, vo));
+                                flatMap.put(priKey, sql.entityInfo.inventoryConverter.valueOf(vo));
                                 primaryKeysNeedResolve.remove(priKey);
                             }
                         }
@@ -1005,14 +1189,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 validateFields();
             }
 
-            String jpql = build(false);
-            Query q = msg.isFieldQuery() ? dbf.getEntityManager().createQuery(jpql, Tuple.class) : dbf.getEntityManager().createQuery(jpql);
-
-            if (logger.isTraceEnabled()) {
-                org.hibernate.Query hq = q.unwrap(org.hibernate.Query.class);
-                logger.trace(hq.getQueryString());
-            }
-            setQueryValue(q, root);
+            Query q = createQuery(prepare(false), msg.isFieldQuery());
             if (msg.getLimit() != null) {
                 q.setMaxResults(msg.getLimit());
             }
@@ -1031,13 +1208,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
 
         @Transactional(readOnly = true)
         long count() {
-            String jpql = build(true);
-            Query q = dbf.getEntityManager().createQuery(jpql);
-            if (logger.isTraceEnabled()) {
-                org.hibernate.Query hq = q.unwrap(org.hibernate.Query.class);
-                logger.trace(hq.getQueryString());
-            }
-            setQueryValue(q, root);
+            Query q = createQuery(prepare(true), false);
             return (Long)q.getSingleResult();
         }
     }
@@ -1151,6 +1322,8 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             completeAliasInfo();
             inheritExpandedQueryAndAliases();
             removeSuppressedExpandedQuery();
+            buildQueryPlanCache();
+            jmxf.registerBean("MysqlQueryBuilder", this);
         } catch (Exception e) {
             throw new CloudRuntimeException(e);
         }
@@ -1158,6 +1331,20 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         return true;
     }
 
+    private void buildQueryPlanCache() {
+        queryPlanCacheSize = QueryGlobalProperty.PLAN_CACHE_SIZE;
+        if (queryPlanCacheSize <= 0) {
+            return;
+        }
+
+        queryPlans = Collections.synchronizedMap(new LinkedHashMap<String, QueryPlan>(queryPlanCacheSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, QueryPlan> eldest) {
+                return size() > queryPlanCacheSize;
+            }
+        });
+    }
+
     private void removeSuppressedExpandedQuery() {
         for (EntityInfo info : entityInfos.values()) {
             Map<String, ExpandedQueryStruct> ess = new HashMap<String, ExpandedQueryStruct>();
@@ -1262,7 +1449,45 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         context.msg = msg;
         context.inventoryClass = selectInventoryClass(msg, inventoryClass);
 
-        return context.query();
+        long start = System.nanoTime();
+        try {
+            return context.query();
+        } finally {
+            countLatency(context.inventoryClass, start);
+        }
+    }
+
+    private void countLatency(Class inventoryClass, long start) {
+        long cost = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        QueryLatency latency = queryLatencies.get(inventoryClass.getSimpleName());
+        if (latency == null) {
+            latency = new QueryLatency();
+            QueryLatency old = queryLatencies.putIfAbsent(inventoryClass.getSimpleName(), latency);
+            latency = old == null ? latency : old;
+        }
+        latency.count(cost);
+    }
+
+    @Override
+    public QueryPlanCacheStatistic getQueryPlanCacheStatistic() {
+        long hits = queryPlanHits.get();
+        long misses = queryPlanMisses.get();
+        return new QueryPlanCacheStatistic(
+                queryPlans == null ? 0 : queryPlans.size(),
+                queryPlanCacheSize,
+                hits,
+                misses,
+                hits + misses == 0 ? 0 : (double) hits / (hits + misses)
+        );
+    }
+
+    @Override
+    public List<QueryStatistic> getQueryStatistics() {
+        List<QueryStatistic> ret = new ArrayList<QueryStatistic>();
+        for (Map.Entry<String, QueryLatency> e : queryLatencies.entrySet()) {
+            ret.add(e.getValue().toStatistic(e.getKey()));
+        }
+        return ret;
     }
 
     private Class selectInventoryClass(APIQueryMessage msg, Class inventoryClass) {
@@ -1275,7 +1500,13 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         QueryContext context = new QueryContext();
         context.msg = msg;
         context.inventoryClass = selectInventoryClass(msg, inventoryClass);
-        return context.count();
+
+        long start = System.nanoTime();
+        try {
+            return context.count();
+        } finally {
+            countLatency(context.inventoryClass, start);
+        }
     }
 
     @Override
@@ -0,0 +1,11 @@
+package org.zstack.query;
+
+import java.util.List;
+
+/**
+ */
+public interface MysqlQueryBuilderMXBean {
+    QueryPlanCacheStatistic getQueryPlanCacheStatistic();
+
+    List<QueryStatistic> getQueryStatistics();
+}
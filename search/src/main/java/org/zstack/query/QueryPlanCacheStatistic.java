@@ -0,0 +1,42 @@
+package org.zstack.query;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class QueryPlanCacheStatistic {
+    private int size;
+    private int capacity;
+    private long hits;
+    private long misses;
+    private double hitRate;
+
+    @ConstructorProperties({"size", "capacity", "hits", "misses", "hitRate"})
+    public QueryPlanCacheStatistic(int size, int capacity, long hits, long misses, double hitRate) {
+        this.size = size;
+        this.capacity = capacity;
+        this.hits = hits;
+        this.misses = misses;
+        this.hitRate = hitRate;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public double getHitRate() {
+        return hitRate;
+    }
+}
@@ -0,0 +1,42 @@
+package org.zstack.query;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class QueryStatistic {
+    private String inventoryName;
+    private long count;
+    private long totalTime;
+    private long averageTime;
+    private long maxTime;
+
+    @ConstructorProperties({"inventoryName", "count", "totalTime", "averageTime", "maxTime"})
+    public QueryStatistic(String inventoryName, long count, long totalTime, long averageTime, long maxTime) {
+        this.inventoryName = inventoryName;
+        this.count = count;
+        this.totalTime = totalTime;
+        this.averageTime = averageTime;
+        this.maxTime = maxTime;
+    }
+
+    public String getInventoryName() {
+        return inventoryName;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    public long getAverageTime() {
+        return averageTime;
+    }
+
+    public long getMaxTime() {
+        return maxTime;
+    }
+}
@@ -11,8 +11,9 @@ import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -28,6 +29,8 @@ import org.zstack.core.componentloader.PluginExtension;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.TransactionalCallback;
+import org.zstack.core.thread.Task;
+import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.AbstractService;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.message.APIMessage;
@@ -52,6 +55,8 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class InventoryIndexManagerImpl extends AbstractService implements InventoryIndexManager, TransactionalCallback {
     private static final CLogger logger = Utils.getLogger(InventoryIndexManagerImpl.class);
@@ -61,15 +66,18 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
     private CloudBus bus;
     @Autowired
     private PluginRegistry rgty;
+    @Autowired
+    private ThreadFacade thdf;
 
     private Map<String, IndexerInfo> voClassToIndexerMapping = new HashMap<String, IndexerInfo>();
     private Set<Class<?>> triggerVOs = new HashSet<Class<?>>();
     private Set<String> basePkgNames;
     private String elasticSearchBaseUrl = "http://localhost:9200/";
-    private HttpClient httpClient;
+    private CloseableHttpClient httpClient;
     private URI bulkUri;
     private boolean stopIfCreateIndexFailed = false;
     private boolean deleteAllIndexWhenStart = false;
+    private InventoryIndexPipeline pipeline;
     // key: parent class, value: children classes
     private Map<Class<?>, List<Class<?>>> sqlTriggerInheritance = new HashMap<Class<?>, List<Class<?>>>();
     
@@ -300,7 +308,9 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
     @Override
     public boolean start() {
         try {
-            httpClient = new DefaultHttpClient(new PoolingClientConnectionManager());
+            httpClient = HttpClients.custom()
+                    .setConnectionManager(new PoolingHttpClientConnectionManager())
+                    .build();
             bulkUri = makeURI(elasticSearchBaseUrl, "_bulk");
 
             /* only for debugging */
@@ -317,6 +327,7 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
             populateInventoryIndexer();
             dumpInventoryIndexer();
             createIndexIfNotExists();
+            startIndexPipeline();
             bus.registerService(this);
         } catch (Exception e) {
             throw new CloudRuntimeException(e);
@@ -326,8 +337,15 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
 
     @Override
     public boolean stop() {
+        if (pipeline != null) {
+            pipeline.stop();
+        }
         if (httpClient != null) {
-            httpClient.getConnectionManager().shutdown();
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                logger.warn("failed to close the http client to ElasticSearch", e);
+            }
         }
         bus.unregisterService(this);
         return true;
@@ -354,31 +372,99 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
     public void beforeCompletion(Operation op, Class<?>... entityClass) {
     }
 
-    private void sendBulk(final String requestBody, final String inventoryName) {
-        try {
-            HttpPost post = new HttpPost(bulkUri);
-            StringEntity body = new StringEntity(requestBody);
-            logger.trace(String.format("%s:\n%s", inventoryName, requestBody));
-            body.setChunked(false);
-            post.setEntity(body);
-            ResponseHandler<Void> rspHandler = new ResponseHandler<Void>() {
-                @Override
-                public Void handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
-                    if (rsp.getStatusLine().getStatusCode() != HttpStatus.SC_OK && rsp.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED) {
-                        logger.warn(String.format("Failed to do bulk operation on[%s] , because: \nstatus line: %s\nresponse body: %s\nrequest body: %s",
-                                inventoryName, rsp.getStatusLine(), EntityUtils.toString(rsp.getEntity()), requestBody));
-                    } else {
-                        logger.trace(String.format("Successfully did bulk operation on[%s], %s", inventoryName, EntityUtils.toString(rsp.getEntity())));
+    private void startIndexPipeline() {
+        if (!SearchGlobalProperty.INDEX_PIPELINE_ENABLE) {
+            return;
+        }
+
+        String spoolDir = SearchGlobalProperty.INDEX_PIPELINE_SPOOL_DIR;
+        if (!new File(spoolDir).isAbsolute()) {
+            spoolDir = PathUtil.getFolderUnderZStackHomeFolder(spoolDir);
+        }
+
+        pipeline = new InventoryIndexPipeline(new InventoryIndexPipeline.Backend() {
+            @Override
+            public void buildIndex(String inventoryName, Set<String> uuids, ESBulkBuilder builder) throws Exception {
+                IndexerInfo info = getIndexerInfoByInventoryName(inventoryName);
+                for (InventoryDoc doc : buildDoc(info, uuids)) {
+                    builder.addIndexBulk(doc.getInventoryName().toLowerCase(), doc.getInventoryName(), doc);
+                }
+            }
+
+            @Override
+            public void sendBulk(String body) throws IOException {
+                doSendBulk(body, "index pipeline");
+            }
+        }, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                thdf.submit(new Task<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        command.run();
+                        return null;
                     }
-                    return null;
+
+                    @Override
+                    public String getName() {
+                        return "build-search-index-doc";
+                    }
+                });
+            }
+        });
+        pipeline.setQueueSize(SearchGlobalProperty.INDEX_PIPELINE_QUEUE_SIZE);
+        pipeline.setCoalesceWindow(SearchGlobalProperty.INDEX_PIPELINE_COALESCE_WINDOW);
+        pipeline.setDocBuildBatchSize(SearchGlobalProperty.INDEX_PIPELINE_DOC_BUILD_BATCH_SIZE);
+        pipeline.setMaxRetryInterval(TimeUnit.SECONDS.toMillis(SearchGlobalProperty.INDEX_PIPELINE_MAX_RETRY_INTERVAL));
+        pipeline.setSpoolDir(new File(spoolDir));
+        pipeline.start();
+        logger.debug(String.format("search index pipeline started, spool folder: %s", spoolDir));
+    }
+
+    private void doSendBulk(final String requestBody, final String inventoryName) throws IOException {
+        HttpPost post = new HttpPost(bulkUri);
+        StringEntity body = new StringEntity(requestBody);
+        logger.trace(String.format("%s:\n%s", inventoryName, requestBody));
+        body.setChunked(false);
+        post.setEntity(body);
+        ResponseHandler<Void> rspHandler = new ResponseHandler<Void>() {
+            @Override
+            public Void handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
+                if (rsp.getStatusLine().getStatusCode() != HttpStatus.SC_OK && rsp.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED) {
+                    throw new IOException(String.format("Failed to do bulk operation on[%s] , because: \nstatus line: %s\nresponse body: %s\nrequest body: %s",
+                            inventoryName, rsp.getStatusLine(), EntityUtils.toString(rsp.getEntity()), requestBody));
+                } else {
+                    logger.trace(String.format("Successfully did bulk operation on[%s], %s", inventoryName, EntityUtils.toString(rsp.getEntity())));
                 }
-            };
-            httpClient.execute(post, rspHandler);
+                return null;
+            }
+        };
+        httpClient.execute(post, rspHandler);
+    }
+
+    private void sendBulk(final String requestBody, final String inventoryName) {
+        try {
+            doSendBulk(requestBody, inventoryName);
         } catch (Exception e) {
             logger.warn(String.format("Failed to do bulk operation on inventory[%s]", inventoryName), e);
         }
     }
 
+    private void queueToPipeline(Map<String, Set<String>> vmap, boolean delete) {
+        for (Map.Entry<String, Set<String>> e : vmap.entrySet()) {
+            IndexerInfo info = voClassToIndexerMapping.get(e.getKey());
+            if (info == null) {
+                continue;
+            }
+
+            if (delete) {
+                pipeline.delete(info.inventoryName, e.getValue());
+            } else {
+                pipeline.index(info.inventoryName, e.getValue());
+            }
+        }
+    }
+
     @Transactional(propagation = Propagation.REQUIRES_NEW)
     private List<InsertVO> takeInsertVO(Class<?> triggeredVO) {
     	List<String> voNames = insertVOTriggerClassNames.get(triggeredVO);
@@ -683,6 +769,11 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
 
     @Override
     public void afterCommit(Operation op, Class<?>... entityClass) {
+        if (pipeline != null) {
+            queueToPipeline(op, entityClass);
+            return;
+        }
+
         ESBulkBuilder bbuilder = new ESBulkBuilder();
 
         for (Class<?> vo : entityClass) {
@@ -708,6 +799,22 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
         }
     }
 
+    private void queueToPipeline(Operation op, Class<?>... entityClass) {
+        for (Class<?> vo : entityClass) {
+            if (!triggerVOs.contains(vo)) {
+                continue;
+            }
+
+            if (op == Operation.PERSIST || op == Operation.UPDATE) {
+                queueToPipeline(getUuidsOfVOToIndexFromInsertVOUpdateVO(vo, op), false);
+            } else if (op == Operation.REMOVE) {
+                Pair<Map<String, Set<String>>, Map<String, Set<String>>> pair = getVOUuidsToDeleteOrIndexFromDeleteVO(vo);
+                queueToPipeline(pair.second(), false);
+                queueToPipeline(pair.first(), true);
+            }
+        }
+    }
+
     @Override
     public void afterCompletion(Operation op, int status, Class<?>... entityClass) {
     }
@@ -0,0 +1,595 @@
+package org.zstack.search;
+
+import org.apache.commons.io.FileUtils;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * indexes inventories to ElasticSearch off the commit path.
+ *
+ * changes are queued by inventory uuid, a later change of the same uuid replaces the earlier one. A flusher thread
+ * waits a coalescing window after the first change comes in, takes all queued changes, builds documents of them in
+ * parallel and sends them in one bulk request, retrying with exponential backoff until ElasticSearch takes it.
+ *
+ * every change is appended to a journal in the spool folder before it's queued; when changes are taken by the
+ * flusher the journal is renamed to a batch file, which is deleted after the bulk request succeeds. Journal and
+ * batch files left by a stopped or crashed management node are replayed on start, so no change is lost when
+ * ElasticSearch is down.
+ *
+ * when the queue is full, changes are appended to an overflow file instead and the caller returns at once; so are
+ * all later changes until the flusher has moved the overflow file back to the queue chunk by chunk, which keeps
+ * changes of the same inventory in order.
+ */
+public class InventoryIndexPipeline {
+    private static final CLogger logger = Utils.getLogger(InventoryIndexPipeline.class);
+
+    private static final String JOURNAL_NAME = "journal";
+    private static final String BATCH_PREFIX = "batch-";
+    private static final String OVERFLOW_NAME = "overflow";
+
+    public interface Backend {
+        /**
+         * add index requests of the inventories to the builder, uuids no longer in database are skipped
+         */
+        void buildIndex(String inventoryName, Set<String> uuids, ESBulkBuilder builder) throws Exception;
+
+        /**
+         * @throws IOException if ElasticSearch doesn't take the request
+         */
+        void sendBulk(String body) throws IOException;
+    }
+
+    public static enum Op {
+        INDEX,
+        DELETE
+    }
+
+    private static class Change {
+        final Op op;
+        final String inventoryName;
+        final String uuid;
+
+        Change(Op op, String inventoryName, String uuid) {
+            this.op = op;
+            this.inventoryName = inventoryName;
+            this.uuid = uuid;
+        }
+
+        String key() {
+            return inventoryName + "/" + uuid;
+        }
+
+        String toLine() {
+            return String.format("%s\t%s\t%s", op, inventoryName, uuid);
+        }
+
+        static Change fromLine(String line) {
+            String[] ss = line.split("\t");
+            if (ss.length != 3) {
+                return null;
+            }
+
+            try {
+                return new Change(Op.valueOf(ss[0]), ss[1], ss[2]);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    private final Backend backend;
+    private final Executor executor;
+    private int queueSize = 10000;
+    private long coalesceWindow = 500;
+    private int docBuildBatchSize = 100;
+    private long maxRetryInterval = TimeUnit.SECONDS.toMillis(60);
+    private File spoolDir;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private LinkedHashMap<String, Change> pending = new LinkedHashMap<String, Change>();
+    private Writer journal;
+    private Writer overflow;
+    private boolean overflowing;
+    // lines of the overflow file already moved to the queue
+    private long overflowReplayed;
+    private long batchSeq;
+    private Thread flusher;
+    private volatile boolean stopped;
+
+    private final AtomicLong queuedChanges = new AtomicLong();
+    private final AtomicLong coalescedChanges = new AtomicLong();
+    private final AtomicLong flushedChanges = new AtomicLong();
+    private final AtomicLong bulkRetries = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    public InventoryIndexPipeline(Backend backend, Executor executor) {
+        this.backend = backend;
+        this.executor = executor;
+    }
+
+    private File batchFile(long seq) {
+        return new File(spoolDir, String.format("%s%s", BATCH_PREFIX, seq));
+    }
+
+    private List<File> listSpoolFiles() {
+        List<File> batches = new ArrayList<File>();
+        File[] files = spoolDir.listFiles();
+        if (files == null) {
+            return batches;
+        }
+
+        for (File f : files) {
+            if (f.getName().startsWith(BATCH_PREFIX)) {
+                batches.add(f);
+            }
+        }
+
+        Collections.sort(batches, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                long s1 = Long.valueOf(o1.getName().substring(BATCH_PREFIX.length()));
+                long s2 = Long.valueOf(o2.getName().substring(BATCH_PREFIX.length()));
+                return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+            }
+        });
+
+        File j = new File(spoolDir, JOURNAL_NAME);
+        if (j.exists()) {
+            batches.add(j);
+        }
+        return batches;
+    }
+
+    private Writer openJournal() throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(spoolDir, JOURNAL_NAME), true), "UTF-8"));
+    }
+
+    private Writer openOverflow() throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(spoolDir, OVERFLOW_NAME), true), "UTF-8"));
+    }
+
+    private void writeChanges(Writer w, Collection<Change> changes) throws IOException {
+        for (Change c : changes) {
+            w.write(c.toLine());
+            w.write("\n");
+        }
+        w.flush();
+    }
+
+    private void replaySpool() throws IOException {
+        List<File> files = listSpoolFiles();
+        for (File f : files) {
+            for (String line : FileUtils.readLines(f, "UTF-8")) {
+                Change c = Change.fromLine(line);
+                if (c != null) {
+                    pending.put(c.key(), c);
+                }
+            }
+        }
+
+        // write what's left to a fresh journal before dropping the old files
+        File tmp = new File(spoolDir, JOURNAL_NAME + ".tmp");
+        Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            for (Change c : pending.values()) {
+                w.write(c.toLine());
+                w.write("\n");
+            }
+        } finally {
+            w.close();
+        }
+
+        for (File f : files) {
+            if (f.getName().startsWith(BATCH_PREFIX)) {
+                FileUtils.deleteQuietly(f);
+            }
+        }
+
+        File j = new File(spoolDir, JOURNAL_NAME);
+        FileUtils.deleteQuietly(j);
+        if (!tmp.renameTo(j)) {
+            throw new IOException(String.format("unable to rename %s to %s", tmp.getAbsolutePath(), j.getAbsolutePath()));
+        }
+
+        if (!pending.isEmpty()) {
+            logger.debug(String.format("replayed %s search index changes from the spool[%s]", pending.size(), spoolDir.getAbsolutePath()));
+        }
+
+        // the overflow file holds the newest changes, the flusher moves it to the queue after the changes above
+        overflowing = new File(spoolDir, OVERFLOW_NAME).exists();
+        overflowReplayed = 0;
+    }
+
+    public void start() {
+        try {
+            if (spoolDir != null) {
+                spoolDir.mkdirs();
+                replaySpool();
+                journal = openJournal();
+            }
+        } catch (IOException e) {
+            throw new CloudRuntimeException(e);
+        }
+
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "search-index-pipeline");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        if (flusher != null) {
+            flusher.interrupt();
+            try {
+                flusher.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        lock.lock();
+        try {
+            closeJournal();
+            closeOverflow();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeOverflow() {
+        if (overflow != null) {
+            try {
+                overflow.close();
+            } catch (IOException e) {
+                logger.warn("unable to close the search index overflow file", e);
+            }
+            overflow = null;
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.warn("unable to close the search index journal", e);
+            }
+            journal = null;
+        }
+    }
+
+    private void enqueue(Collection<Change> changes) throws IOException {
+        if (journal != null) {
+            writeChanges(journal, changes);
+        }
+
+        for (Change c : changes) {
+            if (pending.put(c.key(), c) != null) {
+                coalescedChanges.incrementAndGet();
+            }
+        }
+        notEmpty.signal();
+    }
+
+    private void putChanges(List<Change> changes) {
+        lock.lock();
+        try {
+            queuedChanges.addAndGet(changes.size());
+
+            // without a spool folder there is nowhere to park the changes, the queue grows instead
+            if (spoolDir != null && (overflowing || pending.size() >= queueSize)) {
+                // don't hold the transaction waiting for ElasticSearch, see drainOverflow()
+                if (!overflowing) {
+                    logger.warn(String.format("search index queue is full, %s changes are queued; park new changes in the overflow file until it drains", pending.size()));
+                    overflowing = true;
+                }
+
+                if (overflow == null) {
+                    overflow = openOverflow();
+                }
+                writeChanges(overflow, changes);
+                overflows.addAndGet(changes.size());
+                return;
+            }
+
+            enqueue(changes);
+        } catch (IOException e) {
+            throw new CloudRuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * moves changes of the overflow file to the queue as long as the queue has room
+     */
+    private void drainOverflow() throws IOException {
+        lock.lock();
+        try {
+            if (!overflowing || pending.size() >= queueSize) {
+                return;
+            }
+
+            File f = new File(spoolDir, OVERFLOW_NAME);
+            List<Change> changes = new ArrayList<Change>();
+            boolean eof = false;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+            try {
+                for (long i = 0; i < overflowReplayed; i ++) {
+                    reader.readLine();
+                }
+
+                while (pending.size() + changes.size() < queueSize) {
+                    String line = reader.readLine();
+                    if (line == null) {
+                        eof = true;
+                        break;
+                    }
+
+                    overflowReplayed ++;
+                    Change c = Change.fromLine(line);
+                    if (c != null) {
+                        changes.add(c);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            // journal the changes before dropping the overflow file, a crash in between only replays them twice
+            enqueue(changes);
+
+            if (eof) {
+                closeOverflow();
+                FileUtils.deleteQuietly(f);
+                overflowing = false;
+                overflowReplayed = 0;
+                logger.debug("the search index overflow file is drained");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void index(String inventoryName, Collection<String> uuids) {
+        queue(Op.INDEX, inventoryName, uuids);
+    }
+
+    public void delete(String inventoryName, Collection<String> uuids) {
+        queue(Op.DELETE, inventoryName, uuids);
+    }
+
+    private void queue(Op op, String inventoryName, Collection<String> uuids) {
+        List<Change> changes = new ArrayList<Change>(uuids.size());
+        for (String uuid : uuids) {
+            if (uuid != null) {
+                changes.add(new Change(op, inventoryName, uuid));
+            }
+        }
+
+        if (!changes.isEmpty()) {
+            putChanges(changes);
+        }
+    }
+
+    /**
+     * @return the changes and the batch file holding them
+     */
+    private Map.Entry<Collection<Change>, File> takeChanges() throws InterruptedException, IOException {
+        lock.lock();
+        try {
+            while (pending.isEmpty()) {
+                notEmpty.await();
+            }
+
+            // coalesce changes coming in the window, unless the queue is filling up
+            long nanos = TimeUnit.MILLISECONDS.toNanos(coalesceWindow);
+            while (nanos > 0 && pending.size() < queueSize / 2) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+
+            Collection<Change> changes = pending.values();
+            pending = new LinkedHashMap<String, Change>();
+
+            File batch = null;
+            if (journal != null) {
+                closeJournal();
+                batch = batchFile(batchSeq ++);
+                if (!new File(spoolDir, JOURNAL_NAME).renameTo(batch)) {
+                    throw new IOException(String.format("unable to rename the search index journal to %s", batch.getAbsolutePath()));
+                }
+                journal = openJournal();
+            }
+
+            return new AbstractMap.SimpleEntry<Collection<Change>, File>(changes, batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String buildBulk(Collection<Change> changes) throws Exception {
+        Map<String, Set<String>> toIndex = new HashMap<String, Set<String>>();
+        ESBulkBuilder deletes = new ESBulkBuilder();
+        for (Change c : changes) {
+            if (c.op == Op.DELETE) {
+                deletes.addDeleteBulk(c.inventoryName.toLowerCase(), c.inventoryName, c.uuid);
+            } else {
+                Set<String> uuids = toIndex.get(c.inventoryName);
+                if (uuids == null) {
+                    uuids = new HashSet<String>();
+                    toIndex.put(c.inventoryName, uuids);
+                }
+                uuids.add(c.uuid);
+            }
+        }
+
+        final List<ESBulkBuilder> builders = new ArrayList<ESBulkBuilder>();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Runnable> jobs = new ArrayList<Runnable>();
+        for (Map.Entry<String, Set<String>> e : toIndex.entrySet()) {
+            final String inventoryName = e.getKey();
+            List<String> uuids = new ArrayList<String>(e.getValue());
+            for (int i = 0; i < uuids.size(); i += docBuildBatchSize) {
+                final Set<String> chunk = new HashSet<String>(uuids.subList(i, Math.min(i + docBuildBatchSize, uuids.size())));
+                final ESBulkBuilder builder = new ESBulkBuilder();
+                builders.add(builder);
+                jobs.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            backend.buildIndex(inventoryName, chunk, builder);
+                        } catch (Throwable t) {
+                            errors.add(t);
+                        }
+                    }
+                });
+            }
+        }
+
+        final CountDownLatch latch = new CountDownLatch(jobs.size());
+        for (final Runnable job : jobs) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        job.run();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        latch.await();
+
+        if (!errors.isEmpty()) {
+            throw new CloudRuntimeException("failed to build search index documents", errors.get(0));
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (ESBulkBuilder b : builders) {
+            if (!b.isEmpty()) {
+                sb.append(b.build());
+            }
+        }
+        if (!deletes.isEmpty()) {
+            sb.append(deletes.build());
+        }
+        return sb.toString();
+    }
+
+    private void backoff(int retry) throws InterruptedException {
+        long interval = Math.min(TimeUnit.SECONDS.toMillis(1) << Math.min(retry, 16), maxRetryInterval);
+        TimeUnit.MILLISECONDS.sleep(interval);
+    }
+
+    private void flush(Collection<Change> changes) throws InterruptedException {
+        String body = null;
+        for (int retry = 0; ; retry ++) {
+            try {
+                if (body == null) {
+                    body = buildBulk(changes);
+                }
+
+                if (!body.isEmpty()) {
+                    backend.sendBulk(body);
+                }
+                flushedChanges.addAndGet(changes.size());
+                return;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Throwable t) {
+                bulkRetries.incrementAndGet();
+                logger.warn(String.format("failed to index %s changes to ElasticSearch, retry later", changes.size()), t);
+                if (stopped) {
+                    throw new InterruptedException();
+                }
+                backoff(retry);
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (!stopped) {
+            try {
+                drainOverflow();
+                Map.Entry<Collection<Change>, File> batch = takeChanges();
+                flush(batch.getKey());
+                if (batch.getValue() != null) {
+                    FileUtils.deleteQuietly(batch.getValue());
+                }
+            } catch (InterruptedException e) {
+                // the batch file is kept and replayed on next start
+                if (stopped) {
+                    break;
+                }
+            } catch (Throwable t) {
+                logger.warn("unhandled exception in the search index pipeline", t);
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getQueuedChanges() {
+        return queuedChanges.get();
+    }
+
+    public long getCoalescedChanges() {
+        return coalescedChanges.get();
+    }
+
+    public long getFlushedChanges() {
+        return flushedChanges.get();
+    }
+
+    public long getBulkRetries() {
+        return bulkRetries.get();
+    }
+
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setCoalesceWindow(long coalesceWindow) {
+        this.coalesceWindow = coalesceWindow;
+    }
+
+    public void setDocBuildBatchSize(int docBuildBatchSize) {
+        this.docBuildBatchSize = docBuildBatchSize;
+    }
+
+    public void setMaxRetryInterval(long maxRetryInterval) {
+        this.maxRetryInterval = maxRetryInterval;
+    }
+
+    public void setSpoolDir(File spoolDir) {
+        this.spoolDir = spoolDir;
+    }
+}
@@ -0,0 +1,22 @@
+package org.zstack.search;
+
+import org.zstack.core.GlobalProperty;
+import org.zstack.core.GlobalPropertyDefinition;
+
+/**
+ */
+@GlobalPropertyDefinition
+public class SearchGlobalProperty {
+    @GlobalProperty(name="Search.indexPipeline.enable", defaultValue = "false")
+    public static boolean INDEX_PIPELINE_ENABLE;
+    @GlobalProperty(name="Search.indexPipeline.queueSize", defaultValue = "10000")
+    public static int INDEX_PIPELINE_QUEUE_SIZE;
+    @GlobalProperty(name="Search.indexPipeline.coalesceWindow", defaultValue = "500")
+    public static long INDEX_PIPELINE_COALESCE_WINDOW;
+    @GlobalProperty(name="Search.indexPipeline.docBuildBatchSize", defaultValue = "100")
+    public static int INDEX_PIPELINE_DOC_BUILD_BATCH_SIZE;
+    @GlobalProperty(name="Search.indexPipeline.maxRetryInterval", defaultValue = "60")
+    public static long INDEX_PIPELINE_MAX_RETRY_INTERVAL;
+    @GlobalProperty(name="Search.indexPipeline.spoolDir", defaultValue = "searchIndexSpool")
+    public static String INDEX_PIPELINE_SPOOL_DIR;
+}
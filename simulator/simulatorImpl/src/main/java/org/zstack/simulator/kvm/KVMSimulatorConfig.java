@@ -10,12 +10,15 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 public class KVMSimulatorConfig {
     public volatile boolean connectSuccess = true;
     public volatile String simulatorHostUuid;
     public volatile boolean connectException = false;
     public volatile boolean pingSuccess = true;
+    // milliseconds the agent takes to accept a ping request
+    public volatile long pingDelay = 0;
     public volatile boolean mountSuccess = true;
     public volatile boolean mountException = false;
     public volatile long totalDiskCapacity = SizeUnit.TERABYTE.toByte(100);
@@ -47,6 +50,15 @@ public class KVMSimulatorConfig {
     public volatile Map<String, SecurityGroupRuleTO> securityGroups = new HashMap<String, SecurityGroupRuleTO>();
     public volatile List<RefreshAllRulesOnHostCmd> securityGroupRefreshAllRulesOnHostCmds = new ArrayList<RefreshAllRulesOnHostCmd>();
     public volatile Map<String, KvmVmState> vms = new HashMap<String, KvmVmState>();
+    // delta vm sync, see VmSyncCmd; change vmSyncEpoch to simulate an agent restart
+    public volatile boolean vmSyncDeltaSupported = true;
+    public volatile String vmSyncEpoch = UUID.randomUUID().toString();
+    public volatile long vmSyncGeneration;
+    public volatile Map<Long, Map<String, String>> vmSyncSnapshots = new HashMap<Long, Map<String, String>>();
+    public volatile List<VmSyncCmd> vmSyncCmds = new ArrayList<VmSyncCmd>();
+    public volatile int vmSyncFullReplies;
+    public volatile int vmSyncDeltaReplies;
+    public volatile long vmSyncReplyBytes;
     public volatile int consolePort;
     public volatile KVMAgentCommands.StartVmCmd startVmCmd;
     public volatile Map<String, KVMAgentCommands.NicTO> attachedNics = new HashMap<String, KVMAgentCommands.NicTO>();
@@ -25,6 +25,7 @@ import org.zstack.utils.logging.CLogger;
 import javax.servlet.http.HttpServletRequest;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @Controller
 public class KVMSimulatorController {
@@ -102,7 +103,11 @@ public class KVMSimulatorController {
     }
 
     @RequestMapping(value=KVMConstant.KVM_PING_PATH, method=RequestMethod.POST)
-    public @ResponseBody String ping(HttpServletRequest req) {
+    public @ResponseBody String ping(HttpServletRequest req) throws InterruptedException {
+        if (config.pingDelay > 0) {
+            TimeUnit.MILLISECONDS.sleep(config.pingDelay);
+        }
+
         HttpEntity<String> entity = restf.httpServletRequestToHttpEntity(req);
         ping(entity);
         return null;
@@ -166,15 +171,55 @@ public class KVMSimulatorController {
         return null;
     }
     
+    // snapshots of vm states kept for delta vm sync
+    private static final int VM_SYNC_SNAPSHOT_NUM = 100;
+
     @AsyncThread
     private void doVmSync(HttpEntity<String> entity) {
         synchronized (config) {
+            VmSyncCmd cmd = JSONObjectUtil.toObject(entity.getBody(), VmSyncCmd.class);
+            config.vmSyncCmds.add(cmd);
+
             VmSyncResponse rsp = new VmSyncResponse();
             HashMap<String, String> vms = new HashMap<String, String>();
             for (Map.Entry<String, KvmVmState> e : config.vms.entrySet()) {
                 vms.put(e.getKey(), e.getValue().toString());
             }
-            rsp.setStates(vms);
+
+            if (!vms.equals(config.vmSyncSnapshots.get(config.vmSyncGeneration))) {
+                config.vmSyncGeneration ++;
+                config.vmSyncSnapshots.put(config.vmSyncGeneration, vms);
+                config.vmSyncSnapshots.remove(config.vmSyncGeneration - VM_SYNC_SNAPSHOT_NUM);
+            }
+            rsp.setEpoch(config.vmSyncEpoch);
+            rsp.setGeneration(config.vmSyncGeneration);
+
+            Map<String, String> base = null;
+            if (config.vmSyncDeltaSupported && config.vmSyncEpoch.equals(cmd.getEpoch()) && cmd.getGeneration() != null) {
+                base = config.vmSyncSnapshots.get(cmd.getGeneration());
+            }
+
+            if (base == null) {
+                rsp.setStates(vms);
+                config.vmSyncFullReplies ++;
+            } else {
+                HashMap<String, String> changes = new HashMap<String, String>();
+                for (Map.Entry<String, String> e : vms.entrySet()) {
+                    if (!e.getValue().equals(base.get(e.getKey()))) {
+                        changes.put(e.getKey(), e.getValue());
+                    }
+                }
+                for (String vmUuid : base.keySet()) {
+                    if (!vms.containsKey(vmUuid)) {
+                        changes.put(vmUuid, KvmVmState.Shutdown.toString());
+                    }
+                }
+                rsp.setStates(changes);
+                rsp.setDelta(true);
+                config.vmSyncDeltaReplies ++;
+            }
+
+            config.vmSyncReplyBytes += JSONObjectUtil.toJsonString(rsp).length();
             reply(entity, rsp);
         }
     }
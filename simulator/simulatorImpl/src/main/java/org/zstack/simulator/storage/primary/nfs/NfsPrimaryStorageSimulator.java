@@ -325,6 +325,27 @@ public class NfsPrimaryStorageSimulator {
         reply(entity, rsp);
     }
 
+    @RequestMapping(value=NfsPrimaryStorageKVMBackend.REBASE_SNAPSHOT_PATH, method=RequestMethod.POST)
+    private @ResponseBody String rebaseSnapshot(HttpServletRequest req) throws InterruptedException {
+        HttpEntity<String> entity = restf.httpServletRequestToHttpEntity(req);
+        rebaseSnapshot(entity);
+        return null;
+    }
+
+    @AsyncThread
+    private void rebaseSnapshot(HttpEntity<String> entity) {
+        RebaseSnapshotCmd cmd = JSONObjectUtil.toObject(entity.getBody(), RebaseSnapshotCmd.class);
+        RebaseSnapshotRsp rsp = new RebaseSnapshotRsp();
+        if (!config.rebaseSnapshotSuccess) {
+            rsp.setError("on purpose");
+            rsp.setSuccess(false);
+        } else {
+            config.rebaseSnapshotCmds.add(cmd);
+        }
+
+        reply(entity, rsp);
+    }
+
     @RequestMapping(value=NfsPrimaryStorageKVMBackend.MERGE_SNAPSHOT_PATH, method=RequestMethod.POST)
     private @ResponseBody String mergeSnapshot(HttpServletRequest req) throws InterruptedException {
         HttpEntity<String> entity = restf.httpServletRequestToHttpEntity(req);
@@ -31,6 +31,8 @@ public class NfsPrimaryStorageSimulatorConfig {
     public volatile List<MergeSnapshotCmd> mergeSnapshotCmds = new ArrayList<MergeSnapshotCmd>();
     public volatile boolean rebaseAndMergeSnapshotSuccess = true;
     public volatile List<RebaseAndMergeSnapshotsCmd> rebaseAndMergeSnapshotsCmds = new ArrayList<RebaseAndMergeSnapshotsCmd>();
+    public volatile boolean rebaseSnapshotSuccess = true;
+    public volatile List<RebaseSnapshotCmd> rebaseSnapshotCmds = new ArrayList<RebaseSnapshotCmd>();
     public volatile boolean revertVolumeFromSnapshotSuccess = true;
     public volatile List<RevertVolumeFromSnapshotCmd> revertVolumeFromSnapshotCmds = new ArrayList<RevertVolumeFromSnapshotCmd>();
     public volatile List<MoveBitsCmd> moveBitsCmds = new ArrayList<MoveBitsCmd>();
@@ -12,6 +12,7 @@ import org.zstack.core.thread.AsyncThread;
 import org.zstack.header.rest.RESTFacade;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.*;
 import org.zstack.network.service.virtualrouter.VirtualRouterConstant;
+import org.zstack.network.service.virtualrouter.VirtualRouterRuleSet;
 import org.zstack.network.service.virtualrouter.VirtualRouterKvmBackendCommands.CreateVritualRouterBootstrapIsoCmd;
 import org.zstack.network.service.virtualrouter.VirtualRouterKvmBackendCommands.CreateVritualRouterBootstrapIsoRsp;
 import org.zstack.network.service.virtualrouter.VirtualRouterKvmBackendCommands.DeleteVirtualRouterBootstrapIsoCmd;
@@ -23,6 +24,9 @@ import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 @Controller
 public class VirtualRouterSimulator {
@@ -346,6 +350,145 @@ public class VirtualRouterSimulator {
         replyer.reply(entity, rsp);
     }
 
+    @RequestMapping(value = VirtualRouterConstant.VR_BATCH_APPLY_PATH, method = RequestMethod.POST)
+    private @ResponseBody
+    String batchApply(HttpServletRequest req) {
+        HttpEntity<String> entity = restf.httpServletRequestToHttpEntity(req);
+        doBatchApply(entity);
+        return null;
+    }
+
+    @AsyncThread
+    private void doBatchApply(HttpEntity<String> entity) {
+        BatchApplyCmd cmd = JSONObjectUtil.toObject(entity.getBody(), BatchApplyCmd.class);
+        BatchApplyRsp rsp = new BatchApplyRsp();
+        if ((!cmd.getDhcpEntries().isEmpty() && !config.setDhcpEntrySuccess)
+                || (!cmd.getDns().isEmpty() && !config.setDnsSuccess)
+                || (!cmd.getSnats().isEmpty() && !config.setSNATSuccess)) {
+            rsp.setError("fail on purpose");
+            rsp.setSuccess(false);
+            replyer.reply(entity, rsp);
+            return;
+        }
+
+        if (!SimulatorGlobalProperty.NOT_CACHE_AGENT_COMMAND) {
+            synchronized (config) {
+                config.batchApplyCmds.add(cmd);
+                config.dhcpInfos.addAll(cmd.getDhcpEntries());
+                for (DhcpInfo info : cmd.getDhcpEntries()) {
+                    config.dhcpInfoMap.put(info.getMac(), info);
+                }
+                if (!cmd.getDns().isEmpty()) {
+                    config.dnsInfo.clear();
+                    config.dnsInfo.addAll(cmd.getDns());
+                }
+                config.snatInfos.addAll(cmd.getSnats());
+            }
+        }
+        logger.debug(String.format("successfully applied a batch of %s dhcp entries, %s dns and %s snat",
+                cmd.getDhcpEntries().size(), cmd.getDns().size(), cmd.getSnats().size()));
+        replyer.reply(entity, rsp);
+    }
+
+    @RequestMapping(value = VirtualRouterConstant.VR_GET_RULE_DIGEST_PATH, method = RequestMethod.POST)
+    private @ResponseBody
+    String getRuleDigest(HttpServletRequest req) {
+        HttpEntity<String> entity = restf.httpServletRequestToHttpEntity(req);
+        doGetRuleDigest(entity);
+        return null;
+    }
+
+    @AsyncThread
+    private void doGetRuleDigest(HttpEntity<String> entity) {
+        GetRuleDigestCmd cmd = JSONObjectUtil.toObject(entity.getBody(), GetRuleDigestCmd.class);
+        GetRuleDigestRsp rsp = new GetRuleDigestRsp();
+        rsp.setRuleSets(new HashMap<String, RuleSetDigest>());
+        synchronized (config) {
+            for (Map.Entry<String, String> e : cmd.getDigests().entrySet()) {
+                RuleSetDigest mine = config.ruleSets.get(e.getKey());
+                if (mine == null) {
+                    continue;
+                }
+
+                RuleSetDigest d = new RuleSetDigest();
+                d.setVersion(mine.getVersion());
+                d.setDigest(mine.getDigest());
+                if (!mine.getDigest().equals(e.getValue())) {
+                    d.setRules(new HashMap<String, String>(mine.getRules()));
+                }
+                rsp.getRuleSets().put(e.getKey(), d);
+            }
+        }
+        replyer.reply(entity, rsp);
+    }
+
+    @RequestMapping(value = VirtualRouterConstant.VR_SYNC_RULES_PATH, method = RequestMethod.POST)
+    private @ResponseBody
+    String syncRules(HttpServletRequest req) {
+        HttpEntity<String> entity = restf.httpServletRequestToHttpEntity(req);
+        doSyncRules(entity);
+        return null;
+    }
+
+    private <T> void applyRules(Map<String, T> rules, List<String> removed, Map<String, T> added) {
+        if (removed != null) {
+            for (String key : removed) {
+                rules.remove(key);
+            }
+        }
+        if (added != null) {
+            rules.putAll(added);
+        }
+    }
+
+    @AsyncThread
+    private void doSyncRules(HttpEntity<String> entity) {
+        SyncRulesCmd cmd = JSONObjectUtil.toObject(entity.getBody(), SyncRulesCmd.class);
+        SyncRulesRsp rsp = new SyncRulesRsp();
+        if (!config.syncRulesSuccess) {
+            rsp.setError("fail on purpose");
+            rsp.setSuccess(false);
+            replyer.reply(entity, rsp);
+            return;
+        }
+
+        synchronized (config) {
+            config.syncRulesCmds.add(cmd);
+            applyRules(config.syncedEips, cmd.getRemovedEips(), null);
+            applyRules(config.syncedPortForwardingRules, cmd.getRemovedPortForwardingRules(), null);
+            applyRules(config.syncedSnats, cmd.getRemovedSnats(), null);
+            applyRules(config.syncedVips, cmd.getRemovedVips(), cmd.getAddedVips());
+            applyRules(config.syncedSnats, null, cmd.getAddedSnats());
+            applyRules(config.syncedPortForwardingRules, null, cmd.getAddedPortForwardingRules());
+            applyRules(config.syncedEips, null, cmd.getAddedEips());
+
+            for (Map.Entry<String, RuleSetDigest> e : cmd.getRuleSets().entrySet()) {
+                RuleSetDigest mine = config.ruleSets.get(e.getKey());
+                Map<String, String> hashes = mine == null ? new HashMap<String, String>() : mine.getRules();
+                List<String> removed = null;
+                if (VirtualRouterRuleSet.VIP.equals(e.getKey())) {
+                    removed = cmd.getRemovedVips();
+                } else if (VirtualRouterRuleSet.SNAT.equals(e.getKey())) {
+                    removed = cmd.getRemovedSnats();
+                } else if (VirtualRouterRuleSet.PORT_FORWARDING.equals(e.getKey())) {
+                    removed = cmd.getRemovedPortForwardingRules();
+                } else if (VirtualRouterRuleSet.EIP.equals(e.getKey())) {
+                    removed = cmd.getRemovedEips();
+                }
+                applyRules(hashes, removed, e.getValue().getRules());
+
+                RuleSetDigest d = new RuleSetDigest();
+                d.setVersion(e.getValue().getVersion());
+                d.setDigest(e.getValue().getDigest());
+                d.setRules(hashes);
+                config.ruleSets.put(e.getKey(), d);
+            }
+        }
+
+        logger.debug(String.format("successfully synced rules%s", cmd.getRuleSets().keySet()));
+        replyer.reply(entity, rsp);
+    }
+
     @AsyncThread
     private void doConfigureNic(HttpEntity<String> entity) {
         ConfigureNicCmd cmd = JSONObjectUtil.toObject(entity.getBody(), ConfigureNicCmd.class);
@@ -32,4 +32,12 @@ public class VirtualRouterSimulatorConfig {
 	public volatile List<PortForwardingRuleTO> removedPortForwardingRules = new ArrayList<PortForwardingRuleTO>();
 	public volatile List<VipTO> vips = new ArrayList<VipTO>();
 	public volatile List<VipTO> removedVips = new ArrayList<VipTO>();
+    public volatile List<BatchApplyCmd> batchApplyCmds = new ArrayList<BatchApplyCmd>();
+    public volatile boolean syncRulesSuccess = true;
+    public volatile List<SyncRulesCmd> syncRulesCmds = new ArrayList<SyncRulesCmd>();
+    public volatile Map<String, RuleSetDigest> ruleSets = new HashMap<String, RuleSetDigest>();
+    public volatile Map<String, VipTO> syncedVips = new HashMap<String, VipTO>();
+    public volatile Map<String, SNATInfo> syncedSnats = new HashMap<String, SNATInfo>();
+    public volatile Map<String, PortForwardingRuleTO> syncedPortForwardingRules = new HashMap<String, PortForwardingRuleTO>();
+    public volatile Map<String, EipTO> syncedEips = new HashMap<String, EipTO>();
 }
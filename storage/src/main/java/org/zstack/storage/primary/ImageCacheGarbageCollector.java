@@ -113,6 +113,23 @@ public class ImageCacheGarbageCollector implements Component, ManagementNodeChan
         return ret;
     }
     
+    private void evictImageCacheRegistry(final ImageCacheVO ic) {
+        // the registry holding the image cache is on the management node owning the primary storage
+        EvictImageCacheMsg msg = new EvictImageCacheMsg();
+        msg.setPrimaryStorageUuid(ic.getPrimaryStorageUuid());
+        msg.setInstallUrl(ic.getInstallUrl());
+        bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, ic.getPrimaryStorageUuid());
+        bus.send(msg, new CloudBusCallBack() {
+            @Override
+            public void run(MessageReply reply) {
+                if (!reply.isSuccess()) {
+                    logger.warn(String.format("failed to evict image cache[id:%s, install url:%s] of primary storage[uuid:%s] from the image cache registry, %s",
+                            ic.getId(), ic.getInstallUrl(), ic.getPrimaryStorageUuid(), reply.getError()));
+                }
+            }
+        });
+    }
+
     private void deleteImageCacheOnPrimaryStorage(final ImageCacheVO ic) {
         PrimaryStorageRemoveCachedImageMsg msg = new PrimaryStorageRemoveCachedImageMsg();
         msg.setInventory(ImageCacheInventory.valueOf(ic));
@@ -126,6 +143,7 @@ public class ImageCacheGarbageCollector implements Component, ManagementNodeChan
             
             private void success() {
                 dbf.remove(ic);
+                evictImageCacheRegistry(ic);
                 logger.debug(String.format("successfully garbage collected image cache[id:%s, install url:%s] on primary storage[uuid:%s]", ic.getId(), ic.getInstallUrl(), ic.getPrimaryStorageUuid()));
             }
             
@@ -0,0 +1,219 @@
+package org.zstack.storage.primary;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.jmx.JmxFacade;
+import org.zstack.header.Component;
+import org.zstack.header.core.ReturnValueCompletion;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.storage.primary.ImageCacheInventory;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * image caches of primary storage known by this management node, keyed by image uuid.
+ *
+ * When imageCache.registry is enabled, a primary storage asks the registry for an image cache before creating a volume
+ * from it. A cached image cache is returned without any DB access. Otherwise the first requester loads the image cache,
+ * which queries ImageCacheVO and downloads the image if needed, and requesters coming during the load wait for its result
+ * instead of queuing duplicate download jobs.
+ *
+ * Messages to a primary storage are routed to the same management node, so the registry must only be used while
+ * handling messages of the primary storage; then one registry sees all its requests. Code running on other nodes,
+ * for example PreVmInstantiateResourceExtensionPoint of the nfs primary storage attaching ISOs, must query ImageCacheVO
+ * instead. The registry must be evicted on the owning node wherever ImageCacheVO is removed, for example by sending
+ * EvictImageCacheMsg to the primary storage, see ImageCacheGarbageCollector.
+ */
+public class ImageCacheRegistry implements Component, ImageCacheRegistryMXBean {
+    private static final CLogger logger = Utils.getLogger(ImageCacheRegistry.class);
+
+    @Autowired
+    private JmxFacade jmxf;
+
+    private final Map<String, PrimaryStorageCache> caches = new HashMap<String, PrimaryStorageCache>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalescedRequests = new AtomicLong();
+
+    public interface ImageCacheLoader {
+        void load(ReturnValueCompletion<ImageCacheInventory> completion);
+    }
+
+    private static class Download {
+        final List<ReturnValueCompletion<ImageCacheInventory>> waiters = new ArrayList<ReturnValueCompletion<ImageCacheInventory>>();
+        // evicted during the download, the result is not cached
+        boolean stale;
+    }
+
+    private static class PrimaryStorageCache {
+        final Map<String, ImageCacheInventory> images = new HashMap<String, ImageCacheInventory>();
+        final Map<String, Download> downloads = new HashMap<String, Download>();
+    }
+
+    public static boolean isEnabled() {
+        return PrimaryStorageGlobalConfig.IMAGE_CACHE_REGISTRY.value(Boolean.class);
+    }
+
+    private PrimaryStorageCache getCache(String psUuid) {
+        synchronized (caches) {
+            PrimaryStorageCache cache = caches.get(psUuid);
+            if (cache == null) {
+                cache = new PrimaryStorageCache();
+                caches.put(psUuid, cache);
+            }
+            return cache;
+        }
+    }
+
+    public void get(String psUuid, final String imageUuid, ImageCacheLoader loader, ReturnValueCompletion<ImageCacheInventory> completion) {
+        final PrimaryStorageCache cache = getCache(psUuid);
+        final Download download;
+        ImageCacheInventory inv;
+        synchronized (cache) {
+            inv = cache.images.get(imageUuid);
+            if (inv == null) {
+                Download d = cache.downloads.get(imageUuid);
+                if (d != null) {
+                    coalescedRequests.incrementAndGet();
+                    d.waiters.add(completion);
+                    return;
+                }
+
+                misses.incrementAndGet();
+                download = new Download();
+                download.waiters.add(completion);
+                cache.downloads.put(imageUuid, download);
+            } else {
+                download = null;
+            }
+        }
+
+        if (inv != null) {
+            hits.incrementAndGet();
+            completion.success(inv);
+            return;
+        }
+
+        loader.load(new ReturnValueCompletion<ImageCacheInventory>() {
+            private List<ReturnValueCompletion<ImageCacheInventory>> done(ImageCacheInventory inv) {
+                synchronized (cache) {
+                    cache.downloads.remove(imageUuid);
+                    if (inv != null && !download.stale) {
+                        cache.images.put(imageUuid, inv);
+                    }
+                    return download.waiters;
+                }
+            }
+
+            @Override
+            public void success(ImageCacheInventory inv) {
+                for (ReturnValueCompletion<ImageCacheInventory> c : done(inv)) {
+                    c.success(inv);
+                }
+            }
+
+            @Override
+            public void fail(ErrorCode errorCode) {
+                for (ReturnValueCompletion<ImageCacheInventory> c : done(null)) {
+                    c.fail(errorCode);
+                }
+            }
+        });
+    }
+
+    public void evict(String psUuid, String imageUuid) {
+        PrimaryStorageCache cache = getCache(psUuid);
+        synchronized (cache) {
+            cache.images.remove(imageUuid);
+            Download d = cache.downloads.get(imageUuid);
+            if (d != null) {
+                d.stale = true;
+            }
+        }
+    }
+
+    public void evictByInstallUrl(String psUuid, String installUrl) {
+        PrimaryStorageCache cache = getCache(psUuid);
+        synchronized (cache) {
+            Iterator<ImageCacheInventory> it = cache.images.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().getInstallUrl().equals(installUrl)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void evictPrimaryStorage(String psUuid) {
+        PrimaryStorageCache cache;
+        synchronized (caches) {
+            cache = caches.remove(psUuid);
+        }
+
+        if (cache != null) {
+            synchronized (cache) {
+                for (Download d : cache.downloads.values()) {
+                    d.stale = true;
+                }
+            }
+            logger.debug(String.format("evicted all image caches of primary storage[uuid:%s]", psUuid));
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getCoalescedRequests() {
+        return coalescedRequests.get();
+    }
+
+    private List<PrimaryStorageCache> allCaches() {
+        synchronized (caches) {
+            return new ArrayList<PrimaryStorageCache>(caches.values());
+        }
+    }
+
+    @Override
+    public int getInFlightDownloads() {
+        int ret = 0;
+        for (PrimaryStorageCache cache : allCaches()) {
+            synchronized (cache) {
+                ret += cache.downloads.size();
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public int getCachedImages() {
+        int ret = 0;
+        for (PrimaryStorageCache cache : allCaches()) {
+            synchronized (cache) {
+                ret += cache.images.size();
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean start() {
+        jmxf.registerBean("ImageCacheRegistry", this);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+}
@@ -0,0 +1,15 @@
+package org.zstack.storage.primary;
+
+/**
+ */
+public interface ImageCacheRegistryMXBean {
+    long getHits();
+
+    long getMisses();
+
+    long getCoalescedRequests();
+
+    int getInFlightDownloads();
+
+    int getCachedImages();
+}
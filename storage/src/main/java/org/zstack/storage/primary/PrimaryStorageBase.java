@@ -56,6 +56,8 @@ public abstract class PrimaryStorageBase extends AbstractPrimaryStorage {
     @Autowired
     protected InventoryFacade invf;
     @Autowired
+    protected ImageCacheRegistry imageCacheRegistry;
+    @Autowired
     protected CascadeFacade casf;
     @Autowired
     protected ErrorFacade errf;
@@ -138,6 +140,8 @@ public abstract class PrimaryStorageBase extends AbstractPrimaryStorage {
             handle((DeleteBitsOnPrimaryStorageMsg) msg);
         } else if (msg instanceof ConnectPrimaryStorageMsg) {
             handle((ConnectPrimaryStorageMsg)msg);
+        } else if (msg instanceof EvictImageCacheMsg) {
+            handle((EvictImageCacheMsg) msg);
 	    } else {
 	        bus.dealWithUnknownMessage(msg);
 	    }
@@ -241,12 +245,18 @@ public abstract class PrimaryStorageBase extends AbstractPrimaryStorage {
         PrimaryStorageInventory inv = PrimaryStorageInventory.valueOf(self);
         extpEmitter.beforeDelete(inv);
         deleteHook();
+        imageCacheRegistry.evictPrimaryStorage(self.getUuid());
         extpEmitter.afterDelete(inv);
 
         PrimaryStorageDeletionReply reply = new PrimaryStorageDeletionReply();
         bus.reply(msg, reply);
     }
 
+    private void handle(EvictImageCacheMsg msg) {
+        imageCacheRegistry.evictByInstallUrl(self.getUuid(), msg.getInstallUrl());
+        bus.reply(msg, new EvictImageCacheReply());
+    }
+
     @Transactional
     private void updateCapacity(long total, long avail) {
         PrimaryStorageCapacityVO cvo = dbf.getEntityManager().find(PrimaryStorageCapacityVO.class, self.getUuid(), LockModeType.PESSIMISTIC_WRITE);
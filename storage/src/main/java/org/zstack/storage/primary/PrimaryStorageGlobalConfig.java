@@ -14,4 +14,6 @@ public class PrimaryStorageGlobalConfig {
     public static GlobalConfig IMAGE_CACHE_GARBAGE_COLLECTOR_INTERVAL = new GlobalConfig(CATEGORY, "imageCache.garbageCollector.interval");
     @GlobalConfigValidation
     public static GlobalConfig RESERVED_CAPACITY = new GlobalConfig(CATEGORY, "reservedCapacity");
+    @GlobalConfigValidation
+    public static GlobalConfig IMAGE_CACHE_REGISTRY = new GlobalConfig(CATEGORY, "imageCache.registry");
 }
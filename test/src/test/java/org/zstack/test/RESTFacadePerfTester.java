@@ -0,0 +1,165 @@
+package org.zstack.test;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.Task;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.core.thread.ThreadFacadeImpl;
+import org.zstack.core.thread.ThreadGlobalProperty;
+import org.zstack.core.thread.ThreadPoolStatistic;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.rest.JsonAsyncRESTCallback;
+import org.zstack.header.rest.RESTFacade;
+import org.zstack.kvm.KVMAgentCommands.PingCmd;
+import org.zstack.kvm.KVMAgentCommands.PingResponse;
+import org.zstack.kvm.KVMConstant;
+import org.zstack.kvm.KVMHostFactory;
+import org.zstack.simulator.kvm.KVMSimulatorConfig;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.zstack.utils.StringDSL.ln;
+
+/**
+ * send {total} async agent calls to a simulated KVM agent taking {delay} ms to accept each request, from ThreadFacade
+ * threads, in the I/O mode given by {blockingIOMode}(shared or elastic). Reports the throughput and how long a task
+ * submitted during the load waits for a thread.
+ *
+ * e.g. mvn test -Dtest=RESTFacadePerfTester -Dtotal=5000 -Ddelay=200 -DblockingIOMode=elastic
+ */
+public class RESTFacadePerfTester {
+    Deployer deployer;
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    RESTFacade restf;
+    KVMSimulatorConfig config;
+    int total;
+    long delay;
+    int timeout;
+    String mode;
+    CountDownLatch latch;
+    AtomicInteger success = new AtomicInteger();
+    AtomicLong maxInFlight = new AtomicLong();
+    AtomicLong inFlight = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        total = Integer.valueOf(System.getProperty("total", "2000"));
+        delay = Long.valueOf(System.getProperty("delay", "200"));
+        timeout = Integer.valueOf(System.getProperty("timeout", "10"));
+        mode = System.getProperty("blockingIOMode", "elastic");
+        ThreadGlobalProperty.BLOCKING_IO_MODE = mode;
+
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/kvm/TestCreateVmOnKvm.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        loader = deployer.getComponentLoader();
+        thdf = loader.getComponent(ThreadFacade.class);
+        restf = loader.getComponent(RESTFacade.class);
+        config = loader.getComponent(KVMSimulatorConfig.class);
+    }
+
+    @After
+    public void tearDown() {
+        ThreadGlobalProperty.BLOCKING_IO_MODE = "shared";
+        config.pingDelay = 0;
+    }
+
+    private void call(final String url) {
+        long n = inFlight.incrementAndGet();
+        long max;
+        while (n > (max = maxInFlight.get())) {
+            if (maxInFlight.compareAndSet(max, n)) {
+                break;
+            }
+        }
+
+        restf.asyncJsonPost(url, new PingCmd(), new JsonAsyncRESTCallback<PingResponse>() {
+            @Override
+            public void fail(ErrorCode err) {
+                inFlight.decrementAndGet();
+                latch.countDown();
+            }
+
+            @Override
+            public void success(PingResponse ret) {
+                inFlight.decrementAndGet();
+                success.incrementAndGet();
+                latch.countDown();
+            }
+
+            @Override
+            public Class<PingResponse> getReturnClass() {
+                return PingResponse.class;
+            }
+        });
+    }
+
+    @Test
+    public void test() throws Exception {
+        HostInventory host = deployer.hosts.get("host1");
+        KVMHostFactory factory = loader.getComponent(KVMHostFactory.class);
+        final String url = factory.getHostContext(host.getUuid()).buildUrl(KVMConstant.KVM_PING_PATH);
+        config.pingDelay = delay;
+
+        latch = new CountDownLatch(total);
+        long start = System.currentTimeMillis();
+        for (int i=0; i<total; i++) {
+            thdf.submit(new Task<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    RESTFacadePerfTester.this.call(url);
+                    return null;
+                }
+
+                @Override
+                public String getName() {
+                    return "perf-agent-call";
+                }
+            });
+        }
+
+        // how long a task waits for a thread while the load is running
+        final long submitTime = System.currentTimeMillis();
+        long wait = thdf.submit(new Task<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return System.currentTimeMillis() - submitTime;
+            }
+
+            @Override
+            public String getName() {
+                return "perf-probe";
+            }
+        }).get(timeout, TimeUnit.MINUTES);
+
+        latch.await(timeout, TimeUnit.MINUTES);
+        long totalTime = System.currentTimeMillis() - start;
+        Assert.assertEquals(total, success.get());
+
+        ThreadPoolStatistic io = ((ThreadFacadeImpl) thdf).getElasticIOThreadPoolStatistic();
+        String info = ln(
+                "Sent {0} agent calls with {1} I/O mode, agent delay: {2} ms",
+                "Total Time: {3} ms",
+                "Throughput: {4} calls/sec",
+                "Max In-flight Calls: {5}",
+                "Probe Task Waited: {6} ms",
+                "Elastic I/O Threads: {7}"
+        ).format(total, mode, delay, totalTime,
+                total * 1000 / Math.max(totalTime, 1),
+                maxInFlight.get(), wait, io.getTotalThreadNum()
+        );
+
+        System.out.println(info);
+    }
+}
@@ -0,0 +1,111 @@
+package org.zstack.test.compute.host;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.host.HostGlobalConfig;
+import org.zstack.compute.host.HostTrackImpl;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.cluster.ClusterInventory;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.host.HostStatus;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.simulator.SimulatorController;
+import org.zstack.test.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.zstack.utils.CollectionDSL.list;
+
+/**
+ * 1. set ping.adaptive to true, ping.interval to 3 seconds, ping.suspectInterval to 1 second
+ * 2. create 10 hosts
+ *
+ * confirm all hosts are tracked and pinged
+ * confirm hosts are not pinged all at the same second
+ *
+ * 3. disconnect a host
+ *
+ * confirm the host becomes Disconnected and is suspect
+ *
+ * 4. connect the host again
+ *
+ * confirm the host becomes Connected and is no longer suspect
+ */
+public class TestPingTaskAdaptive {
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    SimulatorController sctrl;
+    HostTrackImpl tracker;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml").addXml("ClusterManager.xml")
+                .addXml("ZoneManager.xml").addXml("HostManager.xml")
+                .addXml("Simulator.xml").addXml("AccountManager.xml")
+                .addXml("HostAllocatorManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        sctrl = loader.getComponent(SimulatorController.class);
+        tracker = loader.getComponent(HostTrackImpl.class);
+        HostGlobalConfig.PING_SUSPECT_INTERVAL.updateValue(1);
+        HostGlobalConfig.PING_HOST_INTERVAL.updateValue(3);
+        HostGlobalConfig.PING_ADAPTIVE.updateValue(true);
+        api = new Api();
+        api.startServer();
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        ZoneInventory zone = api.createZones(1).get(0);
+        ClusterInventory cluster = api.createClusters(1, zone.getUuid()).get(0);
+        List<HostInventory> hosts = api.createHost(10, cluster.getUuid());
+        HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.updateValue(false);
+
+        long pings = tracker.getPingCount();
+        long maxPingsInSecond = 0;
+        for (int i=0; i<4; i++) {
+            TimeUnit.SECONDS.sleep(1);
+            long now = tracker.getPingCount();
+            maxPingsInSecond = Math.max(maxPingsInSecond, now - pings);
+            pings = now;
+        }
+        Assert.assertEquals(10, tracker.getTrackedHostNum());
+        Assert.assertTrue(tracker.getPingCount() >= 10);
+        Assert.assertTrue(maxPingsInSecond < 10);
+        long total = 0;
+        for (long n : tracker.getPingLatencyHistogram()) {
+            total += n;
+        }
+        Assert.assertEquals(tracker.getPingCount(), total);
+
+        HostInventory host = hosts.get(0);
+        sctrl.setSimulatorHostConnectionState(host.getUuid(), true);
+        waitForHost(host.getUuid(), HostStatus.Disconnected, 1);
+        Assert.assertTrue(tracker.getPingFailureCount() > 0);
+
+        sctrl.setSimulatorHostConnectionState(host.getUuid(), false);
+        waitForHost(host.getUuid(), HostStatus.Connected, 0);
+    }
+
+    private void waitForHost(String hostUuid, HostStatus status, int suspectHostNum) throws ApiSenderException, InterruptedException {
+        AssertionError error = null;
+        for (int i=0; i<10; i++) {
+            try {
+                HostInventory h = api.listHosts(list(hostUuid)).get(0);
+                Assert.assertEquals(status.toString(), h.getStatus());
+                Assert.assertEquals(suspectHostNum, tracker.getSuspectHostNum());
+                return;
+            } catch (AssertionError e) {
+                error = e;
+            }
+            TimeUnit.SECONDS.sleep(1);
+        }
+        throw error;
+    }
+}
@@ -0,0 +1,151 @@
+package org.zstack.test.compute.hostallocator;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.compute.allocator.HostAllocatorGlobalConfig;
+import org.zstack.compute.allocator.HostCapacityIndex;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.allocator.HostAllocatorConstant;
+import org.zstack.header.allocator.HostCapacityVO;
+import org.zstack.header.apimediator.ApiMediatorConstant;
+import org.zstack.header.cluster.ClusterInventory;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.host.APIAddHostEvent;
+import org.zstack.header.host.HostVO;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.simulator.APIAddSimulatorHostMsg;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.test.*;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.data.SizeUnit;
+import org.zstack.utils.network.NetworkUtils;
+
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * 1. enable host capacity index
+ * 2. add 5 hosts and create 12 vms with the least vm preferred strategy
+ *
+ * confirm vms are equally distributed and the index agrees with the database
+ *
+ * 3. destroy a vm
+ *
+ * confirm the index agrees with the database
+ */
+public class TestHostCapacityIndex {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    HostCapacityIndex capacityIndex;
+    int hostNum = 5;
+    int vmNum = 12;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/hostAllocator/TestHostAllocator.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        capacityIndex = loader.getComponent(HostCapacityIndex.class);
+        HostAllocatorGlobalConfig.CAPACITY_INDEX_ENABLE.updateValue(true);
+    }
+
+    private Map<String, Long> countVms() {
+        List<Tuple> ts = new Callable<List<Tuple>>() {
+            @Override
+            @Transactional(readOnly = true)
+            public List<Tuple> call() {
+                String sql = "select vm.hostUuid, count(vm) from VmInstanceVO vm where vm.hostUuid is not null group by vm.hostUuid";
+                TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+                return q.getResultList();
+            }
+        }.call();
+
+        Map<String, Long> ret = new HashMap<String, Long>();
+        for (Tuple t : ts) {
+            ret.put(t.get(0, String.class), t.get(1, Long.class));
+        }
+        return ret;
+    }
+
+    private void checkIndex(InstanceOfferingInventory ios) {
+        Map<String, Long> vmNums = countVms();
+        long cpu = ios.getCpuNum() * ios.getCpuSpeed();
+        for (HostVO host : dbf.listAll(HostVO.class)) {
+            Assert.assertTrue(capacityIndex.isIndexed(host.getUuid()));
+            Long num = vmNums.get(host.getUuid());
+            Assert.assertEquals(num == null ? 0 : num.longValue(), capacityIndex.getVmNumber(host.getUuid()));
+
+            HostCapacityVO cap = dbf.findByUuid(host.getUuid(), HostCapacityVO.class);
+            Assert.assertEquals(cap.getAvailableCpu() >= cpu && cap.getAvailableMemory() >= ios.getMemorySize(),
+                    capacityIndex.hasCapacity(host.getUuid(), cpu, ios.getMemorySize()));
+            Assert.assertFalse(capacityIndex.hasCapacity(host.getUuid(), cap.getAvailableCpu() + 1, 0));
+        }
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        L3NetworkInventory l3 = deployer.l3Networks.get("l3Network1");
+        ImageInventory imageInventory = deployer.images.get("image1");
+        ClusterInventory cluster = deployer.clusters.get("cluster1");
+        InstanceOfferingInventory ios = new InstanceOfferingInventory();
+        ios.setName("leastVmPreferred");
+        ios.setAllocatorStrategy(HostAllocatorConstant.LEAST_VM_PREFERRED_HOST_ALLOCATOR_STRATEGY_TYPE);
+        ios.setCpuNum(1);
+        ios.setCpuSpeed(512);
+        ios.setMemorySize(SizeUnit.MEGABYTE.toByte(512));
+        ios = api.addInstanceOffering(ios);
+
+        long sip = NetworkUtils.ipv4StringToLong("192.168.0.1");
+        for (int i=0; i<hostNum; i++) {
+            APIAddSimulatorHostMsg amsg = new APIAddSimulatorHostMsg();
+            amsg.setCpuCapacity(8*2600);
+            amsg.setMemoryCapacity(SizeUnit.GIGABYTE.toByte(32));
+            amsg.setClusterUuid(cluster.getUuid());
+            amsg.setManagementIp(NetworkUtils.longToIpv4String(sip + i));
+            amsg.setName(String.format("h%s", i));
+            amsg.setServiceId(ApiMediatorConstant.SERVICE_ID);
+            amsg.setSession(api.getAdminSession());
+            ApiSender sender = new ApiSender();
+            sender.send(amsg, APIAddHostEvent.class);
+        }
+
+        List<VmInstanceInventory> vms = new ArrayList<VmInstanceInventory>();
+        for (int i=0; i<vmNum; i++) {
+            VmCreator creator = new VmCreator(api);
+            creator.addL3Network(l3.getUuid());
+            creator.imageUuid = imageInventory.getUuid();
+            creator.instanceOfferingUuid = ios.getUuid();
+            vms.add(creator.create());
+        }
+
+        Map<String, Long> vmNums = countVms();
+        Assert.assertEquals(hostNum + 1, vmNums.size());
+        for (long num : vmNums.values()) {
+            Assert.assertEquals(vmNum / (hostNum + 1), num);
+        }
+        checkIndex(ios);
+
+        api.destroyVmInstance(vms.get(0).getUuid());
+        checkIndex(ios);
+
+        capacityIndex.rebuild();
+        checkIndex(ios);
+    }
+}
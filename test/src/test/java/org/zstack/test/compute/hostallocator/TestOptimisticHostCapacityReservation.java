@@ -0,0 +1,107 @@
+package org.zstack.test.compute.hostallocator;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.allocator.HostAllocatorGlobalConfig;
+import org.zstack.compute.allocator.HostCapacityReservationLedger;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.allocator.HostCapacityVO;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.test.*;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. enable optimistic reservation
+ * 2. create a vm
+ *
+ * confirm capacity is reserved
+ *
+ * 3. destroy the vm
+ *
+ * confirm capacity is returned
+ *
+ * 4. reserve capacity on the host from 60 threads, only 40 of them fit
+ *
+ * confirm exactly 40 reservations succeed and the capacity is right
+ */
+public class TestOptimisticHostCapacityReservation {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    HostCapacityReservationLedger ledger;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/hostAllocator/TestHostAllocator.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        ledger = loader.getComponent(HostCapacityReservationLedger.class);
+        HostAllocatorGlobalConfig.OPTIMISTIC_RESERVATION.updateValue(true);
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        L3NetworkInventory l3 = deployer.l3Networks.get("l3Network1");
+        InstanceOfferingInventory instanceOffering = deployer.instanceOfferings.get("instanceOffering512M512HZ");
+        ImageInventory imageInventory = deployer.images.get("image1");
+        final HostInventory host = deployer.hosts.get("host1");
+
+        VmCreator creator = new VmCreator(api);
+        creator.addL3Network(l3.getUuid());
+        creator.imageUuid = imageInventory.getUuid();
+        creator.instanceOfferingUuid = instanceOffering.getUuid();
+        VmInstanceInventory vm = creator.create();
+        HostCapacityVO cvo = dbf.findByUuid(vm.getHostUuid(), HostCapacityVO.class);
+        Assert.assertEquals(instanceOffering.getCpuNum() * instanceOffering.getCpuSpeed(), cvo.getUsedCpu());
+        Assert.assertEquals(instanceOffering.getMemorySize(), cvo.getUsedMemory());
+        Assert.assertTrue(ledger.getOptimisticReservations() > 0);
+
+        api.destroyVmInstance(vm.getUuid());
+        cvo = dbf.findByUuid(vm.getHostUuid(), HostCapacityVO.class);
+        Assert.assertEquals(0, cvo.getUsedCpu());
+        Assert.assertEquals(0, cvo.getUsedMemory());
+
+        final long cpu = cvo.getTotalCpu() / 40;
+        final long memory = cvo.getTotalMemory() / 60;
+        int threadNum = 60;
+        final AtomicInteger success = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(threadNum);
+        for (int i=0; i<threadNum; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (ledger.reserve(host.getUuid(), cpu, memory)) {
+                            success.incrementAndGet();
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        Assert.assertTrue(latch.await(120, TimeUnit.SECONDS));
+        Assert.assertEquals(40, success.get());
+        cvo = dbf.findByUuid(host.getUuid(), HostCapacityVO.class);
+        Assert.assertEquals(cvo.getTotalCpu() - 40 * cpu, cvo.getAvailableCpu());
+        Assert.assertEquals(cvo.getTotalMemory() - 40 * memory, cvo.getAvailableMemory());
+    }
+}
@@ -0,0 +1,89 @@
+package org.zstack.test.compute.zone;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.query.QueryOp;
+import org.zstack.header.zone.APIQueryZoneMsg;
+import org.zstack.header.zone.APIQueryZoneReply;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.query.MysqlQueryBuilderImpl3;
+import org.zstack.query.QueryPlanCacheStatistic;
+import org.zstack.query.QueryStatistic;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+/**
+ * 1. query zones by name with 5 different names
+ * 2. query zones by names in a list of 2 names then a list of 3 names
+ *
+ * confirm every query returns zones matching its own values
+ * confirm queries of the same shape share the cached query plan
+ * confirm the latency of ZoneInventory queries is counted
+ */
+public class TestQueryZone2 {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    MysqlQueryBuilderImpl3 builder;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        // initialize properties
+        Platform.getUuid();
+        CoreGlobalProperty.CHECK_BOX_TYPE_IN_INVENTORY = true;
+
+        deployer = new Deployer("deployerXml/zone/TestQueryZone.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        builder = loader.getComponent(MysqlQueryBuilderImpl3.class);
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        QueryPlanCacheStatistic before = builder.getQueryPlanCacheStatistic();
+
+        for (int i=1; i<=5; i++) {
+            String name = String.format("Zone%s", i);
+            APIQueryZoneMsg msg = new APIQueryZoneMsg();
+            msg.addQueryCondition("name", QueryOp.EQ, name);
+            APIQueryZoneReply reply = api.query(msg, APIQueryZoneReply.class);
+            Assert.assertEquals(1, reply.getInventories().size());
+            ZoneInventory zone = reply.getInventories().get(0);
+            Assert.assertEquals(name, zone.getName());
+        }
+
+        APIQueryZoneMsg msg = new APIQueryZoneMsg();
+        msg.addQueryCondition("name", QueryOp.IN, "Zone1,Zone2");
+        APIQueryZoneReply reply = api.query(msg, APIQueryZoneReply.class);
+        Assert.assertEquals(2, reply.getInventories().size());
+
+        msg = new APIQueryZoneMsg();
+        msg.addQueryCondition("name", QueryOp.IN, "Zone3,Zone4,Zone5");
+        reply = api.query(msg, APIQueryZoneReply.class);
+        Assert.assertEquals(3, reply.getInventories().size());
+        for (ZoneInventory zone : reply.getInventories()) {
+            Assert.assertTrue(zone.getName().equals("Zone3") || zone.getName().equals("Zone4") || zone.getName().equals("Zone5"));
+        }
+
+        QueryPlanCacheStatistic after = builder.getQueryPlanCacheStatistic();
+        Assert.assertEquals(2, after.getMisses() - before.getMisses());
+        Assert.assertEquals(5, after.getHits() - before.getHits());
+
+        QueryStatistic zoneStat = null;
+        for (QueryStatistic s : builder.getQueryStatistics()) {
+            if (ZoneInventory.class.getSimpleName().equals(s.getInventoryName())) {
+                zoneStat = s;
+            }
+        }
+        Assert.assertNotNull(zoneStat);
+        Assert.assertTrue(zoneStat.getCount() >= 7);
+    }
+}
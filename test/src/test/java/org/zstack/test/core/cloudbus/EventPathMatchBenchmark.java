@@ -0,0 +1,121 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.EventPathTrie;
+import org.zstack.core.cloudbus.EventPathTrie.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.zstack.utils.StringDSL.ln;
+
+/**
+ * matches {events} event paths against {subscriptions} subscriptions, by scanning all subscriptions with
+ * String.matches() as EventFacadeImpl did before, and by EventPathTrie. Most subscriptions are on concrete paths like
+ * the ones AutoOffEventCallback registers for in-flight operations, a few have tokens and wildcards.
+ * Not in any test suite, e.g.
+ *
+ * mvn test -Dtest=EventPathMatchBenchmark -Dsubscriptions=10000 -Devents=2000
+ */
+public class EventPathMatchBenchmark {
+    int subscriptionNum;
+    int eventNum;
+    List<String> paths = new ArrayList<String>();
+    List<String> events = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+        subscriptionNum = Integer.valueOf(System.getProperty("subscriptions", "10000"));
+        eventNum = Integer.valueOf(System.getProperty("events", "2000"));
+
+        for (int i=0; i<subscriptionNum; i++) {
+            if (i % 100 == 0) {
+                paths.add(String.format("/globalConfig/update/category%s/{name}/{nodeUuid}", i));
+            } else if (i % 100 == 1) {
+                paths.add(String.format("/vmTracer/*/%s", i));
+            } else {
+                paths.add(String.format("/resource/unlock/%s", i));
+            }
+        }
+
+        for (int i=0; i<eventNum; i++) {
+            int n = (i * 7919) % subscriptionNum;
+            events.add(i % 2 == 0 ? String.format("/resource/unlock/%s", n) : String.format("/globalConfig/update/category%s/name/node", n - n % 100));
+        }
+    }
+
+    private String createRegexFromGlob(String glob) {
+        String out = "^";
+        for(int i = 0; i < glob.length(); ++i) {
+            final char c = glob.charAt(i);
+            switch(c) {
+                case '*': out += ".*"; break;
+                case '?': out += '.'; break;
+                case '\\': out += "\\\\"; break;
+                default: out += c;
+            }
+        }
+        out += '$';
+        return out;
+    }
+
+    private long runRegexScan() {
+        List<String> globs = new ArrayList<String>();
+        for (String p : paths) {
+            globs.add(createRegexFromGlob(p.replaceAll("\\{.*\\}", ".*")));
+        }
+
+        long matched = 0;
+        for (String e : events) {
+            for (String glob : globs) {
+                if (e.matches(glob)) {
+                    matched ++;
+                }
+            }
+        }
+        return matched;
+    }
+
+    private long runTrie() {
+        EventPathTrie<String> trie = new EventPathTrie<String>();
+        for (String p : paths) {
+            trie.add(p, p);
+        }
+
+        long matched = 0;
+        for (String e : events) {
+            String[] segments = EventPathTrie.split(e);
+            for (Subscription<String> s : trie.match(segments)) {
+                Map<String, String> tokens = s.getTokens(segments);
+                if (tokens != null) {
+                    matched ++;
+                }
+            }
+        }
+        return matched;
+    }
+
+    @Test
+    public void test() {
+        // warm up
+        runTrie();
+
+        long start = System.nanoTime();
+        long regexMatched = runRegexScan();
+        long regexTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long trieMatched = runTrie();
+        long trieTime = System.nanoTime() - start;
+
+        Assert.assertEquals(regexMatched, trieMatched);
+        System.out.println(ln(
+                "Matched {0} events against {1} subscriptions",
+                "  Regex Scan: {2} us/event",
+                "  Path Trie: {3} us/event"
+        ).format(eventNum, subscriptionNum, regexTime / 1000 / eventNum, trieTime / 1000 / eventNum));
+    }
+}
@@ -0,0 +1,74 @@
+package org.zstack.test.core.cloudbus;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.BinaryMessageCodec;
+import org.zstack.core.cloudbus.JsonMessageCodec;
+import org.zstack.core.cloudbus.MessageCodec;
+import org.zstack.header.message.Message;
+import org.zstack.header.vm.StartVmInstanceMsg;
+import org.zstack.header.vm.StartVmInstanceReply;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.IOException;
+
+/**
+ * compares the json codec and the binary codec on a StartVmInstanceMsg and on a StartVmInstanceReply carrying
+ * a vm inventory. Not in any test suite, run it by:
+ *
+ * mvn test -Dtest=MessageCodecBenchmark -Dtimes=100000 -Dwarmup=20000 -DnicNum=3
+ */
+public class MessageCodecBenchmark {
+    CLogger logger = Utils.getLogger(MessageCodecBenchmark.class);
+    int times;
+    int warmup;
+    int nicNum;
+
+    @Before
+    public void setUp() throws Exception {
+        times = Integer.valueOf(System.getProperty("times", "100000"));
+        warmup = Integer.valueOf(System.getProperty("warmup", "20000"));
+        nicNum = Integer.valueOf(System.getProperty("nicNum", "3"));
+    }
+
+    private void run(MessageCodec codec, Message msg, String name) throws IOException {
+        byte[] data = null;
+        for (int i=0; i<warmup; i++) {
+            data = codec.encode(msg);
+            codec.decode(data);
+        }
+
+        long start = System.nanoTime();
+        for (int i=0; i<times; i++) {
+            data = codec.encode(msg);
+        }
+        long encodeCost = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i=0; i<times; i++) {
+            codec.decode(data);
+        }
+        long decodeCost = System.nanoTime() - start;
+
+        logger.info(String.format("[%s, %s codec]: size %s bytes, encode %.2f us/op, decode %.2f us/op",
+                name, codec.getName(), data.length, encodeCost / 1000.0 / times, decodeCost / 1000.0 / times));
+    }
+
+    @Test
+    public void test() throws IOException {
+        StartVmInstanceMsg msg = new StartVmInstanceMsg();
+        msg.setVmInstanceUuid("2b9d8ee6f7d04f0e97b4d4f9c43b62a1");
+        msg.setServiceId("vmInstance");
+        msg.setTimeout(30000);
+
+        StartVmInstanceReply reply = new StartVmInstanceReply();
+        reply.setInventory(TestBinaryMessageCodec.makeVm(nicNum));
+
+        MessageCodec[] codecs = new MessageCodec[]{new JsonMessageCodec(), new BinaryMessageCodec()};
+        for (MessageCodec codec : codecs) {
+            run(codec, msg, "StartVmInstanceMsg");
+            run(codec, reply, "StartVmInstanceReply");
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.cloudbus.BinaryMessageCodec;
+import org.zstack.core.cloudbus.JsonMessageCodec;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.message.Message;
+import org.zstack.header.message.NeedReplyMessage;
+import org.zstack.header.vm.*;
+import org.zstack.utils.gson.JSONObjectUtil;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 1. encode a StartVmInstanceMsg and a StartVmInstanceReply carrying a vm inventory by the binary codec
+ * 2. decode them
+ *
+ * confirm the decoded messages are the same as those decoded by the json codec
+ *
+ * 3. encode a message with an array of nic inventories, whose class appears as both the array component type
+ * and the array elements
+ *
+ * confirm the array is decoded
+ */
+public class TestBinaryMessageCodec {
+    BinaryMessageCodec binary = new BinaryMessageCodec();
+    JsonMessageCodec json = new JsonMessageCodec();
+
+    public static class NicArrayMsg extends NeedReplyMessage {
+        private VmNicInventory[] nics;
+
+        public VmNicInventory[] getNics() {
+            return nics;
+        }
+
+        public void setNics(VmNicInventory[] nics) {
+            this.nics = nics;
+        }
+    }
+
+    static VmInstanceInventory makeVm(int nicNum) {
+        VmInstanceInventory vm = new VmInstanceInventory();
+        vm.setUuid("2b9d8ee6f7d04f0e97b4d4f9c43b62a1");
+        vm.setName("vm");
+        vm.setZoneUuid("e2c6de2b3b6f4f5b8a5a0ef6e1b8f9f0");
+        vm.setClusterUuid("a8f1c2c3b2d94b4c9d9c4b0a6f1e3d2c");
+        vm.setHostUuid("1e8d2c3b4a5f4e6d8c7b6a5f4e3d2c1b");
+        vm.setImageUuid("9f8e7d6c5b4a4f3e8d2c1b0a9f8e7d6c");
+        vm.setInstanceOfferingUuid("5a4b3c2d1e0f4a9b8c7d6e5f4a3b2c1d");
+        vm.setType("UserVm");
+        vm.setHypervisorType("KVM");
+        vm.setState(VmInstanceState.Running.toString());
+        vm.setMemorySize(536870912L);
+        vm.setCpuNum(1);
+        vm.setCpuSpeed(2600L);
+        vm.setInternalId(10L);
+        vm.setCreateDate(new Timestamp(System.currentTimeMillis()));
+        vm.setLastOpDate(new Timestamp(System.currentTimeMillis()));
+
+        List<VmNicInventory> nics = new ArrayList<VmNicInventory>();
+        for (int i=0; i<nicNum; i++) {
+            VmNicInventory nic = new VmNicInventory();
+            nic.setUuid(String.format("nic%s", i));
+            nic.setVmInstanceUuid(vm.getUuid());
+            nic.setIp(String.format("10.0.0.%s", i + 2));
+            nic.setMac(String.format("fa:ef:7a:aa:00:%02x", i));
+            nic.setNetmask("255.255.255.0");
+            nic.setGateway("10.0.0.1");
+            nic.setDeviceId(i);
+            nics.add(nic);
+        }
+        vm.setVmNics(nics);
+        return vm;
+    }
+
+    private void check(Message msg) throws IOException {
+        // the json codec puts the schema into the header, encode by it first so both carry the same headers
+        Message fromJson = json.decode(json.encode(msg));
+        Message fromBinary = binary.decode(binary.encode(msg));
+        Assert.assertEquals(msg.getClass(), fromBinary.getClass());
+        Assert.assertEquals(JSONObjectUtil.toJsonString(fromJson), JSONObjectUtil.toJsonString(fromBinary));
+    }
+
+    @Test
+    public void test() throws IOException {
+        StartVmInstanceMsg msg = new StartVmInstanceMsg();
+        msg.setVmInstanceUuid("2b9d8ee6f7d04f0e97b4d4f9c43b62a1");
+        msg.setServiceId("vmInstance");
+        msg.setTimeout(30000);
+        msg.putHeaderEntry("correlationId", msg.getId());
+        check(msg);
+
+        StartVmInstanceReply reply = new StartVmInstanceReply();
+        reply.setInventory(makeVm(3));
+        check(reply);
+
+        StartVmInstanceReply failure = new StartVmInstanceReply();
+        ErrorCode err = new ErrorCode("SYS.1000", "internal error", "on purpose");
+        err.setCause(new ErrorCode("SYS.1001", "timeout", "on purpose"));
+        failure.setError(err);
+        check(failure);
+
+        StartVmInstanceReply decoded = (StartVmInstanceReply) binary.decode(binary.encode(reply));
+        Assert.assertEquals(3, decoded.getInventory().getVmNics().size());
+        Assert.assertEquals(reply.getInventory().getCreateDate(), decoded.getInventory().getCreateDate());
+        Assert.assertEquals("on purpose", ((StartVmInstanceReply) binary.decode(binary.encode(failure))).getError().getCause().getDetails());
+
+        NicArrayMsg arrayMsg = new NicArrayMsg();
+        List<VmNicInventory> nics = makeVm(3).getVmNics();
+        arrayMsg.setNics(nics.toArray(new VmNicInventory[nics.size()]));
+        NicArrayMsg decodedArrayMsg = (NicArrayMsg) binary.decode(binary.encode(arrayMsg));
+        Assert.assertEquals(3, decodedArrayMsg.getNics().length);
+        for (int i=0; i<3; i++) {
+            Assert.assertEquals(nics.get(i).getUuid(), decodedArrayMsg.getNics()[i].getUuid());
+            Assert.assertEquals(nics.get(i).getIp(), decodedArrayMsg.getNics()[i].getIp());
+        }
+        check(arrayMsg);
+    }
+}
@@ -0,0 +1,83 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.AutoOffEventCallback;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.cloudbus.EventFacadeImpl;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. register 10000 AutoOffEventCallback on /test/event/{index}/{uuid}
+ * 2. register an EventCallback on a path of a '*' segment and tokens index and uuid
+ * 3. fire an event for index 5000
+ *
+ * confirm only the callback of index 5000 and the wildcard one are called, with tokens
+ *
+ * 4. off the wildcard callback and fire the event again
+ *
+ * confirm no callback is called
+ */
+public class TestCanonicalEvent9 {
+    CLogger logger = Utils.getLogger(TestCanonicalEvent9.class);
+    ComponentLoader loader;
+    EventFacade evtf;
+    int num = 10000;
+    AtomicInteger autoOffCount = new AtomicInteger();
+    AtomicInteger wildcardCount = new AtomicInteger();
+    volatile String uuid;
+    volatile String index;
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        evtf = loader.getComponent(EventFacade.class);
+        ((EventFacadeImpl)evtf).start();
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        for (int i=0; i<num; i++) {
+            evtf.on(String.format("/test/event/%s/{uuid}", i), new AutoOffEventCallback() {
+                @Override
+                public boolean run(Map tokens, Object data) {
+                    uuid = (String) tokens.get("uuid");
+                    autoOffCount.incrementAndGet();
+                    return true;
+                }
+            });
+        }
+
+        EventCallback wildcard = new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                index = (String) tokens.get("index");
+                wildcardCount.incrementAndGet();
+            }
+        };
+        evtf.on("/test/*/{index}/{uuid}", wildcard);
+
+        evtf.fire("/test/event/5000/abc", null);
+        TimeUnit.SECONDS.sleep(1);
+        Assert.assertEquals(1, autoOffCount.get());
+        Assert.assertEquals("abc", uuid);
+        Assert.assertEquals(1, wildcardCount.get());
+        Assert.assertEquals("5000", index);
+
+        evtf.off(wildcard);
+        evtf.fire("/test/event/5000/abc", null);
+        TimeUnit.SECONDS.sleep(1);
+        Assert.assertEquals(1, autoOffCount.get());
+        Assert.assertEquals(1, wildcardCount.get());
+    }
+}
@@ -0,0 +1,183 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.cloudbus.CloudBusGlobalProperty;
+import org.zstack.core.cloudbus.CloudBusIN;
+import org.zstack.core.cloudbus.CloudBusImpl2;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.cloudbus.EventFacadeImpl;
+import org.zstack.core.cloudbus.LocalDeliveryStatistic;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.AbstractService;
+import org.zstack.header.Service;
+import org.zstack.header.message.Message;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.message.NeedReplyMessage;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. set CloudBus.localDelivery to copy
+ * 2. send 100 messages to a service whose id ends with the management node id
+ *
+ * confirm all messages get replied with the index of the request, and the requests and replies are delivered locally
+ *
+ * 3. send a message to a service whose id doesn't end with the management node id
+ *
+ * confirm the request goes through the message broker while the reply is delivered locally
+ *
+ * 4. fire a canonical event
+ *
+ * confirm the event callback is called only once
+ */
+public class TestCloudBusLocalDelivery {
+    CLogger logger = Utils.getLogger(TestCloudBusLocalDelivery.class);
+    ComponentLoader loader;
+    CloudBusIN bus;
+    CloudBusImpl2 busImpl;
+    EventFacade evtf;
+    Service serv;
+    Service sharedServ;
+    int msgNum = 100;
+
+    public static class HelloWorldMsg extends NeedReplyMessage {
+        private int index;
+
+        public int getIndex() {
+            return index;
+        }
+
+        public void setIndex(int index) {
+            this.index = index;
+        }
+    }
+
+    public static class HelloWorldReply extends MessageReply {
+        private int index;
+
+        public int getIndex() {
+            return index;
+        }
+
+        public void setIndex(int index) {
+            this.index = index;
+        }
+    }
+
+    class FakeService extends AbstractService {
+        private String id;
+
+        FakeService(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean start() {
+            bus.registerService(this);
+            bus.activeService(this);
+            return true;
+        }
+
+        @Override
+        public boolean stop() {
+            bus.deActiveService(this);
+            bus.unregisterService(this);
+            return true;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.getClass() == HelloWorldMsg.class) {
+                HelloWorldReply r = new HelloWorldReply();
+                r.setIndex(((HelloWorldMsg) msg).getIndex());
+                bus.reply(msg, r);
+            }
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        CloudBusGlobalProperty.LOCAL_DELIVERY = "copy";
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        bus = loader.getComponent(CloudBusIN.class);
+        busImpl = loader.getComponent(CloudBusImpl2.class);
+        evtf = loader.getComponent(EventFacade.class);
+        ((EventFacadeImpl) evtf).start();
+        serv = new FakeService(bus.makeLocalServiceId("localDeliveryTest"));
+        serv.start();
+        sharedServ = new FakeService("localDeliveryTest");
+        sharedServ.start();
+    }
+
+    @After
+    public void tearDown() {
+        CloudBusGlobalProperty.LOCAL_DELIVERY = "off";
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        long local = busImpl.getLocalDeliveryStatistic().getLocalMessageNum();
+        final CountDownLatch latch = new CountDownLatch(msgNum);
+        final AtomicInteger success = new AtomicInteger();
+        for (int i=0; i<msgNum; i++) {
+            final int index = i;
+            HelloWorldMsg msg = new HelloWorldMsg();
+            msg.setIndex(i);
+            msg.setServiceId(serv.getId());
+            bus.send(msg, new CloudBusCallBack() {
+                @Override
+                public void run(MessageReply reply) {
+                    if (reply.isSuccess() && ((HelloWorldReply) reply).getIndex() == index) {
+                        success.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(msgNum, success.get());
+        LocalDeliveryStatistic stat = busImpl.getLocalDeliveryStatistic();
+        Assert.assertEquals(local + msgNum * 2, stat.getLocalMessageNum());
+
+        local = stat.getLocalMessageNum();
+        long remote = stat.getRemoteMessageNum();
+        HelloWorldMsg msg = new HelloWorldMsg();
+        msg.setServiceId(sharedServ.getId());
+        MessageReply reply = bus.call(msg);
+        Assert.assertTrue(reply.isSuccess());
+        stat = busImpl.getLocalDeliveryStatistic();
+        Assert.assertEquals(local + 1, stat.getLocalMessageNum());
+        Assert.assertEquals(remote + 1, stat.getRemoteMessageNum());
+
+        final AtomicInteger count = new AtomicInteger();
+        evtf.on("/test/localDelivery", new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        });
+        evtf.fire("/test/localDelivery", null);
+        TimeUnit.SECONDS.sleep(2);
+        Assert.assertEquals(1, count.get());
+        Assert.assertTrue(busImpl.getLocalDeliveryStatistic().getLocalEventNum() > 0);
+
+        serv.stop();
+        sharedServ.stop();
+    }
+}
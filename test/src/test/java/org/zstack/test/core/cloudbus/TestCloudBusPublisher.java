@@ -0,0 +1,154 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.cloudbus.CloudBusGlobalProperty;
+import org.zstack.core.cloudbus.CloudBusIN;
+import org.zstack.core.cloudbus.CloudBusImpl2;
+import org.zstack.core.cloudbus.PublisherStatistic;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.AbstractService;
+import org.zstack.header.Service;
+import org.zstack.header.message.Message;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.message.NeedReplyMessage;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. enable the publisher pipeline with a small queue
+ * 2. send 1000 messages from 10 threads
+ *
+ * confirm all messages get replied
+ * confirm the publisher statistic is reported
+ */
+public class TestCloudBusPublisher {
+    CLogger logger = Utils.getLogger(TestCloudBusPublisher.class);
+    ComponentLoader loader;
+    CloudBusIN bus;
+    CloudBusImpl2 busImpl;
+    Service serv;
+    int threadNum = 10;
+    int msgNum = 100;
+
+    public static class HelloWorldMsg extends NeedReplyMessage {
+        private int index;
+
+        public int getIndex() {
+            return index;
+        }
+
+        public void setIndex(int index) {
+            this.index = index;
+        }
+    }
+
+    public static class HelloWorldReply extends MessageReply {
+        private int index;
+
+        public int getIndex() {
+            return index;
+        }
+
+        public void setIndex(int index) {
+            this.index = index;
+        }
+    }
+
+    class FakeService extends AbstractService {
+        @Override
+        public boolean start() {
+            bus.registerService(this);
+            bus.activeService(this);
+            return true;
+        }
+
+        @Override
+        public boolean stop() {
+            bus.deActiveService(this);
+            bus.unregisterService(this);
+            return true;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.getClass() == HelloWorldMsg.class) {
+                HelloWorldReply r = new HelloWorldReply();
+                r.setIndex(((HelloWorldMsg) msg).getIndex());
+                bus.reply(msg, r);
+            }
+        }
+
+        @Override
+        public String getId() {
+            return this.getClass().getCanonicalName();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        CloudBusGlobalProperty.PUBLISHER_ENABLE = true;
+        CloudBusGlobalProperty.PUBLISHER_QUEUE_SIZE = 16;
+        CloudBusGlobalProperty.PUBLISHER_CONFIRM = true;
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        bus = loader.getComponent(CloudBusIN.class);
+        busImpl = loader.getComponent(CloudBusImpl2.class);
+        serv = new FakeService();
+        serv.start();
+    }
+
+    @After
+    public void tearDown() {
+        CloudBusGlobalProperty.PUBLISHER_ENABLE = false;
+        CloudBusGlobalProperty.PUBLISHER_QUEUE_SIZE = 10000;
+        CloudBusGlobalProperty.PUBLISHER_CONFIRM = false;
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(threadNum * msgNum);
+        final AtomicInteger success = new AtomicInteger();
+        for (int i=0; i<threadNum; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j=0; j<msgNum; j++) {
+                        HelloWorldMsg msg = new HelloWorldMsg();
+                        msg.setIndex(j);
+                        msg.setServiceId(FakeService.class.getCanonicalName());
+                        msg.setTimeout(TimeUnit.SECONDS.toMillis(30));
+                        bus.send(msg, new CloudBusCallBack() {
+                            @Override
+                            public void run(MessageReply reply) {
+                                if (reply.isSuccess()) {
+                                    success.incrementAndGet();
+                                }
+                                latch.countDown();
+                            }
+                        });
+                    }
+                }
+            }).start();
+        }
+
+        Assert.assertTrue(latch.await(60, TimeUnit.SECONDS));
+        serv.stop();
+
+        PublisherStatistic stat = busImpl.getPublisherStatistic();
+        Assert.assertNotNull(stat);
+        logger.debug(String.format("published %s messages in %s batches, backpressure happened %s times",
+                stat.getPublishedMessageNum(), stat.getBatchNum(), stat.getBackpressureTimes()));
+        Assert.assertTrue(stat.getPublishedMessageNum() >= threadNum * msgNum);
+        Assert.assertEquals(0, stat.getFailedMessageNum());
+        Assert.assertEquals(threadNum * msgNum, success.get());
+    }
+}
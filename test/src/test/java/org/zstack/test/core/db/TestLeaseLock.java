@@ -0,0 +1,138 @@
+package org.zstack.test.core.db;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseGlobalProperty;
+import org.zstack.core.db.GLock;
+import org.zstack.core.db.LeaseLock;
+import org.zstack.core.db.LeaseLockFacade;
+import org.zstack.core.db.LeaseLockFacadeImpl;
+import org.zstack.core.thread.AsyncThread;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. set GLock.lease
+ * 2. increase a counter under a GLock in two threads
+ *
+ * confirm the counter is increased by every thread exclusively
+ * confirm fencing tokens of the lock increase on every acquisition
+ *
+ * 3. hold the lease of a lock and acquire it in another thread
+ *
+ * confirm the acquisition times out
+ * confirm the lock can be acquired after the lease is released
+ * confirm wait time and hold time are recorded
+ */
+public class TestLeaseLock {
+    CLogger logger = Utils.getLogger(TestLeaseLock.class);
+    ComponentLoader loader;
+    LeaseLockFacade leasef;
+    LeaseLockFacadeImpl leasefImpl;
+    String lockName = "TestLeaseLock.lock";
+    String lockName2 = "TestLeaseLock.lock2";
+    int num = 300;
+    int counter;
+    List<Long> tokens = Collections.synchronizedList(new ArrayList<Long>());
+    CountDownLatch latch = new CountDownLatch(2);
+    volatile boolean timeout;
+
+    @Before
+    public void setUp() throws Exception {
+        DatabaseGlobalProperty.GLOCK_LEASE = true;
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        leasef = loader.getComponent(LeaseLockFacade.class);
+        leasefImpl = loader.getComponent(LeaseLockFacadeImpl.class);
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseGlobalProperty.GLOCK_LEASE = false;
+    }
+
+    @AsyncThread
+    void increase() {
+        try {
+            for (int i = 0; i < num; i++) {
+                GLock lock = new GLock(lockName, 10);
+                lock.lock();
+                try {
+                    tokens.add(lock.getFencingToken());
+                    int c = counter;
+                    Thread.yield();
+                    counter = c + 1;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            latch.countDown();
+        }
+    }
+
+    private long sum(long[] histogram) {
+        long ret = 0;
+        for (long c : histogram) {
+            ret += c;
+        }
+        return ret;
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        long waits = sum(leasefImpl.getLockWaitTimeHistogram());
+        long holds = sum(leasefImpl.getLockHoldTimeHistogram());
+        increase();
+        increase();
+        Assert.assertTrue(latch.await(120, TimeUnit.SECONDS));
+        Assert.assertEquals(num * 2, counter);
+        Assert.assertEquals(num * 2, tokens.size());
+        for (int i=1; i<tokens.size(); i++) {
+            Assert.assertTrue(tokens.get(i) > tokens.get(i-1));
+        }
+
+        LeaseLock lease = leasef.lock(lockName2, 10);
+        Assert.assertTrue(lease.isValid());
+        final CountDownLatch latch2 = new CountDownLatch(1);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    leasef.lock(lockName2, 1).unlock();
+                } catch (CloudRuntimeException e) {
+                    logger.debug(e.getMessage());
+                    timeout = true;
+                } finally {
+                    latch2.countDown();
+                }
+            }
+        });
+        t.start();
+        Assert.assertTrue(latch2.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(timeout);
+        lease.unlock();
+        Assert.assertFalse(lease.isValid());
+
+        LeaseLock lease2 = leasef.lock(lockName2, 1);
+        Assert.assertTrue(lease2.getFencingToken() > lease.getFencingToken());
+        lease2.unlock();
+
+        Assert.assertEquals(waits + num * 2 + 2, sum(leasefImpl.getLockWaitTimeHistogram()));
+        Assert.assertEquals(holds + num * 2 + 2, sum(leasefImpl.getLockHoldTimeHistogram()));
+        Assert.assertEquals(0, leasefImpl.getHeldLeaseNum());
+    }
+}
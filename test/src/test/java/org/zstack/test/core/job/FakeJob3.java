@@ -0,0 +1,45 @@
+package org.zstack.test.core.job;
+
+import org.springframework.beans.factory.annotation.Autowire;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+import org.zstack.core.job.Job;
+import org.zstack.core.job.JobContext;
+import org.zstack.header.core.ReturnValueCompletion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+@Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
+public class FakeJob3 implements Job {
+    @JobContext
+    private String queueName;
+    @JobContext
+    private long index;
+    @Autowired
+    private FakeJobConfig fl;
+
+    private FakeJob3() {
+    }
+
+    public FakeJob3(String queueName, long index) {
+        this.queueName = queueName;
+        this.index = index;
+    }
+
+    @Override
+    public void run(ReturnValueCompletion<Object> complete) {
+        try {
+            List<Long> indexs = fl.queueIndexs.get(queueName);
+            if (indexs == null) {
+                indexs = Collections.synchronizedList(new ArrayList<Long>());
+                List<Long> old = fl.queueIndexs.putIfAbsent(queueName, indexs);
+                indexs = old == null ? indexs : old;
+            }
+            indexs.add(index);
+        } finally {
+            complete.success(index);
+        }
+    }
+}
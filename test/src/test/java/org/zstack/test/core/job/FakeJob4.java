@@ -0,0 +1,38 @@
+package org.zstack.test.core.job;
+
+import org.springframework.beans.factory.annotation.Autowire;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+import org.zstack.core.job.Job;
+import org.zstack.header.core.ReturnValueCompletion;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * holds its queue until FakeJobConfig.condition is set
+ */
+@Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
+public class FakeJob4 implements Job {
+    CLogger logger = Utils.getLogger(FakeJob4.class);
+
+    @Autowired
+    private FakeJobConfig fl;
+
+    public FakeJob4() {
+    }
+
+    @Override
+    public void run(ReturnValueCompletion<Object> complete) {
+        try {
+            while (!fl.condition) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+        } catch (InterruptedException e) {
+            logger.warn(e.getMessage(), e);
+        } finally {
+            complete.success(null);
+        }
+    }
+}
@@ -2,9 +2,12 @@ package org.zstack.test.core.job;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class FakeJobConfig {
     List<Long> indexs = new ArrayList<Long>();
+    ConcurrentMap<String, List<Long>> queueIndexs = new ConcurrentHashMap<String, List<Long>>();
     volatile int flag;
     boolean success;
     volatile int jdbRepeatNum;
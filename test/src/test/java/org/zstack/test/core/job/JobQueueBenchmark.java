@@ -0,0 +1,76 @@
+package org.zstack.test.core.job;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.job.JobQueueFacade;
+import org.zstack.header.core.ReturnValueCompletion;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.test.Api;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * run {jobs} jobs on each of {queues} queues concurrently, report the throughput.
+ *
+ * compare runs with -DJobQueueFacade.lockShards=1, which serializes all queues on one DB lock as before,
+ * and the default shards.
+ *
+ * e.g. mvn test -Dtest=JobQueueBenchmark -Dqueues=1000 -Djobs=10
+ */
+public class JobQueueBenchmark {
+    CLogger logger = Utils.getLogger(JobQueueBenchmark.class);
+    ComponentLoader loader;
+    JobQueueFacade jobf;
+    int queueNum;
+    int jobNum;
+
+    @Before
+    public void setUp() throws Exception {
+        queueNum = Integer.valueOf(System.getProperty("queues", "1000"));
+        jobNum = Integer.valueOf(System.getProperty("jobs", "10"));
+
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.addXml("JobForUnitTest.xml").addXml("PortalForUnitTest.xml").addXml("AccountManager.xml").build();
+        jobf = loader.getComponent(JobQueueFacade.class);
+        new Api().startServer();
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(queueNum * jobNum);
+        final AtomicInteger failure = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        for (long i=0; i<jobNum; i++) {
+            for (int j=0; j<queueNum; j++) {
+                String queueName = "benchmark-job-" + j;
+                jobf.execute(queueName, "JobQueueBenchmark", new FakeJob3(queueName, i), new ReturnValueCompletion<Long>() {
+                    @Override
+                    public void success(Long returnValue) {
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void fail(ErrorCode errorCode) {
+                        failure.incrementAndGet();
+                        latch.countDown();
+                    }
+                }, Long.class);
+            }
+        }
+
+        Assert.assertTrue(latch.await(30, TimeUnit.MINUTES));
+        long cost = System.currentTimeMillis() - start;
+        Assert.assertEquals(0, failure.get());
+        logger.info(String.format("[Job Queue Benchmark] %s jobs on %s queues finished in %sms, %.1f jobs/s",
+                queueNum * jobNum, queueNum, cost, queueNum * jobNum * 1000.0 / cost));
+    }
+}
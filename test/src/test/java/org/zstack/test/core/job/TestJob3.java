@@ -0,0 +1,80 @@
+package org.zstack.test.core.job;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.job.JobQueueFacade;
+import org.zstack.header.core.ReturnValueCompletion;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.test.Api;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. run 20 jobs on each of 50 queues, queues share lock shards
+ *
+ * confirm all jobs succeed with their return values
+ * confirm jobs of every queue run in the order they were issued
+ */
+public class TestJob3 {
+    CLogger logger = Utils.getLogger(TestJob3.class);
+    ComponentLoader loader;
+    JobQueueFacade jobf;
+    FakeJobConfig fl;
+    int queueNum = 50;
+    int jobNum = 20;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.addXml("JobForUnitTest.xml").addXml("PortalForUnitTest.xml").addXml("AccountManager.xml").build();
+        jobf = loader.getComponent(JobQueueFacade.class);
+        fl = loader.getComponent(FakeJobConfig.class);
+        new Api().startServer();
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(queueNum * jobNum);
+        final AtomicInteger success = new AtomicInteger();
+        for (long i=0; i<jobNum; i++) {
+            for (int j=0; j<queueNum; j++) {
+                final long index = i;
+                jobf.execute("fake-job-" + j, "TestJob3", new FakeJob3("fake-job-" + j, i), new ReturnValueCompletion<Long>() {
+                    @Override
+                    public void success(Long returnValue) {
+                        if (returnValue == index) {
+                            success.incrementAndGet();
+                        }
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void fail(ErrorCode errorCode) {
+                        logger.warn(errorCode.toString());
+                        latch.countDown();
+                    }
+                }, Long.class);
+            }
+        }
+
+        Assert.assertTrue(latch.await(120, TimeUnit.SECONDS));
+        Assert.assertEquals(queueNum * jobNum, success.get());
+        Assert.assertEquals(queueNum, fl.queueIndexs.size());
+        for (List<Long> indexs : fl.queueIndexs.values()) {
+            Assert.assertEquals(jobNum, indexs.size());
+            for (int i=0; i<indexs.size(); i++) {
+                Assert.assertEquals(i, indexs.get(i).longValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.zstack.test.core.job;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.job.*;
+import org.zstack.test.Api;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. hold queue "fake-job" and queue "template-job" with FakeJob4
+ * 2. issue job 1 on "template-job", copy its DB entry to "fake-job" as a pending job issued by another
+ * management node, mark the original completed
+ * 3. issue job 2 to 5 on "fake-job" from this management node
+ * 4. release the queues
+ *
+ * confirm the job issued by the other node runs before the jobs issued later by this node,
+ * jobs of "fake-job" run in the order of 1, 2, 3, 4, 5
+ */
+public class TestJob4 {
+    CLogger logger = Utils.getLogger(TestJob4.class);
+    ComponentLoader loader;
+    JobQueueFacade jobf;
+    DatabaseFacade dbf;
+    FakeJobConfig fl;
+    String queueName = "fake-job";
+    String templateQueueName = "template-job";
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.addXml("JobForUnitTest.xml").addXml("PortalForUnitTest.xml").addXml("AccountManager.xml").build();
+        jobf = loader.getComponent(JobQueueFacade.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        fl = loader.getComponent(FakeJobConfig.class);
+        new Api().startServer();
+    }
+
+    private JobQueueVO findQueue(String name) {
+        SimpleQuery<JobQueueVO> q = dbf.createQuery(JobQueueVO.class);
+        q.add(JobQueueVO_.name, Op.EQ, name);
+        return q.find();
+    }
+
+    private List<JobQueueEntryVO> findPendingJobs(String name) {
+        JobQueueVO qvo = findQueue(name);
+        if (qvo == null) {
+            return new ArrayList<JobQueueEntryVO>();
+        }
+
+        SimpleQuery<JobQueueEntryVO> q = dbf.createQuery(JobQueueEntryVO.class);
+        q.add(JobQueueEntryVO_.jobQueueId, Op.EQ, qvo.getId());
+        q.add(JobQueueEntryVO_.state, Op.EQ, JobState.Pending);
+        return q.list();
+    }
+
+    private JobQueueEntryVO waitForPendingJob(String name, Class jobClass) throws InterruptedException {
+        for (int i=0; i<100; i++) {
+            for (JobQueueEntryVO job : findPendingJobs(name)) {
+                if (job.getName().equals(jobClass.getName())) {
+                    return job;
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        Assert.fail(String.format("no pending job in queue[%s]", name));
+        return null;
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        jobf.execute(queueName, "TestJob4", new FakeJob4());
+        jobf.execute(templateQueueName, "TestJob4", new FakeJob4());
+
+        jobf.execute(templateQueueName, "TestJob4", new FakeJob3(queueName, 1));
+        JobQueueEntryVO template = waitForPendingJob(templateQueueName, FakeJob3.class);
+        JobQueueEntryVO foreign = new JobQueueEntryVO();
+        foreign.setJobQueueId(findQueue(queueName).getId());
+        foreign.setName(template.getName());
+        foreign.setOwner(template.getOwner());
+        foreign.setContext(template.getContext());
+        foreign.setState(JobState.Pending);
+        foreign.setInDate(new Date());
+        foreign.setIssuerManagementNodeId("another-management-node");
+        dbf.persist(foreign);
+        template.setState(JobState.Completed);
+        dbf.update(template);
+
+        for (long i=2; i<=5; i++) {
+            jobf.execute(queueName, "TestJob4", new FakeJob3(queueName, i));
+        }
+
+        fl.condition = true;
+        for (int i=0; i<100; i++) {
+            List<Long> indexs = fl.queueIndexs.get(queueName);
+            if (indexs != null && indexs.size() == 5) {
+                break;
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        List<Long> indexs = fl.queueIndexs.get(queueName);
+        Assert.assertNotNull(indexs);
+        Assert.assertEquals(5, indexs.size());
+        for (int i=0; i<indexs.size(); i++) {
+            Assert.assertEquals(i + 1, indexs.get(i).longValue());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.zstack.test.core.rest;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.rest.RESTGlobalProperty;
+import org.zstack.core.thread.AsyncThread;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.rest.HttpCallStatistic;
+import org.zstack.header.rest.JsonAsyncRESTCallback;
+import org.zstack.header.rest.RESTFacade;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. use the pooled http client and enable the http call profiler
+ * 2. make 200 async calls
+ *
+ * confirm all calls succeed
+ * confirm the statistic of the url counts all calls and reports ordered percentiles
+ */
+public class TestRestAsyncCallbackPooled {
+    CLogger logger = Utils.getLogger(TestRestAsyncCallbackPooled.class);
+    WebBeanConstructor wbean;
+    ComponentLoader loader;
+    RESTFacade restf;
+    String url;
+    int num = 200;
+    CountDownLatch latch = new CountDownLatch(num);
+    AtomicInteger success = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        RESTGlobalProperty.HTTP_CLIENT = "pooled";
+        CoreGlobalProperty.PROFILER_HTTP_CALL = true;
+        wbean = new WebBeanConstructor();
+        wbean.addXml("PortalForUnitTest.xml").addXml("AccountManager.xml");
+        loader = wbean.build();
+        restf = loader.getComponent(RESTFacade.class);
+        url = wbean.buildUrl(RESTBeanForTest.ROOT, RESTBeanForTest.CALLBACK_PATH);
+    }
+
+    @After
+    public void tearDown() {
+        RESTGlobalProperty.HTTP_CLIENT = "simple";
+        CoreGlobalProperty.PROFILER_HTTP_CALL = false;
+    }
+
+    @AsyncThread
+    private void call() {
+        final String hi = Platform.getUuid();
+        restf.asyncJsonPost(url, hi, new JsonAsyncRESTCallback<String>() {
+            @Override
+            public void fail(ErrorCode err) {
+                logger.error(String.format("fail: %s", err));
+                latch.countDown();
+            }
+
+            @Override
+            public void success(String ret) {
+                if (hi.equals(ret)) {
+                    success.incrementAndGet();
+                } else {
+                    logger.error(String.format("expected: %s, but got: %s", hi, ret));
+                }
+                latch.countDown();
+            }
+
+            @Override
+            public Class<String> getReturnClass() {
+                return String.class;
+            }
+        }, TimeUnit.SECONDS, 5);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        Assert.assertTrue(restf.getRESTTemplate().getRequestFactory() instanceof HttpComponentsClientHttpRequestFactory);
+
+        for (int i=0; i<num; i++) {
+            call();
+        }
+
+        Assert.assertTrue(latch.await(2, TimeUnit.MINUTES));
+        Assert.assertEquals(num, success.get());
+
+        HttpCallStatistic stat = restf.getStatistics().get(url);
+        Assert.assertEquals(num, stat.getCount());
+        Assert.assertTrue(stat.getP50Time() <= stat.getP90Time());
+        Assert.assertTrue(stat.getP90Time() <= stat.getP99Time());
+        Assert.assertTrue(stat.getP99Time() <= stat.getMaxTime());
+        logger.debug(stat.toString());
+    }
+}
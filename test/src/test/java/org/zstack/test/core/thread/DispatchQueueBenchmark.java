@@ -0,0 +1,128 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.ChainTask;
+import org.zstack.core.thread.SyncTask;
+import org.zstack.core.thread.SyncTaskChain;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * submits chain tasks and sync tasks of many sync signatures from many threads, reports the throughput.
+ * Not in any test suite, run it with increasing producer numbers to see how the dispatch queue scales, e.g.
+ *
+ * mvn test -Dtest=DispatchQueueBenchmark -Dproducers=64 -Dsignatures=1000 -Dtasks=20000
+ */
+public class DispatchQueueBenchmark {
+    CLogger logger = Utils.getLogger(DispatchQueueBenchmark.class);
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    int producers;
+    int signatures;
+    int tasks;
+
+    @Before
+    public void setUp() throws Exception {
+        producers = Integer.valueOf(System.getProperty("producers", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        signatures = Integer.valueOf(System.getProperty("signatures", "1000"));
+        tasks = Integer.valueOf(System.getProperty("tasks", "20000"));
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+    }
+
+    private interface Submitter {
+        void submit(String signature, CountDownLatch latch);
+    }
+
+    private void run(String name, final Submitter submitter) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(producers * tasks);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        for (int i=0; i<producers; i++) {
+            final int producer = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for (int j=0; j<tasks; j++) {
+                        submitter.submit(String.format("benchmark-%s", (producer * tasks + j) % signatures), latch);
+                    }
+                }
+            }).start();
+        }
+
+        long start = System.currentTimeMillis();
+        startLatch.countDown();
+        Assert.assertTrue(latch.await(10, TimeUnit.MINUTES));
+        long cost = System.currentTimeMillis() - start;
+        logger.info(String.format("[%s]: %s producers, %s signatures, %s tasks in %s ms, %.0f tasks/s",
+                name, producers, signatures, producers * tasks, cost, producers * tasks * 1000.0 / Math.max(cost, 1)));
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        run("chain task", new Submitter() {
+            @Override
+            public void submit(final String signature, final CountDownLatch latch) {
+                thdf.chainSubmit(new ChainTask() {
+                    @Override
+                    public String getSyncSignature() {
+                        return signature;
+                    }
+
+                    @Override
+                    public void run(SyncTaskChain chain) {
+                        latch.countDown();
+                        chain.next();
+                    }
+
+                    @Override
+                    public String getName() {
+                        return signature;
+                    }
+                });
+            }
+        });
+
+        run("sync task", new Submitter() {
+            @Override
+            public void submit(final String signature, final CountDownLatch latch) {
+                thdf.syncSubmit(new SyncTask<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        latch.countDown();
+                        return null;
+                    }
+
+                    @Override
+                    public String getName() {
+                        return signature;
+                    }
+
+                    @Override
+                    public String getSyncSignature() {
+                        return signature;
+                    }
+
+                    @Override
+                    public int getSyncLevel() {
+                        return 1;
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,91 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.ChainTask;
+import org.zstack.core.thread.SyncTaskChain;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * submit chain tasks of a few signatures from 20 threads, tasks finish quickly so queues
+ * are retired and re-created all the time
+ *
+ * confirm all tasks run and no two tasks of the same signature run at the same time
+ */
+public class TestChainTask5 {
+    CLogger logger = Utils.getLogger(TestChainTask5.class);
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    int threadNum = 20;
+    int taskNum = 2000;
+    int signatureNum = 5;
+    CountDownLatch latch = new CountDownLatch(threadNum * taskNum);
+    ConcurrentHashMap<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+    AtomicInteger violations = new AtomicInteger();
+
+    class Tester extends ChainTask {
+        String signature;
+
+        Tester(String signature) {
+            this.signature = signature;
+        }
+
+        @Override
+        public String getName() {
+            return signature;
+        }
+
+        @Override
+        public String getSyncSignature() {
+            return signature;
+        }
+
+        @Override
+        public void run(SyncTaskChain chain) {
+            AtomicInteger count = running.get(signature);
+            if (count.incrementAndGet() > 1) {
+                violations.incrementAndGet();
+            }
+            count.decrementAndGet();
+            latch.countDown();
+            chain.next();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+        for (int i=0; i<signatureNum; i++) {
+            running.put(String.format("test-%s", i), new AtomicInteger());
+        }
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        for (int i=0; i<threadNum; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j=0; j<taskNum; j++) {
+                        thdf.chainSubmit(new Tester(String.format("test-%s", j % signatureNum)));
+                    }
+                }
+            }).start();
+        }
+
+        Assert.assertTrue(latch.await(2, TimeUnit.MINUTES));
+        Assert.assertEquals(0, violations.get());
+    }
+}
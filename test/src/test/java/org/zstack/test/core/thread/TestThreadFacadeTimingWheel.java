@@ -0,0 +1,87 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.core.thread.ThreadFacadeImpl;
+import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
+import org.zstack.core.thread.ThreadGlobalProperty;
+import org.zstack.core.thread.TimeoutTaskStatistic;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. use the timing wheel for timeout tasks
+ * 2. submit 1000 timeout tasks with delays from 100ms to 2s, cancel half of them
+ *
+ * confirm only the other half run, none of them runs earlier than its delay
+ * confirm the statistic reports no pending task
+ */
+public class TestThreadFacadeTimingWheel {
+    CLogger logger = Utils.getLogger(TestThreadFacadeTimingWheel.class);
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    int taskNum = 1000;
+    AtomicInteger count = new AtomicInteger();
+    AtomicInteger early = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        ThreadGlobalProperty.TIMEOUT_TASK_SCHEDULER = "timingWheel";
+        ThreadGlobalProperty.TIMING_WHEEL_SIZE = 8;
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+    }
+
+    @After
+    public void tearDown() {
+        ThreadGlobalProperty.TIMEOUT_TASK_SCHEDULER = "timer";
+        ThreadGlobalProperty.TIMING_WHEEL_SIZE = 512;
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        List<TimeoutTaskReceipt> receipts = new ArrayList<TimeoutTaskReceipt>();
+        for (int i=0; i<taskNum; i++) {
+            final long delay = 100 + (i % 20) * 100;
+            final long submitTime = System.currentTimeMillis();
+            receipts.add(thdf.submitTimeoutTask(new Runnable() {
+                @Override
+                public void run() {
+                    if (System.currentTimeMillis() - submitTime < delay) {
+                        early.incrementAndGet();
+                    }
+                    count.incrementAndGet();
+                }
+            }, TimeUnit.MILLISECONDS, delay));
+        }
+
+        for (int i=0; i<taskNum; i+=2) {
+            Assert.assertTrue(receipts.get(i).cancel());
+        }
+
+        TimeUnit.SECONDS.sleep(4);
+        Assert.assertEquals(taskNum / 2, count.get());
+        Assert.assertEquals(0, early.get());
+
+        for (TimeoutTaskReceipt r : receipts) {
+            Assert.assertFalse(r.cancel());
+        }
+
+        TimeoutTaskStatistic stat = ((ThreadFacadeImpl) thdf).getTimeoutTaskStatistic();
+        Assert.assertEquals("timingWheel", stat.getScheduler());
+        Assert.assertEquals(0, stat.getPendingTaskNum());
+        Assert.assertEquals(taskNum / 2, stat.getExpiredTaskNum());
+        Assert.assertEquals(taskNum / 2, stat.getCancelledTaskNum());
+    }
+}
@@ -0,0 +1,145 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.*;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. use the work stealing scheduler with 20 threads
+ * 2. flood it with 60 BACKGROUND tasks running 200ms each
+ *
+ * confirm no more than 6(30%) BACKGROUND tasks run at the same time
+ *
+ * 3. submit an API task during the flood, which submits a task not declaring its class
+ *
+ * confirm both tasks run in the API class without waiting for the background tasks
+ * confirm the statistics report all tasks completed
+ */
+public class TestThreadFacadeWorkStealing {
+    CLogger logger = Utils.getLogger(TestThreadFacadeWorkStealing.class);
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    int backgroundTaskNum = 60;
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        ThreadGlobalProperty.SCHEDULER = "workStealing";
+        ThreadGlobalProperty.MAX_THREAD_NUM = 20;
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+    }
+
+    @After
+    public void tearDown() {
+        ThreadGlobalProperty.SCHEDULER = "threadPool";
+        ThreadGlobalProperty.MAX_THREAD_NUM = 100;
+    }
+
+    class BackgroundTask implements Task<Void>, ClassifiedTask {
+        @Override
+        public TaskClass getTaskClass() {
+            return TaskClass.BACKGROUND;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            int r = running.incrementAndGet();
+            int max;
+            while (r > (max = maxRunning.get())) {
+                if (maxRunning.compareAndSet(max, r)) {
+                    break;
+                }
+            }
+
+            TimeUnit.MILLISECONDS.sleep(200);
+            running.decrementAndGet();
+            return null;
+        }
+
+        @Override
+        public String getName() {
+            return "background-task";
+        }
+    }
+
+    @Test
+    public void test() throws Exception {
+        for (int i=0; i<backgroundTaskNum; i++) {
+            thdf.submit(new BackgroundTask());
+        }
+
+        TimeUnit.MILLISECONDS.sleep(300);
+
+        final long submitTime = System.currentTimeMillis();
+        Future<TaskClass> f = thdf.submit(new ApiTask(submitTime));
+        Assert.assertEquals(TaskClass.API, f.get(1, TimeUnit.SECONDS));
+
+        TimeUnit.SECONDS.sleep(3);
+        Assert.assertTrue(maxRunning.get() <= 6);
+
+        Map<String, TaskClassStatistic> stats = ((ThreadFacadeImpl) thdf).getTaskClassStatistics();
+        TaskClassStatistic bstat = stats.get(TaskClass.BACKGROUND.toString());
+        Assert.assertEquals(6, bstat.getMaxConcurrency());
+        Assert.assertEquals(backgroundTaskNum, bstat.getCompletedTaskNum());
+        Assert.assertEquals(0, bstat.getQueuedTaskNum());
+        long total = 0;
+        for (long n : bstat.getLatencyHistogram()) {
+            total += n;
+        }
+        Assert.assertEquals(backgroundTaskNum, total);
+
+        TaskClassStatistic astat = stats.get(TaskClass.API.toString());
+        Assert.assertEquals(2, astat.getCompletedTaskNum());
+        Assert.assertTrue(astat.getMaxQueueLatency() < 100);
+    }
+
+    class ApiTask implements Task<TaskClass>, ClassifiedTask {
+        final long submitTime;
+
+        ApiTask(long submitTime) {
+            this.submitTime = submitTime;
+        }
+
+        @Override
+        public TaskClass getTaskClass() {
+            return TaskClass.API;
+        }
+
+        @Override
+        public TaskClass call() throws Exception {
+            Assert.assertTrue(System.currentTimeMillis() - submitTime < 100);
+
+            // not declaring its class, inherits API
+            return thdf.submit(new Task<TaskClass>() {
+                @Override
+                public TaskClass call() throws Exception {
+                    return TaskClass.current();
+                }
+
+                @Override
+                public String getName() {
+                    return "inherited-task";
+                }
+            }).get();
+        }
+
+        @Override
+        public String getName() {
+            return "api-task";
+        }
+    }
+}
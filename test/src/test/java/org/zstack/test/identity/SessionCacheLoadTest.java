@@ -0,0 +1,118 @@
+package org.zstack.test.identity;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.identity.APIValidateSessionMsg;
+import org.zstack.header.identity.AccountConstant;
+import org.zstack.header.identity.CredentialChecker;
+import org.zstack.header.identity.SessionVO;
+import org.zstack.identity.IdentityGlobalConfig;
+import org.zstack.test.Api;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * authenticate API calls with {sessions} active sessions from {threads} threads, {rounds} calls per session,
+ * report the throughput of the first round, which loads sessions and the user from DB, and the following rounds.
+ *
+ * e.g. mvn test -Dtest=SessionCacheLoadTest -Dsessions=10000 -Dthreads=16 -Drounds=5
+ */
+public class SessionCacheLoadTest {
+    CLogger logger = Utils.getLogger(SessionCacheLoadTest.class);
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    CredentialChecker checker;
+    int sessionNum;
+    int threadNum;
+    int roundNum;
+    List<String> sessionUuids = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        sessionNum = Integer.valueOf(System.getProperty("sessions", "10000"));
+        threadNum = Integer.valueOf(System.getProperty("threads", "16"));
+        roundNum = Integer.valueOf(System.getProperty("rounds", "5"));
+
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.addXml("PortalForUnitTest.xml").addXml("AccountManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        checker = loader.getComponent(CredentialChecker.class);
+        new Api().startServer();
+
+        IdentityGlobalConfig.MAX_CONCURRENT_SESSION.updateValue(sessionNum + 1);
+        Timestamp expiredDate = new Timestamp(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2));
+        List<SessionVO> vos = new ArrayList<SessionVO>();
+        for (int i=0; i<sessionNum; i++) {
+            SessionVO vo = new SessionVO();
+            vo.setUuid(Platform.getUuid());
+            vo.setAccountUuid(AccountConstant.INITIAL_SYSTEM_ADMIN_UUID);
+            vo.setUserUuid(AccountConstant.INITIAL_SYSTEM_ADMIN_UUID);
+            vo.setExpiredDate(expiredDate);
+            vos.add(vo);
+            sessionUuids.add(vo.getUuid());
+            if (vos.size() == 1000) {
+                dbf.persistCollection(vos);
+                vos.clear();
+            }
+        }
+        if (!vos.isEmpty()) {
+            dbf.persistCollection(vos);
+        }
+    }
+
+    private long round(final int rounds, final AtomicInteger failure) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(threadNum);
+        long start = System.nanoTime();
+        for (int t=0; t<threadNum; t++) {
+            final int offset = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int r=0; r<rounds; r++) {
+                            for (int i=offset; i<sessionUuids.size(); i+=threadNum) {
+                                APIValidateSessionMsg msg = new APIValidateSessionMsg();
+                                msg.setSessionUuid(sessionUuids.get(i));
+                                try {
+                                    checker.validateSession(msg);
+                                } catch (Exception e) {
+                                    failure.incrementAndGet();
+                                }
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        Assert.assertTrue(latch.await(30, TimeUnit.MINUTES));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        AtomicInteger failure = new AtomicInteger();
+        long cold = Math.max(1, round(1, failure));
+        long warm = Math.max(1, round(roundNum - 1, failure));
+        Assert.assertEquals(0, failure.get());
+
+        logger.info(String.format("[Session Cache Load Test] %s sessions, %s threads: first round %s calls/s, following rounds %s calls/s",
+                sessionNum, threadNum, sessionNum * 1000L / cold, (long) sessionNum * (roundNum - 1) * 1000L / warm));
+    }
+}
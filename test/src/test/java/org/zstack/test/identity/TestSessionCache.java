@@ -0,0 +1,94 @@
+package org.zstack.test.identity;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.identity.APIValidateSessionMsg;
+import org.zstack.header.identity.AccountInventory;
+import org.zstack.header.identity.IdentityCanonicalEvents;
+import org.zstack.header.identity.IdentityCanonicalEvents.SessionLogoutData;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.identity.SessionVO;
+import org.zstack.header.identity.UserVO;
+import org.zstack.identity.CredentialCheckerImpl;
+import org.zstack.identity.SessionToken;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. login and validate the session
+ * 2. remove the session from DB and fire the logout event, as another management node logging it out
+ *
+ * confirm the session is invalid
+ *
+ * 3. login by an account and reset its password
+ *
+ * confirm the session is still valid
+ * confirm the user cached for the session has the new password
+ * confirm the account can login with the new password but not the old one
+ */
+public class TestSessionCache {
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    EventFacade evtf;
+    CredentialCheckerImpl checker;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml").addXml("AccountManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        evtf = loader.getComponent(EventFacade.class);
+        checker = loader.getComponent(CredentialCheckerImpl.class);
+        api = new Api();
+        api.startServer();
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        SessionInventory session = api.loginAsAdmin();
+        Assert.assertTrue(api.validateSession(session.getUuid()));
+
+        dbf.removeByPrimaryKey(session.getUuid(), SessionVO.class);
+        SessionLogoutData data = new SessionLogoutData();
+        data.setSessionUuid(session.getUuid());
+        data.setUserUuid(session.getUserUuid());
+        evtf.fire(IdentityCanonicalEvents.SESSION_LOGOUT_PATH, data);
+        TimeUnit.SECONDS.sleep(2);
+        Assert.assertFalse(api.validateSession(session.getUuid()));
+
+        AccountInventory inv = api.createAccount("Test", "password");
+        SessionInventory accountSession = api.loginByAccount(inv.getName(), "password");
+        Assert.assertTrue(api.validateSession(accountSession.getUuid()));
+        api.resetAccountPassword(inv.getUuid(), "password2", accountSession);
+        TimeUnit.SECONDS.sleep(2);
+        Assert.assertTrue(api.validateSession(accountSession.getUuid()));
+        Assert.assertEquals("password2", getSessionUser(accountSession).getPassword());
+        api.loginByAccount(inv.getName(), "password2");
+        boolean s = false;
+        try {
+            api.loginByAccount(inv.getName(), "password");
+        } catch (ApiSenderException e) {
+            s = true;
+        }
+        Assert.assertTrue(s);
+    }
+
+    private UserVO getSessionUser(SessionInventory session) {
+        APIValidateSessionMsg msg = new APIValidateSessionMsg();
+        msg.setSession(session);
+        SessionToken token = new SessionToken(session.getUuid(), msg);
+        checker.authenticate(token);
+        return (UserVO) token.getDetails();
+    }
+}
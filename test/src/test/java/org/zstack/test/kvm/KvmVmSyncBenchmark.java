@@ -0,0 +1,136 @@
+package org.zstack.test.kvm;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.kvm.KVMConstant.KvmVmState;
+import org.zstack.kvm.KVMGlobalConfig;
+import org.zstack.kvm.KvmVmSyncPingTask;
+import org.zstack.simulator.kvm.KVMSimulatorConfig;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.VmCreator;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.zstack.utils.StringDSL.ln;
+
+/**
+ * compare full and delta vm sync of {vms} vms on {hosts} hosts, with one vm changing state every {changeEvery} syncs.
+ * Every host is synced once, as in a ping cycle; the simulator serves all hosts so rounds are run against one host.
+ *
+ * a full sync traces vm states with two DB queries, a delta sync with one query only if some vm changed.
+ *
+ * e.g. mvn test -Dtest=KvmVmSyncBenchmark -Dvms=100 -Dhosts=2000 -DchangeEvery=20
+ */
+public class KvmVmSyncBenchmark {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    KVMSimulatorConfig config;
+    KvmVmSyncPingTask syncTask;
+    HostInventory host;
+    int vmNum;
+    int hostNum;
+    int changeEvery;
+    List<String> vmUuids = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        vmNum = Integer.valueOf(System.getProperty("vms", "100"));
+        hostNum = Integer.valueOf(System.getProperty("hosts", "2000"));
+        changeEvery = Integer.valueOf(System.getProperty("changeEvery", "20"));
+
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/kvm/TestCreateVmOnKvm100.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        config = loader.getComponent(KVMSimulatorConfig.class);
+        syncTask = loader.getComponent(KvmVmSyncPingTask.class);
+        host = deployer.hosts.get("host1");
+    }
+
+    private void createVms() throws ApiSenderException {
+        ImageInventory img = deployer.images.get("TestImage");
+        InstanceOfferingInventory ioinv = deployer.instanceOfferings.get("TestInstanceOffering");
+        L3NetworkInventory l3 = deployer.l3Networks.get("TestL3Network1");
+        for (int i=0; i<vmNum; i++) {
+            VmCreator creator = new VmCreator(api);
+            creator.addL3Network(l3.getUuid());
+            creator.imageUuid = img.getUuid();
+            creator.instanceOfferingUuid = ioinv.getUuid();
+            creator.name = "vm-" + i;
+            VmInstanceInventory vm = creator.create();
+            vmUuids.add(vm.getUuid());
+        }
+    }
+
+    private String run(boolean delta) throws InterruptedException {
+        KVMGlobalConfig.VM_SYNC_DELTA.updateValue(delta);
+        long bytes = config.vmSyncReplyBytes;
+        long fullTraces = syncTask.getFullTraceCount();
+        long deltaTraces = syncTask.getDeltaTraceCount();
+        long skipped = syncTask.getSkippedDeltaTraceCount();
+        long start = System.currentTimeMillis();
+
+        for (int i=0; i<hostNum; i++) {
+            if (i % changeEvery == 0) {
+                String vmUuid = vmUuids.get((i / changeEvery) % vmUuids.size());
+                synchronized (config) {
+                    config.vms.put(vmUuid, config.vms.get(vmUuid) == KvmVmState.Running ? KvmVmState.Paused : KvmVmState.Running);
+                }
+            }
+
+            int num = config.vmSyncCmds.size();
+            syncTask.executeTaskAlongWithPingTask(host);
+            while (config.vmSyncCmds.size() == num) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+        }
+
+        long time = System.currentTimeMillis() - start;
+        fullTraces = syncTask.getFullTraceCount() - fullTraces;
+        deltaTraces = syncTask.getDeltaTraceCount() - deltaTraces;
+        skipped = syncTask.getSkippedDeltaTraceCount() - skipped;
+        bytes = config.vmSyncReplyBytes - bytes;
+
+        return ln(
+                "{0} sync: {1} vms x {2} hosts",
+                "  Total Time: {3} ms",
+                "  Reply Payload: {4} bytes",
+                "  Full Traces: {5}, Delta Traces: {6}, Skipped Traces: {7}",
+                "  Tracer DB Queries: {8}"
+        ).format(delta ? "Delta" : "Full", vmNum, hostNum, time, bytes, fullTraces, deltaTraces, skipped,
+                fullTraces * 2 + deltaTraces);
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        createVms();
+
+        long bytes = config.vmSyncReplyBytes;
+        String full = run(false);
+        long fullBytes = config.vmSyncReplyBytes - bytes;
+        bytes = config.vmSyncReplyBytes;
+        String delta = run(true);
+        long deltaBytes = config.vmSyncReplyBytes - bytes;
+
+        System.out.println(full);
+        System.out.println(delta);
+        Assert.assertTrue(deltaBytes < fullBytes);
+    }
+}
@@ -0,0 +1,108 @@
+package org.zstack.test.kvm;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmInstanceState;
+import org.zstack.header.vm.VmInstanceVO;
+import org.zstack.kvm.KVMAgentCommands.VmSyncCmd;
+import org.zstack.kvm.KVMConstant.KvmVmState;
+import org.zstack.kvm.KVMGlobalConfig;
+import org.zstack.kvm.KvmVmSyncPingTask;
+import org.zstack.simulator.kvm.KVMSimulatorConfig;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. enable delta vm sync
+ * 2. sync vm states twice
+ *
+ * confirm the first sync is full and the second is delta
+ * confirm the second sync doesn't trace vm states as nothing changed
+ *
+ * 3. remove the vm from the host and sync
+ *
+ * confirm the vm is Stopped
+ *
+ * 4. put the vm back to the host and sync
+ *
+ * confirm the vm is Running
+ *
+ * 5. restart the agent and sync
+ *
+ * confirm the sync is full
+ */
+public class TestKvmVmSyncDelta {
+    CLogger logger = Utils.getLogger(TestKvmVmSyncDelta.class);
+    Deployer deployer;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    KVMSimulatorConfig config;
+    KvmVmSyncPingTask syncTask;
+    HostInventory host;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/kvm/TestCreateVmOnKvm.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        config = loader.getComponent(KVMSimulatorConfig.class);
+        syncTask = loader.getComponent(KvmVmSyncPingTask.class);
+        host = deployer.hosts.get("host1");
+        KVMGlobalConfig.VM_SYNC_DELTA.updateValue(true);
+    }
+
+    private VmSyncCmd sync() throws InterruptedException {
+        int num = config.vmSyncCmds.size();
+        syncTask.executeTaskAlongWithPingTask(host);
+        for (int i=0; i<100 && config.vmSyncCmds.size() == num; i++) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        TimeUnit.SECONDS.sleep(1);
+        return config.vmSyncCmds.get(config.vmSyncCmds.size() - 1);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+
+        VmSyncCmd cmd = sync();
+        Assert.assertNull(cmd.getEpoch());
+        long skipped = syncTask.getSkippedDeltaTraceCount();
+        int deltaReplies = config.vmSyncDeltaReplies;
+        cmd = sync();
+        Assert.assertEquals(config.vmSyncEpoch, cmd.getEpoch());
+        Assert.assertEquals(deltaReplies + 1, config.vmSyncDeltaReplies);
+        Assert.assertEquals(skipped + 1, syncTask.getSkippedDeltaTraceCount());
+
+        config.vms.remove(vm.getUuid());
+        sync();
+        VmInstanceVO vmvo = dbf.findByUuid(vm.getUuid(), VmInstanceVO.class);
+        Assert.assertEquals(VmInstanceState.Stopped, vmvo.getState());
+        Assert.assertNull(vmvo.getHostUuid());
+
+        config.vms.put(vm.getUuid(), KvmVmState.Running);
+        sync();
+        vmvo = dbf.findByUuid(vm.getUuid(), VmInstanceVO.class);
+        Assert.assertEquals(VmInstanceState.Running, vmvo.getState());
+
+        config.vmSyncEpoch = UUID.randomUUID().toString();
+        int fullReplies = config.vmSyncFullReplies;
+        sync();
+        Assert.assertEquals(fullReplies + 1, config.vmSyncFullReplies);
+    }
+}
@@ -0,0 +1,112 @@
+package org.zstack.test.network;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.network.l2.L2NetworkInventory;
+import org.zstack.header.network.l3.*;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+
+import java.util.List;
+
+/**
+ * 1. allocate 3 ips from l3-1 and 2 ips from l3-2 in one AllocateIpsMsg
+ * 2. allocate more ips than l3-2 has in one AllocateIpsMsg
+ *
+ * confirm ips are returned in the order of l3 uuids in the message
+ * confirm the second allocation fails and no ip is left allocated in l3-1
+ */
+public class TestAllocateIps {
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    CloudBus bus;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml").addXml("ZoneManager.xml").addXml("NetworkManager.xml").addXml("AccountManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        bus = loader.getComponent(CloudBus.class);
+        api = new Api();
+        api.startServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        api.stopServer();
+    }
+
+    private long countUsedIp(String l3Uuid) {
+        SimpleQuery<UsedIpVO> q = dbf.createQuery(UsedIpVO.class);
+        q.add(UsedIpVO_.l3NetworkUuid, Op.EQ, l3Uuid);
+        return q.count();
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        ZoneInventory zone = api.createZones(1).get(0);
+        L2NetworkInventory linv = api.createNoVlanL2Network(zone.getUuid(), "eth0");
+        L3NetworkInventory l31 = api.createL3BasicNetwork(linv.getUuid());
+        L3NetworkInventory l32 = api.createL3BasicNetwork(linv.getUuid());
+        api.addIpRange(l31.getUuid(), "10.223.110.10", "10.223.110.20", "10.223.110.1", "255.255.255.0");
+        api.addIpRange(l32.getUuid(), "10.223.111.10", "10.223.111.12", "10.223.111.1", "255.255.255.0");
+
+        AllocateIpsMsg msg = new AllocateIpsMsg();
+        msg.getL3NetworkUuids().add(l31.getUuid());
+        msg.getL3NetworkUuids().add(l32.getUuid());
+        msg.getL3NetworkUuids().add(l31.getUuid());
+        msg.getL3NetworkUuids().add(l32.getUuid());
+        msg.getL3NetworkUuids().add(l31.getUuid());
+        msg.setAllocateStrategy(L3NetworkConstant.FIRST_AVAILABLE_IP_ALLOCATOR_STRATEGY);
+        msg.setServiceId(bus.makeLocalServiceId(L3NetworkConstant.SERVICE_ID));
+        MessageReply reply = bus.call(msg);
+        Assert.assertTrue(reply.isSuccess());
+        List<UsedIpInventory> ips = ((AllocateIpsReply) reply).getIpInventories();
+        Assert.assertEquals(5, ips.size());
+        Assert.assertEquals("10.223.110.10", ips.get(0).getIp());
+        Assert.assertEquals("10.223.111.10", ips.get(1).getIp());
+        Assert.assertEquals("10.223.110.11", ips.get(2).getIp());
+        Assert.assertEquals("10.223.111.11", ips.get(3).getIp());
+        Assert.assertEquals("10.223.110.12", ips.get(4).getIp());
+        for (UsedIpInventory ip : ips) {
+            Assert.assertNotNull(dbf.findByUuid(ip.getUuid(), UsedIpVO.class));
+        }
+
+        msg = new AllocateIpsMsg();
+        msg.getL3NetworkUuids().add(l31.getUuid());
+        msg.getL3NetworkUuids().add(l32.getUuid());
+        msg.getL3NetworkUuids().add(l32.getUuid());
+        msg.setAllocateStrategy(L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY);
+        msg.setServiceId(bus.makeLocalServiceId(L3NetworkConstant.SERVICE_ID));
+        reply = bus.call(msg);
+        Assert.assertFalse(reply.isSuccess());
+        Assert.assertEquals(3, countUsedIp(l31.getUuid()));
+        Assert.assertEquals(2, countUsedIp(l32.getUuid()));
+
+        // ips picked by the failed batch are available again
+        msg = new AllocateIpsMsg();
+        msg.getL3NetworkUuids().add(l31.getUuid());
+        msg.getL3NetworkUuids().add(l32.getUuid());
+        msg.setAllocateStrategy(L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY);
+        msg.setServiceId(bus.makeLocalServiceId(L3NetworkConstant.SERVICE_ID));
+        reply = bus.call(msg);
+        Assert.assertTrue(reply.isSuccess());
+        ips = ((AllocateIpsReply) reply).getIpInventories();
+        Assert.assertEquals("10.223.110.13", ips.get(0).getIp());
+        Assert.assertEquals("10.223.111.12", ips.get(1).getIp());
+    }
+}
@@ -0,0 +1,90 @@
+package org.zstack.test.network;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.network.l2.L2NetworkInventory;
+import org.zstack.header.network.l3.*;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+
+/**
+ * 1. allocate all ips of a range with BitmapIpAllocatorStrategy
+ * 2. return one ip
+ *
+ * confirm ips are allocated in order, the allocation fails when the range is full
+ * and the returned ip is allocated again
+ */
+public class TestBitmapIpAllocatorStrategy1 {
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    CloudBus bus;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml").addXml("ZoneManager.xml").addXml("NetworkManager.xml").addXml("AccountManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        bus = loader.getComponent(CloudBus.class);
+        api = new Api();
+        api.startServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        api.stopServer();
+    }
+
+    private MessageReply allocate(L3NetworkInventory l3inv) {
+        AllocateIpMsg msg = new AllocateIpMsg();
+        msg.setL3NetworkUuid(l3inv.getUuid());
+        msg.setServiceId(bus.makeLocalServiceId(L3NetworkConstant.SERVICE_ID));
+        msg.setAllocateStrategy(L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY);
+        return bus.call(msg);
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        ZoneInventory zone = api.createZones(1).get(0);
+        L2NetworkInventory linv = api.createNoVlanL2Network(zone.getUuid(), "eth0");
+        L3NetworkInventory l3inv = api.createL3BasicNetwork(linv.getUuid());
+        api.addIpRange(l3inv.getUuid(), "10.223.110.10", "10.223.110.19", "10.223.110.1", "255.255.255.0");
+
+        UsedIpInventory fifth = null;
+        for (int i = 10; i < 20; i++) {
+            MessageReply reply = allocate(l3inv);
+            Assert.assertTrue(reply.isSuccess());
+            UsedIpInventory uinv = ((AllocateIpReply) reply).getIpInventory();
+            Assert.assertEquals(String.format("10.223.110.%s", i), uinv.getIp());
+            if (i == 15) {
+                fifth = uinv;
+            }
+        }
+
+        MessageReply reply = allocate(l3inv);
+        Assert.assertFalse(reply.isSuccess());
+
+        ReturnIpMsg rmsg = new ReturnIpMsg();
+        rmsg.setL3NetworkUuid(l3inv.getUuid());
+        rmsg.setUsedIpUuid(fifth.getUuid());
+        rmsg.setServiceId(bus.makeLocalServiceId(L3NetworkConstant.SERVICE_ID));
+        reply = bus.call(rmsg);
+        Assert.assertTrue(reply.isSuccess());
+        Assert.assertNull(dbf.findByUuid(fifth.getUuid(), UsedIpVO.class));
+
+        reply = allocate(l3inv);
+        Assert.assertTrue(reply.isSuccess());
+        Assert.assertEquals("10.223.110.15", ((AllocateIpReply) reply).getIpInventory().getIp());
+    }
+}
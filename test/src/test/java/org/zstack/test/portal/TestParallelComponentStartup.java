@@ -0,0 +1,77 @@
+package org.zstack.test.portal;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.host.HostTrackImpl;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.componentloader.PluginRegistry;
+import org.zstack.header.Component;
+import org.zstack.header.cluster.ClusterInventory;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.managementnode.ManagementNodeManager;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.portal.managementnode.ManagementNodeManagerImpl;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 1. start the management node with parallelComponentStartup = true
+ *
+ * confirm every component has been started and reported its start cost
+ * confirm zone, cluster and host can be created
+ *
+ * 2. get the extension list of Component twice
+ *
+ * confirm lists are equal and modifying one doesn't change the other
+ */
+public class TestParallelComponentStartup {
+    ComponentLoader loader;
+    Api api;
+
+    @Before
+    public void setUp() throws Exception {
+        CoreGlobalProperty.PARALLEL_COMPONENT_STARTUP = true;
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.addXml("PortalForUnitTest.xml").addXml("ClusterManager.xml")
+                .addXml("ZoneManager.xml").addXml("HostManager.xml")
+                .addXml("Simulator.xml").addXml("AccountManager.xml")
+                .addXml("HostAllocatorManager.xml").build();
+        api = new Api();
+        api.startServer();
+    }
+
+    @After
+    public void tearDown() {
+        CoreGlobalProperty.PARALLEL_COMPONENT_STARTUP = false;
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        PluginRegistry pluginRgty = loader.getComponent(PluginRegistry.class);
+        List<Component> components = pluginRgty.getExtensionList(Component.class);
+
+        ManagementNodeManagerImpl mgr = (ManagementNodeManagerImpl) loader.getComponent(ManagementNodeManager.class);
+        Map<String, Long> costs = mgr.getComponentStartCosts();
+        Assert.assertEquals(components.size(), costs.size());
+        Assert.assertTrue(costs.containsKey(HostTrackImpl.class.getName()));
+
+        ZoneInventory zone = api.createZones(1).get(0);
+        ClusterInventory cluster = api.createClusters(1, zone.getUuid()).get(0);
+        HostInventory host = api.createHost(1, cluster.getUuid()).get(0);
+        Assert.assertNotNull(host);
+
+        List<Component> components2 = pluginRgty.getExtensionList(Component.class);
+        Assert.assertEquals(components, components2);
+        components2.clear();
+        Assert.assertEquals(components.size(), pluginRgty.getExtensionList(Component.class).size());
+    }
+}
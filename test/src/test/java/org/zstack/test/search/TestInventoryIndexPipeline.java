@@ -0,0 +1,213 @@
+package org.zstack.test.search;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.header.search.InventoryDoc;
+import org.zstack.search.ESBulkBuilder;
+import org.zstack.search.InventoryIndexPipeline;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. use an in-memory ElasticSearch stand-in which is down
+ * 2. index 100 inventories, update each of them 3 times, then delete 10 of them
+ * 3. stop the pipeline and start a new one on the same spool folder with the stand-in up
+ *
+ * confirm nothing is indexed while the stand-in is down and the pipeline keeps retrying
+ * confirm the new pipeline replays the spool, the stand-in has the latest version of the 90 inventories left
+ * confirm the spool folder has nothing but an empty journal after all changes are flushed
+ *
+ * testOverflow:
+ * 1. use a queue of 20 changes with the stand-in down
+ * 2. index 100 inventories one by one, then delete 10 of them
+ * 3. bring the stand-in up
+ *
+ * confirm indexing doesn't wait when the queue is full, changes beyond the queue go to the overflow file
+ * confirm the overflow file is moved back to the queue after the stand-in is up, the stand-in has the 90 inventories left
+ * confirm the spool folder has nothing but an empty journal after all changes are flushed
+ */
+public class TestInventoryIndexPipeline {
+    CLogger logger = Utils.getLogger(TestInventoryIndexPipeline.class);
+    static final String INVENTORY_NAME = "VmInstanceInventory";
+    File spoolDir;
+    ExecutorService executor;
+    // the database, uuid -> version
+    Map<String, Integer> database = new ConcurrentHashMap<String, Integer>();
+    // the stand-in, uuid -> doc
+    Map<String, JsonObject> es = new ConcurrentHashMap<String, JsonObject>();
+    volatile boolean esDown = true;
+    AtomicInteger bulkRequests = new AtomicInteger();
+
+    public static class Inventory {
+        String uuid;
+        int version;
+    }
+
+    class StandInBackend implements InventoryIndexPipeline.Backend {
+        @Override
+        public void buildIndex(String inventoryName, Set<String> uuids, ESBulkBuilder builder) throws Exception {
+            for (String uuid : uuids) {
+                Integer version = database.get(uuid);
+                if (version == null) {
+                    continue;
+                }
+
+                Inventory inv = new Inventory();
+                inv.uuid = uuid;
+                inv.version = version;
+                builder.addIndexBulk(inventoryName.toLowerCase(), inventoryName, InventoryDoc.toDoc(inventoryName, uuid, inv));
+            }
+        }
+
+        @Override
+        public void sendBulk(String body) throws IOException {
+            bulkRequests.incrementAndGet();
+            if (esDown) {
+                throw new IOException("connection refused");
+            }
+
+            JsonParser parser = new JsonParser();
+            Iterator<String> it = Arrays.asList(body.split("\n")).iterator();
+            while (it.hasNext()) {
+                JsonObject meta = parser.parse(it.next()).getAsJsonObject();
+                if (meta.has("index")) {
+                    String id = meta.getAsJsonObject("index").get("_id").getAsString();
+                    es.put(id, parser.parse(it.next()).getAsJsonObject());
+                } else {
+                    es.remove(meta.getAsJsonObject("delete").get("_id").getAsString());
+                }
+            }
+        }
+    }
+
+    private InventoryIndexPipeline createPipeline() {
+        return createPipeline(10000);
+    }
+
+    private InventoryIndexPipeline createPipeline(int queueSize) {
+        InventoryIndexPipeline pipeline = new InventoryIndexPipeline(new StandInBackend(), executor);
+        pipeline.setQueueSize(queueSize);
+        pipeline.setCoalesceWindow(200);
+        pipeline.setDocBuildBatchSize(10);
+        pipeline.setMaxRetryInterval(200);
+        pipeline.setSpoolDir(spoolDir);
+        pipeline.start();
+        return pipeline;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        spoolDir = new File(System.getProperty("java.io.tmpdir"), "TestInventoryIndexPipeline-" + UUID.randomUUID().toString());
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        FileUtils.deleteQuietly(spoolDir);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        InventoryIndexPipeline pipeline = createPipeline();
+        List<String> uuids = new ArrayList<String>();
+        for (int i=0; i<100; i++) {
+            uuids.add(UUID.randomUUID().toString().replace("-", ""));
+        }
+
+        for (int version=0; version<4; version++) {
+            for (String uuid : uuids) {
+                database.put(uuid, version);
+            }
+            pipeline.index(INVENTORY_NAME, uuids);
+        }
+
+        List<String> deleted = uuids.subList(0, 10);
+        for (String uuid : deleted) {
+            database.remove(uuid);
+        }
+        pipeline.delete(INVENTORY_NAME, deleted);
+
+        TimeUnit.SECONDS.sleep(2);
+        Assert.assertTrue(es.isEmpty());
+        Assert.assertTrue(pipeline.getBulkRetries() > 0);
+        Assert.assertEquals(0, pipeline.getFlushedChanges());
+        Assert.assertEquals(410, pipeline.getQueuedChanges());
+        pipeline.stop();
+
+        esDown = false;
+        pipeline = createPipeline();
+        TimeUnit.SECONDS.sleep(2);
+        Assert.assertEquals(100, pipeline.getFlushedChanges());
+        Assert.assertEquals(0, pipeline.getQueueDepth());
+        Assert.assertEquals(90, es.size());
+        for (String uuid : uuids.subList(10, 100)) {
+            Assert.assertEquals(3, es.get(uuid).get("version").getAsInt());
+        }
+        for (String uuid : deleted) {
+            Assert.assertFalse(es.containsKey(uuid));
+        }
+        pipeline.stop();
+
+        File[] files = spoolDir.listFiles();
+        Assert.assertEquals(1, files.length);
+        Assert.assertEquals("journal", files[0].getName());
+        Assert.assertEquals(0, files[0].length());
+    }
+
+    @Test
+    public void testOverflow() throws InterruptedException {
+        InventoryIndexPipeline pipeline = createPipeline(20);
+        List<String> uuids = new ArrayList<String>();
+        for (int i=0; i<100; i++) {
+            uuids.add(UUID.randomUUID().toString().replace("-", ""));
+        }
+
+        long start = System.currentTimeMillis();
+        for (String uuid : uuids) {
+            database.put(uuid, 1);
+            pipeline.index(INVENTORY_NAME, Arrays.asList(uuid));
+        }
+
+        List<String> deleted = uuids.subList(0, 10);
+        for (String uuid : deleted) {
+            database.remove(uuid);
+        }
+        pipeline.delete(INVENTORY_NAME, deleted);
+        Assert.assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(1));
+
+        TimeUnit.SECONDS.sleep(1);
+        Assert.assertTrue(es.isEmpty());
+        Assert.assertTrue(pipeline.getQueueDepth() <= 20);
+        Assert.assertTrue(pipeline.getOverflows() >= 80);
+        Assert.assertTrue(new File(spoolDir, "overflow").exists());
+
+        esDown = false;
+        TimeUnit.SECONDS.sleep(3);
+        Assert.assertEquals(0, pipeline.getQueueDepth());
+        Assert.assertEquals(90, es.size());
+        for (String uuid : deleted) {
+            Assert.assertFalse(es.containsKey(uuid));
+        }
+        pipeline.stop();
+
+        File[] files = spoolDir.listFiles();
+        Assert.assertEquals(1, files.length);
+        Assert.assertEquals("journal", files[0].getName());
+        Assert.assertEquals(0, files[0].length());
+    }
+}
@@ -0,0 +1,143 @@
+package org.zstack.test.storage.primary.nfs;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.storage.primary.ImageCacheVO;
+import org.zstack.header.storage.primary.ImageCacheVO_;
+import org.zstack.simulator.storage.primary.nfs.NfsPrimaryStorageSimulatorConfig;
+import org.zstack.storage.primary.ImageCacheRegistry;
+import org.zstack.storage.primary.PrimaryStorageGlobalConfig;
+import org.zstack.test.*;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. enable the image cache registry
+ * 2. create 10 vms from the same image concurrently
+ *
+ * confirm the image is downloaded to the primary storage once
+ *
+ * 3. create another vm
+ *
+ * confirm the image cache is found in the registry
+ *
+ * 4. make creating the root volume fail and remove the image cache from the primary storage
+ * 5. create a vm
+ *
+ * confirm the registry is evicted and the image is downloaded again
+ */
+public class TestImageCacheRegistry {
+    CLogger logger = Utils.getLogger(TestImageCacheRegistry.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    SessionInventory session;
+    NfsPrimaryStorageSimulatorConfig config;
+    ImageCacheRegistry registry;
+    int vmNum = 10;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/primaryStorage/TestImageCacheMissing.xml", con);
+        deployer.addSpringConfig("SftpBackupStorage.xml");
+        deployer.addSpringConfig("SftpBackupStorageSimulator.xml");
+        deployer.addSpringConfig("Kvm.xml");
+        deployer.addSpringConfig("KVMSimulator.xml");
+        deployer.addSpringConfig("NfsPrimaryStorage.xml");
+        deployer.addSpringConfig("NfsPrimaryStorageSimulator.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        config = loader.getComponent(NfsPrimaryStorageSimulatorConfig.class);
+        registry = loader.getComponent(ImageCacheRegistry.class);
+        session = api.loginAsAdmin();
+    }
+
+    private void createVm() throws ApiSenderException {
+        ImageInventory iinv = deployer.images.get("TestImage");
+        InstanceOfferingInventory ioinv = deployer.instanceOfferings.get("TestInstanceOffering");
+        L3NetworkInventory l3 = deployer.l3Networks.get("TestL3Network1");
+
+        VmCreator creator = new VmCreator(api);
+        creator.addL3Network(l3.getUuid());
+        creator.imageUuid = iinv.getUuid();
+        creator.instanceOfferingUuid = ioinv.getUuid();
+        creator.create();
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        PrimaryStorageGlobalConfig.IMAGE_CACHE_REGISTRY.updateValue(true);
+        config.downloadFromSftpCmds.clear();
+
+        final AtomicInteger created = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(vmNum);
+        for (int i=0; i<vmNum; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        createVm();
+                        created.incrementAndGet();
+                    } catch (Exception e) {
+                        logger.warn(e.getMessage(), e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        Assert.assertTrue(latch.await(2, TimeUnit.MINUTES));
+        Assert.assertEquals(vmNum, created.get());
+        Assert.assertEquals(1, config.downloadFromSftpCmds.size());
+        Assert.assertEquals(1, registry.getMisses());
+        Assert.assertEquals(vmNum - 1, registry.getHits() + registry.getCoalescedRequests());
+        Assert.assertEquals(0, registry.getInFlightDownloads());
+        Assert.assertEquals(1, registry.getCachedImages());
+
+        long hits = registry.getHits();
+        createVm();
+        Assert.assertEquals(hits + 1, registry.getHits());
+        Assert.assertEquals(1, config.downloadFromSftpCmds.size());
+
+        SimpleQuery<ImageCacheVO> q = dbf.createQuery(ImageCacheVO.class);
+        q.add(ImageCacheVO_.imageUuid, SimpleQuery.Op.EQ, deployer.images.get("TestImage").getUuid());
+        ImageCacheVO cache = q.find();
+        config.imageCache.remove(cache.getInstallUrl());
+        config.createRootVolumeFromTemplateSuccess = false;
+        boolean s = false;
+        try {
+            createVm();
+        } catch (ApiSenderException e) {
+            s = true;
+        }
+        Assert.assertTrue(s);
+        Assert.assertEquals(0, registry.getCachedImages());
+
+        config.createRootVolumeFromTemplateSuccess = true;
+        createVm();
+        Assert.assertEquals(2, registry.getMisses());
+        Assert.assertEquals(2, config.downloadFromSftpCmds.size());
+    }
+}
@@ -0,0 +1,144 @@
+package org.zstack.test.storage.snapshot;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.storage.backup.BackupStorageInventory;
+import org.zstack.header.storage.primary.PrimaryStorageInventory;
+import org.zstack.header.storage.snapshot.VolumeSnapshotInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.simulator.storage.primary.nfs.NfsPrimaryStorageSimulatorConfig;
+import org.zstack.storage.primary.nfs.NfsPrimaryStorageGlobalConfig;
+import org.zstack.storage.primary.nfs.NfsPrimaryStorageKVMBackendCommands.DownloadBitsFromSftpBackupStorageCmd;
+import org.zstack.storage.primary.nfs.NfsPrimaryStorageKVMBackendCommands.RebaseSnapshotCmd;
+import org.zstack.storage.primary.nfs.NfsPrimaryStorageKvmHelper;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.Query;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+* 1. enable pipelined snapshot download
+* 2. take 4 snapshot from vm's root volume
+* 3. backup snapshots
+* 4. fake snapshots are destroyed on primary storage
+* 5. fake snapshot 2 has been downloaded before the management node restarted
+* 6. create a new template from snapshot 4
+*
+* confirm template is created on sftp1
+* confirm snapshot 2 is not downloaded again
+* confirm each snapshot is rebased onto its parent and the latest snapshot is merged
+*
+* 7. make rebasing fail and create a template from snapshot 4 again
+*
+* confirm the template fails to create
+*/
+public class TestSnapshotOnKvm48 {
+    CLogger logger = Utils.getLogger(TestSnapshotOnKvm48.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    SessionInventory session;
+    NfsPrimaryStorageSimulatorConfig nfsConfig;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/kvm/TestTakeSnapshotOnKvm12.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        nfsConfig = loader.getComponent(NfsPrimaryStorageSimulatorConfig.class);
+        session = api.loginAsAdmin();
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        NfsPrimaryStorageGlobalConfig.SNAPSHOT_DOWNLOAD_PIPELINE.updateValue(true);
+        NfsPrimaryStorageGlobalConfig.SNAPSHOT_DOWNLOAD_PARALLELISM.updateValue(2);
+
+        BackupStorageInventory bs = deployer.backupStorages.get("sftp1");
+        PrimaryStorageInventory ps = deployer.primaryStorages.get("nfs");
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+        String volUuid = vm.getRootVolumeUuid();
+        List<VolumeSnapshotInventory> snapshots = new ArrayList<VolumeSnapshotInventory>();
+        for (int i=0; i<4; i++) {
+            snapshots.add(api.createSnapshot(volUuid));
+        }
+
+        VolumeSnapshotInventory latest = snapshots.get(3);
+        api.backupSnapshot(latest.getUuid());
+
+        new Runnable() {
+            @Override
+            @Transactional
+            public void run() {
+                String sql = "update VolumeSnapshotVO s set s.primaryStorageUuid = null, s.primaryStorageInstallPath = null";
+                Query q = dbf.getEntityManager().createQuery(sql);
+                q.executeUpdate();
+            }
+        }.run();
+
+        List<String> installPaths = new ArrayList<String>();
+        for (VolumeSnapshotInventory sp : snapshots) {
+            installPaths.add(NfsPrimaryStorageKvmHelper.makeSnapshotWorkspacePath(ps, sp.getUuid()));
+        }
+        nfsConfig.imageCache.add(installPaths.get(1));
+        nfsConfig.downloadFromSftpCmds.clear();
+        nfsConfig.moveBitsCmds.clear();
+        nfsConfig.mergeSnapshotCmds.clear();
+        nfsConfig.deleteCmds.clear();
+
+        ImageInventory img = api.createTemplateFromSnapshot(latest.getUuid(), bs.getUuid());
+        Assert.assertEquals(bs.getUuid(), img.getBackupStorageRefs().get(0).getBackupStorageUuid());
+        Assert.assertTrue(img.getSize() != 0);
+        Assert.assertFalse(nfsConfig.uploadToSftpCmds.isEmpty());
+        Assert.assertTrue(nfsConfig.rebaseAndMergeSnapshotsCmds.isEmpty());
+
+        Assert.assertEquals(3, nfsConfig.downloadFromSftpCmds.size());
+        for (DownloadBitsFromSftpBackupStorageCmd cmd : nfsConfig.downloadFromSftpCmds) {
+            Assert.assertFalse(cmd.getPrimaryStorageInstallPath().startsWith(installPaths.get(1)));
+        }
+        Assert.assertEquals(3, nfsConfig.moveBitsCmds.size());
+
+        Assert.assertEquals(3, nfsConfig.rebaseSnapshotCmds.size());
+        for (int i=0; i<3; i++) {
+            RebaseSnapshotCmd cmd = nfsConfig.rebaseSnapshotCmds.get(i);
+            Assert.assertEquals(installPaths.get(i + 1), cmd.getSnapshotInstallPath());
+            Assert.assertEquals(installPaths.get(i), cmd.getBaseInstallPath());
+        }
+
+        Assert.assertEquals(1, nfsConfig.mergeSnapshotCmds.size());
+        Assert.assertEquals(installPaths.get(3), nfsConfig.mergeSnapshotCmds.get(0).getSnapshotInstallPath());
+        // deleted temporary downloaded snapshots
+        Assert.assertFalse(nfsConfig.deleteCmds.isEmpty());
+
+        nfsConfig.rebaseSnapshotSuccess = false;
+        boolean s = false;
+        try {
+            api.createTemplateFromSnapshot(latest.getUuid(), bs.getUuid());
+        } catch (ApiSenderException e) {
+            s = true;
+        }
+        Assert.assertTrue(s);
+    }
+}
@@ -0,0 +1,124 @@
+package org.zstack.test.virtualrouter;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmNicInventory;
+import org.zstack.network.service.virtualrouter.VirtualRouterGlobalConfig;
+import org.zstack.simulator.kvm.KVMSimulatorConfig;
+import org.zstack.simulator.virtualrouter.VirtualRouterSimulatorConfig;
+import org.zstack.test.*;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. enable command batching of virtual router
+ * 2. create 20 vms on the same l3 network concurrently
+ *
+ * confirm dhcp entries of all vms are applied
+ * confirm they are sent in less batched commands than the number of vms
+ *
+ * 3. make the simulator fail the dhcp entries and create a vm
+ *
+ * confirm the vm fails to create
+ */
+public class TestVirtualRouterCommandBatch {
+    CLogger logger = Utils.getLogger(TestVirtualRouterCommandBatch.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    SessionInventory session;
+    VirtualRouterSimulatorConfig vconfig;
+    KVMSimulatorConfig kconfig;
+    int vmNum = 20;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/virtualRouter/virtualRouterDns.xml", con);
+        deployer.addSpringConfig("VirtualRouter.xml");
+        deployer.addSpringConfig("VirtualRouterSimulator.xml");
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        vconfig = loader.getComponent(VirtualRouterSimulatorConfig.class);
+        kconfig = loader.getComponent(KVMSimulatorConfig.class);
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        session = api.loginAsAdmin();
+    }
+
+    private VmInstanceInventory createVm(String name) throws ApiSenderException {
+        L3NetworkInventory l3 = deployer.l3Networks.get("TestL3Network2");
+        ImageInventory image = deployer.images.get("TestImage");
+        InstanceOfferingInventory ioinv = deployer.instanceOfferings.get("TestInstanceOffering");
+        VmCreator creator = new VmCreator(api);
+        creator.addL3Network(l3.getUuid());
+        creator.imageUuid = image.getUuid();
+        creator.instanceOfferingUuid = ioinv.getUuid();
+        creator.name = name;
+        return creator.create();
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        VirtualRouterGlobalConfig.COMMAND_BATCH_ENABLE.updateValue(true);
+        vconfig.batchApplyCmds.clear();
+
+        final List<VmInstanceInventory> vms = Collections.synchronizedList(new ArrayList<VmInstanceInventory>());
+        final CountDownLatch latch = new CountDownLatch(vmNum);
+        for (int i=0; i<vmNum; i++) {
+            final String name = String.format("vm-%s", i);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        vms.add(createVm(name));
+                    } catch (Exception e) {
+                        logger.warn(e.getMessage(), e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        Assert.assertTrue(latch.await(2, TimeUnit.MINUTES));
+        Assert.assertEquals(vmNum, vms.size());
+        for (VmInstanceInventory vm : vms) {
+            for (VmNicInventory nic : vm.getVmNics()) {
+                Assert.assertTrue(vconfig.dhcpInfoMap.containsKey(nic.getMac()));
+            }
+        }
+        Assert.assertFalse(vconfig.batchApplyCmds.isEmpty());
+        Assert.assertTrue(vconfig.batchApplyCmds.size() < vmNum);
+
+        vconfig.setDhcpEntrySuccess = false;
+        boolean s = false;
+        try {
+            createVm("failure");
+        } catch (ApiSenderException e) {
+            s = true;
+        }
+        Assert.assertTrue(s);
+    }
+}
@@ -0,0 +1,120 @@
+package org.zstack.test.virtualrouter;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.appliancevm.ApplianceVmVO;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.network.service.portforwarding.PortForwardingProtocolType;
+import org.zstack.network.service.portforwarding.PortForwardingRuleInventory;
+import org.zstack.network.service.vip.VipInventory;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SyncRulesCmd;
+import org.zstack.network.service.virtualrouter.VirtualRouterGlobalConfig;
+import org.zstack.network.service.virtualrouter.VirtualRouterRuleSet;
+import org.zstack.simulator.virtualrouter.VirtualRouterSimulatorConfig;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 1. enable differential rule sync
+ * 2. create 3 port forwarding rules on a vip
+ * 3. reconnect the virtual router
+ *
+ * confirm the vip, snat and 3 rules are sent in one sync command
+ *
+ * 4. reconnect the virtual router again
+ *
+ * confirm no sync command is sent
+ *
+ * 5. revoke a rule and reconnect the virtual router
+ *
+ * confirm only the revoked rule is removed by the sync command
+ */
+public class TestVirtualRouterDifferentialRuleSync {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    SessionInventory session;
+    VirtualRouterSimulatorConfig vconfig;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/virtualRouter/TestVirtualRouterPortForwarding.xml", con);
+        deployer.addSpringConfig("VirtualRouter.xml");
+        deployer.addSpringConfig("VirtualRouterSimulator.xml");
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.addSpringConfig("PortForwarding.xml");
+        deployer.addSpringConfig("vip.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        vconfig = loader.getComponent(VirtualRouterSimulatorConfig.class);
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        session = api.loginAsAdmin();
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        VirtualRouterGlobalConfig.DIFFERENTIAL_RULE_SYNC.updateValue(true);
+
+        L3NetworkInventory publicNw = deployer.l3Networks.get("PublicNetwork");
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+        VipInventory vip = api.acquireIp(publicNw.getUuid());
+        List<PortForwardingRuleInventory> rules = new ArrayList<PortForwardingRuleInventory>();
+        for (int i=0; i<3; i++) {
+            PortForwardingRuleInventory rule = new PortForwardingRuleInventory();
+            rule.setName(String.format("rule-%s", i));
+            rule.setAllowedCidr("72.1.1.1/24");
+            rule.setPrivatePortStart(80 + i * 10);
+            rule.setPrivatePortEnd(85 + i * 10);
+            rule.setProtocolType(PortForwardingProtocolType.TCP.toString());
+            rule.setVipUuid(vip.getUuid());
+            rule.setVipPortStart(80 + i * 10);
+            rule.setVipPortEnd(85 + i * 10);
+            rule.setVmNicUuid(vm.getVmNics().get(0).getUuid());
+            rules.add(api.createPortForwardingRuleByFullConfig(rule));
+        }
+
+        ApplianceVmVO vr = dbf.listAll(ApplianceVmVO.class).get(0);
+        vconfig.syncRulesCmds.clear();
+        api.reconnectVirtualRouter(vr.getUuid());
+        Assert.assertEquals(1, vconfig.syncRulesCmds.size());
+        SyncRulesCmd cmd = vconfig.syncRulesCmds.get(0);
+        Assert.assertEquals(3, cmd.getAddedPortForwardingRules().size());
+        Assert.assertEquals(1, cmd.getAddedVips().size());
+        Assert.assertFalse(cmd.getAddedSnats().isEmpty());
+        Assert.assertEquals(3, vconfig.syncedPortForwardingRules.size());
+        Assert.assertTrue(vconfig.syncedPortForwardingRules.containsKey(rules.get(0).getUuid()));
+
+        vconfig.syncRulesCmds.clear();
+        api.reconnectVirtualRouter(vr.getUuid());
+        Assert.assertTrue(vconfig.syncRulesCmds.isEmpty());
+
+        api.revokePortForwardingRule(rules.get(0).getUuid());
+        api.reconnectVirtualRouter(vr.getUuid());
+        Assert.assertEquals(1, vconfig.syncRulesCmds.size());
+        cmd = vconfig.syncRulesCmds.get(0);
+        Assert.assertEquals(1, cmd.getRuleSets().size());
+        Assert.assertTrue(cmd.getAddedPortForwardingRules().isEmpty());
+        Assert.assertEquals(1, cmd.getRemovedPortForwardingRules().size());
+        Assert.assertEquals(rules.get(0).getUuid(), cmd.getRemovedPortForwardingRules().get(0));
+        Assert.assertEquals(2, vconfig.syncedPortForwardingRules.size());
+        Assert.assertEquals(2, vconfig.ruleSets.get(VirtualRouterRuleSet.PORT_FORWARDING).getVersion());
+    }
+}
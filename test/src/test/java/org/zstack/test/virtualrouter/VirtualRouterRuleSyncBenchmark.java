@@ -0,0 +1,97 @@
+package org.zstack.test.virtualrouter;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.RuleSetDigest;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SyncPortForwardingRuleCmd;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SyncRulesCmd;
+import org.zstack.network.service.virtualrouter.VirtualRouterRuleSet;
+import org.zstack.network.service.virtualrouter.portforwarding.PortForwardingRuleTO;
+import org.zstack.utils.Utils;
+import org.zstack.utils.gson.JSONObjectUtil;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+
+/**
+ * compares the payload and the time of the full port forwarding sync against the differential sync of a virtual
+ * router with many rules, of which a few changed while it was disconnected. Not in any test suite, e.g.
+ *
+ * mvn test -Dtest=VirtualRouterRuleSyncBenchmark -Drules=10000 -Dchanges=10
+ */
+public class VirtualRouterRuleSyncBenchmark {
+    CLogger logger = Utils.getLogger(VirtualRouterRuleSyncBenchmark.class);
+    int ruleNum = Integer.valueOf(System.getProperty("rules", "10000"));
+    int changeNum = Integer.valueOf(System.getProperty("changes", "10"));
+
+    private PortForwardingRuleTO makeRule(int i, String privateIp) {
+        PortForwardingRuleTO to = new PortForwardingRuleTO();
+        to.setVipIp(String.format("72.2.%s.%s", i / 250, i % 250));
+        to.setVipPortStart(1000 + i % 50000);
+        to.setVipPortEnd(1000 + i % 50000);
+        to.setPrivateIp(privateIp);
+        to.setPrivatePortStart(80);
+        to.setPrivatePortEnd(80);
+        to.setPrivateMac("fa:16:3e:00:00:01");
+        to.setProtocolType("TCP");
+        to.setAllowedCidr("0.0.0.0/0");
+        return to;
+    }
+
+    private VirtualRouterRuleSet makeRuleSet(Map<String, PortForwardingRuleTO> rules) {
+        VirtualRouterRuleSet ruleSet = new VirtualRouterRuleSet();
+        ruleSet.declare(VirtualRouterRuleSet.PORT_FORWARDING);
+        for (Map.Entry<String, PortForwardingRuleTO> e : rules.entrySet()) {
+            ruleSet.addPortForwardingRule(e.getKey(), e.getValue());
+        }
+        return ruleSet;
+    }
+
+    @Test
+    public void test() {
+        Map<String, PortForwardingRuleTO> rules = new HashMap<String, PortForwardingRuleTO>(ruleNum);
+        for (int i=0; i<ruleNum; i++) {
+            rules.put(String.format("rule-%s", i), makeRule(i, "10.0.0.10"));
+        }
+
+        // what the agent has after the first sync
+        SyncRulesCmd first = makeRuleSet(rules).diff(null);
+        Assert.assertEquals(ruleNum, first.getAddedPortForwardingRules().size());
+        RuleSetDigest agent = first.getRuleSets().get(VirtualRouterRuleSet.PORT_FORWARDING);
+
+        // a few rules changed or removed while the virtual router was disconnected
+        for (int i=0; i<changeNum; i++) {
+            if (i % 2 == 0) {
+                rules.put(String.format("rule-%s", i), makeRule(i, "10.0.0.20"));
+            } else {
+                rules.remove(String.format("rule-%s", i));
+            }
+        }
+
+        long start = System.nanoTime();
+        SyncPortForwardingRuleCmd full = new SyncPortForwardingRuleCmd();
+        full.setRules(new ArrayList<PortForwardingRuleTO>(rules.values()));
+        String fullPayload = JSONObjectUtil.toJsonString(full);
+        long fullCost = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        VirtualRouterRuleSet ruleSet = makeRuleSet(rules);
+        Map<String, String> digests = ruleSet.getDigests();
+        Assert.assertFalse(digests.get(VirtualRouterRuleSet.PORT_FORWARDING).equals(agent.getDigest()));
+        Map<String, RuleSetDigest> agentRuleSets = new HashMap<String, RuleSetDigest>();
+        agentRuleSets.put(VirtualRouterRuleSet.PORT_FORWARDING, agent);
+        String digestPayload = JSONObjectUtil.toJsonString(agentRuleSets);
+        SyncRulesCmd diff = ruleSet.diff(agentRuleSets);
+        String diffPayload = JSONObjectUtil.toJsonString(diff);
+        long diffCost = System.nanoTime() - start;
+
+        Assert.assertEquals((changeNum + 1) / 2, diff.getAddedPortForwardingRules().size());
+        Assert.assertEquals(changeNum, diff.getRemovedPortForwardingRules().size());
+        Assert.assertNull(makeRuleSet(rules).diff(diff.getRuleSets()));
+
+        logger.info(String.format("[full sync]: %s rules, %s bytes, %s ms", rules.size(), fullPayload.length(), fullCost / 1000000));
+        logger.info(String.format("[differential sync]: %s added, %s removed, %s bytes of digest reply, %s bytes of sync command, %s ms",
+                diff.getAddedPortForwardingRules().size(), diff.getRemovedPortForwardingRules().size(),
+                digestPayload.length(), diffPayload.length(), diffCost / 1000000));
+    }
+}
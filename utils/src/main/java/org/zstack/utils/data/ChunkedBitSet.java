@@ -0,0 +1,187 @@
+package org.zstack.utils.data;
+
+/**
+ * A fixed size bit set split into chunks of 4096 bits. Chunks that are completely
+ * clear or completely set don't allocate any bitmap, only partially used chunks do;
+ * so a mostly empty or mostly full /16 costs a few hundred bytes instead of 8K.
+ *
+ * Cardinality is maintained per chunk, so isFull() and finding a clear chunk are O(1)
+ * per chunk. This class is not thread safe.
+ */
+public class ChunkedBitSet {
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_BITS = 1 << CHUNK_SHIFT;
+    private static final int WORDS_PER_CHUNK = CHUNK_BITS >>> 6;
+    private static final long[] FULL = new long[0];
+
+    private final int size;
+    private final long[][] chunks;
+    private final int[] chunkCardinality;
+    private int cardinality;
+
+    public ChunkedBitSet(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException(String.format("size[%s] cannot be negative", size));
+        }
+
+        this.size = size;
+        int num = (size + CHUNK_BITS - 1) >>> CHUNK_SHIFT;
+        chunks = new long[num][];
+        chunkCardinality = new int[num];
+    }
+
+    private int chunkLength(int chunkIndex) {
+        return Math.min(CHUNK_BITS, size - (chunkIndex << CHUNK_SHIFT));
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(String.format("index[%s] is out of [0, %s)", index, size));
+        }
+    }
+
+    private long[] materializeFullChunk(int chunkIndex) {
+        int len = chunkLength(chunkIndex);
+        long[] words = new long[WORDS_PER_CHUNK];
+        int fullWords = len >>> 6;
+        for (int i = 0; i < fullWords; i++) {
+            words[i] = -1L;
+        }
+        int rest = len & 63;
+        if (rest != 0) {
+            words[fullWords] = (1L << rest) - 1;
+        }
+        return words;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isFull() {
+        return cardinality == size;
+    }
+
+    public boolean get(int index) {
+        checkIndex(index);
+        int ci = index >>> CHUNK_SHIFT;
+        long[] words = chunks[ci];
+        if (words == null) {
+            return false;
+        }
+        if (words == FULL) {
+            return true;
+        }
+
+        int offset = index & (CHUNK_BITS - 1);
+        return (words[offset >>> 6] & (1L << offset)) != 0;
+    }
+
+    /**
+     * @return true if the bit was clear before
+     */
+    public boolean set(int index) {
+        checkIndex(index);
+        int ci = index >>> CHUNK_SHIFT;
+        long[] words = chunks[ci];
+        if (words == FULL) {
+            return false;
+        }
+        if (words == null) {
+            words = new long[WORDS_PER_CHUNK];
+            chunks[ci] = words;
+        }
+
+        int offset = index & (CHUNK_BITS - 1);
+        long mask = 1L << offset;
+        if ((words[offset >>> 6] & mask) != 0) {
+            return false;
+        }
+
+        words[offset >>> 6] |= mask;
+        cardinality ++;
+        if (++ chunkCardinality[ci] == chunkLength(ci)) {
+            chunks[ci] = FULL;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the bit was set before
+     */
+    public boolean clear(int index) {
+        checkIndex(index);
+        int ci = index >>> CHUNK_SHIFT;
+        long[] words = chunks[ci];
+        if (words == null) {
+            return false;
+        }
+        if (words == FULL) {
+            words = materializeFullChunk(ci);
+            chunks[ci] = words;
+        }
+
+        int offset = index & (CHUNK_BITS - 1);
+        long mask = 1L << offset;
+        if ((words[offset >>> 6] & mask) == 0) {
+            return false;
+        }
+
+        words[offset >>> 6] &= ~mask;
+        cardinality --;
+        if (-- chunkCardinality[ci] == 0) {
+            chunks[ci] = null;
+        }
+        return true;
+    }
+
+    /**
+     * @return index of the first clear bit at or after fromIndex, or -1 if there is none
+     */
+    public int nextClearBit(int fromIndex) {
+        if (fromIndex < 0) {
+            throw new IndexOutOfBoundsException(String.format("fromIndex[%s] cannot be negative", fromIndex));
+        }
+
+        for (int ci = fromIndex >>> CHUNK_SHIFT; ci < chunks.length; ci++) {
+            long[] words = chunks[ci];
+            if (words == FULL) {
+                continue;
+            }
+
+            int base = ci << CHUNK_SHIFT;
+            int offset = fromIndex > base ? fromIndex - base : 0;
+            if (words == null) {
+                return base + offset;
+            }
+
+            int wi = offset >>> 6;
+            long word = ~words[wi] & (-1L << offset);
+            while (true) {
+                if (word != 0) {
+                    int ret = base + (wi << 6) + Long.numberOfTrailingZeros(word);
+                    return ret < size ? ret : -1;
+                }
+
+                if (++ wi == WORDS_PER_CHUNK) {
+                    break;
+                }
+                word = ~words[wi];
+            }
+        }
+
+        return -1;
+    }
+
+    public void clear() {
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = null;
+            chunkCardinality[i] = 0;
+        }
+        cardinality = 0;
+    }
+}
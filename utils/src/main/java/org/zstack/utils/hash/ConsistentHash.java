@@ -4,6 +4,8 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -50,6 +52,10 @@ public class ConsistentHash<T> {
         return false;
     }
 
+    public Set<T> getNodes() {
+        return new HashSet<T>(circle.values());
+    }
+
     public T get(Object key) {
         if (circle.isEmpty()) {
             return null;
@@ -0,0 +1,51 @@
+package com.zstack.utils.test;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.utils.data.ChunkedBitSet;
+
+import java.util.BitSet;
+import java.util.Random;
+
+public class TestChunkedBitSet {
+    private void compare(int size) {
+        Random r = new Random();
+        ChunkedBitSet bits = new ChunkedBitSet(size);
+        BitSet expected = new BitSet(size);
+        for (int i = 0; i < size * 4; i++) {
+            int index = r.nextInt(size);
+            if (r.nextInt(3) > 0) {
+                Assert.assertEquals(!expected.get(index), bits.set(index));
+                expected.set(index);
+            } else {
+                Assert.assertEquals(expected.get(index), bits.clear(index));
+                expected.clear(index);
+            }
+
+            int from = r.nextInt(size);
+            int clear = expected.nextClearBit(from);
+            Assert.assertEquals(clear >= size ? -1 : clear, bits.nextClearBit(from));
+            Assert.assertEquals(expected.cardinality(), bits.cardinality());
+        }
+
+        for (int i = 0; i < size; i++) {
+            bits.set(i);
+        }
+        Assert.assertTrue(bits.isFull());
+        Assert.assertEquals(-1, bits.nextClearBit(0));
+
+        bits.clear(size - 1);
+        Assert.assertEquals(size - 1, bits.nextClearBit(0));
+    }
+
+    @Test
+    public void test() {
+        compare(1);
+        compare(64);
+        compare(65);
+        compare(4096);
+        compare(4097);
+        compare(10000);
+        compare(65536);
+    }
+}